@@ -63,6 +63,14 @@ export function requestCreateInventoryItem(invItem, func, errorFunc) {
     sendRequest("create_inv_item", invItem, func, errorFunc);
 }
 
+export function requestUpdateQuantity(invItem, func, errorFunc) {
+    const args = {id: invItem.id, quantity: invItem.quantity};
+    if (invItem.lastAdded !== undefined && invItem.lastAdded !== null) {
+        args.lastAdded = invItem.lastAdded;
+    }
+    sendRequest("update_inv_item_quantity", args, func, errorFunc);
+}
+
 export function requestDeleteItem(invItem, func, errorFunc) {
 
 }
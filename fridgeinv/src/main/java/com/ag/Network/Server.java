@@ -4,11 +4,13 @@ import javax.websocket.*;
 import javax.websocket.server.ServerEndpoint;
 
 import com.ag.DynamicObject;
+import com.ag.DynamicType;
 import com.ag.json.JsonConfig;
 import com.ag.json.JsonFormatter;
 import com.ag.json.JsonParser;
 
 import java.io.IOException;
+import java.util.concurrent.CompletionException;
 
 @ServerEndpoint(value = "/Server")
 public class Server {
@@ -30,23 +32,57 @@ public class Server {
     }
 
     @OnMessage
-    public String onMessage(Session session, String jsonData) throws IOException {
+    public void onMessage(Session session, String jsonData) throws IOException {
         JsonParser parser = new JsonParser();
         DynamicObject request = parser.parse(jsonData);
         System.out.println("Received message: " + session + " :: " + request.toString());
 
         ServerCommandHandler commandHandler = ServerCommandHandler.getInstance();
 
-        DynamicObject response = commandHandler.handleRequest(request);
+        // the container thread is free again as soon as the request is handed off, the response is sent once ready
+        commandHandler.handleRequest(request).thenAccept(response -> {
+            if (response.getAsBoolean(ServerCommandHandler.ERROR_IND) 
+                    && commandHandler.isBroadcasted(request)) {
+                broadcast(session, response);
+            }
 
-        if (response.getAsBoolean(ServerCommandHandler.ERROR_IND) 
-                && commandHandler.isBroadcasted(request)) {
-            broadcast(session, response);
-        }
-            
+            writeRequestFields(response);
+            JsonFormatter formatter = new JsonFormatter(true);
+            sendResponse(session, formatter.format(response));
+        }).exceptionally(failure -> {
+            System.out.println("Failed to respond: " + session + " :: " + failure);
+            failure.printStackTrace();
+            sendError(session, request, failure);
+            return null;
+        });
+    }
+
+    /**
+     * Answers a request whose response could not be sent with an error response of its own, so that the client is not
+     * left waiting.
+     */
+    private void sendError(Session session, DynamicObject request, Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && null != failure.getCause() ? failure.getCause() : failure;
+        DynamicObject response = new DynamicObject(DynamicType.OBJECT);
+        response.put(ServerCommandHandler.ERROR_IND, true);
+        response.put(ServerCommandHandler.ERROR_MESSAGE, "Failed to respond: " + cause);
+        response.put(KEY_REQUEST_SEQUENCE, request.get(KEY_REQUEST_SEQUENCE));
         writeRequestFields(response);
-        JsonFormatter formatter = new JsonFormatter(true);
-        return formatter.format(response);
+        sendResponse(session, new JsonFormatter(true).format(response));
+    }
+
+    /**
+     * Responses of requests in flight at the same time complete on different threads, a session only takes one send at
+     * a time.
+     */
+    private void sendResponse(Session session, String response) {
+        synchronized (session) {
+            try {
+                session.getBasicRemote().sendText(response);
+            } catch (IOException e) {
+                System.out.println("Failed to send response: " + session + " :: " + e);
+            }
+        }
     }
 
     private void writeRequestFields(DynamicObject args) {
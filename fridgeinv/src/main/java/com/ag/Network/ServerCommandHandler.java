@@ -1,22 +1,30 @@
 package com.ag.Network;
 
-import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.ag.DynamicObject;
 import com.ag.DynamicType;
+import com.ag.database.AsyncStorer;
 import com.ag.database.FlatFileStorerFactory;
 import com.ag.database.InventoryItem;
+import com.ag.database.MaterializedView;
+import com.ag.database.ReplicationFollower;
+import com.ag.database.ReplicationPrimary;
 import com.ag.database.Storable;
 import com.ag.database.Store;
-import com.ag.database.Storer;
 import com.ag.database.SurrogateKeyManager;
 import com.ag.json.JsonParser;
+import com.ag.util.DateUtils;
 
 public class ServerCommandHandler {
 
@@ -24,8 +32,11 @@ public class ServerCommandHandler {
     private static final String CREATE_INVENTORY_ITEM = "create_inv_item";
     private static final String CREATE_STORE = "create_store";
     private static final String GET_ALL_STORE = "get_all_store";
+    private static final String UPDATE_INVENTORY_ITEM_QUANTITY = "update_inv_item_quantity";
     private static final String GET_ALL_SHELF = "get_all_shelf";
     private static final String GET_ALL_SHELF_INV_ITEM = "get_all_shelf_inv_item";
+    private static final String GET_REPLICATION_STATUS = "get_replication_status";
+    private static final String GET_VIEW = "get_view";
 
     // argument keys
     public static final String VALUE = "value";
@@ -34,21 +45,48 @@ public class ServerCommandHandler {
     public static final String ERROR_IND = "error_ind";
     public static final String ERROR_MESSAGE = "error_msg";
     public static final String ID = "id";
+    public static final String QUANTITY = "quantity";
+    public static final String LAST_ADDED = "lastAdded";
+    public static final String ROLE = "role";
+    public static final String APPLIED_SEQUENCE = "appliedSequence";
+    public static final String LAG_RECORDS = "lagRecords";
+    public static final String LAG_MILLIS = "lagMillis";
+    public static final String CONNECTED = "connected";
+    public static final String FOLLOWERS = "followers";
+    public static final String TYPE = "type";
+    public static final String VIEW = "view";
+    public static final String GROUP = "group";
 
     private static ServerCommandHandler instance;
 
     private Map<String, CommandHandler> commandHandlers = new HashMap<>();
     private Set<String> broadcastCommands = new HashSet<>();
+    // the commands a replication follower answers, it must not write to its storers
+    private Set<String> readOnlyCommands = new HashSet<>();
+    // the stored classes by the type name clients use
+    private Map<String, Class<? extends Storable>> storableTypes = new HashMap<>();
 
     private ServerCommandHandler() {
         // handlers setup
         commandHandlers.put(CREATE_INVENTORY_ITEM, args -> respondToCreateAndSaveStorable(args, InventoryItem.class));
         commandHandlers.put(CREATE_STORE, args -> respondToCreateAndSaveStorable(args, Store.class));
         commandHandlers.put(GET_ALL_STORE, args -> getAllStore(args));
+        commandHandlers.put(UPDATE_INVENTORY_ITEM_QUANTITY, args -> updateInventoryItemQuantity(args));
+        commandHandlers.put(GET_REPLICATION_STATUS, args -> getReplicationStatus(args));
+        commandHandlers.put(GET_VIEW, args -> getView(args));
 
         // broadcast commands setup
         broadcastCommands.add(CREATE_STORE);
         broadcastCommands.add(CREATE_INVENTORY_ITEM);
+
+        // read-only commands setup
+        readOnlyCommands.add(GET_ALL_STORE);
+        readOnlyCommands.add(GET_REPLICATION_STATUS);
+        readOnlyCommands.add(GET_VIEW);
+
+        // storable types setup
+        storableTypes.put(InventoryItem.class.getSimpleName(), InventoryItem.class);
+        storableTypes.put(Store.class.getSimpleName(), Store.class);
     }
 
     public static ServerCommandHandler getInstance() {
@@ -59,21 +97,34 @@ public class ServerCommandHandler {
     }
 
     private interface CommandHandler {
-        DynamicObject handle(DynamicObject args);
+        CompletableFuture<DynamicObject> handle(DynamicObject args);
     }
 
-    public DynamicObject handleRequest(DynamicObject request) {
+    /**
+     * Handles the request without blocking the calling thread on storage, the returned future completes with the
+     * response once the storage work is done.
+     */
+    public CompletableFuture<DynamicObject> handleRequest(DynamicObject request) {
         // always make sure the args have necessary values
         if (!request.containsKey(ERROR_IND)) {
             request.put(ERROR_IND, false);
         }
 
+        if (null != FlatFileStorerFactory.getReplicationFollower() && !readOnlyCommands.contains(request.get(COMMAND))) {
+            return CompletableFuture.completedFuture(setError(request, "Read-only replication follower, command '"
+                    + request.get(COMMAND) + "' must be sent to the primary"));
+        }
+        CompletableFuture<DynamicObject> response;
         try {
-            return commandHandlers.getOrDefault(request.get(COMMAND), args -> returnNoSuchCommand(args)).handle(request);
+            response = commandHandlers.getOrDefault(request.get(COMMAND), args -> returnNoSuchCommand(args)).handle(request);
         } catch (Exception e) {
-            e.printStackTrace();
-            return setError(request, e.getMessage());
+            response = CompletableFuture.failedFuture(e);
         }
+        return response.exceptionally(failure -> {
+            Throwable cause = failure instanceof CompletionException && null != failure.getCause() ? failure.getCause() : failure;
+            cause.printStackTrace();
+            return setError(request, cause.getMessage());
+        });
     }
 
     public boolean isBroadcasted(DynamicObject args) {
@@ -81,22 +132,37 @@ public class ServerCommandHandler {
     }
     
     @SuppressWarnings("unchecked")
-    private <T extends Storable> void persistStorable(T storable) {
+    private <T extends Storable> CompletableFuture<Void> persistStorable(T storable) {
+        AsyncStorer<T> storer = (AsyncStorer<T>) FlatFileStorerFactory.getAsyncStorer(storable.getClass());
+        return storer.save(storable);
+    }
+
+    public <T extends Storable> T createAndSaveStorable(Class<T> storeableType, DynamicObject args) {
         try {
-            Storer<T> storer = (Storer<T>) FlatFileStorerFactory.getStorer(storable.getClass());
-            storer.save(storable);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to persist storable", e);
+            return createAndSaveStorableAsync(storeableType, args).join();
+        } catch (CompletionException e) {
+            throw new RuntimeException("Failed to persist storable", e.getCause());
         }
     }
 
-    public <T extends Storable> T createAndSaveStorable(Class<T> storeableType, DynamicObject args) {
+    public <T extends Storable> CompletableFuture<T> createAndSaveStorableAsync(Class<T> storeableType, DynamicObject args) {
+        CompletableFuture<T> created;
+        try {
+            // running out of keys writes the next key block to disk, which must not hold up the calling thread
+            created = CompletableFuture.supplyAsync(() -> createStorable(storeableType, args),
+                    FlatFileStorerFactory.getIoExecutor());
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return created.thenCompose(storable -> persistStorable(storable).thenApply(saved -> storable));
+    }
+
+    private <T extends Storable> T createStorable(Class<T> storeableType, DynamicObject args) {
         Long key = SurrogateKeyManager.getInstance().nextKey(storeableType);
         try {
             T storable = storeableType.getConstructor(long.class).newInstance(key);
             JsonParser parser = new JsonParser();
             parser.initializeInstance(storable, args);
-            persistStorable(storable);
             return storable;
         } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException
                 | NoSuchMethodException | SecurityException e) {
@@ -105,25 +171,120 @@ public class ServerCommandHandler {
         }
     }
 
-    public <T extends Storable> DynamicObject respondToCreateAndSaveStorable(DynamicObject args, Class<T> storableClass) {
-        Storable stored = createAndSaveStorable(storableClass, args);
-        return args.put(ERROR_IND, null == stored).put(ID, stored.getId());
+    public <T extends Storable> CompletableFuture<DynamicObject> respondToCreateAndSaveStorable(DynamicObject args,
+            Class<T> storableClass) {
+        return createAndSaveStorableAsync(storableClass, args)
+                .thenApply(stored -> args.put(ERROR_IND, null == stored).put(ID, stored.getId()));
+    }
+
+    public CompletableFuture<DynamicObject> getAllStore(DynamicObject args) {
+        AsyncStorer<Store> storeStorer = FlatFileStorerFactory.getAsyncStorer(Store.class);
+        return storeStorer.getIds()
+                .thenCompose(storeStorer::loadAllId)
+                .thenApply(stores -> args.put(VALUE, new DynamicObject(DynamicType.ARRAY, stores)));
     }
 
-    public DynamicObject getAllStore(DynamicObject args) {
-        Storer<Store> storeStorer = FlatFileStorerFactory.getStorer(Store.class);
-        List<Store> stores;
+    /**
+     * Sets the quantity, and the date last added when given, as one field update instead of saving the whole item.
+     */
+    public CompletableFuture<DynamicObject> updateInventoryItemQuantity(DynamicObject args) {
+        AsyncStorer<InventoryItem> itemStorer = FlatFileStorerFactory.getAsyncStorer(InventoryItem.class);
+        // the client sends every value as a string
+        long id = Long.parseLong(String.valueOf(args.get(ID)));
+        int quantity;
         try {
-            stores = storeStorer.loadAllId(storeStorer.getIds());
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to load created stores", e);
+            quantity = Integer.parseInt(String.valueOf(args.get(QUANTITY)));
+        } catch (NumberFormatException e) {
+            return CompletableFuture.completedFuture(setError(args, "Quantity '" + args.get(QUANTITY)
+                    + "' is not a whole number"));
+        }
+        if (quantity < 0) {
+            return CompletableFuture.completedFuture(setError(args, "Quantity " + quantity + " is negative"));
+        }
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put(QUANTITY, quantity);
+        if (args.containsKey(LAST_ADDED)) {
+            fields.put(LAST_ADDED, DateUtils.parseDate(args.getAsString(LAST_ADDED)));
+        }
+        return itemStorer.update(id, fields).thenApply(updated -> args);
+    }
+
+    /**
+     * Reports the replication role of this server and, on a follower, how far it is behind the primary.
+     */
+    public CompletableFuture<DynamicObject> getReplicationStatus(DynamicObject args) {
+        ReplicationFollower follower = FlatFileStorerFactory.getReplicationFollower();
+        ReplicationPrimary primary = FlatFileStorerFactory.getReplicationPrimary();
+        if (null != follower) {
+            args.put(ROLE, "follower");
+            args.put(CONNECTED, follower.isConnected());
+            args.put(APPLIED_SEQUENCE, follower.getAppliedSequence());
+            args.put(LAG_RECORDS, follower.getLagRecords());
+            args.put(LAG_MILLIS, follower.getLagMillis());
+        } else if (null != primary) {
+            args.put(ROLE, "primary");
+            args.put(FOLLOWERS, primary.getFollowerCount());
+        } else {
+            args.put(ROLE, "none");
+        }
+        return CompletableFuture.completedFuture(args);
+    }
+
+    /**
+     * Returns what a materialized view of the storer of the type keeps, without scanning the storer: the value or ids of
+     * the given group, or of every group when none is given.
+     */
+    public CompletableFuture<DynamicObject> getView(DynamicObject args) {
+        String type = String.valueOf(args.get(TYPE));
+        Class<? extends Storable> storableType = storableTypes.get(type);
+        if (null == storableType) {
+            return CompletableFuture.completedFuture(setError(args, "Unknown type: '" + type + "'"));
+        }
+        String name = String.valueOf(args.get(VIEW));
+        // one view per shard
+        List<? extends MaterializedView<?>> views = FlatFileStorerFactory.getViews(storableType, name);
+        if (views.isEmpty()) {
+            return CompletableFuture.completedFuture(setError(args, "Unknown view of " + type + ": '" + name + "'"));
+        }
+        MaterializedView<?> first = views.get(0);
+        if (null == first.getGroupFieldName()) {
+            putViewResult(args, VALUE, views, null);
+        } else if (args.containsKey(GROUP)) {
+            putViewResult(args, VALUE, views, String.valueOf(args.get(GROUP)));
+        } else {
+            Set<String> groups = new TreeSet<>();
+            for (MaterializedView<?> view : views) {
+                groups.addAll(view.getGroups());
+            }
+            DynamicObject value = args.putObject(VALUE);
+            for (String group : groups) {
+                putViewResult(value, group, views, group);
+            }
+        }
+        return CompletableFuture.completedFuture(args);
+    }
+
+    private void putViewResult(DynamicObject target, String key, List<? extends MaterializedView<?>> views,
+            String group) {
+        MaterializedView.Aggregate aggregate = views.get(0).getAggregate();
+        if (MaterializedView.Aggregate.IDS == aggregate) {
+            DynamicObject ids = target.putArray(key);
+            for (MaterializedView<?> view : views) {
+                for (long id : view.getIds(group)) {
+                    ids.add(id);
+                }
+            }
+        } else {
+            Long value = null;
+            for (MaterializedView<?> view : views) {
+                value = MaterializedView.combine(aggregate, value, view.getValue(group));
+            }
+            target.put(key, value);
         }
-        DynamicObject storesArray = new DynamicObject(DynamicType.ARRAY, stores);
-        return args.put(VALUE, storesArray);
     }
 
-    private DynamicObject returnNoSuchCommand(DynamicObject args) {
-        return setError(args, "Unknown command: '" + args.get(COMMAND) + "'");
+    private CompletableFuture<DynamicObject> returnNoSuchCommand(DynamicObject args) {
+        return CompletableFuture.completedFuture(setError(args, "Unknown command: '" + args.get(COMMAND) + "'"));
     }
 
     private DynamicObject setError(DynamicObject args, String message) {
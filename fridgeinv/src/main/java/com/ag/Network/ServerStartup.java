@@ -0,0 +1,56 @@
+package com.ag.Network;
+
+import javax.websocket.Endpoint;
+import javax.websocket.server.ServerApplicationConfig;
+import javax.websocket.server.ServerEndpointConfig;
+
+import com.ag.database.FlatFileStorerFactory;
+import com.ag.database.InventoryItem;
+import com.ag.database.Store;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Found by the container when the application is deployed, before the {@link Server} endpoint takes its first
+ * connection. Opens the storers, starts replication and schedules the backups then, so that none of it waits for the
+ * first request.
+ * <p>
+ * Deploys the annotated endpoints as they were scanned, the container only deploys what this returns.
+ */
+public class ServerStartup implements ServerApplicationConfig {
+
+    @Override
+    public Set<ServerEndpointConfig> getEndpointConfigs(Set<Class<? extends Endpoint>> endpointClasses) {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Set<Class<?>> getAnnotatedEndpointClasses(Set<Class<?>> scanned) {
+        start();
+        return scanned;
+    }
+
+    private static void start() {
+        System.out.println("Server starting");
+        if (Server.config.getConfig(FlatFileStorerFactory.class).getAsBooleanOrDefault("preOpenStorers", false)) {
+            // open the storers at the same time instead of one after the other on demand
+            try {
+                FlatFileStorerFactory.preOpenStorers(InventoryItem.class, Store.class);
+            } catch (RuntimeException e) {
+                // opened again on first use, where the failure reaches the request
+                System.out.println("Failed to pre-open the storers: " + e);
+            }
+        }
+        try {
+            FlatFileStorerFactory.startReplication(InventoryItem.class, Store.class);
+        } catch (RuntimeException e) {
+            System.out.println("Failed to start replication: " + e);
+        }
+        try {
+            FlatFileStorerFactory.startBackups();
+        } catch (RuntimeException e) {
+            System.out.println("Failed to schedule backups: " + e);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.ag.database;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+/**
+ * The non-blocking companion of {@link Storer}: every method returns right away and does its work on an I/O executor.
+ * A failed operation completes its future exceptionally with the {@link java.io.IOException} the {@link Storer} would
+ * have thrown, or with a {@link java.util.concurrent.RejectedExecutionException} when the executor is saturated.
+ * <p>
+ * Writes to the same id run one after the other in the order they were issued. Objects passed to a write must not be
+ * changed before its future completes.
+ */
+public interface AsyncStorer<T extends Storable> {
+
+    /**
+     * The storer the work is done by.
+     */
+    public abstract Storer<T> getStorer();
+
+    public abstract CompletableFuture<T> load(long id);
+
+    public abstract CompletableFuture<List<T>> loadAll(List<T> objects);
+
+    public abstract CompletableFuture<List<T>> loadAllId(Set<Long> ids);
+
+    public abstract CompletableFuture<Long> savedEntries();
+
+    public abstract CompletableFuture<Void> save(T object);
+
+    public abstract CompletableFuture<Void> saveAll(List<T> objects);
+
+    public abstract CompletableFuture<Void> update(long id, String field, Object value);
+
+    public abstract CompletableFuture<Void> update(long id, Map<String, Object> fields);
+
+    public abstract CompletableFuture<Long> increment(long id, String field, long delta);
+
+    public abstract CompletableFuture<Void> delete(T object);
+
+    public abstract CompletableFuture<Void> deleteId(long id);
+
+    public abstract CompletableFuture<Void> deleteAll(List<T> objects);
+
+    public abstract CompletableFuture<Void> deleteAllId(List<Long> ids);
+
+    /**
+     * Completes with a copy of the persisted ids.
+     */
+    public abstract CompletableFuture<Set<Long>> getIds();
+
+    public abstract CompletableFuture<Boolean> contains(Long id);
+
+    public abstract CompletableFuture<Boolean> contains(Predicate<T> matches);
+
+    public abstract CompletableFuture<Set<Long>> lookup(String field, Object value);
+
+    public abstract CompletableFuture<List<T>> query(Query<T> query);
+
+    public abstract CompletableFuture<T> matches(Predicate<T> matcher);
+
+    public abstract CompletableFuture<List<T>> allMatches(Predicate<T> matcher);
+}
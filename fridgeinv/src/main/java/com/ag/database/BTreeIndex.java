@@ -0,0 +1,706 @@
+package com.ag.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.ag.database.StorableSchema.SchemaField;
+
+/**
+ * A B+tree over the values of one field, kept in fixed size pages of its own file, for range queries in the order of
+ * the field. Objects whose field is null are not indexed.
+ * <p>
+ * Entries are ordered by an order preserving byte encoding of the value and then by id, so every entry is unique.
+ * Numbers, dates, booleans and characters are ordered by value, strings by code point with only the first
+ * {@value #MAX_KEY_BYTES} bytes of their UTF-8 encoding taken into account. Leaves are linked from left to right, a
+ * range query descends to the first entry once and then follows the leaves, reading O(log N + k) pages for k entries.
+ * <p>
+ * Deleted entries are removed from their leaf without merging pages, the space is reused by later inserts into the same
+ * range and reclaimed when the index is rebuilt. Recently used pages are cached, changed pages are written when they
+ * leave the cache and when the index is written. The file is marked as in use while the storer is open, so it is not
+ * trusted after a crash.
+ * <p>
+ * The value of every indexed id is also kept in memory, to find the entry to replace when an object changes. All
+ * methods are synchronized, range queries only hold the lock while collecting the next batch of ids.
+ */
+public class BTreeIndex<T> implements StorerIndex<T> {
+
+    static final int PAGE_SIZE = 4096;
+    static final int MAX_KEY_BYTES = 255;
+    private static final int MAGIC = 0x41474254; // "AGBT"
+    private static final int VERSION = 1;
+    private static final int HEADER_PAGE = 0;
+    private static final int NO_PAGE = -1;
+    private static final int NODE_HEADER_BYTES = 11;
+    private static final int CACHED_PAGES = 256;
+    private static final int RANGE_BATCH = 256;
+
+    private static final byte LEAF = 0;
+    private static final byte INTERNAL = 1;
+
+    private static final byte KIND_NUMBER = 1;
+    private static final byte KIND_DECIMAL = 2;
+    private static final byte KIND_BOOLEAN = 3;
+    private static final byte KIND_STRING = 4;
+
+    private static final byte[] LOWEST_KEY = new byte[0];
+
+    private final SchemaField field;
+    private final byte kind;
+    // id -> encoded value, needed to find the old entry when an object changes or is deleted
+    private final Map<Long, byte[]> keyById = new HashMap<>();
+    private final Map<Integer, Node> cache = new LinkedHashMap<Integer, Node>(CACHED_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Node> eldest) {
+            if (size() <= CACHED_PAGES) {
+                return false;
+            }
+            writeIfDirty(eldest.getValue());
+            return true;
+        }
+    };
+
+    private FileChannel channel;
+    private int rootPage;
+    private int pageCount;
+    private long pageReads;
+
+    /**
+     * An entry of a page. In an internal page the child holds the entries from this one up to the next.
+     */
+    private static final class Entry {
+        final byte[] key;
+        final long id;
+        int child = NO_PAGE;
+
+        Entry(byte[] key, long id) {
+            this.key = key;
+            this.id = id;
+        }
+    }
+
+    private static final class Node {
+        final int page;
+        final boolean leaf;
+        // the right sibling of a leaf
+        int next = NO_PAGE;
+        // the child holding the entries before the first one of an internal page
+        int firstChild = NO_PAGE;
+        final List<Entry> entries = new ArrayList<>();
+        boolean dirty;
+
+        Node(int page, boolean leaf) {
+            this.page = page;
+            this.leaf = leaf;
+        }
+
+        int encodedSize() {
+            int size = NODE_HEADER_BYTES;
+            for (Entry entry : entries) {
+                size += entryBytes(entry, leaf);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * @param schema the schema of the stored class.
+     * @param fieldName the stored name of the indexed field, of a number, date, boolean, character or string type.
+     */
+    public BTreeIndex(StorableSchema<T> schema, String fieldName) {
+        this.field = schema.getField(fieldName);
+        this.kind = kindOf(field.getType());
+    }
+
+    private static byte kindOf(Class<?> type) {
+        if (type == long.class || type == int.class || type == short.class || type == byte.class
+                || type == char.class || type == Long.class || type == Integer.class || type == Short.class
+                || type == Byte.class || type == Character.class || Date.class.isAssignableFrom(type)) {
+            return KIND_NUMBER;
+        }
+        if (type == double.class || type == float.class || type == Double.class || type == Float.class) {
+            return KIND_DECIMAL;
+        }
+        if (type == boolean.class || type == Boolean.class) {
+            return KIND_BOOLEAN;
+        }
+        if (type == String.class) {
+            return KIND_STRING;
+        }
+        throw new IllegalArgumentException("Cannot keep a range index on '" + type.getSimpleName() + "'");
+    }
+
+    @Override
+    public String getName() {
+        return field.getName();
+    }
+
+    /**
+     * The number of pages read from the file since the index was created.
+     */
+    public synchronized long getPageReads() {
+        return pageReads;
+    }
+
+    /**
+     * The number of indexed ids.
+     */
+    public synchronized int size() {
+        return keyById.size();
+    }
+
+    /**
+     * Returns the ids of the objects whose field is at least from and less than to, ordered by the field and then by
+     * id. The ids are read in batches while the stream is consumed, so a limited stream only reads the pages it needs.
+     *
+     * @param from the lowest value, inclusive, or null to start with the lowest indexed value.
+     * @param to the highest value, exclusive, or null to end with the highest indexed value.
+     */
+    public Stream<Long> range(Object from, Object to) {
+        return range(null == from ? LOWEST_KEY : encode(from), Long.MIN_VALUE, false, null == to ? null : encode(to));
+    }
+
+    /**
+     * Continues a range after the entry of the given value and id, the last one of the previous page of results.
+     *
+     * @param value the value of the last object returned.
+     * @param id the id of the last object returned.
+     * @param to the highest value, exclusive, or null to end with the highest indexed value.
+     */
+    public Stream<Long> rangeAfter(Object value, long id, Object to) {
+        if (null == value) {
+            throw new IllegalArgumentException("Objects without a value are not indexed");
+        }
+        return range(encode(value), id, true, null == to ? null : encode(to));
+    }
+
+    /**
+     * Returns the ids of the objects whose field equals the value, ordered by id. Strings that only differ after the
+     * first {@value #MAX_KEY_BYTES} bytes share their key, so their ids are all returned.
+     */
+    public Stream<Long> equalTo(Object value) {
+        if (null == value) {
+            return Stream.empty();
+        }
+        byte[] key = encode(value);
+        // no key lies between a key and the key extended by a zero byte
+        return range(key, Long.MIN_VALUE, false, Arrays.copyOf(key, key.length + 1));
+    }
+
+    /**
+     * Returns the ids of the objects whose string field starts with the prefix, ordered by the field and then by id.
+     */
+    public Stream<Long> prefix(String prefix) {
+        if (KIND_STRING != kind) {
+            throw new IllegalArgumentException("'" + field + "' is not a string field");
+        }
+        byte[] key = encode(prefix);
+        if (key.length == MAX_KEY_BYTES) {
+            return equalTo(prefix);
+        }
+        // the first key after all keys starting with the prefix, none when the prefix is all 0xff bytes
+        byte[] toKey = null;
+        for (int i = key.length - 1; i >= 0 && null == toKey; i--) {
+            if ((byte) 0xff != key[i]) {
+                toKey = Arrays.copyOf(key, i + 1);
+                toKey[i]++;
+            }
+        }
+        return range(key, Long.MIN_VALUE, false, toKey);
+    }
+
+    private Stream<Long> range(byte[] fromKey, long fromId, boolean exclusive, byte[] toKey) {
+        Iterator<Long> ids = new Iterator<Long>() {
+            private byte[] lastKey = fromKey;
+            private long lastId = fromId;
+            private boolean afterLast = exclusive;
+            private List<Entry> batch = new ArrayList<>();
+            private int next;
+            private boolean exhausted;
+
+            @Override
+            public boolean hasNext() {
+                if (next < batch.size()) {
+                    return true;
+                }
+                if (exhausted) {
+                    return false;
+                }
+                batch = collect(lastKey, lastId, afterLast, toKey, RANGE_BATCH);
+                next = 0;
+                exhausted = batch.size() < RANGE_BATCH;
+                if (batch.isEmpty()) {
+                    return false;
+                }
+                Entry last = batch.get(batch.size() - 1);
+                lastKey = last.key;
+                lastId = last.id;
+                afterLast = true;
+                return true;
+            }
+
+            @Override
+            public Long next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.get(next++).id;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(ids,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Collects up to max entries starting at the given key and id, and ending before the given key.
+     */
+    private synchronized List<Entry> collect(byte[] fromKey, long fromId, boolean exclusive, byte[] toKey, int max) {
+        List<Entry> found = new ArrayList<>();
+        if (null == channel) {
+            return found;
+        }
+        Node node = readNode(rootPage);
+        while (!node.leaf) {
+            node = readNode(childFor(node, fromKey, fromId));
+        }
+        int i = search(node.entries, fromKey, fromId);
+        if (i >= 0 && exclusive) {
+            i++;
+        } else if (i < 0) {
+            i = -i - 1;
+        }
+        while (found.size() < max) {
+            if (i >= node.entries.size()) {
+                if (NO_PAGE == node.next) {
+                    break;
+                }
+                node = readNode(node.next);
+                i = 0;
+                continue;
+            }
+            Entry entry = node.entries.get(i++);
+            if (null != toKey && Arrays.compareUnsigned(entry.key, toKey) >= 0) {
+                break;
+            }
+            found.add(entry);
+        }
+        return found;
+    }
+
+    /**
+     * Returns the order preserving key the id is indexed under, or null when it is not indexed. Keys compare unsigned
+     * byte by byte, ties are ordered by id.
+     */
+    synchronized byte[] keyOf(long id) {
+        return keyById.get(id);
+    }
+
+    @Override
+    public synchronized void update(long id, T object) {
+        Object value = field.get(object);
+        byte[] key = null == value ? null : encode(value);
+        byte[] previous = keyById.get(id);
+        if (Arrays.equals(previous, key)) {
+            return;
+        }
+        if (null != previous) {
+            delete(previous, id);
+        }
+        if (null == key) {
+            keyById.remove(id);
+            return;
+        }
+        keyById.put(id, key);
+        insert(key, id);
+    }
+
+    @Override
+    public synchronized void remove(long id) {
+        byte[] previous = keyById.remove(id);
+        if (null != previous) {
+            delete(previous, id);
+        }
+    }
+
+    private void insert(byte[] key, long id) {
+        Entry split = insert(readNode(rootPage), new Entry(key, id));
+        if (null != split) {
+            Node root = newNode(false);
+            root.firstChild = rootPage;
+            root.entries.add(split);
+            rootPage = root.page;
+        }
+    }
+
+    /**
+     * Inserts the entry below the node, returns the entry to add to the parent when the node was split.
+     */
+    private Entry insert(Node node, Entry entry) {
+        if (node.leaf) {
+            int i = search(node.entries, entry.key, entry.id);
+            if (i >= 0) {
+                return null;
+            }
+            node.entries.add(-i - 1, entry);
+        } else {
+            Entry split = insert(readNode(childFor(node, entry.key, entry.id)), entry);
+            if (null == split) {
+                return null;
+            }
+            node.entries.add(-search(node.entries, split.key, split.id) - 1, split);
+        }
+        markDirty(node);
+        return node.encodedSize() > PAGE_SIZE ? split(node) : null;
+    }
+
+    private Entry split(Node node) {
+        // split by bytes, so that both halves fit into a page whatever the sizes of the keys
+        int half = node.encodedSize() / 2;
+        int bytes = NODE_HEADER_BYTES;
+        int at = 0;
+        while (at < node.entries.size() - 1 && bytes < half) {
+            bytes += entryBytes(node.entries.get(at++), node.leaf);
+        }
+        at = Math.max(at, 1);
+        Node right = newNode(node.leaf);
+        List<Entry> moved = node.entries.subList(at, node.entries.size());
+        Entry separator;
+        if (node.leaf) {
+            right.entries.addAll(moved);
+            right.next = node.next;
+            node.next = right.page;
+            separator = new Entry(right.entries.get(0).key, right.entries.get(0).id);
+        } else {
+            // the first entry moves up, its child becomes the first child of the new page
+            Entry promoted = moved.get(0);
+            right.firstChild = promoted.child;
+            right.entries.addAll(moved.subList(1, moved.size()));
+            separator = new Entry(promoted.key, promoted.id);
+        }
+        moved.clear();
+        separator.child = right.page;
+        markDirty(node);
+        markDirty(right);
+        return separator;
+    }
+
+    private void delete(byte[] key, long id) {
+        Node node = readNode(rootPage);
+        while (!node.leaf) {
+            node = readNode(childFor(node, key, id));
+        }
+        int i = search(node.entries, key, id);
+        if (i >= 0) {
+            node.entries.remove(i);
+            markDirty(node);
+        }
+    }
+
+    private static int compare(byte[] key, long id, Entry entry) {
+        int result = Arrays.compareUnsigned(key, entry.key);
+        return 0 != result ? result : Long.compare(id, entry.id);
+    }
+
+    /**
+     * Binary search for the key and id, returns the index of the entry or (-(insertion point) - 1).
+     */
+    private static int search(List<Entry> entries, byte[] key, long id) {
+        int low = 0;
+        int high = entries.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int result = compare(key, id, entries.get(mid));
+            if (result > 0) {
+                low = mid + 1;
+            } else if (result < 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static int childFor(Node node, byte[] key, long id) {
+        int i = search(node.entries, key, id);
+        if (i >= 0) {
+            return node.entries.get(i).child;
+        }
+        int before = -i - 2;
+        return before < 0 ? node.firstChild : node.entries.get(before).child;
+    }
+
+    private static int entryBytes(Entry entry, boolean leaf) {
+        return 2 + entry.key.length + 8 + (leaf ? 0 : 4);
+    }
+
+    /**
+     * Encodes the value so that comparing the unsigned bytes orders the values.
+     */
+    private byte[] encode(Object value) {
+        switch (kind) {
+            case KIND_NUMBER:
+                if (value instanceof Date) {
+                    return encodeLong(((Date) value).getTime());
+                }
+                if (value instanceof Character) {
+                    return encodeLong((Character) value);
+                }
+                if (value instanceof Number && !(value instanceof Double || value instanceof Float)) {
+                    return encodeLong(((Number) value).longValue());
+                }
+                break;
+            case KIND_DECIMAL:
+                if (value instanceof Number) {
+                    long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+                    // negative values are ordered backwards, so all of their bits are flipped
+                    return encodeLong(bits < 0 ? ~bits ^ Long.MIN_VALUE : bits);
+                }
+                break;
+            case KIND_BOOLEAN:
+                if (value instanceof Boolean) {
+                    return new byte[] {(byte) ((Boolean) value ? 1 : 0)};
+                }
+                break;
+            case KIND_STRING:
+                if (value instanceof String) {
+                    byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                    return bytes.length > MAX_KEY_BYTES ? Arrays.copyOf(bytes, MAX_KEY_BYTES) : bytes;
+                }
+                break;
+        }
+        throw new IllegalArgumentException("Cannot compare " + value.getClass().getSimpleName() + " '" + value
+                + "' with the values of '" + field + "'");
+    }
+
+    private static byte[] encodeLong(long value) {
+        // flipping the sign bit orders negative values before positive ones
+        return ByteBuffer.allocate(8).putLong(value ^ Long.MIN_VALUE).array();
+    }
+
+    private Node newNode(boolean leaf) {
+        Node node = new Node(pageCount++, leaf);
+        markDirty(node);
+        return node;
+    }
+
+    private void markDirty(Node node) {
+        node.dirty = true;
+        // an evicted page is written, putting it back keeps later changes of the same object
+        cache.put(node.page, node);
+    }
+
+    private Node readNode(int page) {
+        Node node = cache.get(page);
+        if (null == node) {
+            node = readPage(page);
+            cache.put(page, node);
+        }
+        return node;
+    }
+
+    private Node readPage(int page) {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        try {
+            readFully(buffer, (long) page * PAGE_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read page " + page + " of index '" + getName() + "'", e);
+        }
+        pageReads++;
+        buffer.flip();
+        Node node = new Node(page, LEAF == buffer.get());
+        int count = buffer.getShort() & 0xffff;
+        node.next = buffer.getInt();
+        node.firstChild = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[buffer.getShort() & 0xffff];
+            buffer.get(key);
+            Entry entry = new Entry(key, buffer.getLong());
+            if (!node.leaf) {
+                entry.child = buffer.getInt();
+            }
+            node.entries.add(entry);
+        }
+        return node;
+    }
+
+    private void writeIfDirty(Node node) {
+        if (!node.dirty) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        buffer.put(node.leaf ? LEAF : INTERNAL);
+        buffer.putShort((short) node.entries.size());
+        buffer.putInt(node.next);
+        buffer.putInt(node.firstChild);
+        for (Entry entry : node.entries) {
+            buffer.putShort((short) entry.key.length);
+            buffer.put(entry.key);
+            buffer.putLong(entry.id);
+            if (!node.leaf) {
+                buffer.putInt(entry.child);
+            }
+        }
+        buffer.clear();
+        try {
+            writeFully(buffer, (long) node.page * PAGE_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write page " + node.page + " of index '" + getName() + "'", e);
+        }
+        node.dirty = false;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of index file at " + (position + buffer.position()));
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void writeHeader(long fingerprint, boolean clean) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).put(kind).putLong(fingerprint).put((byte) (clean ? 1 : 0));
+        header.putInt(rootPage).putInt(pageCount);
+        header.clear();
+        writeFully(header, (long) HEADER_PAGE * PAGE_SIZE);
+    }
+
+    /**
+     * Starts a new tree with an empty root leaf.
+     */
+    private void reset() throws IOException {
+        cache.clear();
+        keyById.clear();
+        channel.truncate(0);
+        pageCount = HEADER_PAGE + 1;
+        rootPage = newNode(true).page;
+        writeHeader(0, false);
+    }
+
+    @Override
+    public synchronized void clear() {
+        if (null == channel) {
+            cache.clear();
+            keyById.clear();
+            return;
+        }
+        try {
+            reset();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to clear index '" + getName() + "'", e);
+        }
+    }
+
+    /**
+     * Writes all changed pages, marks the file as consistent with the fingerprint and closes it. The storer calls this
+     * when it is closed.
+     */
+    @Override
+    public synchronized void write(File file, long fingerprint) throws IOException {
+        if (null == channel) {
+            return;
+        }
+        try {
+            for (Node node : cache.values()) {
+                writeIfDirty(node);
+            }
+            channel.force(false);
+            writeHeader(fingerprint, true);
+            channel.force(false);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            channel.close();
+            channel = null;
+            cache.clear();
+            keyById.clear();
+        }
+    }
+
+    /**
+     * Opens the file, which holds the tree from then on. The file is marked as in use, so that it is not read again
+     * after a crash.
+     */
+    @Override
+    public synchronized boolean read(File file, long fingerprint) throws IOException {
+        if (null != channel) {
+            channel.close();
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        cache.clear();
+        keyById.clear();
+        if (channel.size() >= 2 * PAGE_SIZE && readHeader(fingerprint)) {
+            try {
+                loadKeys();
+                writeHeader(fingerprint, false);
+                channel.force(false);
+                return true;
+            } catch (RuntimeException e) {
+                // a broken tree is rebuilt instead
+            }
+        }
+        reset();
+        return false;
+    }
+
+    private boolean readHeader(long fingerprint) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+        readFully(header, (long) HEADER_PAGE * PAGE_SIZE);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION || header.get() != kind
+                || header.getLong() != fingerprint || 1 != header.get()) {
+            return false;
+        }
+        rootPage = header.getInt();
+        pageCount = header.getInt();
+        return rootPage > HEADER_PAGE && rootPage < pageCount && (long) pageCount * PAGE_SIZE <= channel.size();
+    }
+
+    /**
+     * Walks the leaves from left to right to learn the value of every id, without filling the page cache.
+     */
+    private void loadKeys() {
+        Node node = readPage(rootPage);
+        while (!node.leaf) {
+            node = readPage(node.firstChild);
+        }
+        int leaves = 0;
+        while (true) {
+            for (Entry entry : node.entries) {
+                keyById.put(entry.id, entry.key);
+            }
+            if (NO_PAGE == node.next) {
+                break;
+            }
+            if (++leaves > pageCount) {
+                throw new IllegalStateException("The leaves of index '" + getName() + "' form a cycle");
+            }
+            node = readPage(node.next);
+        }
+    }
+}
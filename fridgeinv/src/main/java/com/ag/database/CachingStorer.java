@@ -0,0 +1,287 @@
+package com.ag.database;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import com.ag.database.StorableSchema.SchemaField;
+
+/**
+ * Keeps recently loaded objects of another {@link Storer} in an {@link ObjectCache}, so that loading a hot object again
+ * does not read or decode its record. Saves and deletes go straight to the other storer and drop the cached objects.
+ * <p>
+ * The cache holds its own copies: objects handed out can be changed by the caller without changing the cache. Queries
+ * over all objects ({@link #scan} and the predicate methods) and index lookups are passed on without caching.
+ */
+public class CachingStorer<T extends Storable> implements Storer<T>, Closeable {
+
+    private static final long OBJECT_HEADER_BYTES = 16;
+    private static final long REFERENCE_BYTES = 8;
+    private static final long STRING_BYTES = 40;
+    private static final long DATE_BYTES = 24;
+    private static final long BOXED_BYTES = 16;
+    // the map entries and list nodes the cache keeps per object
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+    private final Storer<T> storer;
+    private final StorableSchema<T> schema;
+    private final ObjectCache<T> cache;
+
+    /**
+     * @param storer the storer holding the objects.
+     * @param storedClass the class of the stored objects.
+     * @param maxBytes the estimated bytes the cached objects may take.
+     */
+    public CachingStorer(Storer<T> storer, Class<T> storedClass, long maxBytes) {
+        this.storer = storer;
+        this.schema = StorableSchema.of(storedClass);
+        this.cache = new ObjectCache<>(maxBytes, this::estimateBytes);
+    }
+
+    /**
+     * Estimates the heap taken by the object and its field values.
+     */
+    private long estimateBytes(T object) {
+        long bytes = ENTRY_OVERHEAD_BYTES + OBJECT_HEADER_BYTES;
+        for (SchemaField field : schema.getFields()) {
+            bytes += REFERENCE_BYTES;
+            Object value = field.get(object);
+            if (value instanceof String) {
+                bytes += STRING_BYTES + 2L * ((String) value).length();
+            } else if (value instanceof Date) {
+                bytes += DATE_BYTES;
+            } else if (null != value && !field.getType().isPrimitive() && !field.getType().isEnum()) {
+                bytes += BOXED_BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    public ObjectCache<T> getCache() {
+        return cache;
+    }
+
+    public Storer<T> getStorer() {
+        return storer;
+    }
+
+    @Override
+    public T load(long id) throws IOException {
+        T cached = cache.get(id);
+        if (null != cached) {
+            return schema.copy(cached);
+        }
+        long stamp = cache.getStamp();
+        T loaded = storer.load(id);
+        cache.put(id, schema.copy(loaded), stamp);
+        return loaded;
+    }
+
+    @Override
+    public List<T> loadAll(List<T> objects) throws IOException {
+        Set<Long> ids = new LinkedHashSet<>();
+        for (T object : objects) {
+            ids.add(object.getId());
+        }
+        List<T> loaded = loadAllId(ids);
+        if (loaded.size() == objects.size()) {
+            return loaded;
+        }
+        // the same object passed twice
+        Map<Long, T> byId = new HashMap<>();
+        for (T object : loaded) {
+            byId.put(object.getId(), object);
+        }
+        List<T> persistedObjects = new ArrayList<>();
+        for (T object : objects) {
+            persistedObjects.add(schema.copy(byId.get(object.getId())));
+        }
+        return persistedObjects;
+    }
+
+    @Override
+    public List<T> loadAllId(Set<Long> ids) throws IOException {
+        Map<Long, T> found = new HashMap<>();
+        Set<Long> missing = new LinkedHashSet<>();
+        for (Long id : ids) {
+            T cached = cache.get(id);
+            if (null == cached) {
+                missing.add(id);
+            } else {
+                found.put(id, schema.copy(cached));
+            }
+        }
+        if (!missing.isEmpty()) {
+            long stamp = cache.getStamp();
+            for (T loaded : storer.loadAllId(missing)) {
+                found.put(loaded.getId(), loaded);
+                cache.put(loaded.getId(), schema.copy(loaded), stamp);
+            }
+        }
+        List<T> persistedObjects = new ArrayList<>();
+        for (Long id : ids) {
+            persistedObjects.add(found.get(id));
+        }
+        return persistedObjects;
+    }
+
+    @Override
+    public long savedEntries() throws IOException {
+        return storer.savedEntries();
+    }
+
+    @Override
+    public void saveAll(List<T> objects) throws IOException {
+        try {
+            storer.saveAll(objects);
+        } finally {
+            for (T object : objects) {
+                cache.invalidate(object.getId());
+            }
+        }
+    }
+
+    @Override
+    public void save(T object) throws IOException {
+        try {
+            storer.save(object);
+        } finally {
+            cache.invalidate(object.getId());
+        }
+    }
+
+    @Override
+    public void update(long id, String field, Object value) throws IOException {
+        try {
+            storer.update(id, field, value);
+        } finally {
+            cache.invalidate(id);
+        }
+    }
+
+    @Override
+    public void update(long id, Map<String, Object> fields) throws IOException {
+        try {
+            storer.update(id, fields);
+        } finally {
+            cache.invalidate(id);
+        }
+    }
+
+    @Override
+    public long increment(long id, String field, long delta) throws IOException {
+        try {
+            return storer.increment(id, field, delta);
+        } finally {
+            cache.invalidate(id);
+        }
+    }
+
+    @Override
+    public void delete(T object) throws IOException {
+        deleteId(object.getId());
+    }
+
+    @Override
+    public void deleteId(long id) throws IOException {
+        try {
+            storer.deleteId(id);
+        } finally {
+            cache.invalidate(id);
+        }
+    }
+
+    @Override
+    public void deleteAll(List<T> objects) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        for (T object : objects) {
+            ids.add(object.getId());
+        }
+        deleteAllId(ids);
+    }
+
+    @Override
+    public void deleteAllId(List<Long> ids) throws IOException {
+        try {
+            storer.deleteAllId(ids);
+        } finally {
+            for (long id : ids) {
+                cache.invalidate(id);
+            }
+        }
+    }
+
+    @Override
+    public Set<Long> getIds() throws IOException {
+        return storer.getIds();
+    }
+
+    @Override
+    public Stream<T> scan() throws IOException {
+        return storer.scan();
+    }
+
+    @Override
+    public boolean contains(Predicate<T> matches) throws IOException {
+        return storer.contains(matches);
+    }
+
+    @Override
+    public Set<Long> lookup(String field, Object value) throws IOException {
+        return storer.lookup(field, value);
+    }
+
+    @Override
+    public Stream<Long> range(String field, Object from, Object to) throws IOException {
+        return storer.range(field, from, to);
+    }
+
+    @Override
+    public Stream<Long> rangeAfter(String field, Object value, long id, Object to) throws IOException {
+        return storer.rangeAfter(field, value, id, to);
+    }
+
+    @Override
+    public boolean contains(Long id) throws IOException {
+        return (null != id && cache.contains(id)) || storer.contains(id);
+    }
+
+    @Override
+    public List<T> query(Query<T> query) throws IOException {
+        return storer.query(query);
+    }
+
+    @Override
+    public T matches(Predicate<T> matcher) throws IOException {
+        return storer.matches(matcher);
+    }
+
+    @Override
+    public List<T> allMatches(Predicate<T> matcher) throws IOException {
+        return storer.allMatches(matcher);
+    }
+
+    /**
+     * Drops the cached objects and closes the other storer.
+     */
+    @Override
+    public void close() throws IOException {
+        cache.invalidateAll();
+        if (storer instanceof Closeable) {
+            ((Closeable) storer).close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CachingStorer [" + storer + ", " + cache + "]";
+    }
+}
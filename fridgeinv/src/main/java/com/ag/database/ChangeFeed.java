@@ -0,0 +1,685 @@
+package com.ag.database;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import com.ag.DynamicObject;
+import com.ag.Network.Server;
+
+/**
+ * A sequenced stream of the changes committed to the {@link FlatFileStorer}s attached to it, see
+ * {@link FlatFileStorer#setChangeFeed}. Every save, field update and delete becomes a {@link ChangeEvent} numbered in
+ * the order the storers applied it, so that a consumer can remember the last sequence it has seen and catch up from
+ * there instead of reloading everything.
+ * <p>
+ * The most recent events are kept in a ring buffer in memory, all events are appended to a file that rolls over into a
+ * single older segment once it has grown past the segment size. Reading from a sequence that is no longer in either
+ * segment fails, the consumer has to start over from the storers themselves.
+ * <p>
+ * An event is appended while its storer holds its write lock but only handed out once the write is committed, see
+ * {@link #publish}. Storers sharing a feed commit independently, so events are handed out up to the first one whose
+ * write is still pending. The events of a write that failed are dropped, see {@link #discard}, which leaves a gap in
+ * the sequences. The file is forced along with the files of the storers. A crash between a write and its force may
+ * leave an event of a write that did not survive, or lose the events of writes a {@link WriteAheadLog} redoes, which are
+ * appended again under new sequences: consumers see every committed change at least once.
+ */
+public class ChangeFeed implements Closeable {
+
+    public static final int DEFAULT_RING_CAPACITY = 4096;
+    public static final long DEFAULT_SEGMENT_BYTES = 16L * 1024 * 1024;
+
+    // sequence, timestamp, operation, id
+    private static final int EVENT_HEADER_BYTES = 8 + 8 + 1 + 8;
+    private static final int LENGTH_BYTES = 4;
+    private static final int CRC_BYTES = 4;
+    private static final int DISPATCH_BATCH = 256;
+    // the operation of an entry that drops the event with its sequence
+    private static final int DROPPED = 0xFF;
+    private static final int OPERATION_OFFSET = 8 + 8;
+
+    private static ChangeFeed instance;
+
+    /**
+     * What a change did to its object.
+     */
+    public enum Operation {
+        /** The whole object was saved, the payload is its record. */
+        SAVE,
+        /** A single field was set, the payload is the field index followed by the value. */
+        UPDATE,
+        /** The object was deleted, there is no payload. */
+        DELETE;
+    }
+
+    /**
+     * A single committed change of a storer. Decode the payload with {@link FlatFileStorer#decodeState} or
+     * {@link FlatFileStorer#decodeUpdate} of a storer of the same class.
+     */
+    public static final class ChangeEvent {
+        private final long sequence;
+        private final long timestamp;
+        private final String storer;
+        private final Operation operation;
+        private final long id;
+        private final byte[] payload;
+
+        ChangeEvent(long sequence, long timestamp, String storer, Operation operation, long id, byte[] payload) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.storer = storer;
+            this.operation = operation;
+            this.id = id;
+            this.payload = payload;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * The time the change was appended, in milliseconds since the epoch.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * The name the storer was attached to the feed with.
+         */
+        public String getStorer() {
+            return storer;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        @Override
+        public String toString() {
+            return "ChangeEvent [" + sequence + " " + operation + " " + storer + " " + id + "]";
+        }
+    }
+
+    /**
+     * Hands the events of a feed to a listener on the dispatch thread of the feed, in order.
+     */
+    public final class Subscription implements Closeable {
+        private final Consumer<ChangeEvent> listener;
+        private volatile long next;
+        private volatile boolean closed;
+        private volatile boolean expired;
+
+        private Subscription(long next, Consumer<ChangeEvent> listener) {
+            this.next = next;
+            this.listener = listener;
+        }
+
+        /**
+         * The sequence of the next event to deliver.
+         */
+        public long getPosition() {
+            return next;
+        }
+
+        /**
+         * Returns true when the subscription fell so far behind that the events it needs are no longer kept. It is
+         * closed then.
+         */
+        public boolean isExpired() {
+            return expired;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            subscriptions.remove(this);
+        }
+    }
+
+    private final File file;
+    private final File oldSegmentFile;
+    private final int ringCapacity;
+    private final long segmentBytes;
+
+    // guards everything below but the subscriptions
+    private final Object lock = new Object();
+    private FileChannel channel;
+    private long fileSize;
+    private final ChangeEvent[] ring;
+    private long firstSequence = 1;
+    private long lastSequence;
+    private long committedSequence;
+    // committed or dropped sequences past the first pending one
+    private final TreeSet<Long> settled = new TreeSet<>();
+    private final TreeSet<Long> dropped = new TreeSet<>();
+    private final RecordBuffer entry = new RecordBuffer();
+    private final CRC32 crc = new CRC32();
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private Thread dispatcher;
+
+    public ChangeFeed(File file) {
+        this(file, DEFAULT_RING_CAPACITY, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * @param file the current segment, the older one is kept next to it as {@code .old}.
+     * @param ringCapacity the number of recent events kept in memory.
+     * @param segmentBytes the size after which the current segment replaces the older one.
+     */
+    public ChangeFeed(File file, int ringCapacity, long segmentBytes) {
+        if (ringCapacity <= 0) {
+            throw new IllegalArgumentException("Ring capacity must be positive: " + ringCapacity);
+        }
+        this.file = file;
+        this.oldSegmentFile = new File(file.getPath() + ".old");
+        this.ringCapacity = ringCapacity;
+        this.segmentBytes = segmentBytes;
+        this.ring = new ChangeEvent[ringCapacity];
+    }
+
+    /**
+     * Returns the feed configured for the server, opened on first use.
+     */
+    public static synchronized ChangeFeed getInstance() {
+        if (null == instance) {
+            DynamicObject config = Server.config.getConfig(ChangeFeed.class);
+            ChangeFeed feed = new ChangeFeed(new File(Server.ROOT_DIRECTORY + (String) config.get("path")),
+                    config.getAsIntegerOrDefault("ringCapacity", DEFAULT_RING_CAPACITY),
+                    config.getAsLongOrDefault("segmentBytes", DEFAULT_SEGMENT_BYTES));
+            try {
+                feed.open();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open the change feed '" + feed.file + "'", e);
+            }
+            instance = feed;
+        }
+        return instance;
+    }
+
+    /**
+     * Reads the sequences kept by both segments and the most recent events into the ring. Every event found is
+     * committed unless it was dropped. A torn event at the end is cut off.
+     *
+     * @throws IOException
+     */
+    public void open() throws IOException {
+        synchronized (lock) {
+            Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+            long first = 0;
+            if (oldSegmentFile.exists()) {
+                try (FileChannel old = FileChannel.open(oldSegmentFile.toPath(), StandardOpenOption.READ)) {
+                    first = firstSequenceOf(old);
+                    List<ChangeEvent> events = new ArrayList<>();
+                    readSegment(old, old.size(), 0, Long.MAX_VALUE, dropped, events);
+                    remember(events);
+                }
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            List<ChangeEvent> events = new ArrayList<>();
+            long validEnd = readSegment(channel, channel.size(), 0, Long.MAX_VALUE, dropped, events);
+            if (validEnd < channel.size()) {
+                System.out.println("Cutting off " + (channel.size() - validEnd) + " torn byte(s) at the end of '"
+                        + file.getName() + "'");
+                channel.truncate(validEnd);
+            }
+            fileSize = validEnd;
+            if (0 == first) {
+                first = firstSequenceOf(channel);
+            }
+            remember(events);
+            if (!dropped.isEmpty()) {
+                lastSequence = Math.max(lastSequence, dropped.last());
+            }
+            firstSequence = 0 == first ? lastSequence + 1 : first;
+            committedSequence = lastSequence;
+        }
+    }
+
+    private void remember(List<ChangeEvent> events) {
+        for (ChangeEvent event : events) {
+            ring[(int) (event.getSequence() % ringCapacity)] = event;
+            lastSequence = event.getSequence();
+        }
+    }
+
+    /**
+     * Returns the sequence of the first event of the segment, dropped or not, 0 when it has none.
+     */
+    private static long firstSequenceOf(FileChannel segment) throws IOException {
+        List<ChangeEvent> first = new ArrayList<>();
+        readSegment(segment, segment.size(), 0, 1, new TreeSet<>(), first);
+        return first.isEmpty() ? 0 : first.get(0).getSequence();
+    }
+
+    /**
+     * Reads the events of a segment up to the given size, skipping the dropped ones.
+     *
+     * @param from the first sequence to collect.
+     * @param max the most events to collect.
+     * @param dropped the sequences known to be dropped, the ones dropped by the segment are added.
+     * @return the end of the last complete event.
+     */
+    private static long readSegment(FileChannel segment, long size, long from, long max, TreeSet<Long> dropped,
+            List<ChangeEvent> events) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(LENGTH_BYTES);
+        CRC32 readCrc = new CRC32();
+        long position = 0;
+        while (position + LENGTH_BYTES <= size && events.size() < max) {
+            length.clear();
+            readFully(segment, length, position);
+            int bodyLength = length.getInt(0);
+            if (bodyLength < EVENT_HEADER_BYTES || position + LENGTH_BYTES + bodyLength + CRC_BYTES > size) {
+                return position;
+            }
+            ByteBuffer body = ByteBuffer.allocate(bodyLength + CRC_BYTES);
+            readFully(segment, body, position + LENGTH_BYTES);
+            readCrc.reset();
+            readCrc.update(body.array(), 0, bodyLength);
+            if (body.getInt(bodyLength) != (int) readCrc.getValue()) {
+                return position;
+            }
+            body.position(0).limit(bodyLength);
+            long sequence = body.getLong(0);
+            if (DROPPED == (body.get(OPERATION_OFFSET) & 0xFF)) {
+                dropped.add(sequence);
+                // the dropped event came before its entry
+                events.removeIf(event -> event.getSequence() == sequence);
+            } else if (sequence >= from && !dropped.contains(sequence)) {
+                events.add(readEvent(body));
+            }
+            position += LENGTH_BYTES + bodyLength + CRC_BYTES;
+        }
+        return position;
+    }
+
+    /**
+     * Encodes the event the way it is stored in the segments and sent to followers, see {@link ReplicationPrimary}.
+     */
+    static void writeEvent(ChangeEvent event, RecordBuffer buffer) {
+        writeEntry(buffer, event.sequence, event.timestamp, event.operation.ordinal(), event.id, event.storer,
+                event.payload);
+    }
+
+    private static void writeEntry(RecordBuffer buffer, long sequence, long timestamp, int operation, long id,
+            String storer, byte[] payload) {
+        buffer.writeLong(sequence).writeLong(timestamp).writeByte(operation).writeLong(id).writeString(storer)
+                .write(payload, 0, payload.length);
+    }
+
+    /**
+     * Decodes an event written by {@link #writeEvent}, from the position to the limit of the buffer.
+     */
+    static ChangeEvent readEvent(ByteBuffer body) {
+        long sequence = body.getLong();
+        long timestamp = body.getLong();
+        Operation operation = Operation.values()[body.get()];
+        long id = body.getLong();
+        String storer = RecordBuffer.readString(body);
+        byte[] payload = new byte[body.remaining()];
+        body.get(payload);
+        return new ChangeEvent(sequence, timestamp, storer, operation, id, payload);
+    }
+
+    private static void readFully(FileChannel segment, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (segment.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of change feed segment");
+            }
+        }
+    }
+
+    /**
+     * Appends an event without forcing it. It is handed out once {@link #publish} reaches its sequence.
+     *
+     * @return the sequence of the event.
+     * @throws IOException
+     */
+    long append(String storer, Operation operation, long id, byte[] payload) throws IOException {
+        synchronized (lock) {
+            if (null == channel) {
+                throw new IOException("The change feed '" + file.getName() + "' is not open");
+            }
+            long sequence = lastSequence + 1;
+            long timestamp = System.currentTimeMillis();
+            ChangeEvent event = new ChangeEvent(sequence, timestamp, storer, operation, id, payload);
+            entry.reset();
+            entry.writeInt(0);
+            writeEvent(event, entry);
+            appendEntry();
+            ring[(int) (sequence % ringCapacity)] = event;
+            lastSequence = sequence;
+            return sequence;
+        }
+    }
+
+    /**
+     * Frames the entry in the buffer and appends it to the current segment. Must hold the lock.
+     */
+    private void appendEntry() throws IOException {
+        if (fileSize >= segmentBytes) {
+            rollSegment();
+        }
+        ByteBuffer buffer = entry.toByteBuffer();
+        buffer.putInt(0, buffer.remaining() - LENGTH_BYTES);
+        crc.reset();
+        crc.update(buffer.array(), LENGTH_BYTES, buffer.remaining() - LENGTH_BYTES);
+        entry.writeInt((int) crc.getValue());
+        buffer = entry.toByteBuffer();
+        while (buffer.hasRemaining()) {
+            fileSize += channel.write(buffer, fileSize);
+        }
+    }
+
+    /**
+     * Replaces the older segment with the current one. Must hold the lock.
+     */
+    private void rollSegment() throws IOException {
+        channel.force(false);
+        channel.close();
+        Files.move(file.toPath(), oldSegmentFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        fileSize = 0;
+        // the events of the segment that was replaced are gone
+        try (FileChannel old = FileChannel.open(oldSegmentFile.toPath(), StandardOpenOption.READ)) {
+            long first = firstSequenceOf(old);
+            firstSequence = 0 == first ? lastSequence + 1 : first;
+        }
+        dropped.headSet(firstSequence).clear();
+    }
+
+    /**
+     * Marks the events of a write as committed. They are handed out once the writes of all events before them are
+     * committed or dropped as well.
+     *
+     * @param sequences the sequences of the events the write appended, in order.
+     */
+    void publish(long... sequences) {
+        synchronized (lock) {
+            settle(sequences);
+        }
+    }
+
+    /**
+     * Drops the events of a write that failed, they are never handed out. The drop is appended to the segment so that
+     * the events stay dropped after a restart.
+     *
+     * @param sequences the sequences of the events the write appended, in order.
+     * @throws IOException when the drop could not be appended, the events are dropped until the next restart then.
+     */
+    void discard(long... sequences) throws IOException {
+        synchronized (lock) {
+            for (long sequence : sequences) {
+                dropped.add(sequence);
+            }
+            settle(sequences);
+            if (null == channel) {
+                return;
+            }
+            // writes fail on a thread that was interrupted, which is how a commit often fails, and close the channel
+            boolean interrupted = Thread.interrupted();
+            try {
+                for (long sequence : sequences) {
+                    entry.reset();
+                    entry.writeInt(0);
+                    writeEntry(entry, sequence, System.currentTimeMillis(), DROPPED, 0, "", new byte[0]);
+                    appendEntry();
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Advances the committed sequence over the settled events that follow it. Must hold the lock.
+     */
+    private void settle(long[] sequences) {
+        for (long sequence : sequences) {
+            if (sequence == committedSequence + 1) {
+                committedSequence++;
+            } else if (sequence > committedSequence) {
+                settled.add(sequence);
+            }
+        }
+        while (!settled.isEmpty() && settled.first() == committedSequence + 1) {
+            committedSequence = settled.pollFirst();
+        }
+        lock.notifyAll();
+    }
+
+    /**
+     * Returns the first sequence from the given one on that was not dropped.
+     */
+    long skipDropped(long sequence) {
+        synchronized (lock) {
+            while (dropped.contains(sequence)) {
+                sequence++;
+            }
+            return sequence;
+        }
+    }
+
+    /**
+     * Waits until the event with the given sequence is committed, the feed is closed or the timeout passes.
+     *
+     * @return true when the event is committed.
+     * @throws InterruptedException
+     */
+    public boolean awaitCommitted(long sequence, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (lock) {
+            while (committedSequence < sequence && null != channel) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    break;
+                }
+                lock.wait(remaining);
+            }
+            return committedSequence >= sequence;
+        }
+    }
+
+    /**
+     * Forces the appended events to disk.
+     *
+     * @throws IOException
+     */
+    void force() throws IOException {
+        FileChannel current;
+        synchronized (lock) {
+            current = channel;
+        }
+        if (null != current && current.isOpen()) {
+            current.force(false);
+        }
+    }
+
+    /**
+     * The sequence of the last committed event, 0 when there is none.
+     */
+    public long getCommittedSequence() {
+        synchronized (lock) {
+            return committedSequence;
+        }
+    }
+
+    /**
+     * The oldest sequence that can still be read.
+     */
+    public long getFirstSequence() {
+        synchronized (lock) {
+            return firstSequence;
+        }
+    }
+
+    /**
+     * Returns up to max committed events from the given sequence on, in order. Recent events come from memory, older
+     * ones are read from the segments.
+     *
+     * @param fromSequence the first sequence to return, events that do not exist yet are simply not returned.
+     * @throws IllegalArgumentException when the sequence is older than {@link #getFirstSequence}.
+     * @throws IOException
+     */
+    public List<ChangeEvent> read(long fromSequence, int max) throws IOException {
+        List<ChangeEvent> events = new ArrayList<>();
+        FileChannel old = null;
+        FileChannel current = null;
+        long currentSize;
+        long until;
+        TreeSet<Long> skipped;
+        synchronized (lock) {
+            if (fromSequence < firstSequence) {
+                throw new IllegalArgumentException("Change " + fromSequence + " is no longer kept by '" + file.getName()
+                        + "', the oldest is " + firstSequence);
+            }
+            until = Math.min(committedSequence, fromSequence + max - 1);
+            if (until < fromSequence) {
+                return events;
+            }
+            if (fromSequence > lastSequence - ringCapacity) {
+                for (long sequence = fromSequence; sequence <= until; sequence++) {
+                    if (!dropped.contains(sequence)) {
+                        events.add(ring[(int) (sequence % ringCapacity)]);
+                    }
+                }
+                return events;
+            }
+            // opened under the lock so that a segment rolled over meanwhile stays readable
+            if (oldSegmentFile.exists()) {
+                old = FileChannel.open(oldSegmentFile.toPath(), StandardOpenOption.READ);
+            }
+            current = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            currentSize = fileSize;
+            skipped = new TreeSet<>(dropped.subSet(fromSequence, true, until, true));
+        }
+        int wanted = (int) (until - fromSequence + 1 - skipped.size());
+        try {
+            if (null != old) {
+                readSegment(old, old.size(), fromSequence, wanted, skipped, events);
+            }
+            readSegment(current, currentSize, fromSequence, wanted, skipped, events);
+        } finally {
+            if (null != old) {
+                old.close();
+            }
+            current.close();
+        }
+        return events;
+    }
+
+    /**
+     * Delivers every committed event from the given sequence on to the listener, first the ones committed already and
+     * then the new ones as they are committed, on the dispatch thread of the feed. A listener that throws does not stop
+     * the delivery.
+     *
+     * @param fromSequence the sequence of the first event to deliver, one past the last event seen by the consumer.
+     */
+    public Subscription subscribe(long fromSequence, Consumer<ChangeEvent> listener) {
+        Subscription subscription = new Subscription(fromSequence, listener);
+        subscriptions.add(subscription);
+        synchronized (lock) {
+            if (null == dispatcher) {
+                dispatcher = new Thread(this::dispatch, "change-feed-dispatch");
+                dispatcher.setDaemon(true);
+                dispatcher.start();
+            }
+            lock.notifyAll();
+        }
+        return subscription;
+    }
+
+    private void dispatch() {
+        while (true) {
+            synchronized (lock) {
+                while (null != channel && !hasPending()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (null == channel) {
+                    return;
+                }
+            }
+            for (Subscription subscription : subscriptions) {
+                deliver(subscription);
+            }
+        }
+    }
+
+    private boolean hasPending() {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.next <= committedSequence) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void deliver(Subscription subscription) {
+        List<ChangeEvent> events;
+        subscription.next = skipDropped(subscription.next);
+        try {
+            events = read(subscription.next, DISPATCH_BATCH);
+        } catch (IllegalArgumentException | IOException e) {
+            System.out.println("Closing change feed subscription at " + subscription.next + ": " + e);
+            subscription.expired = true;
+            subscription.close();
+            return;
+        }
+        for (ChangeEvent event : events) {
+            if (subscription.closed) {
+                return;
+            }
+            try {
+                subscription.listener.accept(event);
+            } catch (RuntimeException e) {
+                System.out.println("Change feed listener failed on " + event + ": " + e);
+            }
+            subscription.next = event.getSequence() + 1;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (null == channel) {
+                return;
+            }
+            try {
+                channel.force(false);
+            } finally {
+                channel.close();
+                channel = null;
+                lock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package com.ag.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+
+import com.ag.database.StorableSchema.SchemaField;
+
+/**
+ * Keeps selected integral and date fields of every stored object in primitive columns, one row per object, so that
+ * aggregates over them are answered by loops over arrays instead of loading and decoding every object. Dates are kept
+ * as milliseconds since the epoch. An optional string field is dictionary encoded into a column of codes to group the
+ * aggregates by.
+ * <p>
+ * A deleted row is filled with the last row, so the columns stay dense. Values of the group field that are no longer
+ * used keep their code until the projection is rebuilt. All methods are synchronized, an aggregate holds the lock for
+ * one pass over the columns.
+ */
+public class ColumnProjection<T> implements StorerIndex<T> {
+
+    public static final String NAME = "columns";
+
+    private static final int MAGIC = 0x41474350; // "AGCP"
+    private static final int VERSION = 1;
+    private static final int INITIAL_ROWS = 1024;
+    private static final int NO_GROUP = -1;
+
+    public enum Aggregate {
+        /** The number of values that are not null. */
+        COUNT,
+        SUM,
+        MIN,
+        MAX
+    }
+
+    private final SchemaField groupField;
+    private final SchemaField[] columnFields;
+    private final Map<String, Integer> columnByName = new HashMap<>();
+
+    private int rows;
+    private long[] ids = new long[INITIAL_ROWS];
+    // [column][row], with a bit set in nulls for every row whose value is null
+    private long[][] values;
+    private long[][] nulls;
+    private int[] codes = new int[INITIAL_ROWS];
+    private final List<String> dictionary = new ArrayList<>();
+    private final Map<String, Integer> codeByValue = new HashMap<>();
+    // id -> row, kept as the position of the id
+    private final LongIndexTable rowById = new LongIndexTable();
+
+    /**
+     * @param schema the schema of the stored class.
+     * @param groupFieldName the stored name of a string field to group by, null for none.
+     * @param columnFieldNames the stored names of the integral or date fields to keep in columns.
+     */
+    public ColumnProjection(StorableSchema<T> schema, String groupFieldName, String... columnFieldNames) {
+        if (null != groupFieldName) {
+            groupField = schema.getField(groupFieldName);
+            if (String.class != groupField.getType()) {
+                throw new IllegalArgumentException("Can only group by a string field, not '" + groupField + "'");
+            }
+        } else {
+            groupField = null;
+        }
+        columnFields = new SchemaField[columnFieldNames.length];
+        for (int i = 0; i < columnFieldNames.length; i++) {
+            columnFields[i] = schema.getField(columnFieldNames[i]);
+            if (!isColumnType(columnFields[i].getType())) {
+                throw new IllegalArgumentException("Only integral and date fields are kept in columns, not '"
+                        + columnFields[i] + "'");
+            }
+            columnByName.put(columnFields[i].getName(), i);
+        }
+        values = new long[columnFields.length][INITIAL_ROWS];
+        nulls = new long[columnFields.length][INITIAL_ROWS / Long.SIZE];
+    }
+
+    private static boolean isColumnType(Class<?> type) {
+        return long.class == type || int.class == type || short.class == type || byte.class == type
+                || Long.class == type || Integer.class == type || Short.class == type || Byte.class == type
+                || Date.class == type;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * The stored name of the field the aggregates are grouped by, null when there is none.
+     */
+    public String getGroupFieldName() {
+        return null == groupField ? null : groupField.getName();
+    }
+
+    public boolean hasColumn(String fieldName) {
+        return columnByName.containsKey(fieldName);
+    }
+
+    /**
+     * The number of objects, one row each.
+     */
+    public synchronized int count() {
+        return rows;
+    }
+
+    /**
+     * Aggregates the non-null values of the column.
+     *
+     * @return empty for the minimum or maximum of no values.
+     */
+    public OptionalLong aggregate(Aggregate aggregate, String column) {
+        return aggregate(aggregate, column, null, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Aggregates the non-null values of the column in the rows whose filter column holds a value from {@code from}
+     * inclusive to {@code to} exclusive, for example the items added in a week with their dates in milliseconds.
+     *
+     * @param filterColumn the column to filter on, null for all rows.
+     * @return empty for the minimum or maximum of no values.
+     */
+    public synchronized OptionalLong aggregate(Aggregate aggregate, String column, String filterColumn, long from,
+            long to) {
+        long[] counts = new long[1];
+        long[] results = new long[1];
+        accumulate(aggregate, columnOf(column), null == filterColumn ? -1 : columnOf(filterColumn), from, to, false,
+                counts, results);
+        if (0 == counts[0] && (Aggregate.MIN == aggregate || Aggregate.MAX == aggregate)) {
+            return OptionalLong.empty();
+        }
+        return OptionalLong.of(results[0]);
+    }
+
+    /**
+     * Aggregates the non-null values of the column per value of the group field, see {@link #aggregate}.
+     *
+     * @return the aggregate by group value, groups without rows or values are left out.
+     */
+    public Map<String, Long> aggregateByGroup(Aggregate aggregate, String column) {
+        return aggregateByGroup(aggregate, column, null, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Aggregates the non-null values of the column per value of the group field in the rows whose filter column holds
+     * a value from {@code from} inclusive to {@code to} exclusive.
+     *
+     * @param filterColumn the column to filter on, null for all rows.
+     * @return the aggregate by group value, groups without rows or values are left out.
+     */
+    public synchronized Map<String, Long> aggregateByGroup(Aggregate aggregate, String column, String filterColumn,
+            long from, long to) {
+        if (null == groupField) {
+            throw new IllegalStateException("The projection has no field to group by");
+        }
+        long[] counts = new long[dictionary.size()];
+        long[] results = new long[dictionary.size()];
+        accumulate(aggregate, columnOf(column), null == filterColumn ? -1 : columnOf(filterColumn), from, to, true,
+                counts, results);
+        Map<String, Long> groups = new LinkedHashMap<>();
+        for (int code = 0; code < counts.length; code++) {
+            if (counts[code] > 0) {
+                groups.put(dictionary.get(code), results[code]);
+            }
+        }
+        return groups;
+    }
+
+    private int columnOf(String fieldName) {
+        Integer column = columnByName.get(fieldName);
+        if (null == column) {
+            throw new IllegalArgumentException("'" + fieldName + "' is not kept in a column");
+        }
+        return column;
+    }
+
+    /**
+     * One pass over the rows, counting the values of each group into counts and aggregating them into results.
+     */
+    private void accumulate(Aggregate aggregate, int column, int filterColumn, long from, long to, boolean grouped,
+            long[] counts, long[] results) {
+        long[] columnValues = values[column];
+        long[] columnNulls = nulls[column];
+        long[] filterValues = filterColumn < 0 ? null : values[filterColumn];
+        long[] filterNulls = filterColumn < 0 ? null : nulls[filterColumn];
+        for (int row = 0; row < rows; row++) {
+            if (isNull(columnNulls, row)) {
+                continue;
+            }
+            if (null != filterValues) {
+                long filterValue = filterValues[row];
+                if (isNull(filterNulls, row) || filterValue < from || filterValue >= to) {
+                    continue;
+                }
+            }
+            int group = grouped ? codes[row] : 0;
+            if (NO_GROUP == group) {
+                continue;
+            }
+            long value = columnValues[row];
+            long count = counts[group]++;
+            switch (aggregate) {
+                case COUNT:
+                    results[group] = count + 1;
+                    break;
+                case SUM:
+                    results[group] += value;
+                    break;
+                case MIN:
+                    results[group] = 0 == count ? value : Math.min(results[group], value);
+                    break;
+                case MAX:
+                    results[group] = 0 == count ? value : Math.max(results[group], value);
+                    break;
+            }
+        }
+    }
+
+    private static boolean isNull(long[] bits, int row) {
+        return 0 != (bits[row >>> 6] & (1L << row));
+    }
+
+    private static void setNull(long[] bits, int row, boolean isNull) {
+        if (isNull) {
+            bits[row >>> 6] |= 1L << row;
+        } else {
+            bits[row >>> 6] &= ~(1L << row);
+        }
+    }
+
+    @Override
+    public synchronized void update(long id, T object) {
+        int slot = rowById.slotOf(id);
+        int row;
+        if (slot >= 0) {
+            row = (int) rowById.positionAt(slot);
+        } else {
+            row = rows++;
+            ensureCapacity(rows);
+            ids[row] = id;
+            rowById.put(id, row, 1);
+        }
+        for (int column = 0; column < columnFields.length; column++) {
+            Object value = columnFields[column].get(object);
+            setNull(nulls[column], row, null == value);
+            values[column][row] = toColumnValue(value);
+        }
+        if (null != groupField) {
+            codes[row] = codeOf((String) groupField.get(object));
+        }
+    }
+
+    /**
+     * The value kept in a column for a field value, milliseconds since the epoch for dates.
+     */
+    public static long toColumnValue(Object value) {
+        if (null == value) {
+            return 0;
+        }
+        return value instanceof Date ? ((Date) value).getTime() : ((Number) value).longValue();
+    }
+
+    private int codeOf(String value) {
+        if (null == value) {
+            return NO_GROUP;
+        }
+        Integer code = codeByValue.get(value);
+        if (null == code) {
+            code = dictionary.size();
+            dictionary.add(value);
+            codeByValue.put(value, code);
+        }
+        return code;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= ids.length) {
+            return;
+        }
+        int grown = Math.max(capacity, ids.length * 2);
+        ids = Arrays.copyOf(ids, grown);
+        codes = Arrays.copyOf(codes, grown);
+        for (int column = 0; column < columnFields.length; column++) {
+            values[column] = Arrays.copyOf(values[column], grown);
+            nulls[column] = Arrays.copyOf(nulls[column], (grown + Long.SIZE - 1) / Long.SIZE);
+        }
+    }
+
+    @Override
+    public synchronized void remove(long id) {
+        int slot = rowById.slotOf(id);
+        if (slot < 0) {
+            return;
+        }
+        int row = (int) rowById.positionAt(slot);
+        rowById.remove(id);
+        int last = --rows;
+        if (row != last) {
+            // the last row fills the hole
+            ids[row] = ids[last];
+            codes[row] = codes[last];
+            for (int column = 0; column < columnFields.length; column++) {
+                values[column][row] = values[column][last];
+                setNull(nulls[column], row, isNull(nulls[column], last));
+            }
+            rowById.put(ids[row], row, 1);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        rows = 0;
+        rowById.clear();
+        dictionary.clear();
+        codeByValue.clear();
+    }
+
+    @Override
+    public synchronized void write(File file, long fingerprint) throws IOException {
+        RecordBuffer buffer = IndexFiles.startWrite(MAGIC, VERSION, fingerprint);
+        buffer.writeString(getGroupFieldName()).writeInt(columnFields.length);
+        for (SchemaField field : columnFields) {
+            buffer.writeString(field.getName());
+        }
+        buffer.writeInt(dictionary.size());
+        for (String value : dictionary) {
+            buffer.writeString(value);
+        }
+        buffer.writeInt(rows);
+        for (int row = 0; row < rows; row++) {
+            buffer.writeLong(ids[row]).writeInt(codes[row]);
+        }
+        for (int column = 0; column < columnFields.length; column++) {
+            for (int row = 0; row < rows; row++) {
+                buffer.writeLong(values[column][row]);
+            }
+            for (int word = 0; word < (rows + Long.SIZE - 1) / Long.SIZE; word++) {
+                buffer.writeLong(nulls[column][word]);
+            }
+        }
+        IndexFiles.writeAtomically(file, buffer.toByteArray());
+    }
+
+    @Override
+    public synchronized boolean read(File file, long fingerprint) throws IOException {
+        return IndexFiles.read(file, MAGIC, VERSION, fingerprint, this, buffer -> {
+            // written for other fields, it is rebuilt for these
+            String groupFieldName = RecordBuffer.readString(buffer);
+            if (!String.valueOf(groupFieldName).equals(String.valueOf(getGroupFieldName()))
+                    || buffer.getInt() != columnFields.length) {
+                return false;
+            }
+            for (SchemaField field : columnFields) {
+                if (!field.getName().equals(RecordBuffer.readString(buffer))) {
+                    return false;
+                }
+            }
+            int dictionarySize = buffer.getInt();
+            for (int code = 0; code < dictionarySize; code++) {
+                codeOf(RecordBuffer.readString(buffer));
+            }
+            int count = buffer.getInt();
+            ensureCapacity(count);
+            for (int row = 0; row < count; row++) {
+                ids[row] = buffer.getLong();
+                codes[row] = buffer.getInt();
+                rowById.put(ids[row], row, 1);
+            }
+            for (int column = 0; column < columnFields.length; column++) {
+                for (int row = 0; row < count; row++) {
+                    values[column][row] = buffer.getLong();
+                }
+                for (int word = 0; word < (count + Long.SIZE - 1) / Long.SIZE; word++) {
+                    nulls[column][word] = buffer.getLong();
+                }
+            }
+            rows = count;
+            return true;
+        });
+    }
+}
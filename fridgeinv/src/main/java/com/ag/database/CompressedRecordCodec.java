@@ -0,0 +1,416 @@
+package com.ag.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the records of another codec with Deflate against a dictionary trained from a sample of the stored records.
+ * A single record is too short to repeat much of anything itself, but the field layout and the values shared between
+ * records are in the dictionary and compress to back references. A compressed record is:
+ * <pre>
+ * FORMAT (1) | dictionary id (2) | length of the wrapped record (varint) | raw Deflate stream
+ * </pre>
+ * The dictionaries are appended to a file kept next to the object file and never removed. Every record names the
+ * dictionary it was compressed against, so training a new one leaves the existing records readable. Records that would
+ * not get smaller are written as the wrapped codec wrote them, which this codec decodes as well.
+ * <p>
+ * Thread safe, each thread reuses its own Deflater and Inflater.
+ */
+public class CompressedRecordCodec<T> implements RecordCodec<T> {
+
+    public static final byte FORMAT = 0x02;
+    public static final int DEFAULT_DICTIONARY_BYTES = 2048;
+
+    // dictionary id 0 compresses without a dictionary
+    private static final int MAX_DICTIONARIES = 0xFFFF;
+    // training counts substrings of this many bytes, packed into a long
+    private static final int GRAM_BYTES = 6;
+    // the longest run of common substrings taken into the dictionary at once
+    private static final int SEGMENT_BYTES = 48;
+    // shorter records do not get smaller once the header is added
+    private static final int MIN_COMPRESSED_BYTES = 16;
+    // format, dictionary id and the longest varint of an int
+    private static final int MAX_HEADER_BYTES = 8;
+
+    private final RecordCodec<T> codec;
+    private final File dictionaryFile;
+    // indexed by dictionary id, only ever grows
+    private volatile byte[][] dictionaries = {new byte[0]};
+
+    private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+    private final ThreadLocal<RecordBuffer> rawBuffers = ThreadLocal.withInitial(RecordBuffer::new);
+    private final ThreadLocal<byte[][]> outputBuffers = ThreadLocal.withInitial(() -> new byte[1][256]);
+
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder writtenBytes = new LongAdder();
+    private final LongAdder compressedRecords = new LongAdder();
+    private final LongAdder uncompressedRecords = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressedRecords = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    /**
+     * @param codec the codec the records are encoded with before they are compressed.
+     * @param dictionaryFile the file the trained dictionaries are kept in, read by {@link #open}.
+     */
+    public CompressedRecordCodec(RecordCodec<T> codec, File dictionaryFile) {
+        this.codec = codec;
+        this.dictionaryFile = dictionaryFile;
+    }
+
+    /**
+     * Loads the dictionaries trained so far. A dictionary torn by a crash while it was appended is cut off, no record
+     * was compressed against it yet.
+     *
+     * @throws IOException
+     */
+    public synchronized void open() throws IOException {
+        List<byte[]> loaded = new ArrayList<>();
+        loaded.add(new byte[0]);
+        if (dictionaryFile.exists()) {
+            try (FileChannel channel = FileChannel.open(dictionaryFile.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer file = ByteBuffer.allocate((int) channel.size());
+                while (file.hasRemaining() && channel.read(file) >= 0) {
+                }
+                file.flip();
+                CRC32 crc = new CRC32();
+                while (file.remaining() >= 8) {
+                    int length = file.getInt(file.position());
+                    if (length < 0 || length > file.remaining() - 8) {
+                        break;
+                    }
+                    byte[] dictionary = new byte[length];
+                    file.getInt();
+                    file.get(dictionary);
+                    crc.reset();
+                    crc.update(dictionary);
+                    if ((int) crc.getValue() != file.getInt()) {
+                        file.position(file.position() - 8 - length);
+                        break;
+                    }
+                    loaded.add(dictionary);
+                }
+                if (file.hasRemaining()) {
+                    System.out.println("Cutting off a torn dictionary at the end of '" + dictionaryFile.getName() + "'");
+                    channel.truncate(file.position());
+                }
+            }
+        }
+        dictionaries = loaded.toArray(new byte[0][]);
+    }
+
+    /**
+     * Makes the dictionary the one new records are compressed against. It is forced to the file before any record
+     * can refer to it.
+     *
+     * @throws IOException when the dictionary could not be written, the previous one stays in use then.
+     */
+    public synchronized void addDictionary(byte[] dictionary) throws IOException {
+        if (dictionaries.length > MAX_DICTIONARIES) {
+            throw new IOException("'" + dictionaryFile.getName() + "' already holds " + MAX_DICTIONARIES + " dictionaries");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(dictionary);
+        ByteBuffer entry = ByteBuffer.allocate(8 + dictionary.length);
+        entry.putInt(dictionary.length).put(dictionary).putInt((int) crc.getValue()).flip();
+        try (FileChannel channel = FileChannel.open(dictionaryFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (entry.hasRemaining()) {
+                channel.write(entry);
+            }
+            channel.force(true);
+        }
+        byte[][] grown = Arrays.copyOf(dictionaries, dictionaries.length + 1);
+        grown[dictionaries.length] = dictionary.clone();
+        dictionaries = grown;
+    }
+
+    /**
+     * Returns true once a dictionary was trained.
+     */
+    public boolean hasDictionary() {
+        return dictionaries.length > 1;
+    }
+
+    /**
+     * The number of bytes of the dictionary new records are compressed against.
+     */
+    public int getDictionarySize() {
+        byte[][] current = dictionaries;
+        return current[current.length - 1].length;
+    }
+
+    /**
+     * Builds a dictionary out of the substrings that the most samples have in common. Every substring of
+     * {@value #GRAM_BYTES} bytes is counted once per sample it occurs in, then runs of common substrings are taken from
+     * the samples greedily by the number of samples they would help, and a run stops counting for the substrings that
+     * earlier runs already brought into the dictionary. The most helpful run ends up at the end of the dictionary, the
+     * closest to the record, where its back references are the cheapest.
+     *
+     * @param samples encoded records.
+     * @param maxBytes the largest dictionary to build.
+     * @return the dictionary, empty when the samples have nothing in common.
+     */
+    public static byte[] train(List<byte[]> samples, int maxBytes) {
+        Map<Long, int[]> counts = new HashMap<>();
+        Map<Long, Integer> lastSample = new HashMap<>();
+        for (int s = 0; s < samples.size(); s++) {
+            byte[] sample = samples.get(s);
+            for (int i = 0; i + GRAM_BYTES <= sample.length; i++) {
+                Long gram = gramAt(sample, i);
+                if (!Integer.valueOf(s).equals(lastSample.put(gram, s))) {
+                    counts.computeIfAbsent(gram, g -> new int[1])[0]++;
+                }
+            }
+        }
+
+        // a candidate is a run of common substrings, {sample, start, end, score}
+        PriorityQueue<int[]> candidates = new PriorityQueue<>(Comparator.comparingInt((int[] candidate) -> candidate[3]).reversed());
+        for (int s = 0; s < samples.size(); s++) {
+            byte[] sample = samples.get(s);
+            for (int i = 0; i + GRAM_BYTES <= sample.length; i++) {
+                if (counts.get(gramAt(sample, i))[0] < 2 || (i > 0 && counts.get(gramAt(sample, i - 1))[0] >= 2
+                        && 0 != i % (SEGMENT_BYTES / 2))) {
+                    continue;
+                }
+                int end = i;
+                while (end + GRAM_BYTES <= sample.length && end - i + GRAM_BYTES <= SEGMENT_BYTES
+                        && counts.get(gramAt(sample, end))[0] >= 2) {
+                    end++;
+                }
+                int[] candidate = {s, i, end - 1 + GRAM_BYTES, 0};
+                candidate[3] = score(samples, counts, candidate);
+                candidates.add(candidate);
+            }
+        }
+
+        List<int[]> picked = new ArrayList<>();
+        int size = 0;
+        while (!candidates.isEmpty() && size < maxBytes) {
+            int[] candidate = candidates.poll();
+            // scores only drop as the dictionary grows, a candidate that still beats the next best one is the best
+            int score = score(samples, counts, candidate);
+            if (score <= 0) {
+                continue;
+            }
+            if (!candidates.isEmpty() && score < candidates.peek()[3]) {
+                candidate[3] = score;
+                candidates.add(candidate);
+                continue;
+            }
+            byte[] sample = samples.get(candidate[0]);
+            for (int i = candidate[1]; i + GRAM_BYTES <= candidate[2]; i++) {
+                counts.get(gramAt(sample, i))[0] = 0;
+            }
+            picked.add(candidate);
+            size += candidate[2] - candidate[1];
+        }
+
+        int length = Math.min(size, maxBytes);
+        byte[] dictionary = new byte[length];
+        int offset = length;
+        for (int[] candidate : picked) {
+            int runLength = Math.min(candidate[2] - candidate[1], offset);
+            offset -= runLength;
+            System.arraycopy(samples.get(candidate[0]), candidate[1], dictionary, offset, runLength);
+        }
+        return dictionary;
+    }
+
+    private static int score(List<byte[]> samples, Map<Long, int[]> counts, int[] candidate) {
+        byte[] sample = samples.get(candidate[0]);
+        int score = 0;
+        for (int i = candidate[1]; i + GRAM_BYTES <= candidate[2]; i++) {
+            int count = counts.get(gramAt(sample, i))[0];
+            score += count > 1 ? count : 0;
+        }
+        return score;
+    }
+
+    private static long gramAt(byte[] bytes, int offset) {
+        long gram = 0;
+        for (int i = 0; i < GRAM_BYTES; i++) {
+            gram = (gram << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return gram;
+    }
+
+    @Override
+    public void encode(T object, RecordBuffer buffer) throws IOException {
+        RecordBuffer raw = rawBuffers.get();
+        raw.reset();
+        codec.encode(object, raw);
+        int length = raw.size();
+        rawBytes.add(length);
+        byte[][] current = dictionaries;
+        int dictionaryId = current.length - 1;
+        if (length >= MIN_COMPRESSED_BYTES) {
+            long start = System.nanoTime();
+            byte[][] output = outputBuffers.get();
+            if (output[0].length < length) {
+                output[0] = new byte[length];
+            }
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            if (dictionaryId > 0) {
+                deflater.setDictionary(current[dictionaryId]);
+            }
+            deflater.setInput(raw.toByteBuffer().array(), 0, length);
+            deflater.finish();
+            // only as many bytes as would make the record smaller, a longer stream is not worth it
+            int limit = length - MAX_HEADER_BYTES;
+            int compressedLength = deflater.deflate(output[0], 0, limit);
+            boolean smaller = deflater.finished() && compressedLength < limit;
+            compressNanos.add(System.nanoTime() - start);
+            if (smaller) {
+                int headerStart = buffer.size();
+                buffer.writeByte(FORMAT).writeShort(dictionaryId);
+                writeVarint(length, buffer);
+                buffer.write(output[0], 0, compressedLength);
+                writtenBytes.add(buffer.size() - headerStart);
+                compressedRecords.increment();
+                return;
+            }
+        }
+        buffer.write(raw.toByteBuffer().array(), 0, length);
+        writtenBytes.add(length);
+        uncompressedRecords.increment();
+    }
+
+    @Override
+    public T decode(ByteBuffer record) throws IOException {
+        if (FORMAT != record.get(record.position())) {
+            return codec.decode(record);
+        }
+        long start = System.nanoTime();
+        record.get();
+        int dictionaryId = record.getShort() & 0xFFFF;
+        int length = readVarint(record);
+        byte[][] current = dictionaries;
+        if (dictionaryId >= current.length) {
+            throw new IOException("Record was compressed against the unknown dictionary " + dictionaryId + " of '"
+                    + dictionaryFile.getName() + "'");
+        }
+        byte[] raw = new byte[length];
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        try {
+            if (dictionaryId > 0) {
+                inflater.setDictionary(current[dictionaryId]);
+            }
+            if (record.hasArray()) {
+                inflater.setInput(record.array(), record.arrayOffset() + record.position(), record.remaining());
+            } else {
+                inflater.setInput(record);
+            }
+            int inflated = inflater.inflate(raw);
+            if (inflated != length || !inflater.finished()) {
+                throw new IOException("Compressed record holds " + inflated + " bytes instead of " + length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed record is corrupt", e);
+        }
+        decompressNanos.add(System.nanoTime() - start);
+        decompressedRecords.increment();
+        return codec.decode(ByteBuffer.wrap(raw));
+    }
+
+    @Override
+    public boolean canDecode(byte firstByte) {
+        return FORMAT == firstByte || codec.canDecode(firstByte);
+    }
+
+    private static void writeVarint(int value, RecordBuffer buffer) {
+        while ((value & ~0x7F) != 0) {
+            buffer.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer.writeByte(value);
+    }
+
+    private static int readVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed record length in compressed record");
+    }
+
+    /**
+     * The bytes the wrapped codec encoded the written records to.
+     */
+    public long getRawBytes() {
+        return rawBytes.sum();
+    }
+
+    /**
+     * The bytes actually written for those records, compressed or not.
+     */
+    public long getWrittenBytes() {
+        return writtenBytes.sum();
+    }
+
+    /**
+     * The raw bytes per written byte of the records written since the storer was opened, 1 before anything was written.
+     */
+    public double getCompressionRatio() {
+        long written = writtenBytes.sum();
+        return 0 == written ? 1 : (double) rawBytes.sum() / written;
+    }
+
+    public long getCompressedRecords() {
+        return compressedRecords.sum();
+    }
+
+    /**
+     * The records written as the wrapped codec wrote them because compressing did not make them smaller.
+     */
+    public long getUncompressedRecords() {
+        return uncompressedRecords.sum();
+    }
+
+    /**
+     * The time spent compressing, including the attempts that did not make a record smaller.
+     */
+    public long getCompressNanos() {
+        return compressNanos.sum();
+    }
+
+    public long getDecompressedRecords() {
+        return decompressedRecords.sum();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.sum();
+    }
+
+    @Override
+    public String toString() {
+        long compressed = compressedRecords.sum();
+        long decompressed = decompressedRecords.sum();
+        return String.format("CompressedRecordCodec [ratio %.2f, %d of %d records compressed, %d ns per compression,"
+                + " %d ns per decompression]", getCompressionRatio(), compressed, compressed + uncompressedRecords.sum(),
+                0 == compressed ? 0 : compressNanos.sum() / compressed, 0 == decompressed ? 0 : decompressNanos.sum() / decompressed);
+    }
+}
@@ -0,0 +1,255 @@
+package com.ag.database;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Runs the methods of a {@link Storer} on an executor. Writes are ordered per id: a write waits for the writes issued
+ * before it on any of its ids to finish, successfully or not, before it is handed to the executor, so it never holds an
+ * I/O thread while waiting. Reads are not ordered against writes, a read issued after a write completed sees it.
+ */
+public class ExecutorAsyncStorer<T extends Storable> implements AsyncStorer<T> {
+
+    /**
+     * A call on the storer.
+     */
+    private interface StorerCall<R> {
+        R call() throws IOException;
+    }
+
+    private final Storer<T> storer;
+    private final Executor executor;
+    // the last write issued per id that has not finished yet, guarded by itself
+    private final Map<Long, CompletableFuture<?>> pendingWrites = new HashMap<>();
+
+    /**
+     * @param storer the storer to run the work on.
+     * @param executor runs the work, see {@link #newIoExecutor} for a bounded one.
+     */
+    public ExecutorAsyncStorer(Storer<T> storer, Executor executor) {
+        this.storer = storer;
+        this.executor = executor;
+    }
+
+    /**
+     * Creates an executor with a fixed number of daemon threads and a bounded queue. Work submitted while the queue is
+     * full is rejected instead of piling up.
+     *
+     * @param threads the number of I/O threads.
+     * @param queueSize the most operations waiting for a thread.
+     */
+    public static ThreadPoolExecutor newIoExecutor(int threads, int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "storer-io-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Override
+    public Storer<T> getStorer() {
+        return storer;
+    }
+
+    private <R> CompletableFuture<R> read(StorerCall<R> call) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+        submit(call, result);
+        return result;
+    }
+
+    private void submit(StorerCall<?> call, CompletableFuture<?> result) {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Object> target = (CompletableFuture<Object>) result;
+        try {
+            executor.execute(() -> {
+                try {
+                    target.complete(call.call());
+                } catch (IOException | RuntimeException e) {
+                    target.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            target.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Runs the call once the writes issued before on any of the ids have finished.
+     */
+    private <R> CompletableFuture<R> write(Collection<Long> ids, StorerCall<R> call) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+        List<CompletableFuture<?>> previous = new ArrayList<>();
+        synchronized (pendingWrites) {
+            for (Long id : ids) {
+                CompletableFuture<?> pending = pendingWrites.put(id, result);
+                if (null != pending) {
+                    previous.add(pending);
+                }
+            }
+        }
+        if (previous.isEmpty()) {
+            submit(call, result);
+        } else {
+            CompletableFuture.allOf(previous.toArray(new CompletableFuture<?>[0]))
+                    .whenComplete((ignored, failure) -> submit(call, result));
+        }
+        result.whenComplete((ignored, failure) -> {
+            synchronized (pendingWrites) {
+                for (Long id : ids) {
+                    pendingWrites.remove(id, result);
+                }
+            }
+        });
+        return result;
+    }
+
+    private static <E extends Storable> Set<Long> idsOf(List<E> objects) {
+        Set<Long> ids = new LinkedHashSet<>();
+        for (E object : objects) {
+            ids.add(object.getId());
+        }
+        return ids;
+    }
+
+    @Override
+    public CompletableFuture<T> load(long id) {
+        return read(() -> storer.load(id));
+    }
+
+    @Override
+    public CompletableFuture<List<T>> loadAll(List<T> objects) {
+        return read(() -> storer.loadAll(objects));
+    }
+
+    @Override
+    public CompletableFuture<List<T>> loadAllId(Set<Long> ids) {
+        return read(() -> storer.loadAllId(ids));
+    }
+
+    @Override
+    public CompletableFuture<Long> savedEntries() {
+        return read(storer::savedEntries);
+    }
+
+    @Override
+    public CompletableFuture<Void> save(T object) {
+        return write(Collections.singleton(object.getId()), () -> {
+            storer.save(object);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveAll(List<T> objects) {
+        return write(idsOf(objects), () -> {
+            storer.saveAll(objects);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> update(long id, String field, Object value) {
+        return write(Collections.singleton(id), () -> {
+            storer.update(id, field, value);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> update(long id, Map<String, Object> fields) {
+        return write(Collections.singleton(id), () -> {
+            storer.update(id, fields);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> increment(long id, String field, long delta) {
+        return write(Collections.singleton(id), () -> storer.increment(id, field, delta));
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(T object) {
+        return deleteId(object.getId());
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteId(long id) {
+        return write(Collections.singleton(id), () -> {
+            storer.deleteId(id);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAll(List<T> objects) {
+        return deleteAllId(new ArrayList<>(idsOf(objects)));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAllId(List<Long> ids) {
+        return write(new LinkedHashSet<>(ids), () -> {
+            storer.deleteAllId(ids);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Set<Long>> getIds() {
+        return read(() -> new LinkedHashSet<>(storer.getIds()));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> contains(Long id) {
+        return read(() -> storer.contains(id));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> contains(Predicate<T> matches) {
+        return read(() -> storer.contains(matches));
+    }
+
+    @Override
+    public CompletableFuture<Set<Long>> lookup(String field, Object value) {
+        return read(() -> storer.lookup(field, value));
+    }
+
+    @Override
+    public CompletableFuture<List<T>> query(Query<T> query) {
+        return read(() -> storer.query(query));
+    }
+
+    @Override
+    public CompletableFuture<T> matches(Predicate<T> matcher) {
+        return read(() -> storer.matches(matcher));
+    }
+
+    @Override
+    public CompletableFuture<List<T>> allMatches(Predicate<T> matcher) {
+        return read(() -> storer.allMatches(matcher));
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutorAsyncStorer [" + storer + "]";
+    }
+}
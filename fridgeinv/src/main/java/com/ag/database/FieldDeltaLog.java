@@ -0,0 +1,134 @@
+package com.ag.database;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * The field updates of a {@link FlatFileStorer} that were not folded into their records yet, appended to a file of their
+ * own so that changing one field does not rewrite the whole record. Every entry is:
+ * <pre>
+ * value length (4) | id (8) | base version (4) | field index (2) | value | CRC32C (4)
+ * </pre>
+ * The base version is the frame version of the record the update was made on. A record saved again gets a new version,
+ * which makes the older updates of its id stale when the log is replayed. An entry with the field index
+ * {@link #DROP} and no value drops the earlier updates of its id, it is written when the record is deleted, since a
+ * record saved again under the same id starts counting its versions anew.
+ */
+class FieldDeltaLog implements Closeable {
+
+    static final int DROP = -1;
+
+    // value length, id, base version, field index
+    private static final int HEADER_BYTES = 4 + 8 + 4 + 2;
+    private static final int CRC_BYTES = 4;
+
+    /**
+     * Receives the entries of the log in the order they were appended.
+     */
+    interface Replay {
+        void apply(long id, int baseVersion, int fieldIndex, ByteBuffer value) throws IOException;
+    }
+
+    private final File file;
+    private FileChannel channel;
+    private long size;
+    private final RecordBuffer entry = new RecordBuffer();
+
+    FieldDeltaLog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Replays the entries and makes the log ready for appending. A torn entry at the end is cut off.
+     *
+     * @throws IOException
+     */
+    void open(Replay replay) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        ByteBuffer log = ByteBuffer.allocate((int) channel.size());
+        while (log.hasRemaining() && channel.read(log, log.position()) >= 0) {
+        }
+        log.flip();
+        CRC32C crc = new CRC32C();
+        long validEnd = 0;
+        while (log.remaining() >= HEADER_BYTES + CRC_BYTES) {
+            int start = log.position();
+            int length = log.getInt(start);
+            if (length < 0 || length > log.remaining() - HEADER_BYTES - CRC_BYTES) {
+                break;
+            }
+            ByteBuffer covered = log.duplicate();
+            covered.limit(start + HEADER_BYTES + length);
+            crc.reset();
+            crc.update(covered);
+            if ((int) crc.getValue() != log.getInt(start + HEADER_BYTES + length)) {
+                break;
+            }
+            long id = log.getLong(start + 4);
+            int baseVersion = log.getInt(start + 12);
+            int fieldIndex = log.getShort(start + 16);
+            ByteBuffer value = log.duplicate();
+            value.position(start + HEADER_BYTES).limit(start + HEADER_BYTES + length);
+            replay.apply(id, baseVersion, fieldIndex, value.slice());
+            log.position(start + HEADER_BYTES + length + CRC_BYTES);
+            validEnd = log.position();
+        }
+        if (validEnd < log.limit()) {
+            System.out.println("Cutting off " + (log.limit() - validEnd) + " torn byte(s) at the end of '"
+                    + file.getName() + "'");
+            channel.truncate(validEnd);
+        }
+        size = validEnd;
+    }
+
+    /**
+     * Appends an update without forcing it.
+     *
+     * @param value the encoded value, empty for {@link #DROP}.
+     */
+    void append(long id, int baseVersion, int fieldIndex, byte[] value, int offset, int length) throws IOException {
+        entry.reset();
+        entry.writeInt(length).writeLong(id).writeInt(baseVersion).writeShort(fieldIndex).write(value, offset, length);
+        CRC32C crc = new CRC32C();
+        crc.update(entry.toByteBuffer());
+        entry.writeInt((int) crc.getValue());
+        ByteBuffer buffer = entry.toByteBuffer();
+        while (buffer.hasRemaining()) {
+            size += channel.write(buffer, size);
+        }
+    }
+
+    /**
+     * The number of bytes appended since the log was last emptied.
+     */
+    long size() {
+        return size;
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Empties the log once every update in it was folded into a record that is durable.
+     */
+    void clear() throws IOException {
+        channel.truncate(0);
+        channel.force(false);
+        size = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (null != channel) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
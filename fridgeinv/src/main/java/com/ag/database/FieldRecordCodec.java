@@ -0,0 +1,155 @@
+package com.ag.database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.ag.database.StorableSchema.SchemaField;
+import com.ag.util.ConfigurationException;
+
+/**
+ * Encodes the fields of a {@link StorableSchema} one after another without any class descriptors. A record is a format
+ * byte, the number of encoded fields and then the value of each field in schema order. Nullable values are prefixed by a
+ * presence byte.
+ * <p>
+ * Records written before a field was appended to the end of a class decode with that field left at its default. Removing
+ * or reordering fields requires the records to be written again.
+ */
+public class FieldRecordCodec<T> implements RecordCodec<T> {
+
+    public static final byte FORMAT = 0x01;
+
+    private final StorableSchema<T> schema;
+    private final FieldEncoder[] encoders;
+
+    public FieldRecordCodec(Class<T> storedClass) {
+        schema = StorableSchema.of(storedClass);
+        List<SchemaField> fields = schema.getFields();
+        encoders = new FieldEncoder[fields.size()];
+        for (SchemaField field : fields) {
+            encoders[field.getIndex()] = encoderFor(field);
+        }
+    }
+
+    public StorableSchema<T> getSchema() {
+        return schema;
+    }
+
+    @Override
+    public void encode(T object, RecordBuffer buffer) {
+        buffer.writeByte(FORMAT).writeShort(encoders.length);
+        for (SchemaField field : schema.getFields()) {
+            encoders[field.getIndex()].write(field.get(object), buffer);
+        }
+    }
+
+    @Override
+    public T decode(ByteBuffer record) throws IOException {
+        if (record.get() != FORMAT) {
+            throw new IOException("Record is not in the field record format");
+        }
+        int fieldCount = record.getShort();
+        if (fieldCount > encoders.length) {
+            throw new IOException("Record has " + fieldCount + " fields but '" + schema.getStoredClass().getSimpleName()
+                    + "' only has " + encoders.length);
+        }
+        T object = schema.newInstance();
+        List<SchemaField> fields = schema.getFields();
+        for (int i = 0; i < fieldCount; i++) {
+            fields.get(i).set(object, encoders[i].read(record));
+        }
+        return object;
+    }
+
+    @Override
+    public boolean canDecode(byte firstByte) {
+        return FORMAT == firstByte;
+    }
+
+    /**
+     * Appends a single value of the field in the same encoding used inside records.
+     */
+    public void writeValue(SchemaField field, Object value, RecordBuffer buffer) {
+        encoders[field.getIndex()].write(value, buffer);
+    }
+
+    /**
+     * Reads a single value of the field written by {@link #writeValue}.
+     */
+    public Object readValue(SchemaField field, ByteBuffer buffer) {
+        return encoders[field.getIndex()].read(buffer);
+    }
+
+    /**
+     * Writes and reads the values of one field.
+     */
+    private static class FieldEncoder {
+        private final BiConsumer<Object, RecordBuffer> writer;
+        private final Function<ByteBuffer, Object> reader;
+
+        private FieldEncoder(BiConsumer<Object, RecordBuffer> writer, Function<ByteBuffer, Object> reader) {
+            this.writer = writer;
+            this.reader = reader;
+        }
+
+        void write(Object value, RecordBuffer buffer) {
+            writer.accept(value, buffer);
+        }
+
+        Object read(ByteBuffer buffer) {
+            return reader.apply(buffer);
+        }
+
+        /**
+         * Wraps this encoder with a presence byte so that null values can be written.
+         */
+        FieldEncoder nullable() {
+            return new FieldEncoder((value, buffer) -> {
+                buffer.writeBoolean(null != value);
+                if (null != value) {
+                    write(value, buffer);
+                }
+            }, buffer -> 0 == buffer.get() ? null : read(buffer));
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private FieldEncoder encoderFor(SchemaField field) {
+        Class<?> type = field.getType();
+        FieldEncoder encoder;
+        if (boolean.class == type || Boolean.class == type) {
+            encoder = new FieldEncoder((value, buffer) -> buffer.writeBoolean((Boolean) value), buffer -> 0 != buffer.get());
+        } else if (byte.class == type || Byte.class == type) {
+            encoder = new FieldEncoder((value, buffer) -> buffer.writeByte((Byte) value), ByteBuffer::get);
+        } else if (short.class == type || Short.class == type) {
+            encoder = new FieldEncoder((value, buffer) -> buffer.writeShort((Short) value), ByteBuffer::getShort);
+        } else if (char.class == type || Character.class == type) {
+            encoder = new FieldEncoder((value, buffer) -> buffer.writeShort((Character) value), ByteBuffer::getChar);
+        } else if (int.class == type || Integer.class == type) {
+            encoder = new FieldEncoder((value, buffer) -> buffer.writeInt((Integer) value), ByteBuffer::getInt);
+        } else if (long.class == type || Long.class == type) {
+            encoder = new FieldEncoder((value, buffer) -> buffer.writeLong((Long) value), ByteBuffer::getLong);
+        } else if (float.class == type || Float.class == type) {
+            encoder = new FieldEncoder((value, buffer) -> buffer.writeFloat((Float) value), ByteBuffer::getFloat);
+        } else if (double.class == type || Double.class == type) {
+            encoder = new FieldEncoder((value, buffer) -> buffer.writeDouble((Double) value), ByteBuffer::getDouble);
+        } else if (String.class == type) {
+            // strings carry their own null marker in the length
+            return new FieldEncoder((value, buffer) -> buffer.writeString((String) value), RecordBuffer::readString);
+        } else if (Date.class == type) {
+            encoder = new FieldEncoder((value, buffer) -> buffer.writeLong(((Date) value).getTime()),
+                    buffer -> new Date(buffer.getLong()));
+        } else if (type.isEnum()) {
+            Class<? extends Enum> enumType = (Class<? extends Enum>) type;
+            encoder = new FieldEncoder((value, buffer) -> buffer.writeString(((Enum<?>) value).name()),
+                    buffer -> Enum.valueOf(enumType, RecordBuffer.readString(buffer)));
+        } else {
+            throw new ConfigurationException("Field '" + field.getName() + "' of '" + schema.getStoredClass().getName()
+                    + "' has type '" + type.getName() + "' which the field record codec cannot encode");
+        }
+        return type.isPrimitive() ? encoder : encoder.nullable();
+    }
+}
@@ -1,189 +1,2226 @@
 package com.ag.database;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.ag.database.StorableSchema.SchemaField;
 
 /**
  * Stores objects in a file sequentially. Stores and retrieves file indices for objects and reads them in as needed.
  * Attempts to control the fragmentation of the file (empty spaces in the data) that comes from removal.
+ * <p>
+ * Safe to share between threads. Saves, deletes and compaction run one at a time under a single write lock. Loads do not
+ * lock at all: they look up the record and copy its bytes under an optimistic stamp of the index lock, and only retry
+ * (eventually under a read lock) when a writer changed the index or rewrote a record in place while they were copying.
+ * <p>
+ * Records are only rewritten in place under a {@link WriteAheadLog}. Without one a save writes the new version elsewhere
+ * and frees the old one once the journal entry pointing away from it is synced, so a torn write cannot lose a record.
  */
-public class FlatFileStorer<T extends Storable & Serializable> implements Storer<T> {
+public class FlatFileStorer<T extends Storable & Serializable> implements Storer<T>, Closeable {
+
+    /**
+     * How {@link #load} locates a record in the object file.
+     */
+    public enum ReadMode {
+        // Opens a new stream on the object file and skips to the record on every load.
+        STREAM,
+        // Maps the object file once and deserializes records directly from the mapped region.
+        MAPPED
+    }
+
+    /**
+     * When the writes of {@link #save} and {@link #delete} are forced to disk. Writes are in the operating system's page
+     * cache once the call returns in every mode, the mode decides whether they survive a power loss.
+     */
+    public enum Durability {
+        // Returns right away, writes are forced in the background at the latest after the max latency.
+        ASYNC,
+        // Waits for a group commit, one force for all writes made while the previous force ran or within the max latency.
+        BATCH,
+        // Forces every write before returning.
+        WRITE
+    }
+
+    public static final long DEFAULT_SYNC_LATENCY_MILLIS = 1000;
 
     private File metaInfoFile;
     private File objectFile;
+    // Serves as a map from the unique ID of an object to the file position and size of that object.
+    private LongIndexTable objectFilePositions = new LongIndexTable();
+
+    private ReadMode readMode = ReadMode.MAPPED;
+    private FileChannel objectChannel;
+    private MappedObjectFile mappedObjectFile;
+    // the generation of the object file the records are in, see getObjectFile(int). Changes whenever the object file
+    // is replaced, so that scans reading through their own handle can notice
+    private int objectFileGeneration;
+
+    private long journalCheckpointBytes = MetaJournal.DEFAULT_CHECKPOINT_BYTES;
+    private MetaJournal metaJournal;
+
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+    public static final long DEFAULT_COMPACTION_MIN_BYTES = 1024 * 1024;
+
+    private final FreeSpaceAllocator allocator = new FreeSpaceAllocator();
+    // the end of the last byte in use or freed, new records that do not fit a hole are written here
+    private long objectFileEnd;
+    private double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private long compactionMinBytes = DEFAULT_COMPACTION_MIN_BYTES;
+    private long compactedBytes;
+    private int compactions;
+
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 3;
+    // a scan reads the records that lie within this many bytes of each other with a single read
+    private static final int SCAN_WINDOW_BYTES = 64 * 1024;
+
+    // serializes writers, guards the allocator, the journal and the record buffer
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // guards the index and the object file handles against readers, held by writers only for the moment they change them
+    private final StampedLock indexLock = new StampedLock();
+    // held while forcing the files, and while the files are swapped out by checkpoints, compaction and close
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    private Durability durability = Durability.ASYNC;
+    private long syncLatencyMillis = DEFAULT_SYNC_LATENCY_MILLIS;
+    private final GroupCommitter groupCommitter = new GroupCommitter(this::forceFiles);
+
+    private final RecordCodec<T> legacyCodec = new SerializableRecordCodec<>();
+    private RecordCodec<T> codec;
+    // the schema codec of the stored class, only known when the storer was created for a class
+    private FieldRecordCodec<T> fieldCodec;
+    private final RecordBuffer recordBuffer = new RecordBuffer();
+
+    public static final int COMPRESSION_TRAINING_RECORDS = 1000;
+
+    private boolean compression;
+    private int compressionDictionaryBytes = CompressedRecordCodec.DEFAULT_DICTIONARY_BYTES;
+    // reads the compressed records whenever the object file has a dictionary, writes them only when compression is on
+    private volatile CompressedRecordCodec<T> compressedCodec;
+    // the number of records at which a dictionary is trained next, while compression is on and none was trained yet
+    private volatile long nextTrainingRecords = Long.MAX_VALUE;
+
+    // secondary indexes, kept up to date by the writer
+    private final List<StorerIndex<T>> storerIndexes = new ArrayList<>();
+    private final Map<String, HashIndex<T>> hashIndexes = new HashMap<>();
+    private final Map<String, BTreeIndex<T>> rangeIndexes = new HashMap<>();
+    private ColumnProjection<T> columnProjection;
+    private final Map<String, MaterializedView<T>> views = new HashMap<>();
+
+    public static final long DEFAULT_DELTA_CHECKPOINT_BYTES = 1024 * 1024;
+    // a record loaded with this many updates on top of it is written again with them folded in
+    private static final int FOLD_ON_READ_UPDATES = 16;
+
+    // field updates not folded into their records yet, only kept for storers created for a class
+    private FieldDeltaLog deltaLog;
+    private long deltaCheckpointBytes = DEFAULT_DELTA_CHECKPOINT_BYTES;
+    // id -> the updates of the record in the object file, changed under the write lock of the index lock only, so that
+    // a reader copies a record and its updates in one consistent view
+    private final Map<Long, FieldDeltas> pendingDeltas = new ConcurrentHashMap<>();
+    private final RecordBuffer deltaBuffer = new RecordBuffer();
+
+    // when set, writes are logged there first and the durability of this storer is left to the log
+    private volatile WriteAheadLog writeAheadLog;
+    private volatile String logName;
+
+    // when set, every committed change is appended there, read under the write lock
+    private ChangeFeed changeFeed;
+    private String feedName;
+    // the sequences appended by the write in progress, guarded by the write lock
+    private long[] appendedChanges = new long[16];
+    private int appendedCount;
+
+    // while snapshots are open their records stay where they are, the frames freed meanwhile as {position, size} are
+    // killed and handed back once the last one is released, guarded by the write lock
+    private int snapshotPins;
+    private final List<long[]> pinnedFrees = new ArrayList<>();
+    // without a write-ahead log records are never rewritten in place, the frames they leave behind as
+    // {position, size, write} are only freed once that write is synced, guarded by the write lock
+    private final List<long[]> unsyncedFrees = new ArrayList<>();
+    // the ids saved since the last snapshot, null while there is no snapshot an incremental backup could build on
+    private LongIndexTable savedSinceSnapshot;
+    private long lastSnapshotId;
+
+    /**
+     * The FlatFileStorer stores Storable objects in bit form in the filesystem. A call to {@link #open} must be done before
+     * using any of the other operations.
+     * <p>
+     * Objects are written with Java serialization, see {@link #FlatFileStorer(Class)} for the compact field format.
+     */
+    public FlatFileStorer()  {
+        codec = legacyCodec;
+    }
+
+    /**
+     * Creates a FlatFileStorer that writes objects of the given class with a {@link FieldRecordCodec}. Fields annotated
+     * with {@link Indexed} get a hash index.
+     * 
+     * @param storedClass the class of the stored objects.
+     */
+    public FlatFileStorer(Class<T> storedClass) {
+        fieldCodec = new FieldRecordCodec<>(storedClass);
+        codec = fieldCodec;
+        for (SchemaField field : fieldCodec.getSchema().getFields()) {
+            Indexed indexed = field.getField().getAnnotation(Indexed.class);
+            if (null == indexed) {
+                continue;
+            }
+            if (Indexed.Type.RANGE == indexed.value()) {
+                addRangeIndex(field.getName());
+            } else {
+                addIndex(field.getName());
+            }
+        }
+    }
+
+    /**
+     * Keeps a {@link HashIndex} on the stored field so that {@link #lookup} can answer queries on it. Must be called
+     * before {@link #open}.
+     * 
+     * @param fieldName the stored name of the field.
+     */
+    public void addIndex(String fieldName) {
+        if (null == fieldCodec) {
+            throw new IllegalStateException("Indexes need the stored class, see FlatFileStorer(Class)");
+        }
+        if (hashIndexes.containsKey(fieldName)) {
+            return;
+        }
+        HashIndex<T> index = new HashIndex<>(fieldCodec, fieldName);
+        hashIndexes.put(fieldName, index);
+        addIndex(index);
+    }
+
+    /**
+     * Keeps a {@link BTreeIndex} on the stored field so that {@link #range} can answer queries on it. Must be called
+     * before {@link #open}.
+     * 
+     * @param fieldName the stored name of the field.
+     */
+    public void addRangeIndex(String fieldName) {
+        if (null == fieldCodec) {
+            throw new IllegalStateException("Indexes need the stored class, see FlatFileStorer(Class)");
+        }
+        if (rangeIndexes.containsKey(fieldName)) {
+            return;
+        }
+        BTreeIndex<T> index = new BTreeIndex<>(fieldCodec.getSchema(), fieldName);
+        rangeIndexes.put(fieldName, index);
+        addIndex(index);
+    }
+
+    /**
+     * Keeps the fields in the columns of a {@link ColumnProjection}, for aggregates over them that do not load any
+     * object. Must be called before {@link #open}.
+     *
+     * @param groupFieldName the stored name of a string field to group the aggregates by, null for none.
+     * @param columnFieldNames the stored names of the integral or date fields to aggregate.
+     */
+    public void setColumnProjection(String groupFieldName, String... columnFieldNames) {
+        if (null == fieldCodec) {
+            throw new IllegalStateException("Column projections need the stored class, see FlatFileStorer(Class)");
+        }
+        if (null != columnProjection) {
+            throw new IllegalStateException("The storer already has a column projection");
+        }
+        columnProjection = new ColumnProjection<>(fieldCodec.getSchema(), groupFieldName, columnFieldNames);
+        addIndex(columnProjection);
+    }
+
+    /**
+     * The projection set by {@link #setColumnProjection}, null when there is none.
+     */
+    public ColumnProjection<T> getColumnProjection() {
+        return columnProjection;
+    }
+
+    /**
+     * Keeps a {@link MaterializedView} of the objects that meet all conditions, read with {@link #getView}. Must be
+     * called before {@link #open}.
+     *
+     * @param name the name of the view, unique within this storer.
+     * @param groupFieldName the stored name of the field to group by, null to keep a single result.
+     * @param aggregate
+     * @param valueFieldName the stored name of the field to aggregate, null to count the objects or keep their ids.
+     * @param where
+     * @return the view.
+     */
+    public MaterializedView<T> addView(String name, String groupFieldName, MaterializedView.Aggregate aggregate,
+            String valueFieldName, MaterializedView.Condition... where) {
+        if (null == fieldCodec) {
+            throw new IllegalStateException("Views need the stored class, see FlatFileStorer(Class)");
+        }
+        if (views.containsKey(name)) {
+            throw new IllegalArgumentException("A view named '" + name + "' is already registered");
+        }
+        MaterializedView<T> view = new MaterializedView<>(fieldCodec.getSchema(), name, groupFieldName, aggregate,
+                valueFieldName, where);
+        addIndex(view);
+        views.put(name, view);
+        return view;
+    }
+
+    /**
+     * The view added by {@link #addView} under the name, null when there is none.
+     */
+    public MaterializedView<T> getView(String name) {
+        return views.get(name);
+    }
+
+    /**
+     * Registers an index that is updated with every save and delete and persisted next to the meta file. Must be called
+     * before {@link #open}.
+     * 
+     * @param index
+     */
+    public void addIndex(StorerIndex<T> index) {
+        for (StorerIndex<T> registered : storerIndexes) {
+            if (registered.getName().equals(index.getName())) {
+                throw new IllegalArgumentException("An index named '" + index.getName() + "' is already registered");
+            }
+        }
+        storerIndexes.add(index);
+    }
+
+    /**
+     * Sets the codec new records are written with. Records written by an older codec stay readable as long as they are
+     * in the Java serialization format.
+     * 
+     * @param codec
+     */
+    public void setRecordCodec(RecordCodec<T> codec) {
+        if (null == codec) {
+            throw new NullPointerException("Expect non-null record codec");
+        }
+        this.codec = codec;
+    }
+
+    /**
+     * Compresses new records against a dictionary trained from the stored records, see {@link CompressedRecordCodec}.
+     * The dictionary is trained when the storer is opened or once {@value #COMPRESSION_TRAINING_RECORDS} records were
+     * saved, and records saved before that are compressed as they are saved again. Must be called before
+     * {@link #open}, and so must {@link #setRecordCodec}, whose records are the ones compressed.
+     *
+     * @param compression
+     * @param dictionaryBytes the size of the trained dictionary, larger ones compress better but slower.
+     */
+    public void setCompression(boolean compression, int dictionaryBytes) {
+        if (dictionaryBytes <= 0) {
+            throw new IllegalArgumentException("Dictionary size must be positive: " + dictionaryBytes);
+        }
+        this.compression = compression;
+        this.compressionDictionaryBytes = dictionaryBytes;
+    }
+
+    /**
+     * Returns the compression stage with its ratio and timings, or null when the records are not compressed.
+     */
+    public CompressedRecordCodec<T> getCompression() {
+        return compression ? compressedCodec : null;
+    }
+
+    /**
+     * Appends every save, field update and delete of this storer to the feed from now on, see {@link ChangeFeed}.
+     *
+     * @param changeFeed the feed, or null to stop.
+     * @param name identifies this storer in the events, storers of the same class share it.
+     */
+    public void setChangeFeed(ChangeFeed changeFeed, String name) {
+        writeLock.lock();
+        try {
+            this.changeFeed = changeFeed;
+            this.feedName = name;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    /**
+     * Appends the change to the feed, when there is one, and remembers its sequence for {@link #takeChanges}. Must
+     * hold the write lock.
+     */
+    private void appendChange(ChangeFeed.Operation operation, long id, byte[] payload) throws IOException {
+        if (null == changeFeed) {
+            return;
+        }
+        long sequence = changeFeed.append(feedName, operation, id, payload);
+        if (appendedCount == appendedChanges.length) {
+            appendedChanges = Arrays.copyOf(appendedChanges, appendedCount * 2);
+        }
+        appendedChanges[appendedCount++] = sequence;
+    }
+
+    /**
+     * Takes the sequences of the changes appended by the write in progress. Must hold the write lock.
+     *
+     * @return the sequences, null when the write appended none.
+     */
+    private long[] takeChanges() {
+        if (0 == appendedCount) {
+            return null;
+        }
+        long[] changes = Arrays.copyOf(appendedChanges, appendedCount);
+        appendedCount = 0;
+        return changes;
+    }
+
+    /**
+     * Drops the changes appended by the write in progress, which failed. Must hold the write lock.
+     */
+    private void discardChanges(Exception failure) {
+        discardChanges(takeChanges(), failure);
+    }
+
+    private void discardChanges(long[] changes, Exception failure) {
+        ChangeFeed feed = changeFeed;
+        if (null == changes || null == feed) {
+            return;
+        }
+        try {
+            feed.discard(changes);
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Encodes the object for the feed with the codec of the storer, consumers do not have its compression dictionaries.
+     */
+    private byte[] encodeChangeState(T object) throws IOException {
+        RecordBuffer buffer = new RecordBuffer();
+        codec.encode(object, buffer);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Hands the changes of a write to the consumers of the feed once it is committed.
+     */
+    private void publishChanges(long[] changes) {
+        ChangeFeed feed = changeFeed;
+        if (null != changes && null != feed) {
+            feed.publish(changes);
+        }
+    }
+
+    /**
+     * Decodes the object saved by a {@link ChangeFeed.Operation#SAVE} event of a storer of the same class.
+     *
+     * @throws IOException
+     */
+    public T decodeState(ChangeFeed.ChangeEvent event) throws IOException {
+        if (ChangeFeed.Operation.SAVE != event.getOperation()) {
+            throw new IllegalArgumentException("Not a save: " + event);
+        }
+        return decode(ByteBuffer.wrap(event.getPayload()));
+    }
+
+    /**
+     * Decodes the field name and value set by a {@link ChangeFeed.Operation#UPDATE} event of a storer of the same class.
+     */
+    public Map.Entry<String, Object> decodeUpdate(ChangeFeed.ChangeEvent event) throws IOException {
+        if (ChangeFeed.Operation.UPDATE != event.getOperation()) {
+            throw new IllegalArgumentException("Not an update: " + event);
+        }
+        if (null == fieldCodec) {
+            throw new UnsupportedOperationException("Field updates need a storer created for a class");
+        }
+        ByteBuffer update = ByteBuffer.wrap(event.getPayload());
+        List<SchemaField> fields = fieldCodec.getSchema().getFields();
+        try {
+            int fieldIndex = update.getShort();
+            if (fieldIndex < 0 || fieldIndex >= fields.size()) {
+                throw new IOException("Unknown field " + fieldIndex + " in update " + event);
+            }
+            SchemaField field = fields.get(fieldIndex);
+            return new AbstractMap.SimpleImmutableEntry<>(field.getName(), fieldCodec.readValue(field, update));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated update " + event, e);
+        }
+    }
+
+    /**
+     * Associates this FlatFileStorer with the index and object files passed. If the files exists they will be read from and loaded.
+     * 
+     * @param metaFileName
+     * @param objectFileName
+     * @throws IOException
+     */
+    public void open(String metaFileName, String objectFileName) throws IOException {
+        if (null == metaFileName || null == objectFileName) {
+            throw new NullPointerException("Expect non-null index / object filename");
+        }
+
+        File indexFile = new File(metaFileName);
+        File objectFile = new File(objectFileName);
+
+        if (indexFile.equals(objectFile)) {
+            throw new IOException("Cannot use the same file for index file and object file.");
+        }
+
+        Files.createDirectories(indexFile.getParentFile().toPath()); 
+        Files.createDirectories(objectFile.getParentFile().toPath()); 
+
+        writeLock.lock();
+        long stamp = indexLock.writeLock();
+        try {
+            this.metaInfoFile = indexFile;
+            this.objectFile = objectFile;
+
+            long start = System.nanoTime();
+            objectFilePositions = new LongIndexTable();
+            snapshotPins = 0;
+            pinnedFrees.clear();
+            unsyncedFrees.clear();
+            savedSinceSnapshot = null;
+            metaJournal = new MetaJournal(metaInfoFile, journalCheckpointBytes);
+            File compactedObjectFile = getCompactedObjectFile();
+            if (compactedObjectFile.exists()) {
+                // compaction was interrupted before it was committed, the current files are still the valid ones
+                Files.delete(compactedObjectFile.toPath());
+                Files.deleteIfExists(metaJournal.getCompactedSnapshotFile().toPath());
+            }
+            long[] generations = MetaJournal.listGenerations(objectFile);
+            objectFileGeneration = 0 == generations.length ? 0 : (int) generations[generations.length - 1];
+            boolean recover = !metaJournal.exists() && getObjectFile(objectFileGeneration).length() > 0;
+            if (!recover) {
+                try {
+                    metaJournal.open(objectFilePositions);
+                } catch (IOException e) {
+                    System.out.println("Meta info '" + metaInfoFile.getName() + "' is unreadable, recovering it from the object file: " + e);
+                    metaJournal.discard();
+                    objectFilePositions = new LongIndexTable();
+                    recover = true;
+                }
+            }
+            if (recover) {
+                metaJournal.open(objectFilePositions);
+            }
+            System.out.println("Meta info loaded with " + objectFilePositions.size() + " entries in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms.");
+
+            openObjectFile();
+            deleteOlderObjectFiles();
+            if (recover) {
+                recoverMetaInfo();
+            }
+            rebuildFreeSpace();
+            openDeltaLog();
+        } catch (IOException | RuntimeException e) {
+            indexLock.unlockWrite(stamp);
+            writeLock.unlock();
+            throw e;
+        }
+        // the indexes may have to be rebuilt by a scan, which reads through the index lock
+        indexLock.unlockWrite(stamp);
+        try {
+            openCompression();
+            openIndexes();
+            if (Durability.ASYNC == durability) {
+                groupCommitter.startBackgroundSync(syncLatencyMillis, TimeUnit.MILLISECONDS);
+            } else {
+                groupCommitter.setLatency(syncLatencyMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private File getDeltaLogFile() {
+        return new File(objectFile.getPath() + ".delta");
+    }
+
+    /**
+     * Replays the field updates of the records that were not saved again since. Only storers created for a class know
+     * the fields.
+     */
+    private void openDeltaLog() throws IOException {
+        pendingDeltas.clear();
+        if (null == fieldCodec) {
+            return;
+        }
+        List<SchemaField> fields = fieldCodec.getSchema().getFields();
+        deltaLog = new FieldDeltaLog(getDeltaLogFile());
+        deltaLog.open((id, baseVersion, fieldIndex, value) -> {
+            if (FieldDeltaLog.DROP == fieldIndex) {
+                pendingDeltas.remove(id);
+                return;
+            }
+            int slot = objectFilePositions.slotOf(id);
+            if (slot < 0 || readVersion(slot) != baseVersion || fieldIndex >= fields.size()) {
+                // the record was saved again or deleted after the update
+                return;
+            }
+            SchemaField field = fields.get(fieldIndex);
+            pendingDeltas.put(id, FieldDeltas.with(pendingDeltas.get(id), fieldIndex, fieldCodec.readValue(field, value)));
+        });
+        if (!pendingDeltas.isEmpty()) {
+            System.out.println("Replayed the field updates of " + pendingDeltas.size() + " record(s) of '"
+                    + objectFile.getName() + "'");
+        }
+    }
+
+    private File getDictionaryFile() {
+        return new File(objectFile.getPath() + ".dict");
+    }
+
+    /**
+     * Loads the compression dictionaries, and trains the first one when there are enough records for it.
+     */
+    private void openCompression() throws IOException {
+        File dictionaryFile = getDictionaryFile();
+        if (!compression && !dictionaryFile.exists()) {
+            compressedCodec = null;
+            nextTrainingRecords = Long.MAX_VALUE;
+            return;
+        }
+        CompressedRecordCodec<T> openedCodec = new CompressedRecordCodec<>(codec, dictionaryFile);
+        openedCodec.open();
+        compressedCodec = openedCodec;
+        nextTrainingRecords = !compression || openedCodec.hasDictionary() ? Long.MAX_VALUE : COMPRESSION_TRAINING_RECORDS;
+        trainIfDue();
+    }
+
+    private void trainIfDue() throws IOException {
+        if (objectFilePositions.size() >= nextTrainingRecords) {
+            trainCompressionDictionary();
+        }
+    }
+
+    /**
+     * Trains a new compression dictionary from a sample of up to {@value #COMPRESSION_TRAINING_RECORDS} records spread
+     * over the object file, and compresses the records saved from now on against it. Worth calling again when the
+     * stored data changed its shape, the records compressed against older dictionaries stay readable.
+     *
+     * @throws IOException
+     */
+    public void trainCompressionDictionary() throws IOException {
+        if (!compression || null == compressedCodec) {
+            throw new IllegalStateException("Compression is not enabled on the open storer");
+        }
+        writeLock.lock();
+        try {
+            long start = System.nanoTime();
+            long[] ids = readIndex(LongIndexTable::sortedByPosition)[0];
+            int step = Math.max(1, ids.length / COMPRESSION_TRAINING_RECORDS);
+            List<byte[]> samples = new ArrayList<>();
+            RecordBuffer buffer = new RecordBuffer();
+            for (int i = 0; i < ids.length; i += step) {
+                T object = loadIfSaved(ids[i]);
+                if (null != object) {
+                    buffer.reset();
+                    codec.encode(object, buffer);
+                    samples.add(buffer.toByteArray());
+                }
+            }
+            byte[] dictionary = CompressedRecordCodec.train(samples, compressionDictionaryBytes);
+            // records without anything in common are tried again once there are twice as many
+            nextTrainingRecords = 0 == dictionary.length ? 2L * Math.max(ids.length, COMPRESSION_TRAINING_RECORDS) : Long.MAX_VALUE;
+            if (dictionary.length > 0) {
+                compressedCodec.addDictionary(dictionary);
+            }
+            System.out.println("Trained a " + dictionary.length + " byte compression dictionary for '" + objectFile.getName()
+                    + "' from " + samples.size() + " records in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * The codec new records are written with.
+     */
+    private RecordCodec<T> getWriteCodec() {
+        CompressedRecordCodec<T> compressing = compressedCodec;
+        return compression && null != compressing ? compressing : codec;
+    }
+
+    private File getIndexFile(StorerIndex<T> index) {
+        return new File(metaInfoFile.getPath() + ".index." + index.getName());
+    }
+
+    /**
+     * Identifies the state of the meta information, an index file written for another state is rebuilt.
+     */
+    private long getIndexFingerprint() {
+        return (objectFilePositions.size() * 31L + objectFileEnd) * 31L + metaJournal.getJournalSize();
+    }
+
+    /**
+     * Loads the indexes written by the last {@link #close} and rebuilds the missing or stale ones with a single scan.
+     */
+    private void openIndexes() throws IOException {
+        long fingerprint = getIndexFingerprint();
+        List<StorerIndex<T>> stale = new ArrayList<>();
+        for (StorerIndex<T> index : storerIndexes) {
+            File file = getIndexFile(index);
+            if (!index.read(file, fingerprint)) {
+                index.clear();
+                stale.add(index);
+            }
+        }
+        if (stale.isEmpty() || 0 == objectFilePositions.size()) {
+            return;
+        }
+        System.out.println("Rebuilding " + stale.size() + " index(es) of '" + objectFile.getName() + "'");
+        try (Stream<T> objects = scan()) {
+            objects.forEach(object -> {
+                for (StorerIndex<T> index : stale) {
+                    index.update(object.getId(), object);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Rebuilds the meta information from the frames in the object file with a single sequential scan. Where a crash left
+     * two live copies of a record, the one with the higher version wins. A torn or corrupt tail is cut off.
+     * <p>
+     * Records written before frames were introduced can not be found this way and are lost with the meta file.
+     */
+    private void recoverMetaInfo() throws IOException {
+        long start = System.nanoTime();
+        // id -> (unused, version), to pick the newest copy of an id, versions start at 1
+        LongIndexTable versions = new LongIndexTable();
+        long validEnd = RecordFrame.scan(objectChannel, (id, version, position, size) -> {
+            int slot = versions.slotOf(id);
+            if (slot >= 0 && versions.sizeAt(slot) > version) {
+                return;
+            }
+            versions.put(id, 0, version);
+            objectFilePositions.put(id, position, size);
+        });
+        if (validEnd < objectFileEnd) {
+            System.out.println("Cutting off " + (objectFileEnd - validEnd) + " torn or corrupt byte(s) at the end of '"
+                    + objectFile.getName() + "'");
+            objectChannel.truncate(validEnd);
+            objectFileEnd = validEnd;
+        }
+        metaJournal.reset(objectFilePositions);
+        System.out.println("Recovered " + objectFilePositions.size() + " entries of '" + objectFile.getName()
+                + "' in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private void openObjectFile() throws IOException {
+        objectChannel = FileChannel.open(getObjectFile(objectFileGeneration).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mappedObjectFile = new MappedObjectFile(objectChannel);
+        objectFileEnd = objectChannel.size();
+    }
+
+    /**
+     * The file a generation of the object file is stored in: the object file itself, then {@code .1}, {@code .2} and
+     * so on. Compaction writes the next generation instead of replacing the current file, which can not be replaced on
+     * every platform while it is mapped or open.
+     */
+    private File getObjectFile(int generation) {
+        return 0 == generation ? objectFile : new File(objectFile.getPath() + "." + generation);
+    }
+
+    /**
+     * Deletes the generations of the object file before the current one. One that is still mapped may not be deletable,
+     * it is tried again after the next compaction or open.
+     */
+    private void deleteOlderObjectFiles() {
+        for (long older : MetaJournal.listGenerations(objectFile)) {
+            if (older >= objectFileGeneration) {
+                break;
+            }
+            File file = getObjectFile((int) older);
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                System.out.println("Keeping the old object file '" + file.getName() + "' for now: " + e);
+            }
+        }
+    }
+
+    private File getCompactedObjectFile() {
+        return new File(objectFile.getPath() + ".compact");
+    }
+
+    /**
+     * Every byte of the object file not covered by a live record is a hole left behind by a delete or a moved record.
+     */
+    private void rebuildFreeSpace() {
+        long[][] records = objectFilePositions.sortedByPosition();
+        allocator.rebuild(records[1], records[2], objectFileEnd);
+    }
+
+    /**
+     * Sets how objects are read back from the object file. Defaults to {@link ReadMode#MAPPED}.
+     * 
+     * @param readMode
+     */
+    public void setReadMode(ReadMode readMode) {
+        if (null == readMode) {
+            throw new NullPointerException("Expect non-null read mode");
+        }
+        this.readMode = readMode;
+    }
+
+    public ReadMode getReadMode() {
+        return readMode;
+    }
+
+    /**
+     * Sets when writes are forced to disk. Defaults to {@link Durability#ASYNC} within
+     * {@value #DEFAULT_SYNC_LATENCY_MILLIS} ms. Must be called before {@link #open}.
+     * 
+     * @param durability
+     * @param maxLatencyMillis for {@link Durability#ASYNC} the longest a write stays unforced, for
+     *            {@link Durability#BATCH} how long a commit waits for more writes to join.
+     */
+    public void setDurability(Durability durability, long maxLatencyMillis) {
+        if (null == durability) {
+            throw new NullPointerException("Expect non-null durability");
+        }
+        if (maxLatencyMillis < 0 || (Durability.ASYNC == durability && 0 == maxLatencyMillis)) {
+            throw new IllegalArgumentException("Invalid max latency for " + durability + ": " + maxLatencyMillis);
+        }
+        this.durability = durability;
+        this.syncLatencyMillis = maxLatencyMillis;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * The number of forces made by group commits and background syncs.
+     */
+    public long getGroupCommits() {
+        return groupCommitter.getSyncs();
+    }
+
+    /**
+     * Forces the object file and the journal. Writers keep writing meanwhile, their writes are covered by the next force.
+     */
+    private void forceFiles() throws IOException {
+        syncLock.lock();
+        try {
+            if (null == metaJournal) {
+                // closed, which forced everything
+                return;
+            }
+            objectChannel.force(false);
+            if (null != deltaLog) {
+                deltaLog.force();
+            }
+            metaJournal.force();
+            if (null != changeFeed) {
+                changeFeed.force();
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Forces everything written so far, for a {@link WriteAheadLog} checkpoint.
+     */
+    void sync() throws IOException {
+        forceFiles();
+        groupCommitter.markSynced();
+    }
+
+    /**
+     * Routes the writes of this storer through the log, or back to the storer itself when the log is null. Called by
+     * {@link WriteAheadLog#register}.
+     */
+    void attach(WriteAheadLog writeAheadLog, String logName) {
+        this.logName = logName;
+        this.writeAheadLog = writeAheadLog;
+    }
+
+    WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    String getLogName() {
+        return logName;
+    }
+
+    /**
+     * Encodes the object into a record of its own, for a {@link Transaction}.
+     */
+    byte[] encodeRecord(T object) throws IOException {
+        trainIfDue();
+        RecordBuffer buffer = new RecordBuffer();
+        getWriteCodec().encode(object, buffer);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Applies changes that are durable in the write-ahead log, in order, with a single journal append.
+     */
+    void applyChanges(List<WriteAheadLog.Change> logged) throws IOException {
+        long[] changes;
+        writeLock.lock();
+        try {
+            for (WriteAheadLog.Change change : logged) {
+                if (WriteAheadLog.OP_DELETE == change.op) {
+                    if (removeIndex(change.id)) {
+                        appendChange(ChangeFeed.Operation.DELETE, change.id, new byte[0]);
+                    }
+                    continue;
+                }
+                if (WriteAheadLog.OP_UPDATE == change.op) {
+                    // the object was checked to exist before the update was logged, a redo may find it deleted later
+                    if (objectFilePositions.slotOf(change.id) >= 0) {
+                        ByteBuffer update = ByteBuffer.wrap(change.record);
+                        SchemaField field = fieldCodec.getSchema().getFields().get(update.getShort());
+                        applyUpdate(change.id, field, fieldCodec.readValue(field, update));
+                        appendChange(ChangeFeed.Operation.UPDATE, change.id, change.record);
+                    }
+                    continue;
+                }
+                ByteBuffer frame = ByteBuffer.allocate(RecordFrame.HEADER_BYTES + change.record.length);
+                frame.position(RecordFrame.HEADER_BYTES);
+                frame.put(change.record).flip();
+                // only the secondary indexes and a compressed record on its way to the feed need the object
+                boolean compressed = change.record.length > 0 && CompressedRecordCodec.FORMAT == change.record[0];
+                T object = storerIndexes.isEmpty() && (null == changeFeed || !compressed)
+                        ? null : decode(ByteBuffer.wrap(change.record));
+                saveRecord(change.id, frame, object);
+                if (null != changeFeed) {
+                    appendChange(ChangeFeed.Operation.SAVE, change.id,
+                            compressed ? encodeChangeState(object) : change.record);
+                }
+            }
+            saveMetaInfo();
+            changes = takeChanges();
+        } catch (IOException | RuntimeException e) {
+            discardChanges(e);
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+        // the log made the changes durable before they were applied
+        publishChanges(changes);
+    }
+
+    /**
+     * Waits until the write numbered by {@link #saveMetaInfo} is as durable as the mode asks for.
+     */
+    private void commit(long write) throws IOException {
+        if (Durability.BATCH == durability) {
+            groupCommitter.awaitSynced(write);
+        }
+    }
+
+    /**
+     * Commits the write and hands its changes to the feed, or drops them when the commit failed.
+     */
+    private void commit(long write, long[] changes) throws IOException {
+        try {
+            commit(write);
+        } catch (IOException | RuntimeException e) {
+            discardChanges(changes, e);
+            throw e;
+        }
+        publishChanges(changes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        groupCommitter.stopBackgroundSync();
+        writeLock.lock();
+        long stamp = indexLock.writeLock();
+        syncLock.lock();
+        try {
+            if (null != metaJournal) {
+                metaJournal.flush();
+                long fingerprint = getIndexFingerprint();
+                for (StorerIndex<T> index : storerIndexes) {
+                    index.write(getIndexFile(index), fingerprint);
+                }
+                objectChannel.force(false);
+                if (null != deltaLog) {
+                    deltaLog.force();
+                    deltaLog.close();
+                    deltaLog = null;
+                }
+                metaJournal.force();
+                groupCommitter.markSynced();
+                metaJournal.close();
+                metaJournal = null;
+            }
+            if (null != mappedObjectFile) {
+                mappedObjectFile.close();
+                mappedObjectFile = null;
+            }
+            if (null != objectChannel) {
+                objectChannel.close();
+                objectChannel = null;
+            }
+        } finally {
+            syncLock.unlock();
+            indexLock.unlockWrite(stamp);
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the journal size in bytes after which the meta information is checkpointed into a new snapshot. Must be
+     * called before {@link #open}.
+     * 
+     * @param journalCheckpointBytes
+     */
+    public void setJournalCheckpointBytes(long journalCheckpointBytes) {
+        this.journalCheckpointBytes = journalCheckpointBytes;
+    }
+
+    /**
+     * Sets the fraction of the object file that has to be free before the file is compacted automatically.
+     * 
+     * @param compactionThreshold a ratio between 0 and 1, values above 1 disable automatic compaction.
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Sets the object file size below which the file is never compacted automatically.
+     * 
+     * @param compactionMinBytes
+     */
+    public void setCompactionMinBytes(long compactionMinBytes) {
+        this.compactionMinBytes = compactionMinBytes;
+    }
+
+    /**
+     * Persists the index changes of the last operation with a single journal append, checkpointing the journal into
+     * a fresh snapshot once it has grown large enough.
+     * 
+     * @return the number of the write, to hand to {@link #commit} once the write lock is released.
+     */
+    private long saveMetaInfo() throws IOException {
+        metaJournal.flush();
+        if (0 == snapshotPins && objectFileEnd >= compactionMinBytes && getFragmentation() >= compactionThreshold) {
+            compact();
+        } else if (metaJournal.needsCheckpoint()) {
+            syncLock.lock();
+            try {
+                metaJournal.checkpoint(objectFilePositions);
+            } finally {
+                syncLock.unlock();
+            }
+        }
+        long write = groupCommitter.written();
+        if (Durability.WRITE == durability && null == writeAheadLog) {
+            forceFiles();
+            groupCommitter.markSynced();
+        }
+        return write;
+    }
+
+    /**
+     * Rewrites all live records back to back into a new object file and swaps it in for the current file.
+     * <p>
+     * The new file is fully written and a snapshot of its index prepared before the new file is moved in as the next
+     * generation of the object file, which is the commit point. An interrupted compaction is either discarded or
+     * finished on the next open.
+     * 
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        writeLock.lock();
+        try {
+            compactLocked();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void compactLocked() throws IOException {
+        if (snapshotPins > 0) {
+            throw new IllegalStateException("'" + objectFile.getName() + "' can not be compacted while a snapshot is open");
+        }
+        if (null != deltaLog && deltaLog.size() > 0) {
+            foldDeltas();
+        }
+        metaJournal.flush();
+        // {id, position, size} of every live record in file order
+        List<long[]> records = new ArrayList<>(objectFilePositions.size());
+        objectFilePositions.forEach((id, position, size) -> records.add(new long[] {id, position, size}));
+        records.sort(Comparator.comparingLong(record -> record[1]));
+
+        // readers keep loading from the current file while the compacted copy is written
+        File compactedObjectFile = getCompactedObjectFile();
+        LongIndexTable compactedPositions = new LongIndexTable(records.size());
+        long compactedEnd = 0;
+        try {
+            try (FileChannel compacted = FileChannel.open(compactedObjectFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                // records that were already adjacent are copied with a single transfer
+                long runStart = 0;
+                long runEnd = 0;
+                for (long[] record : records) {
+                    long from = record[1];
+                    if (from != runEnd) {
+                        transfer(runStart, runEnd - runStart, compacted);
+                        runStart = from;
+                        runEnd = from;
+                    }
+                    compactedPositions.put(record[0], compacted.position() + (from - runStart), record[2]);
+                    runEnd = from + record[2];
+                }
+                transfer(runStart, runEnd - runStart, compacted);
+                compactedEnd = compacted.position();
+                compacted.force(true);
+            }
+            metaJournal.prepareCompactedSnapshot(compactedPositions);
+        } catch (IOException e) {
+            discardCompaction(compactedObjectFile);
+            throw e;
+        }
+
+        long uncompactedEnd = objectFileEnd;
+        syncLock.lock();
+        long stamp = indexLock.writeLock();
+        try {
+            // the current file stays mapped and open until the compacted one is in place under a name of its own
+            try {
+                Files.move(compactedObjectFile.toPath(), getObjectFile(objectFileGeneration + 1).toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                discardCompaction(compactedObjectFile);
+                throw e;
+            }
+            try {
+                metaJournal.installCompactedSnapshot();
+            } finally {
+                // committed by the move, the next open installs the snapshot when it could not be installed now
+                mappedObjectFile.close();
+                objectChannel.close();
+                objectFilePositions = compactedPositions;
+                objectFileGeneration++;
+                openObjectFile();
+            }
+        } finally {
+            indexLock.unlockWrite(stamp);
+            syncLock.unlock();
+        }
+        deleteOlderObjectFiles();
+        allocator.clear();
+        // the frames were left behind in the old file
+        unsyncedFrees.clear();
+        compactedBytes += uncompactedEnd - compactedEnd;
+        compactions++;
+        // every record moved, the next backup has to copy all of them
+        savedSinceSnapshot = null;
+    }
+
+    private void discardCompaction(File compactedObjectFile) throws IOException {
+        Files.deleteIfExists(compactedObjectFile.toPath());
+        Files.deleteIfExists(metaJournal.getCompactedSnapshotFile().toPath());
+    }
+
+    private void transfer(long position, long count, FileChannel target) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            transferred += objectChannel.transferTo(position + transferred, count - transferred, target);
+        }
+    }
+
+    /**
+     * Captures the records of this storer as they are now. Writers are only held up while the index is copied: until
+     * the snapshot is closed no record it refers to is overwritten or reused, so its bytes can be copied out of the
+     * object file while writes go on. Pending field updates are folded into their records first, and the object file
+     * is not compacted while a snapshot is open. Snapshots must be closed before the storer.
+     *
+     * @throws IOException
+     */
+    public StorerSnapshot<T> snapshot() throws IOException {
+        writeLock.lock();
+        try {
+            return snapshotLocked();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Holds up the writers of this storer, for snapshots of several storers taken at the same point.
+     */
+    void lockWrites() {
+        writeLock.lock();
+    }
+
+    void unlockWrites() {
+        writeLock.unlock();
+    }
+
+    /**
+     * Must hold the write lock.
+     */
+    StorerSnapshot<T> snapshotLocked() throws IOException {
+        if (null == metaJournal) {
+            throw new IllegalStateException("The storer is not open");
+        }
+        if (null != deltaLog && deltaLog.size() > 0) {
+            foldDeltas();
+        }
+        metaJournal.flush();
+        File dictionaryFile = getDictionaryFile();
+        byte[] dictionary = dictionaryFile.exists() ? Files.readAllBytes(dictionaryFile.toPath()) : null;
+        long id = Math.max(lastSnapshotId + 1, System.currentTimeMillis());
+        StorerSnapshot<T> snapshot = new StorerSnapshot<>(this, id, null == savedSinceSnapshot ? 0 : lastSnapshotId,
+                objectFileEnd, objectFilePositions.copy(), savedSinceSnapshot, dictionary);
+        lastSnapshotId = id;
+        savedSinceSnapshot = new LongIndexTable();
+        snapshotPins++;
+        return snapshot;
+    }
+
+    /**
+     * Called once by every closed snapshot, the last one hands the frames freed while they were open back.
+     */
+    void releaseSnapshot() throws IOException {
+        writeLock.lock();
+        try {
+            if (--snapshotPins > 0) {
+                return;
+            }
+            if (null != metaJournal) {
+                for (long[] freed : pinnedFrees) {
+                    killFrame(freed[0]);
+                    allocator.free(freed[0], freed[1]);
+                }
+            }
+            pinnedFrees.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Copies bytes of the object file, for a snapshot, which keeps the records it copies from being overwritten.
+     */
+    void transferObjectBytes(long position, long count, FileChannel target) throws IOException {
+        transfer(position, count, target);
+    }
+
+    File getObjectFile() {
+        return objectFile;
+    }
+
+    File getMetaInfoFile() {
+        return metaInfoFile;
+    }
+
+    /**
+     * The number of bytes the object file spans, including holes.
+     */
+    public long getObjectFileSize() {
+        writeLock.lock();
+        try {
+            return objectFileEnd;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * The number of bytes of the object file in holes that are not used by any record.
+     */
+    public long getFreeBytes() {
+        writeLock.lock();
+        try {
+            return allocator.getFreeBytes();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * The fraction of the object file that is not used by any record.
+     */
+    public double getFragmentation() {
+        writeLock.lock();
+        try {
+            return 0 == objectFileEnd ? 0 : (double) allocator.getFreeBytes() / objectFileEnd;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * The number of bytes given back since this storer was opened, both reused from holes and removed by compaction.
+     */
+    public long getReclaimedBytes() {
+        writeLock.lock();
+        try {
+            return allocator.getReusedBytes() + compactedBytes;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * The number of compactions since this storer was opened.
+     */
+    public int getCompactions() {
+        writeLock.lock();
+        try {
+            return compactions;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public List<T> loadAll(List<T> objects) throws IOException {
+        List<T> persistedObjects = new ArrayList<>();
+        for (T obj : objects) {
+            persistedObjects.add(load(obj.getId()));
+        }
+        return persistedObjects;
+    }
+
+    @Override 
+    public List<T> loadAllId(Set<Long> ids) throws IOException {
+        List<T> persistedObjects = new ArrayList<>();
+        for (Long id : ids) {
+            persistedObjects.add(load(id));
+        }
+        return persistedObjects;
+    }
+
+    @Override
+    public long savedEntries() throws IOException {
+        return readIndex(LongIndexTable::size);
+    }
+
+    /**
+     * Reads from the index optimistically, falling back to a read lock when a writer got in between.
+     */
+    private <R> R readIndex(Function<LongIndexTable, R> read) {
+        long stamp = indexLock.tryOptimisticRead();
+        if (0 != stamp) {
+            try {
+                R value = read.apply(objectFilePositions);
+                if (indexLock.validate(stamp)) {
+                    return value;
+                }
+            } catch (RuntimeException e) {
+                if (indexLock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+        stamp = indexLock.readLock();
+        try {
+            return read.apply(objectFilePositions);
+        } finally {
+            indexLock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void saveAll(List<T> objects) throws IOException {
+        WriteAheadLog log = writeAheadLog;
+        if (null != log) {
+            log.begin().saveAll(this, objects).commit();
+            return;
+        }
+        long write;
+        long[] changes;
+        writeLock.lock();
+        try {
+            for (T obj : objects) {
+                saveObject(obj);
+                if (null != changeFeed) {
+                    appendChange(ChangeFeed.Operation.SAVE, obj.getId(), encodeChangeState(obj));
+                }
+            }
+            write = saveMetaInfo();
+            changes = takeChanges();
+        } catch (IOException | RuntimeException e) {
+            discardChanges(e);
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+        commit(write, changes);
+    }
+
+    @Override
+    public void save(T object) throws IOException {
+        WriteAheadLog log = writeAheadLog;
+        if (null != log) {
+            log.begin().save(this, object).commit();
+            return;
+        }
+        long write;
+        long[] changes;
+        writeLock.lock();
+        try {
+            saveObject(object);
+            if (null != changeFeed) {
+                appendChange(ChangeFeed.Operation.SAVE, object.getId(), encodeChangeState(object));
+            }
+            write = saveMetaInfo();
+            changes = takeChanges();
+        } catch (IOException | RuntimeException e) {
+            discardChanges(e);
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+        commit(write, changes);
+    }
+
+    /**
+     * Sets a single field of the saved object by appending a small update instead of writing the whole record again.
+     * Updates are folded into the record when it is saved again, when a load finds many of them, when the updates
+     * outgrow {@link #setDeltaCheckpointBytes} and during compaction.
+     *
+     * @throws IllegalArgumentException when the field is not stored or the value does not fit its type.
+     * @throws IOException when no object is saved with the id.
+     */
+    @Override
+    public void update(long id, String fieldName, Object value) throws IOException {
+        SchemaField field = getUpdatableField(fieldName);
+        checkValue(field, value);
+        WriteAheadLog log = writeAheadLog;
+        if (null != log) {
+            if (!contains(id)) {
+                throw new IOException("No object is saved with id " + id);
+            }
+            log.begin().update(this, id, fieldName, value).commit();
+            return;
+        }
+        long write;
+        long[] changes;
+        writeLock.lock();
+        try {
+            applyUpdate(id, field, value);
+            appendChange(ChangeFeed.Operation.UPDATE, id, encodeUpdate(field, value));
+            write = saveMetaInfo();
+            changes = takeChanges();
+        } catch (IOException | RuntimeException e) {
+            discardChanges(e);
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+        commit(write, changes);
+    }
+
+    /**
+     * Sets several fields of the saved object as one write, each appended as an update like {@link #update(long,
+     * String, Object)} but made durable together.
+     *
+     * @throws IllegalArgumentException when a field is not stored or a value does not fit its type.
+     * @throws IOException when no object is saved with the id.
+     */
+    @Override
+    public void update(long id, Map<String, Object> fields) throws IOException {
+        Map<SchemaField, Object> checked = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : fields.entrySet()) {
+            SchemaField field = getUpdatableField(entry.getKey());
+            checkValue(field, entry.getValue());
+            checked.put(field, entry.getValue());
+        }
+        WriteAheadLog log = writeAheadLog;
+        if (null != log) {
+            if (!contains(id)) {
+                throw new IOException("No object is saved with id " + id);
+            }
+            Transaction transaction = log.begin();
+            for (Map.Entry<String, Object> entry : fields.entrySet()) {
+                transaction.update(this, id, entry.getKey(), entry.getValue());
+            }
+            transaction.commit();
+            return;
+        }
+        long write;
+        long[] changes;
+        writeLock.lock();
+        try {
+            for (Map.Entry<SchemaField, Object> entry : checked.entrySet()) {
+                applyUpdate(id, entry.getKey(), entry.getValue());
+                appendChange(ChangeFeed.Operation.UPDATE, id, encodeUpdate(entry.getKey(), entry.getValue()));
+            }
+            write = saveMetaInfo();
+            changes = takeChanges();
+        } catch (IOException | RuntimeException e) {
+            discardChanges(e);
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+        commit(write, changes);
+    }
 
     /**
-     * The FlatFileStorer stores Storable objects in bit form in the filesystem. A call to {@link #open} must be done before
-     * using any of the other operations.
+     * Adds to an integral field of the saved object as a single atomic update, see {@link #update}.
+     *
+     * @return the new value of the field.
+     * @throws ArithmeticException when the new value overflows the field.
      */
-    public FlatFileStorer()  {
+    @Override
+    public long increment(long id, String fieldName, long delta) throws IOException {
+        SchemaField field = getUpdatableField(fieldName);
+        WriteAheadLog log = writeAheadLog;
+        if (null != log) {
+            // read and logged under the commit lock of the log, which every logged save and update takes
+            Object[] incremented = new Object[1];
+            log.commitComputed(() -> {
+                incremented[0] = add(field, load(id), delta);
+                return List.of(new WriteAheadLog.Change(logName, WriteAheadLog.OP_UPDATE, id,
+                        encodeUpdate(field, incremented[0])));
+            });
+            return ((Number) incremented[0]).longValue();
+        }
+        Object value;
+        long write;
+        long[] changes;
+        writeLock.lock();
+        try {
+            T object = loadIfSaved(id);
+            if (null == object) {
+                throw new IOException("No object is saved with id " + id);
+            }
+            value = add(field, object, delta);
+            applyUpdate(id, field, value);
+            appendChange(ChangeFeed.Operation.UPDATE, id, encodeUpdate(field, value));
+            write = saveMetaInfo();
+            changes = takeChanges();
+        } catch (IOException | RuntimeException e) {
+            discardChanges(e);
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+        commit(write, changes);
+        return ((Number) value).longValue();
+    }
+
+    private SchemaField getUpdatableField(String fieldName) {
+        if (null == fieldCodec) {
+            throw new UnsupportedOperationException("Field updates need a storer created for a class");
+        }
+        return fieldCodec.getSchema().getField(fieldName);
+    }
 
+    private static void checkValue(SchemaField field, Object value) {
+        Class<?> type = field.getType();
+        if (null == value ? type.isPrimitive() : !wrapperOf(type).isInstance(value)) {
+            throw new IllegalArgumentException("Field '" + field.getName() + "' of type " + type.getSimpleName()
+                    + " can not be set to " + value);
+        }
     }
 
-    // Serves as a map from the unique ID of an object to the file position of that object.
-    public Map<Long, FileIndex> objectFilePositions = new HashMap<>();
+    private static Class<?> wrapperOf(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return type;
+        }
+        if (int.class == type) {
+            return Integer.class;
+        } else if (long.class == type) {
+            return Long.class;
+        } else if (short.class == type) {
+            return Short.class;
+        } else if (byte.class == type) {
+            return Byte.class;
+        } else if (boolean.class == type) {
+            return Boolean.class;
+        } else if (char.class == type) {
+            return Character.class;
+        } else if (float.class == type) {
+            return Float.class;
+        }
+        return Double.class;
+    }
 
     /**
-     * Associates this FlatFileStorer with the index and object files passed. If the files exists they will be read from and loaded.
-     * 
-     * @param metaFileName
-     * @param objectFileName
-     * @throws IOException
+     * Returns the value of the field of the object plus the delta, boxed as the type of the field.
      */
-    public void open(String metaFileName, String objectFileName) throws IOException {
-        if (null == metaFileName || null == objectFileName) {
-            throw new NullPointerException("Expect non-null index / object filename");
+    private static Object add(SchemaField field, Object object, long delta) {
+        Class<?> type = wrapperOf(field.getType());
+        if (Long.class != type && Integer.class != type && Short.class != type && Byte.class != type) {
+            throw new IllegalArgumentException("Field '" + field.getName() + "' of type "
+                    + field.getType().getSimpleName() + " can not be incremented");
         }
+        Object current = field.get(object);
+        long sum = Math.addExact(null == current ? 0L : ((Number) current).longValue(), delta);
+        if (Long.class == type) {
+            return sum;
+        } else if (Integer.class == type) {
+            return Math.toIntExact(sum);
+        } else if (Short.class == type && sum == (short) sum) {
+            return (short) sum;
+        } else if (Byte.class == type && sum == (byte) sum) {
+            return (byte) sum;
+        }
+        throw new ArithmeticException(type.getSimpleName() + " overflow");
+    }
 
-        File indexFile = new File(metaFileName);
-        File objectFile = new File(objectFileName);
+    /**
+     * Encodes a field update on its own, for a {@link Transaction}.
+     */
+    byte[] encodeUpdate(String fieldName, Object value) {
+        SchemaField field = getUpdatableField(fieldName);
+        checkValue(field, value);
+        return encodeUpdate(field, value);
+    }
 
-        if (indexFile.equals(objectFile)) {
-            throw new IOException("Cannot use the same file for index file and object file.");
+    private byte[] encodeUpdate(SchemaField field, Object value) {
+        RecordBuffer buffer = new RecordBuffer();
+        buffer.writeShort(field.getIndex());
+        fieldCodec.writeValue(field, value, buffer);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Appends the update of the field and makes it visible to readers. Must hold the write lock.
+     */
+    private void applyUpdate(long id, SchemaField field, Object value) throws IOException {
+        int slot = objectFilePositions.slotOf(id);
+        if (slot < 0) {
+            throw new IOException("No object is saved with id " + id);
+        }
+        deltaBuffer.reset();
+        fieldCodec.writeValue(field, value, deltaBuffer);
+        deltaLog.append(id, readVersion(slot), field.getIndex(), deltaBuffer.toByteBuffer().array(), 0, deltaBuffer.size());
+        FieldDeltas deltas = FieldDeltas.with(pendingDeltas.get(id), field.getIndex(), value);
+        long stamp = indexLock.writeLock();
+        try {
+            pendingDeltas.put(id, deltas);
+        } finally {
+            indexLock.unlockWrite(stamp);
+        }
+        if (!storerIndexes.isEmpty()) {
+            T object = loadIfSaved(id);
+            for (StorerIndex<T> index : storerIndexes) {
+                index.update(id, object);
+            }
         }
+        if (deltaLog.size() >= deltaCheckpointBytes) {
+            foldDeltas();
+        }
+    }
 
-        Files.createDirectories(indexFile.getParentFile().toPath()); 
-        Files.createDirectories(objectFile.getParentFile().toPath()); 
+    /**
+     * Writes every record with updates again with its updates folded in, forces the records and empties the update log.
+     * Must hold the write lock.
+     */
+    private void foldDeltas() throws IOException {
+        long start = System.nanoTime();
+        int folded = 0;
+        for (Long id : new ArrayList<>(pendingDeltas.keySet())) {
+            T object = loadIfSaved(id);
+            if (null != object) {
+                saveObject(object);
+                folded++;
+            }
+        }
+        metaJournal.flush();
+        forceFiles();
+        deltaLog.clear();
+        System.out.println("Folded the field updates of " + folded + " record(s) of '" + objectFile.getName() + "' in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
 
-        this.metaInfoFile = indexFile;
-        this.objectFile = objectFile;
+    /**
+     * Sets the size in bytes the log of field updates may grow to before the updates are folded into their records. Must
+     * be called before {@link #open}.
+     */
+    public void setDeltaCheckpointBytes(long deltaCheckpointBytes) {
+        this.deltaCheckpointBytes = deltaCheckpointBytes;
+    }
 
-        objectFilePositions = loadMetaInfo();
-        System.out.println("Meta info loaded with " + objectFilePositions.size() + " entries.");
+    private void saveObject(T object) throws IOException {
+        trainIfDue();
+        // encode once into the reusable buffer, its size decides where the record fits
+        recordBuffer.reset();
+        RecordFrame.reserveHeader(recordBuffer);
+        getWriteCodec().encode(object, recordBuffer);
+        saveRecord(object.getId(), recordBuffer.toByteBuffer(), object);
     }
 
-    @SuppressWarnings("unchecked")
     /**
-     * Loads n pairs of longs that define file offsets / size for each saved object.
-     * 
-     * @return the array of FileIndex objects.
-     * @throws IOException
-     * @throws ClassNotFoundException
+     * Writes the record of the object with the given id in a new version of its frame.
+     * <p>
+     * A record that still fits is only rewritten in place when a {@link WriteAheadLog} is attached, whose redo repairs
+     * a record torn by a crash. Without one the new version goes elsewhere and the old frame stays intact until the
+     * journal entry pointing away from it is synced, as a torn write must not destroy the only copy of a record.
+     *
+     * @param buffer the reserved frame header followed by the encoded object.
+     * @param object the decoded record for the secondary indexes, may be null when there are none.
      */
-    private Map<Long, FileIndex> loadMetaInfo() throws IOException {
-        if (null == metaInfoFile) {
-            throw new IOException("Tried to load file meta data before successfully opening the meta data file");
+    private void saveRecord(long id, ByteBuffer buffer, T object) throws IOException {
+        long newSize = buffer.remaining();
+        boolean logged = null != writeAheadLog;
+        // also after a log was attached, which synced everything
+        freeSyncedFrames();
+
+        long position;
+        boolean inPlace;
+        long freedFrame = -1;
+        long freedSize = 0;
+        int slot = objectFilePositions.slotOf(id);
+        RecordFrame.seal(buffer, id, slot < 0 ? 1 : readVersion(slot) + 1);
+        if (logged && slot >= 0 && newSize <= objectFilePositions.sizeAt(slot) && 0 == snapshotPins) {
+            // rewrite in place and give back the tail the record no longer needs
+            position = objectFilePositions.positionAt(slot);
+            inPlace = true;
+            allocator.free(position + newSize, objectFilePositions.sizeAt(slot) - newSize);
+        } else {
+            // new or grown objects go into the best fitting hole, or the end of the file when there is none
+            position = allocate(newSize);
+            inPlace = false;
+            if (slot >= 0) {
+                freedFrame = objectFilePositions.positionAt(slot);
+                freedSize = objectFilePositions.sizeAt(slot);
+            }
+        }
+        metaJournal.put(id, position, newSize);
+        if (null != savedSinceSnapshot) {
+            savedSinceSnapshot.put(id, 0, 1);
+        }
+
+        if (!inPlace) {
+            // no reader can reach the new region before the index points to it
+            writeRecord(buffer, position);
         }
-        if (!metaInfoFile.exists()) {
-            return new HashMap<>();
+        long stamp = indexLock.writeLock();
+        try {
+            if (inPlace) {
+                // readers copying the old bytes right now see the stamp change and retry
+                writeRecord(buffer, position);
+            }
+            objectFilePositions.put(id, position, newSize);
+            // the new version of the record carries the updates of the old one
+            pendingDeltas.remove(id);
+        } finally {
+            indexLock.unlockWrite(stamp);
+        }
+        if (freedFrame >= 0 && !logged) {
+            // numbered by the saveMetaInfo that follows
+            unsyncedFrees.add(new long[] {freedFrame, freedSize, groupCommitter.getWritten() + 1});
+        } else if (freedFrame >= 0) {
+            // no reader reaches the old copy any more, a recovery scan must not find it either
+            freeFrame(freedFrame, freedSize);
         }
-        try (ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(metaInfoFile))) {
-            Object fileIndexMapObj = inputStream.readObject();
-            // we save and load as array in order to overcome generic limitations
-            return (Map<Long, FileIndex>) fileIndexMapObj;
-        } catch (ClassNotFoundException e) {
-            throw new IOException("The first object stored in the file '" + metaInfoFile.getName() + "' was not the FileIndex map");
+        for (StorerIndex<T> index : storerIndexes) {
+            index.update(id, object);
         }
     }
 
-    private void saveMetaInfo() throws FileNotFoundException, IOException {
-        // overwrite the meta information 
-        try (ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(metaInfoFile, false))) {
-            outputStream.writeObject(objectFilePositions);
+    /**
+     * Writes go through the shared channel so rewriting a record in place never truncates the file out from under the
+     * mapped read path.
+     */
+    private void writeRecord(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += objectChannel.write(buffer, position);
         }
     }
 
-    @Override
-    public List<T> loadAll(List<T> objects) throws IOException {
-        List<T> persistedObjects = new ArrayList<>();
-        for (T obj : objects) {
-            persistedObjects.add(load(obj.getId()));
+    /**
+     * The version of the frame of the record at the slot, 0 for records written before frames.
+     */
+    private int readVersion(int slot) throws IOException {
+        long size = objectFilePositions.sizeAt(slot);
+        if (size < RecordFrame.HEADER_BYTES) {
+            return 0;
         }
-        return persistedObjects;
+        return RecordFrame.versionOf(mappedObjectFile.slice(objectFilePositions.positionAt(slot), RecordFrame.HEADER_BYTES));
     }
 
-    @Override 
-    public List<T> loadAllId(Set<Long> ids) throws IOException {
-        List<T> persistedObjects = new ArrayList<>();
-        for (Long id : ids) {
-            persistedObjects.add(load(id));
+    /**
+     * Marks the frame at the position as freed.
+     */
+    private void killFrame(long position) throws IOException {
+        writeRecord(ByteBuffer.wrap(new byte[] {RecordFrame.DEAD}), position);
+    }
+
+    /**
+     * Frees the frames left behind by writes that are synced by now, their records are found at the new place after a
+     * crash.
+     */
+    private void freeSyncedFrames() throws IOException {
+        if (unsyncedFrees.isEmpty()) {
+            return;
         }
-        return persistedObjects;
+        long synced = groupCommitter.getSynced();
+        int kept = 0;
+        for (long[] freed : unsyncedFrees) {
+            if (freed[2] <= synced) {
+                freeFrame(freed[0], freed[1]);
+            } else {
+                unsyncedFrees.set(kept++, freed);
+            }
+        }
+        unsyncedFrees.subList(kept, unsyncedFrees.size()).clear();
     }
 
-    @Override
-    public long savedEntries() throws IOException {
-        return objectFilePositions.size();
+    /**
+     * Kills the frame of a record no reader reaches any more and hands its space to the allocator, or keeps both for
+     * later while a snapshot may still copy the record.
+     */
+    private void freeFrame(long position, long size) throws IOException {
+        if (snapshotPins > 0) {
+            pinnedFrees.add(new long[] {position, size});
+            return;
+        }
+        killFrame(position);
+        allocator.free(position, size);
     }
 
-    @Override
-    public void saveAll(List<T> objects) throws IOException {
-        for (T obj : objects) {
-            saveObject(obj);
+    private long allocate(long size) throws IOException {
+        long position = allocator.allocate(size);
+        if (position < 0 && !unsyncedFrees.isEmpty()) {
+            // a sync is cheaper than growing the file by every frame left behind since the last one
+            sync();
+            freeSyncedFrames();
+            position = allocator.allocate(size);
+        }
+        if (position < 0) {
+            position = objectFileEnd;
+            objectFileEnd += size;
         }
-        saveMetaInfo();
+        return position;
     }
 
     @Override
-    public void save(T object) throws IOException {
-        saveObject(object);
-        saveMetaInfo();
+    public T load(long id) throws IOException {
+        T object = loadIfSaved(id);
+        if (null == object) {
+            throw new IOException("No object is saved with id " + id);
+        }
+        FieldDeltas deltas = pendingDeltas.get(id);
+        if (null != deltas && deltas.updates >= FOLD_ON_READ_UPDATES) {
+            foldOnRead(object);
+        }
+        return object;
     }
 
-    private void saveObject(T object) throws IOException {
-        FileIndex fileIndex = objectFilePositions.get(object.getId());
-        if (null == fileIndex) {
-            // unpersisted object
-            fileIndex = new FileIndex();
-            objectFilePositions.put(object.getId(), fileIndex);
-        }
-
-        long newSize = getSerializedSize(object);
-        boolean appendObject = newSize > fileIndex.size;
-
-        // Add new objects to the end of the file.
-        try (FileOutputStream fos = new FileOutputStream(objectFile, appendObject)) {
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            if (appendObject) {
-                // when appending the object the current position is the end of the file
-                fileIndex.position = fos.getChannel().position();
-            } else {
-                // set the position of the file to the position of the saved object
-                fos.getChannel().position(fileIndex.position);
+    /**
+     * Writes the record again with its updates folded in, unless a writer is busy. The record keeps its state, so the
+     * fold is not waited on for durability.
+     */
+    private void foldOnRead(T object) throws IOException {
+        if (writeLock.isHeldByCurrentThread() || !writeLock.tryLock()) {
+            return;
+        }
+        try {
+            if (pendingDeltas.containsKey(object.getId()) && null != metaJournal) {
+                saveObject(object);
+                saveMetaInfo();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Loads the object with the given id, or returns null when no object is saved with that id. Used while walking over
+     * a copy of the ids, where an object may be deleted before it is reached.
+     */
+    T loadIfSaved(long id) throws IOException {
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+            long stamp = indexLock.tryOptimisticRead();
+            if (0 == stamp) {
+                // a writer holds the lock right now
+                break;
+            }
+            try {
+                ByteBuffer record = copyRecord(id);
+                FieldDeltas deltas = pendingDeltas.get(id);
+                if (indexLock.validate(stamp)) {
+                    return null == record ? null : decode(record, deltas);
+                }
+            } catch (IOException | RuntimeException e) {
+                // a racing writer can make the copy fail, only report failures that happened on a consistent view
+                if (indexLock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+        ByteBuffer record;
+        FieldDeltas deltas;
+        long stamp = indexLock.readLock();
+        try {
+            record = copyRecord(id);
+            deltas = pendingDeltas.get(id);
+        } finally {
+            indexLock.unlockRead(stamp);
+        }
+        return null == record ? null : decode(record, deltas);
+    }
+
+    /**
+     * Copies the bytes of the record out of the object file so that it can be decoded after the read was validated.
+     * Without a lock the index may be changing underneath, but every size in it is the size of some record, so a torn
+     * read at worst copies the wrong bytes or fails, and the stamp check throws those away.
+     *
+     * @return the record, or null when no object is saved with the id.
+     */
+    private ByteBuffer copyRecord(long id) throws IOException {
+        int slot = objectFilePositions.slotOf(id);
+        if (slot < 0) {
+            return null;
+        }
+        long position = objectFilePositions.positionAt(slot);
+        int size = (int) objectFilePositions.sizeAt(slot);
+        if (ReadMode.MAPPED == readMode) {
+            ByteBuffer copy = ByteBuffer.allocate(size);
+            copy.put(mappedObjectFile.slice(position, size)).flip();
+            return copy;
+        }
+        try (FileInputStream fis = new FileInputStream(getObjectFile(objectFileGeneration))) {
+            if (fis.skip(position) != position) {
+                throw new IOException("Object file '" + objectFile.getName() + "' ends before the object with id " + id);
             }
-            fileIndex.size = newSize;
-            oos.writeObject(object);
+            return ByteBuffer.wrap(fis.readNBytes(size));
         }
     }
 
     /**
-     * Serializes the object but simply discards the bytes while counting them, returns the number of bytes that would be written.
+     * Decodes a single record with the codec that wrote it. Records written by the configured codec and records left
+     * over in the Java serialization format from older versions can both be read.
      * 
-     * @param object the object to serialize via the Serializable interface
-     * @return the number of bytes that were written from serialization of the given object.
+     * @param record a buffer holding exactly one record.
+     * @return the decoded object.
+     * @throws IOException
+     */
+    private T decode(ByteBuffer record, FieldDeltas deltas) throws IOException {
+        T object = decode(record);
+        if (null != deltas) {
+            deltas.applyTo(object, fieldCodec.getSchema().getFields());
+        }
+        return object;
+    }
+
+    private T decode(ByteBuffer record) throws IOException {
+        if (!record.hasRemaining()) {
+            throw new IOException("Empty record in object file '" + getObjectFileName() + "'");
+        }
+        byte format = record.get(record.position());
+        if (RecordFrame.isFrame(format)) {
+            record = RecordFrame.payload(record);
+            if (!record.hasRemaining()) {
+                throw new IOException("Empty record in object file '" + getObjectFileName() + "'");
+            }
+            format = record.get(record.position());
+        }
+        CompressedRecordCodec<T> compressing = compressedCodec;
+        if (null != compressing && CompressedRecordCodec.FORMAT == format) {
+            return compressing.decode(record);
+        }
+        if (codec.canDecode(format)) {
+            return codec.decode(record);
+        }
+        if (legacyCodec.canDecode(format)) {
+            return legacyCodec.decode(record);
+        }
+        throw new IOException("Unknown record format " + format + " in object file '" + getObjectFileName() + "'");
+    }
+
+    /**
+     * The name of the object file for messages, a storer that only decodes change events has none.
+     */
+    private String getObjectFileName() {
+        File file = objectFile;
+        return null == file ? "(not opened)" : file.getName();
+    }
+
+    /**
+     * The latest value of every updated field of a record, immutable so that readers can apply it without a lock.
      */
-    private long getSerializedSize(Object object) {
-        OutputStreamCounter outCounter = new OutputStreamCounter();
-        try (ObjectOutputStream sizeOutput = new ObjectOutputStream(outCounter)) {
-            sizeOutput.writeObject(object);
-        } catch (IOException ignored) {
-            throw new RuntimeException("This should be impossible. ObjectOutputStream threw an IOException without performing IO.");
+    private static final class FieldDeltas {
+        private final int[] fieldIndexes;
+        private final Object[] values;
+        // the number of updates made, several to the same field count each
+        private final int updates;
+
+        private FieldDeltas(int[] fieldIndexes, Object[] values, int updates) {
+            this.fieldIndexes = fieldIndexes;
+            this.values = values;
+            this.updates = updates;
+        }
+
+        /**
+         * Returns the deltas with the value of the field replaced or added.
+         *
+         * @param deltas the current deltas, or null when there are none.
+         */
+        private static FieldDeltas with(FieldDeltas deltas, int fieldIndex, Object value) {
+            if (null == deltas) {
+                return new FieldDeltas(new int[] {fieldIndex}, new Object[] {value}, 1);
+            }
+            int i = 0;
+            while (i < deltas.fieldIndexes.length && deltas.fieldIndexes[i] != fieldIndex) {
+                i++;
+            }
+            int[] fieldIndexes = deltas.fieldIndexes;
+            if (i == fieldIndexes.length) {
+                fieldIndexes = Arrays.copyOf(fieldIndexes, i + 1);
+                fieldIndexes[i] = fieldIndex;
+            }
+            Object[] values = Arrays.copyOf(deltas.values, fieldIndexes.length);
+            values[i] = value;
+            return new FieldDeltas(fieldIndexes, values, deltas.updates + 1);
+        }
+
+        private void applyTo(Object object, List<SchemaField> fields) {
+            for (int i = 0; i < fieldIndexes.length; i++) {
+                // every object gets its own copy of a mutable value
+                Object value = values[i] instanceof Date ? ((Date) values[i]).clone() : values[i];
+                fields.get(fieldIndexes[i]).set(object, value);
+            }
         }
-        return outCounter.getTotalWrittenBytes();
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Streams the live records in file order. The positions of all records are copied up front, then the records are
+     * read in windows of neighbouring records with one read each, through the mapping or a single file handle per
+     * split. Records that were moved or deleted since the copy are looked up again by id or skipped.
+     */
     @Override
-    public T load(long id) throws IOException {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(objectFile))) {
-            ois.skip(objectFilePositions.get(id).position);
-            return (T) ois.readObject();
-        } catch (ClassNotFoundException e) {
-            throw new IOException("The object file");
+    public Stream<T> scan() throws IOException {
+        long[][] records = readIndex(LongIndexTable::sortedByPosition);
+        RecordSpliterator spliterator = new RecordSpliterator(records, 0, records[0].length, new ConcurrentLinkedQueue<>());
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::closeFiles);
+    }
+
+    /**
+     * Walks a range of a position ordered copy of the index. Splitting halves the range, every split keeps its own
+     * window and file handle.
+     */
+    private class RecordSpliterator implements Spliterator<T> {
+        private final long[] ids;
+        private final long[] positions;
+        private final long[] sizes;
+        private final Queue<RandomAccessFile> openFiles;
+        private final Deque<T> window = new ArrayDeque<>();
+        // the pending updates of the records of the window, copied in the same view as their bytes
+        private FieldDeltas[] windowDeltas;
+        private int index;
+        private int end;
+        private RandomAccessFile file;
+        private int fileGeneration;
+        // file position of the first byte copied by the last call to copyWindow
+        private long copiedStart;
+
+        private RecordSpliterator(long[][] records, int index, int end, Queue<RandomAccessFile> openFiles) {
+            this.ids = records[0];
+            this.positions = records[1];
+            this.sizes = records[2];
+            this.index = index;
+            this.end = end;
+            this.openFiles = openFiles;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            try {
+                while (window.isEmpty() && index < end) {
+                    readWindow();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (window.isEmpty()) {
+                closeFile();
+                return false;
+            }
+            action.accept(window.poll());
+            return true;
+        }
+
+        /**
+         * Reads the next run of records that fit in one window. The bytes and the current location of every record are
+         * read under one optimistic stamp, records whose location changed since the copy are loaded by id instead.
+         */
+        private void readWindow() throws IOException {
+            int first = index;
+            int last = first + 1;
+            while (last < end && positions[last] + sizes[last] - positions[first] <= SCAN_WINDOW_BYTES) {
+                last++;
+            }
+            index = last;
+            boolean[] moved = new boolean[last - first];
+
+            for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+                long stamp = indexLock.tryOptimisticRead();
+                if (0 == stamp) {
+                    break;
+                }
+                try {
+                    ByteBuffer bytes = copyWindow(first, last, moved);
+                    if (indexLock.validate(stamp)) {
+                        decodeWindow(bytes, first, last, moved);
+                        return;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (indexLock.validate(stamp)) {
+                        throw e;
+                    }
+                }
+            }
+            ByteBuffer bytes;
+            long stamp = indexLock.readLock();
+            try {
+                bytes = copyWindow(first, last, moved);
+            } finally {
+                indexLock.unlockRead(stamp);
+            }
+            decodeWindow(bytes, first, last, moved);
+        }
+
+        /**
+         * Copies the bytes spanned by the records of the window that are still where the copy of the index says. The
+         * others may have been moved anywhere, even past the end of a compacted file, and are not read here.
+         *
+         * @return the copied bytes, starting at {@link #copiedStart}, or null when every record of the window moved.
+         */
+        private ByteBuffer copyWindow(int first, int last, boolean[] moved) throws IOException {
+            long start = -1;
+            long end = -1;
+            for (int i = first; i < last; i++) {
+                int slot = objectFilePositions.slotOf(ids[i]);
+                moved[i - first] = slot < 0 || objectFilePositions.positionAt(slot) != positions[i]
+                        || objectFilePositions.sizeAt(slot) != sizes[i];
+                if (!moved[i - first]) {
+                    start = start < 0 ? positions[i] : start;
+                    end = positions[i] + sizes[i];
+                }
+            }
+            if (start < 0) {
+                return null;
+            }
+            windowDeltas = null;
+            if (!pendingDeltas.isEmpty()) {
+                windowDeltas = new FieldDeltas[last - first];
+                for (int i = first; i < last; i++) {
+                    windowDeltas[i - first] = pendingDeltas.get(ids[i]);
+                }
+            }
+            copiedStart = start;
+            ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+            if (ReadMode.MAPPED == readMode) {
+                bytes.put(mappedObjectFile.slice(start, bytes.capacity())).flip();
+                return bytes;
+            }
+            if (null == file || fileGeneration != objectFileGeneration) {
+                closeFile();
+                fileGeneration = objectFileGeneration;
+                file = new RandomAccessFile(getObjectFile(fileGeneration), "r");
+                openFiles.add(file);
+            }
+            file.seek(start);
+            file.readFully(bytes.array());
+            return bytes;
+        }
+
+        private void decodeWindow(ByteBuffer bytes, int first, int last, boolean[] moved) throws IOException {
+            for (int i = first; i < last; i++) {
+                if (moved[i - first]) {
+                    T object = loadIfSaved(ids[i]);
+                    if (null != object) {
+                        window.add(object);
+                    }
+                    continue;
+                }
+                int offset = (int) (positions[i] - copiedStart);
+                ByteBuffer record = bytes.duplicate();
+                record.position(offset).limit(offset + (int) sizes[i]);
+                window.add(decode(record.slice(), null == windowDeltas ? null : windowDeltas[i - first]));
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            int remaining = end - index;
+            if (!window.isEmpty() || remaining < 2) {
+                return null;
+            }
+            int middle = index + remaining / 2;
+            RecordSpliterator prefix = new RecordSpliterator(new long[][] {ids, positions, sizes}, index, middle,
+                    openFiles);
+            index = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - index + window.size();
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+
+        private void closeFile() {
+            if (null != file) {
+                openFiles.remove(file);
+                closeQuietly(file);
+                file = null;
+            }
+        }
+
+        private void closeFiles() {
+            RandomAccessFile openFile;
+            while (null != (openFile = openFiles.poll())) {
+                closeQuietly(openFile);
+            }
+        }
+
+        private void closeQuietly(RandomAccessFile openFile) {
+            try {
+                openFile.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close scan of '" + objectFile.getName() + "': " + e);
+            }
         }
     }
 
@@ -194,66 +2231,234 @@ public class FlatFileStorer<T extends Storable & Serializable> implements Storer
 
     @Override
     public void deleteId(long id) throws IOException {
-        objectFilePositions.remove(id);
-        saveMetaInfo();
+        WriteAheadLog log = writeAheadLog;
+        if (null != log) {
+            log.begin().delete(this, id).commit();
+            return;
+        }
+        long write;
+        long[] changes;
+        writeLock.lock();
+        try {
+            if (removeIndex(id)) {
+                appendChange(ChangeFeed.Operation.DELETE, id, new byte[0]);
+            }
+            write = saveMetaInfo();
+            changes = takeChanges();
+        } catch (IOException | RuntimeException e) {
+            discardChanges(e);
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+        commit(write, changes);
     }
 
     @Override
     public void deleteAllId(List<Long> ids) throws IOException {
-        for (Long id : ids) {
-            objectFilePositions.remove(id);
+        WriteAheadLog log = writeAheadLog;
+        if (null != log) {
+            log.begin().deleteAll(this, ids).commit();
+            return;
         }
-        saveMetaInfo();
+        long write;
+        long[] changes;
+        writeLock.lock();
+        try {
+            for (Long id : ids) {
+                if (removeIndex(id)) {
+                    appendChange(ChangeFeed.Operation.DELETE, id, new byte[0]);
+                }
+            }
+            write = saveMetaInfo();
+            changes = takeChanges();
+        } catch (IOException | RuntimeException e) {
+            discardChanges(e);
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+        commit(write, changes);
     }
 
     @Override
     public void deleteAll(List<T> items) throws IOException {
-        for (T item : items) {
-            objectFilePositions.remove(item.getId());
+        WriteAheadLog log = writeAheadLog;
+        if (null != log) {
+            List<Long> ids = new ArrayList<>(items.size());
+            for (T item : items) {
+                ids.add(item.getId());
+            }
+            log.begin().deleteAll(this, ids).commit();
+            return;
+        }
+        long write;
+        long[] changes;
+        writeLock.lock();
+        try {
+            for (T item : items) {
+                if (removeIndex(item.getId())) {
+                    appendChange(ChangeFeed.Operation.DELETE, item.getId(), new byte[0]);
+                }
+            }
+            write = saveMetaInfo();
+            changes = takeChanges();
+        } catch (IOException | RuntimeException e) {
+            discardChanges(e);
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+        commit(write, changes);
+    }
+
+    /**
+     * Removes the record of the id, when there is one.
+     *
+     * @return true when a record was removed.
+     */
+    private boolean removeIndex(long id) throws IOException {
+        int slot = objectFilePositions.slotOf(id);
+        if (slot >= 0) {
+            long position = objectFilePositions.positionAt(slot);
+            long size = objectFilePositions.sizeAt(slot);
+            metaJournal.delete(id);
+            FieldDeltas dropped;
+            long stamp = indexLock.writeLock();
+            try {
+                objectFilePositions.remove(id);
+                dropped = pendingDeltas.remove(id);
+            } finally {
+                indexLock.unlockWrite(stamp);
+            }
+            if (null != dropped) {
+                // a record saved again under the id counts its versions from the start
+                deltaLog.append(id, 0, FieldDeltaLog.DROP, new byte[0], 0, 0);
+            }
+            freeFrame(position, size);
+            for (StorerIndex<T> index : storerIndexes) {
+                index.remove(id);
+            }
+            return true;
         }
-        saveMetaInfo();
+        return false;
     }
 
     @Override
     public Set<Long> getIds() {
-        return Collections.unmodifiableSet(objectFilePositions.keySet());
+        return new IdSet();
+    }
+
+    /**
+     * A live view of the saved ids. Lookups go straight to the index, iterators walk over a copy of the ids taken when
+     * they are created so that saves and deletes can go on while iterating.
+     */
+    private class IdSet extends AbstractSet<Long> {
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Long && FlatFileStorer.this.contains((Long) o);
+        }
+
+        @Override
+        public Iterator<Long> iterator() {
+            return Arrays.stream(readIndex(LongIndexTable::keys)).iterator();
+        }
+
+        @Override
+        public int size() {
+            return readIndex(LongIndexTable::size);
+        }
     }
 
     @Override
     public boolean contains(Predicate<T> matches) throws IOException {
-        for (Long id : getIds()) {
-            if (matches.test(load(id))) {
-                return true;
-            }
+        try (Stream<T> objects = scan()) {
+            return objects.anyMatch(matches);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        return false;
+    }
+
+    @Override
+    public Set<Long> lookup(String field, Object value) {
+        HashIndex<T> index = hashIndexes.get(field);
+        if (null == index) {
+            throw new IllegalArgumentException("No index on field '" + field + "' of '" + objectFile.getName() + "'");
+        }
+        Set<Long> ids = new LinkedHashSet<>();
+        for (long id : index.lookup(value)) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    @Override
+    public Stream<Long> range(String field, Object from, Object to) {
+        return getRangeIndex(field).range(from, to);
+    }
+
+    @Override
+    public Stream<Long> rangeAfter(String field, Object value, long id, Object to) {
+        return getRangeIndex(field).rangeAfter(value, id, to);
+    }
+
+    BTreeIndex<T> getRangeIndex(String field) {
+        BTreeIndex<T> index = rangeIndexes.get(field);
+        if (null == index) {
+            throw new IllegalArgumentException("No range index on field '" + field + "' of '" + objectFile.getName() + "'");
+        }
+        return index;
+    }
+
+    /**
+     * The range index on the field, null when there is none.
+     */
+    BTreeIndex<T> findRangeIndex(String field) {
+        return rangeIndexes.get(field);
+    }
+
+    /**
+     * The hash index on the field, null when there is none.
+     */
+    HashIndex<T> findHashIndex(String field) {
+        return hashIndexes.get(field);
     }
 
     @Override
     public boolean contains(Long id) {
-        return getIds().contains(id);
+        return null != id && readIndex(table -> table.contains(id));
+    }
+
+    @Override
+    public List<T> query(Query<T> query) throws IOException {
+        return plan(query).execute();
+    }
+
+    /**
+     * Plans the query against the indexes of this storer without running it, see {@link QueryPlan}. The plan explains
+     * itself and can be executed as often as needed.
+     *
+     * @throws IllegalStateException the query requires an index and none fits it.
+     */
+    public QueryPlan<T> plan(Query<T> query) {
+        return new QueryPlan<>(this, query);
     }
 
     @Override
     public T matches(Predicate<T> matcher) throws IOException {
-        for (Long id : getIds()) {
-            T obj = load(id);
-            if (matcher.test(obj)) {
-                return obj;
-            }
+        try (Stream<T> objects = scan()) {
+            return objects.filter(matcher).findFirst().orElse(null);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        return null;
     }
 
     @Override
     public List<T> allMatches(Predicate<T> matcher) throws IOException {
-        List<T> matches = new ArrayList<>();
-        for (Long id : getIds()) {
-            T obj = load(id);
-            if (matcher.test(obj)) {
-                matches.add(obj);
-            }
+        try (Stream<T> objects = scan()) {
+            return objects.filter(matcher).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        return matches;
     }
 }
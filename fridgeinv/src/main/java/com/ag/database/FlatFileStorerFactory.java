@@ -1,38 +1,406 @@
 package com.ag.database;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.HashMap;
 
 import com.ag.DynamicObject;
 import com.ag.Network.Server;
 import com.ag.json.JsonConfig;
+import com.ag.util.ConfigurationException;
 
 public class FlatFileStorerFactory {
 
-    private static final Map<String, FlatFileStorer<?>> storers = new HashMap<>();
+    // the storers by config key, opening or opened, guarded by the class
+    private static final Map<String, CompletableFuture<Storer<?>>> storers = new HashMap<>();
+    private static final Map<String, AsyncStorer<?>> asyncStorers = new HashMap<>();
+    private static ThreadPoolExecutor ioExecutor;
+    private static ReplicationPrimary replicationPrimary;
+    private static ReplicationFollower replicationFollower;
+    private static Closeable backupSchedule;
 
-    public static <T extends Storable> FlatFileStorer<T> getStorer(Class<T> storedClass) {
+    /**
+     * Returns the configured storer of the class wrapped so that its work runs on the shared I/O executor, whose size
+     * comes from the "AsyncStorer" config.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Storable> AsyncStorer<T> getAsyncStorer(Class<T> storedClass) {
+        String key = JsonConfig.getClassConfigPropertyName(storedClass);
+        // opened outside of the lock, a storer may be opening on another thread
+        Storer<T> storer = getStorer(storedClass, key);
+        synchronized (FlatFileStorerFactory.class) {
+            AsyncStorer<?> asyncStorer = asyncStorers.get(key);
+            if (null == asyncStorer) {
+                asyncStorer = new ExecutorAsyncStorer<>(storer, getIoExecutor());
+                asyncStorers.put(key, asyncStorer);
+            }
+            return (AsyncStorer<T>) asyncStorer;
+        }
+    }
+
+    /**
+     * The I/O executor the async storers share, for other blocking work that must not run on the thread of a request.
+     */
+    public static synchronized Executor getIoExecutor() {
+        if (null == ioExecutor) {
+            DynamicObject config = Server.config.getConfig(AsyncStorer.class);
+            ioExecutor = ExecutorAsyncStorer.newIoExecutor(
+                    config.getAsIntegerOrDefault("ioThreads", Runtime.getRuntime().availableProcessors()),
+                    config.getAsIntegerOrDefault("queueSize", 1024));
+        }
+        return ioExecutor;
+    }
+
+    public static <T extends Storable> Storer<T> getStorer(Class<T> storedClass) {
         String key = JsonConfig.getClassConfigPropertyName(storedClass);
         return getStorer(storedClass, key);
     }
 
+    /**
+     * Opens the configured storers of the classes at the same time, one thread per storer, and waits until all of them
+     * are open. Storers that are already open are skipped, a storer is only ever opened once.
+     *
+     * @throws RuntimeException the failure of the first storer that could not be opened.
+     */
+    @SafeVarargs
+    public static void preOpenStorers(Class<? extends Storable>... storedClasses) {
+        long start = System.nanoTime();
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, storedClasses.length), runnable -> {
+            Thread thread = new Thread(runnable, "storer-open-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<CompletableFuture<?>> opened = new ArrayList<>();
+            for (Class<? extends Storable> storedClass : storedClasses) {
+                opened.add(CompletableFuture.runAsync(() -> getStorer(storedClass), executor));
+            }
+            CompletableFuture.allOf(opened.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        } finally {
+            executor.shutdown();
+        }
+        System.out.println("Opened " + storedClasses.length + " storer(s) in " + (System.nanoTime() - start) / 1_000_000
+                + " ms");
+    }
+
+    /**
+     * Starts replicating the storers of the classes as the "role" of the "Replication" config says: a "primary" ships
+     * the change feed to followers on the configured port, a "follower" opens the storers and applies what the primary
+     * at "host" and "port" ships to them. Anything else leaves the storers alone. Only done once.
+     *
+     * @throws ConfigurationException the role is not known.
+     */
+    @SafeVarargs
+    public static synchronized void startReplication(Class<? extends Storable>... storedClasses) {
+        if (null != replicationPrimary || null != replicationFollower) {
+            return;
+        }
+        DynamicObject config = Server.config.getConfig("Replication");
+        String role = (String) config.getOrDefault("role", "none");
+        int port = config.getAsIntegerOrDefault("port", 0);
+        try {
+            switch (role.toLowerCase()) {
+                case "primary":
+                    replicationPrimary = new ReplicationPrimary(ChangeFeed.getInstance(), port);
+                    break;
+                case "follower":
+                    ReplicationFollower follower = new ReplicationFollower((String) config.getOrDefault("host",
+                            "localhost"), port, new File(Server.ROOT_DIRECTORY + (String) config.get("positionPath")));
+                    for (Class<? extends Storable> storedClass : storedClasses) {
+                        follow(follower, storedClass);
+                    }
+                    follower.start();
+                    replicationFollower = follower;
+                    break;
+                case "none":
+                    break;
+                default:
+                    throw new ConfigurationException("Unknown replication role '" + role + "'");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to start replication as " + role, e);
+        }
+    }
+
+    private static <T extends Storable> void follow(ReplicationFollower follower, Class<T> storedClass) {
+        DynamicObject model = Server.config.getConfig(FlatFileStorer.class, storedClass);
+        follower.follow(storedClass.getSimpleName(), getStorer(storedClass), createStorer(storedClass, model));
+    }
+
+    /**
+     * The follower applying the changes of a primary to the storers of this process, null unless replication was
+     * started as a follower.
+     */
+    public static synchronized ReplicationFollower getReplicationFollower() {
+        return replicationFollower;
+    }
+
+    /**
+     * The primary shipping the changes of the storers of this process, null unless replication was started as a
+     * primary.
+     */
+    public static synchronized ReplicationPrimary getReplicationPrimary() {
+        return replicationPrimary;
+    }
+
+    /**
+     * Starts backing up every storer opened by then into the "path" of the "Backup" config every "intervalMinutes",
+     * each time as a full copy or an increment of the last backup there, see {@link StorerBackup}. Without an interval
+     * nothing is backed up. Only done once.
+     */
+    public static synchronized void startBackups() {
+        DynamicObject config = Server.config.getConfig("Backup");
+        long intervalMinutes = config.getAsLongOrDefault("intervalMinutes", 0L);
+        if (null != backupSchedule || intervalMinutes <= 0) {
+            return;
+        }
+        File backupDir = new File(Server.ROOT_DIRECTORY + (String) config.get("path"));
+        backupSchedule = StorerBackup.schedule(backupDir, FlatFileStorerFactory::getOpenedFileStorers,
+                TimeUnit.MINUTES.toMillis(intervalMinutes));
+        System.out.println("Backing up the storers into '" + backupDir + "' every " + intervalMinutes + " minute(s)");
+    }
+
+    private static List<FlatFileStorer<?>> getOpenedFileStorers() {
+        List<FlatFileStorer<?>> fileStorers = new ArrayList<>();
+        synchronized (FlatFileStorerFactory.class) {
+            for (CompletableFuture<Storer<?>> storer : storers.values()) {
+                if (storer.isDone() && !storer.isCompletedExceptionally()) {
+                    addFileStorers(storer.join(), fileStorers);
+                }
+            }
+        }
+        return fileStorers;
+    }
+
+    private static void addFileStorers(Storer<?> storer, List<FlatFileStorer<?>> fileStorers) {
+        if (storer instanceof CachingStorer) {
+            addFileStorers(((CachingStorer<?>) storer).getStorer(), fileStorers);
+        } else if (storer instanceof ShardedStorer) {
+            fileStorers.addAll(((ShardedStorer<?>) storer).getShards());
+        } else if (storer instanceof FlatFileStorer) {
+            fileStorers.add((FlatFileStorer<?>) storer);
+        }
+    }
+
+    /**
+     * Returns the storer of the key, opening it on the calling thread unless another thread is opening it already.
+     */
     @SuppressWarnings("unchecked")
-    private static <T extends Storable> FlatFileStorer<T> getStorer(Class<T> storedClass, String key) {
-        FlatFileStorer<?> storer = storers.get(key);
-        if (null == storer) {
-            FlatFileStorer<T> newStorer = new FlatFileStorer<>();
-            DynamicObject model = Server.config.getConfig(newStorer.getClass(), storedClass);
-            String filename = (String) model.get("name");
-            String dir = (String) model.get("directory");
-            String path = Server.ROOT_DIRECTORY + dir + filename;
-            String metaIdentifier = (String) model.get("metaIdentifier");
-            String metaPath = Server.ROOT_DIRECTORY + dir + metaIdentifier + filename;
+    private static <T extends Storable> Storer<T> getStorer(Class<T> storedClass, String key) {
+        CompletableFuture<Storer<?>> storer;
+        boolean opening = false;
+        synchronized (FlatFileStorerFactory.class) {
+            storer = storers.get(key);
+            if (null == storer) {
+                storer = new CompletableFuture<>();
+                storers.put(key, storer);
+                opening = true;
+            }
+        }
+        if (opening) {
+            try {
+                storer.complete(openConfiguredStorer(storedClass, key));
+            } catch (RuntimeException e) {
+                // the next call tries again
+                synchronized (FlatFileStorerFactory.class) {
+                    storers.remove(key);
+                }
+                storer.completeExceptionally(e);
+                throw e;
+            }
+        }
+        try {
+            return (Storer<T>) storer.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    private static <T extends Storable> Storer<T> openConfiguredStorer(Class<T> storedClass, String key) {
+        DynamicObject model = Server.config.getConfig(FlatFileStorer.class, storedClass);
+        String filename = (String) model.get("name");
+        String dir = (String) model.get("directory");
+        String path = Server.ROOT_DIRECTORY + dir + filename;
+        String metaIdentifier = (String) model.get("metaIdentifier");
+        String metaPath = Server.ROOT_DIRECTORY + dir + metaIdentifier + filename;
+        boolean writeAheadLog = model.getAsBooleanOrDefault("writeAheadLog", false);
+        Storer<T> configuredStorer;
+        int shardCount = model.getAsIntegerOrDefault("shards", 1);
+        if (shardCount > 1) {
+            ShardedStorer<T> shardedStorer = new ShardedStorer<>(shardCount, () -> createStorer(storedClass, model));
+            openShardedStorer(shardedStorer, metaPath, path);
+            if (writeAheadLog) {
+                List<FlatFileStorer<T>> shards = shardedStorer.getShards();
+                for (int i = 0; i < shards.size(); i++) {
+                    registerWithLog(shards.get(i), key + ".shard" + i);
+                }
+            }
+            configuredStorer = shardedStorer;
+        } else {
+            FlatFileStorer<T> newStorer = createStorer(storedClass, model);
             openStorer(newStorer , metaPath, path);
-            storers.put(key, newStorer);
-            return newStorer;
+            if (writeAheadLog) {
+                registerWithLog(newStorer, key);
+            }
+            configuredStorer = newStorer;
+        }
+        long cacheBytes = model.getAsLongOrDefault("cacheBytes", 0L);
+        if (cacheBytes > 0) {
+            configuredStorer = new CachingStorer<>(configuredStorer, storedClass, cacheBytes);
+        }
+        return configuredStorer;
+    }
+
+    /**
+     * Creates a storer of the class as the "FlatFileStorer" entries of the config describe it, configured but not
+     * opened and not shared, see {@link #getStorer(Class)} for the storers of the server.
+     */
+    public static <T extends Storable> FlatFileStorer<T> createStorer(Class<T> storedClass, JsonConfig config) {
+        return createStorer(storedClass, config.getConfig(FlatFileStorer.class, storedClass));
+    }
+
+    /**
+     * Creates a storer, or a shard of one, configured but not opened.
+     */
+    private static <T extends Storable> FlatFileStorer<T> createStorer(Class<T> storedClass, DynamicObject model) {
+        FlatFileStorer<T> newStorer = new FlatFileStorer<>(storedClass);
+        String readMode = (String) model.getOrDefault("readMode", null);
+        if (null != readMode) {
+            newStorer.setReadMode(FlatFileStorer.ReadMode.valueOf(readMode.toUpperCase()));
+        }
+        String codec = (String) model.getOrDefault("codec", null);
+        if (null != codec) {
+            newStorer.setRecordCodec(createRecordCodec(codec, storedClass));
+        }
+        if (model.getAsBooleanOrDefault("compression", false)) {
+            newStorer.setCompression(true, model.getAsIntegerOrDefault("compressionDictionaryBytes",
+                    CompressedRecordCodec.DEFAULT_DICTIONARY_BYTES));
+        }
+        String durability = (String) model.getOrDefault("durability", null);
+        if (null != durability) {
+            FlatFileStorer.Durability mode = FlatFileStorer.Durability.valueOf(durability.toUpperCase());
+            // a batch commits right away unless a window is configured
+            long defaultLatency = FlatFileStorer.Durability.ASYNC == mode ? FlatFileStorer.DEFAULT_SYNC_LATENCY_MILLIS : 0L;
+            newStorer.setDurability(mode, model.getAsLongOrDefault("syncLatencyMillis", defaultLatency));
+        }
+        newStorer.setJournalCheckpointBytes(model.getAsLongOrDefault("journalCheckpointBytes",
+                MetaJournal.DEFAULT_CHECKPOINT_BYTES));
+        newStorer.setDeltaCheckpointBytes(model.getAsLongOrDefault("deltaCheckpointBytes",
+                FlatFileStorer.DEFAULT_DELTA_CHECKPOINT_BYTES));
+        newStorer.setCompactionThreshold(model.getAsDoubleOrDefault("compactionThreshold",
+                FlatFileStorer.DEFAULT_COMPACTION_THRESHOLD));
+        newStorer.setCompactionMinBytes(model.getAsLongOrDefault("compactionMinBytes",
+                FlatFileStorer.DEFAULT_COMPACTION_MIN_BYTES));
+        if (model.getAsBooleanOrDefault("changeFeed", false)) {
+            newStorer.setChangeFeed(ChangeFeed.getInstance(), storedClass.getSimpleName());
+        }
+        if (model.containsKey("indexes")) {
+            for (DynamicObject field : model.getDynamicObject("indexes")) {
+                newStorer.addIndex((String) field.get());
+            }
+        }
+        if (model.containsKey("rangeIndexes")) {
+            for (DynamicObject field : model.getDynamicObject("rangeIndexes")) {
+                newStorer.addRangeIndex((String) field.get());
+            }
+        }
+        if (model.containsKey("columnProjection")) {
+            DynamicObject projection = model.getDynamicObject("columnProjection");
+            List<String> columns = new ArrayList<>();
+            for (DynamicObject column : projection.getDynamicObject("columns")) {
+                columns.add((String) column.get());
+            }
+            newStorer.setColumnProjection((String) projection.getOrDefault("group", null),
+                    columns.toArray(new String[0]));
+        }
+        if (model.containsKey("views")) {
+            for (DynamicObject view : model.getDynamicObject("views")) {
+                addConfiguredView(newStorer, view);
+            }
+        }
+        return newStorer;
+    }
+
+    /**
+     * Adds the view of the config, for example
+     * {@code {"name": "lowStock", "aggregate": "ids", "where": [{"field": "quantity", "op": "lt", "value": 3}]}}, with
+     * an optional "group" field and the "field" a sum, minimum or maximum is taken of.
+     */
+    private static <T extends Storable> void addConfiguredView(FlatFileStorer<T> storer, DynamicObject view) {
+        List<MaterializedView.Condition> where = new ArrayList<>();
+        if (view.containsKey("where")) {
+            for (DynamicObject condition : view.getDynamicObject("where")) {
+                String op = (String) condition.get("op");
+                where.add(new MaterializedView.Condition((String) condition.get("field"),
+                        MaterializedView.Comparison.valueOf(op.toUpperCase()), condition.get("value")));
+            }
+        }
+        String aggregate = (String) view.get("aggregate");
+        storer.addView((String) view.get("name"), (String) view.getOrDefault("group", null),
+                MaterializedView.Aggregate.valueOf(aggregate.toUpperCase()), (String) view.getOrDefault("field", null),
+                where.toArray(new MaterializedView.Condition[0]));
+    }
+
+    /**
+     * The views of the configured storer of the class under the name, one per shard, opening the storer if needed.
+     *
+     * @return empty when the storer has no such view.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Storable> List<MaterializedView<T>> getViews(Class<T> storedClass, String name) {
+        List<FlatFileStorer<?>> fileStorers = new ArrayList<>();
+        addFileStorers(getStorer(storedClass), fileStorers);
+        List<MaterializedView<T>> views = new ArrayList<>();
+        for (FlatFileStorer<?> fileStorer : fileStorers) {
+            MaterializedView<T> view = ((FlatFileStorer<T>) fileStorer).getView(name);
+            if (null != view) {
+                views.add(view);
+            }
+        }
+        return views;
+    }
+
+    private static <T extends Storable> RecordCodec<T> createRecordCodec(String name, Class<T> storedClass) {
+        switch (name.toLowerCase()) {
+            case "field":
+                return new FieldRecordCodec<>(storedClass);
+            case "serializable":
+                return new SerializableRecordCodec<>();
+            default:
+                throw new ConfigurationException("Unknown record codec '" + name + "' for " + storedClass.getSimpleName());
+        }
+    }
+
+    private static <T extends Storable> void registerWithLog(FlatFileStorer<T> storer, String key) {
+        try {
+            WriteAheadLog.getInstance().register(key, storer);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to redo the write-ahead log for '" + key + "'", e);
+        }
+    }
+
+    private static <T extends Storable> void openShardedStorer(ShardedStorer<T> storer, String metaDir, String dir) {
+        try {
+            System.out.println("Opened " + storer.getShardCount() + " storer shards @ " + dir);
+            storer.open(metaDir, dir);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to initialize sharded storer. Meta dir: '" + metaDir + "''; Dir: '" + dir + "'", e);
         }
-        return (FlatFileStorer<T>) storer;
     }
 
     private static <T extends Storable> void openStorer(FlatFileStorer<T> storer, String metaDir, String dir) {
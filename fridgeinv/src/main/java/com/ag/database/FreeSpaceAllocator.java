@@ -0,0 +1,150 @@
+package com.ag.database;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Keeps track of the unused regions (holes) of an object file so that new and grown records can be written into them
+ * instead of being appended.
+ * <p>
+ * Holes are kept twice: by position, so that a freed region is merged with the holes right before and after it, and in
+ * power of two size classes. An allocation picks the smallest hole in the size class of the request that fits, and
+ * otherwise the smallest hole of the next non-empty larger class. What is left of a hole after an allocation stays free.
+ */
+public class FreeSpaceAllocator {
+
+    private static final int SIZE_CLASSES = 64;
+    private static final Comparator<long[]> BY_LENGTH_THEN_POSITION = Comparator.<long[]>comparingLong(hole -> hole[1])
+            .thenComparingLong(hole -> hole[0]);
+
+    // position -> length
+    private final TreeMap<Long, Long> holesByPosition = new TreeMap<>();
+    // size class -> holes as {position, length}
+    private final List<TreeSet<long[]>> sizeClasses = new ArrayList<>(SIZE_CLASSES);
+    private long freeBytes;
+    private long reusedBytes;
+
+    public FreeSpaceAllocator() {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            sizeClasses.add(new TreeSet<>(BY_LENGTH_THEN_POSITION));
+        }
+    }
+
+    private static int sizeClass(long length) {
+        return 63 - Long.numberOfLeadingZeros(length);
+    }
+
+    /**
+     * Finds a hole for a record of the given size and removes the used part from the free space.
+     *
+     * @param size the number of bytes needed, must be positive.
+     * @return the position to write the record at, or -1 when no hole is large enough.
+     */
+    public long allocate(long size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Allocation size must be positive: " + size);
+        }
+        long[] probe = {Long.MIN_VALUE, size};
+        for (int sizeClass = sizeClass(size); sizeClass < SIZE_CLASSES; sizeClass++) {
+            long[] hole = sizeClasses.get(sizeClass).ceiling(probe);
+            if (null == hole) {
+                continue;
+            }
+            removeHole(hole[0], hole[1]);
+            if (hole[1] > size) {
+                addHole(hole[0] + size, hole[1] - size);
+            }
+            reusedBytes += size;
+            return hole[0];
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the region to the free space, merging it with adjacent holes.
+     *
+     * @param position the first byte of the region.
+     * @param length the length of the region.
+     */
+    public void free(long position, long length) {
+        if (length <= 0) {
+            return;
+        }
+        Map.Entry<Long, Long> before = holesByPosition.floorEntry(position);
+        if (null != before && before.getKey() + before.getValue() == position) {
+            removeHole(before.getKey(), before.getValue());
+            position = before.getKey();
+            length += before.getValue();
+        }
+        Long afterLength = holesByPosition.get(position + length);
+        if (null != afterLength) {
+            removeHole(position + length, afterLength);
+            length += afterLength;
+        }
+        addHole(position, length);
+    }
+
+    /**
+     * Rebuilds the free space from the live records of a file: every byte below the end of the file that is not part of
+     * a record is free.
+     *
+     * @param positions positions of the live records, sorted.
+     * @param sizes sizes of the live records, in the order of their positions.
+     * @param fileSize the size of the object file.
+     */
+    public void rebuild(long[] positions, long[] sizes, long fileSize) {
+        clear();
+        long cursor = 0;
+        for (int i = 0; i < positions.length; i++) {
+            if (positions[i] > cursor) {
+                free(cursor, positions[i] - cursor);
+            }
+            cursor = Math.max(cursor, positions[i] + sizes[i]);
+        }
+        if (fileSize > cursor) {
+            free(cursor, fileSize - cursor);
+        }
+    }
+
+    public void clear() {
+        holesByPosition.clear();
+        for (TreeSet<long[]> sizeClass : sizeClasses) {
+            sizeClass.clear();
+        }
+        freeBytes = 0;
+    }
+
+    /**
+     * The total number of bytes in holes.
+     */
+    public long getFreeBytes() {
+        return freeBytes;
+    }
+
+    /**
+     * The total number of bytes handed out from holes since this allocator was created.
+     */
+    public long getReusedBytes() {
+        return reusedBytes;
+    }
+
+    public int getHoleCount() {
+        return holesByPosition.size();
+    }
+
+    private void addHole(long position, long length) {
+        holesByPosition.put(position, length);
+        sizeClasses.get(sizeClass(length)).add(new long[] {position, length});
+        freeBytes += length;
+    }
+
+    private void removeHole(long position, long length) {
+        holesByPosition.remove(position);
+        sizeClasses.get(sizeClass(length)).remove(new long[] {position, length});
+        freeBytes -= length;
+    }
+}
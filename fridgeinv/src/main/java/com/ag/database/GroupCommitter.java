@@ -0,0 +1,187 @@
+package com.ag.database;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes the writes of concurrent callers durable with a shared sync, so that a batch of writes costs a single
+ * {@code force()} instead of one per write.
+ * <p>
+ * Writers number their writes with {@link #written} once they are in the file and then wait in {@link #awaitSynced}.
+ * The first waiter becomes the leader: it waits for the latency window so that more writers can join, then syncs
+ * everything written so far and wakes up all writers the sync covered. Writers arriving while a sync runs are covered by
+ * the next one. Without waiting writers, {@link #startBackgroundSync} syncs what was written every window instead.
+ */
+public class GroupCommitter {
+
+    private static final ScheduledExecutorService syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "storer-background-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Forces everything written so far to disk.
+     */
+    public interface Syncer {
+        void sync() throws IOException;
+    }
+
+    private final Syncer syncer;
+    private long latencyNanos;
+
+    private long written;
+    private long synced;
+    private boolean syncing;
+    private long syncs;
+    private ScheduledFuture<?> backgroundSync;
+
+    public GroupCommitter(Syncer syncer) {
+        this.syncer = syncer;
+    }
+
+    /**
+     * Sets how long a leader waits for more writers before it syncs. 0 syncs right away, writes still batch up while a
+     * sync is running.
+     */
+    public synchronized void setLatency(long latency, TimeUnit unit) {
+        this.latencyNanos = unit.toNanos(latency);
+    }
+
+    /**
+     * Records that another write reached the file.
+     *
+     * @return the number of the write, to wait for with {@link #awaitSynced}.
+     */
+    public synchronized long written() {
+        return ++written;
+    }
+
+    /**
+     * Records that everything written so far was synced by the caller.
+     */
+    public synchronized void markSynced() {
+        synced = written;
+        notifyAll();
+    }
+
+    /**
+     * Blocks until the write with the given number is synced, syncing it when no other caller is.
+     *
+     * @throws IOException when the sync failed, the write may or may not be durable.
+     */
+    public void awaitSynced(long write) throws IOException {
+        long target;
+        synchronized (this) {
+            while (syncing && synced < write) {
+                waitInterruptibly(0);
+            }
+            if (synced >= write) {
+                return;
+            }
+            syncing = true;
+            // give concurrent writers the window to join this sync
+            long deadline = System.nanoTime() + latencyNanos;
+            for (long remaining = latencyNanos; remaining > 0; remaining = deadline - System.nanoTime()) {
+                try {
+                    waitInterruptibly(remaining);
+                } catch (IOException e) {
+                    syncing = false;
+                    notifyAll();
+                    throw e;
+                }
+            }
+            target = written;
+            if (synced >= target) {
+                syncing = false;
+                notifyAll();
+                return;
+            }
+        }
+        boolean completed = false;
+        try {
+            syncer.sync();
+            completed = true;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (completed) {
+                    synced = Math.max(synced, target);
+                    syncs++;
+                }
+                // after a failure the next waiter retries the sync
+                notifyAll();
+            }
+        }
+    }
+
+    private void waitInterruptibly(long nanos) throws IOException {
+        try {
+            if (nanos > 0) {
+                wait(nanos / 1_000_000, (int) (nanos % 1_000_000));
+            } else {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a sync");
+        }
+    }
+
+    /**
+     * Syncs what was written every period, for writers that do not wait.
+     */
+    public synchronized void startBackgroundSync(long period, TimeUnit unit) {
+        stopBackgroundSync();
+        backgroundSync = syncExecutor.scheduleWithFixedDelay(() -> {
+            long write;
+            synchronized (this) {
+                write = written;
+            }
+            try {
+                awaitSynced(write);
+            } catch (IOException e) {
+                System.out.println("Background sync failed: " + e);
+            }
+        }, period, period, unit);
+    }
+
+    public synchronized void stopBackgroundSync() {
+        if (null != backgroundSync) {
+            backgroundSync.cancel(false);
+            backgroundSync = null;
+        }
+    }
+
+    /**
+     * The number of the last write recorded by {@link #written}.
+     */
+    public synchronized long getWritten() {
+        return written;
+    }
+
+    /**
+     * The number of the last write that is synced.
+     */
+    public synchronized long getSynced() {
+        return synced;
+    }
+
+    /**
+     * The number of writes that were not synced yet.
+     */
+    public synchronized long getUnsyncedWrites() {
+        return written - synced;
+    }
+
+    /**
+     * The number of syncs done by writers and the background sync.
+     */
+    public synchronized long getSyncs() {
+        return syncs;
+    }
+}
@@ -0,0 +1,150 @@
+package com.ag.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.ag.database.StorableSchema.SchemaField;
+
+/**
+ * Maps the values of one field to the ids of the objects holding them. Objects whose field is null are not indexed.
+ * <p>
+ * Lookups need no lock: the id arrays are replaced instead of modified, so a lookup always sees a complete array. All
+ * other methods are called by the single writer of the storer.
+ */
+public class HashIndex<T> implements StorerIndex<T> {
+
+    private static final int MAGIC = 0x41474849; // "AGHI"
+    private static final int VERSION = 1;
+    private static final long[] NO_IDS = new long[0];
+
+    private final FieldRecordCodec<T> codec;
+    private final SchemaField field;
+    // value -> ids of the objects holding it
+    private final Map<Object, long[]> idsByValue = new ConcurrentHashMap<>();
+    // id -> indexed value, needed to find the old entry when an object changes or is deleted
+    private final Map<Long, Object> valueById = new HashMap<>();
+
+    /**
+     * @param codec the codec of the stored class, used to write the values to the index file.
+     * @param fieldName the stored name of the indexed field.
+     */
+    public HashIndex(FieldRecordCodec<T> codec, String fieldName) {
+        this.codec = codec;
+        this.field = codec.getSchema().getField(fieldName);
+    }
+
+    @Override
+    public String getName() {
+        return field.getName();
+    }
+
+    /**
+     * Returns the ids of the objects whose field equals the value. The array must not be modified.
+     */
+    public long[] lookup(Object value) {
+        if (null == value) {
+            return NO_IDS;
+        }
+        return idsByValue.getOrDefault(value, NO_IDS);
+    }
+
+    /**
+     * The number of distinct indexed values.
+     */
+    public int size() {
+        return idsByValue.size();
+    }
+
+    @Override
+    public void update(long id, T object) {
+        Object value = copy(field.get(object));
+        Object previous = valueById.get(id);
+        if (Objects.equals(previous, value)) {
+            return;
+        }
+        if (null != previous) {
+            removeId(previous, id);
+        }
+        if (null == value) {
+            valueById.remove(id);
+            return;
+        }
+        valueById.put(id, value);
+        addId(value, id);
+    }
+
+    @Override
+    public void remove(long id) {
+        Object previous = valueById.remove(id);
+        if (null != previous) {
+            removeId(previous, id);
+        }
+    }
+
+    private void addId(Object value, long id) {
+        idsByValue.merge(value, new long[] {id}, (ids, added) -> {
+            long[] grown = Arrays.copyOf(ids, ids.length + 1);
+            grown[ids.length] = id;
+            return grown;
+        });
+    }
+
+    private void removeId(Object value, long id) {
+        idsByValue.computeIfPresent(value, (key, ids) -> {
+            if (1 == ids.length) {
+                return ids[0] == id ? null : ids;
+            }
+            long[] shrunk = new long[ids.length - 1];
+            int i = 0;
+            for (long indexed : ids) {
+                if (indexed != id && i < shrunk.length) {
+                    shrunk[i++] = indexed;
+                }
+            }
+            return shrunk;
+        });
+    }
+
+    /**
+     * Mutable values are copied so that changing the saved object afterwards does not change the index.
+     */
+    private static Object copy(Object value) {
+        return value instanceof Date ? new Date(((Date) value).getTime()) : value;
+    }
+
+    @Override
+    public void clear() {
+        idsByValue.clear();
+        valueById.clear();
+    }
+
+    @Override
+    public void write(File file, long fingerprint) throws IOException {
+        RecordBuffer buffer = IndexFiles.startWrite(MAGIC, VERSION, fingerprint).writeInt(valueById.size());
+        for (Map.Entry<Long, Object> entry : valueById.entrySet()) {
+            buffer.writeLong(entry.getKey());
+            codec.writeValue(field, entry.getValue(), buffer);
+        }
+        IndexFiles.writeAtomically(file, buffer.toByteArray());
+    }
+
+    @Override
+    public boolean read(File file, long fingerprint) throws IOException {
+        return IndexFiles.read(file, MAGIC, VERSION, fingerprint, this, buffer -> {
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                long id = buffer.getLong();
+                Object value = codec.readValue(field, buffer);
+                valueById.put(id, value);
+                addId(value, id);
+            }
+            return true;
+        });
+    }
+}
@@ -0,0 +1,79 @@
+package com.ag.database;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes and reads the files of the {@link StorerIndex}es that keep their whole state in one file: a header of magic,
+ * version and the fingerprint of the storer, followed by the body each index serializes itself.
+ */
+final class IndexFiles {
+
+    /**
+     * Reads the body of an index file positioned after its header.
+     */
+    interface BodyReader {
+
+        /**
+         * @return false when the body was written for something else, such as other fields, and the index has to be
+         *         rebuilt.
+         */
+        boolean read(ByteBuffer body);
+    }
+
+    private IndexFiles() {
+    }
+
+    /**
+     * A buffer holding the header, the body is written after it.
+     */
+    static RecordBuffer startWrite(int magic, int version, long fingerprint) {
+        return new RecordBuffer().writeInt(magic).writeInt(version).writeLong(fingerprint);
+    }
+
+    /**
+     * Writes the bytes to a temporary file, forces it to disk and moves it over the file, so that the file holds
+     * either the previous or the new bytes after a crash.
+     */
+    static void writeAtomically(File file, byte[] bytes) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tempFile, false)) {
+            fos.write(bytes);
+            fos.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Clears the index and fills it from the file if the file exists and was written by {@link #startWrite} with the
+     * same header. The file is deleted once read, see {@link StorerIndex#read}.
+     *
+     * @return false when the index has to be rebuilt, it is left cleared then.
+     */
+    static boolean read(File file, int magic, int version, long fingerprint, StorerIndex<?> index, BodyReader body)
+            throws IOException {
+        index.clear();
+        if (!file.exists()) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        // a crash before the next write must not leave this state behind
+        Files.delete(file.toPath());
+        try {
+            if (buffer.getInt() == magic && buffer.getInt() == version && buffer.getLong() == fingerprint
+                    && body.read(buffer) && !buffer.hasRemaining()) {
+                return true;
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            // a truncated or foreign file, the index is rebuilt instead
+        }
+        index.clear();
+        return false;
+    }
+}
@@ -0,0 +1,33 @@
+package com.ag.database;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a persisted field of a {@link Storable} to be kept in a secondary index, so that its {@link Storer} can find the
+ * objects with a given value of the field through {@link Storer#lookup}, or within a range of values through
+ * {@link Storer#range}, without reading them.
+ * <p>
+ * Examples:
+ * <pre>
+ * {@code @Indexed}
+ * private String name;
+ * {@code @Indexed(Indexed.Type.RANGE)}
+ * private Date lastAdded;
+ * </pre>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Indexed {
+
+    public enum Type {
+        /** A {@link HashIndex} for equality lookups. */
+        HASH,
+        /** A {@link BTreeIndex} for range queries in the order of the field. */
+        RANGE
+    }
+
+    Type value() default Type.HASH;
+}
@@ -7,8 +7,11 @@ import com.ag.json.JsonClass;
 @JsonClass
 public class InventoryItem extends Storable {
 
+    @Indexed
     private String name;
+    @Indexed(Indexed.Type.RANGE)
     private int quantity;
+    @Indexed(Indexed.Type.RANGE)
     private Date lastAdded;
 
     // requried for Serializable
@@ -0,0 +1,547 @@
+package com.ag.database;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * An open addressing hash table from a long id to the position and size of its record, stored in a direct buffer
+ * outside of the heap. Each entry takes 24 bytes of the table instead of a boxed key, a {@link FileIndex} and a map node.
+ * <p>
+ * Collisions are resolved with linear probing, removal shifts the following entries of the probe sequence back so
+ * that no tombstones are left behind. A slot is empty when its size is 0, which is why sizes must be positive.
+ * <p>
+ * The table can sit on top of a read only base of entries sorted by key, usually a memory mapped meta snapshot, see
+ * {@link #attachSortedBase}. Lookups that miss the hash table binary search the base, changes go to the hash table and
+ * a bit per base entry marks the ones that were replaced or removed, so a large index is usable without reading it
+ * entry by entry first. Slots from {@value #BASE_SLOT} on address the base.
+ * <p>
+ * Not thread safe. Lookups never loop forever or read outside of the buffer even while the table is modified, so they
+ * can serve optimistic reads that are validated afterwards, see {@link java.util.concurrent.locks.StampedLock}.
+ */
+public class LongIndexTable {
+
+    private static final int ENTRY_BYTES = 24;
+    private static final int KEY_OFFSET = 0;
+    private static final int POSITION_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+    private static final int MIN_CAPACITY = 16;
+    // a single buffer can not be larger than Integer.MAX_VALUE bytes
+    private static final int SLOT_BITS = 26;
+    private static final int MAX_CAPACITY = 1 << SLOT_BITS;
+    private static final double LOAD_FACTOR = 0.75;
+    // the first slot of the sorted base, past every slot of the hash table
+    private static final int BASE_SLOT = MAX_CAPACITY;
+    private static final int MAX_BASE_ENTRIES = Math.min(Integer.MAX_VALUE / ENTRY_BYTES, Integer.MAX_VALUE - BASE_SLOT);
+
+    private ByteBuffer table;
+    private int capacity;
+    private int mask;
+    private int size;
+    private int resizeAt;
+    private int modifications;
+
+    private ByteBuffer base;
+    private int baseCount;
+    // one bit per base entry that was replaced by an entry of the hash table or removed
+    private long[] baseRemoved;
+    private int baseLive;
+
+    /**
+     * Consumes the entries of a table.
+     */
+    public interface EntryConsumer {
+        void accept(long key, long position, long size);
+    }
+
+    public LongIndexTable() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize the number of entries the table should hold without growing.
+     */
+    public LongIndexTable(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int entries) {
+        long needed = (long) Math.ceil(entries / LOAD_FACTOR);
+        int capacity = MIN_CAPACITY;
+        while (capacity < needed) {
+            if (capacity >= MAX_CAPACITY) {
+                throw new IllegalStateException("Index table can not hold " + entries + " entries");
+            }
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(int newCapacity) {
+        table = ByteBuffer.allocateDirect(newCapacity * ENTRY_BYTES);
+        capacity = newCapacity;
+        mask = newCapacity - 1;
+        resizeAt = (int) (newCapacity * LOAD_FACTOR);
+    }
+
+    private static int hash(long key) {
+        // murmur3 finalizer, ids are sequential so the low bits need mixing
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private static int offset(int slot) {
+        return slot * ENTRY_BYTES;
+    }
+
+    private boolean isEmpty(int slot) {
+        return 0 == table.getLong(offset(slot) + SIZE_OFFSET);
+    }
+
+    /**
+     * Lays the table over a read only base of entries sorted by key without copying them. Every entry takes
+     * {@value #ENTRY_BYTES} bytes: key, position and size as big endian longs.
+     *
+     * @param sortedEntries the entries from its position to its limit, must not change while the table is in use.
+     * @throws IllegalStateException when the table is not empty.
+     */
+    public void attachSortedBase(ByteBuffer sortedEntries) {
+        if (0 != size()) {
+            throw new IllegalStateException("A sorted base can only be attached to an empty table");
+        }
+        if (sortedEntries.remaining() % ENTRY_BYTES != 0 || sortedEntries.remaining() / ENTRY_BYTES > MAX_BASE_ENTRIES) {
+            throw new IllegalArgumentException("Invalid sorted base of " + sortedEntries.remaining() + " bytes");
+        }
+        base = sortedEntries.slice();
+        baseCount = base.capacity() / ENTRY_BYTES;
+        baseRemoved = new long[(baseCount + 63) >>> 6];
+        baseLive = baseCount;
+        modifications++;
+    }
+
+    /**
+     * The number of entries still served from the sorted base.
+     */
+    public int getBaseSize() {
+        return baseLive;
+    }
+
+    private boolean isBaseRemoved(int index) {
+        return 0 != (baseRemoved[index >>> 6] & (1L << index));
+    }
+
+    private void removeFromBase(int index) {
+        baseRemoved[index >>> 6] |= 1L << index;
+        baseLive--;
+    }
+
+    /**
+     * Binary searches the base for a live entry of the key.
+     *
+     * @return the index of the entry in the base, or -1.
+     */
+    private int baseIndexOf(long key) {
+        ByteBuffer currentBase = base;
+        long[] removed = baseRemoved;
+        if (null == currentBase || null == removed) {
+            return -1;
+        }
+        int low = 0;
+        int high = currentBase.capacity() / ENTRY_BYTES - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleKey = currentBase.getLong(middle * ENTRY_BYTES + KEY_OFFSET);
+            if (middleKey < key) {
+                low = middle + 1;
+            } else if (middleKey > key) {
+                high = middle - 1;
+            } else {
+                return middle < removed.length << 6 && 0 == (removed[middle >>> 6] & (1L << middle)) ? middle : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot holding the key, or -1 when the key is not in the table.
+     */
+    public int slotOf(long key) {
+        int slot = tableSlotOf(key);
+        if (slot >= 0) {
+            return slot;
+        }
+        int index = baseIndexOf(key);
+        return index < 0 ? -1 : BASE_SLOT + index;
+    }
+
+    private int tableSlotOf(long key) {
+        // the buffer is read once and the probe bounded so that a racing resize can not derail the lookup
+        ByteBuffer current = table;
+        int currentMask = current.capacity() / ENTRY_BYTES - 1;
+        int slot = hash(key) & currentMask;
+        for (int probes = 0; probes <= currentMask; probes++) {
+            int offset = offset(slot);
+            if (0 == current.getLong(offset + SIZE_OFFSET)) {
+                return -1;
+            }
+            if (current.getLong(offset + KEY_OFFSET) == key) {
+                return slot;
+            }
+            slot = (slot + 1) & currentMask;
+        }
+        return -1;
+    }
+
+    private long read(int slot, int field) {
+        if (slot >= BASE_SLOT) {
+            ByteBuffer currentBase = base;
+            int offset = offset(slot - BASE_SLOT);
+            // the table may have been cleared under an optimistic read, which fails validation anyway
+            return null == currentBase || offset >= currentBase.capacity() ? 0 : currentBase.getLong(offset + field);
+        }
+        return table.getLong(offset(slot) + field);
+    }
+
+    public long keyAt(int slot) {
+        return read(slot, KEY_OFFSET);
+    }
+
+    public long positionAt(int slot) {
+        return read(slot, POSITION_OFFSET);
+    }
+
+    public long sizeAt(int slot) {
+        return read(slot, SIZE_OFFSET);
+    }
+
+    public boolean contains(long key) {
+        return slotOf(key) >= 0;
+    }
+
+    /**
+     * Returns a copy of the entry for the key, or null when the key is not in the table.
+     */
+    public FileIndex get(long key) {
+        int slot = slotOf(key);
+        if (slot < 0) {
+            return null;
+        }
+        FileIndex fileIndex = new FileIndex();
+        fileIndex.position = positionAt(slot);
+        fileIndex.size = sizeAt(slot);
+        return fileIndex;
+    }
+
+    /**
+     * Associates the key with the position and size, replacing a previous entry.
+     *
+     * @return true when the key was not in the table before.
+     */
+    public boolean put(long key, long position, long recordSize) {
+        if (recordSize <= 0) {
+            throw new IllegalArgumentException("Record size must be positive: " + recordSize);
+        }
+        int slot = hash(key) & mask;
+        while (!isEmpty(slot)) {
+            if (table.getLong(offset(slot) + KEY_OFFSET) == key) {
+                write(slot, key, position, recordSize);
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        write(slot, key, position, recordSize);
+        modifications++;
+        if (++size > resizeAt) {
+            resize(capacity << 1);
+        }
+        int index = baseIndexOf(key);
+        if (index >= 0) {
+            // the entry of the hash table replaces the one of the base
+            removeFromBase(index);
+            return false;
+        }
+        return true;
+    }
+
+    private void write(int slot, long key, long position, long recordSize) {
+        int offset = offset(slot);
+        table.putLong(offset + KEY_OFFSET, key);
+        table.putLong(offset + POSITION_OFFSET, position);
+        table.putLong(offset + SIZE_OFFSET, recordSize);
+    }
+
+    /**
+     * Removes the key from the table.
+     *
+     * @return true when the key was in the table.
+     */
+    public boolean remove(long key) {
+        int slot = tableSlotOf(key);
+        if (slot < 0) {
+            int index = baseIndexOf(key);
+            if (index < 0) {
+                return false;
+            }
+            removeFromBase(index);
+            modifications++;
+            return true;
+        }
+        // shift later entries of the probe sequence back into the gap so lookups never stop early
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (!isEmpty(next)) {
+            int home = hash(keyAt(next)) & mask;
+            // move the entry when its home slot is not between the gap and its current slot (cyclically)
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                write(gap, keyAt(next), positionAt(next), sizeAt(next));
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        write(gap, 0, 0, 0);
+        size--;
+        modifications++;
+        return true;
+    }
+
+    private void resize(int newCapacity) {
+        if (newCapacity > MAX_CAPACITY) {
+            throw new IllegalStateException("Index table can not grow past " + MAX_CAPACITY + " slots");
+        }
+        ByteBuffer old = table;
+        int oldCapacity = capacity;
+        allocate(newCapacity);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            int offset = offset(slot);
+            long entrySize = old.getLong(offset + SIZE_OFFSET);
+            if (0 != entrySize) {
+                long key = old.getLong(offset + KEY_OFFSET);
+                int target = hash(key) & mask;
+                while (!isEmpty(target)) {
+                    target = (target + 1) & mask;
+                }
+                write(target, key, old.getLong(offset + POSITION_OFFSET), entrySize);
+            }
+        }
+    }
+
+    public int size() {
+        return size + baseLive;
+    }
+
+    public void clear() {
+        allocate(MIN_CAPACITY);
+        size = 0;
+        base = null;
+        baseCount = 0;
+        baseRemoved = null;
+        baseLive = 0;
+        modifications++;
+    }
+
+    /**
+     * The number of bytes allocated outside of the heap for the table, not counting a mapped base.
+     */
+    public long getMemoryBytes() {
+        return (long) capacity * ENTRY_BYTES;
+    }
+
+    /**
+     * Returns an independent copy of the table.
+     */
+    public LongIndexTable copy() {
+        LongIndexTable copy = new LongIndexTable();
+        copy.allocate(capacity);
+        ByteBuffer source = table.duplicate();
+        source.clear();
+        copy.table.put(source);
+        copy.table.clear();
+        copy.size = size;
+        if (null != base) {
+            // the base is read only and shared, only the bits of the replaced entries are copied
+            copy.base = base;
+            copy.baseCount = baseCount;
+            copy.baseRemoved = baseRemoved.clone();
+            copy.baseLive = baseLive;
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the slot after the given one that holds an entry, or -1 past the last entry. Slots of the hash table come
+     * before the slots of the base.
+     */
+    private int nextSlot(int slot) {
+        for (slot++; slot < capacity; slot++) {
+            if (!isEmpty(slot)) {
+                return slot;
+            }
+        }
+        for (int index = Math.max(0, slot - BASE_SLOT); index < baseCount; index++) {
+            if (!isBaseRemoved(index)) {
+                return BASE_SLOT + index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Calls the consumer for every entry, in no particular order.
+     */
+    public void forEach(EntryConsumer consumer) {
+        for (int slot = nextSlot(-1); slot >= 0; slot = nextSlot(slot)) {
+            consumer.accept(keyAt(slot), positionAt(slot), sizeAt(slot));
+        }
+    }
+
+    /**
+     * Calls the consumer for every entry in ascending order of the keys.
+     */
+    public void forEachSorted(EntryConsumer consumer) {
+        long[] tableKeys = new long[size];
+        int count = 0;
+        for (int slot = 0; slot < capacity && count < tableKeys.length; slot++) {
+            if (!isEmpty(slot)) {
+                tableKeys[count++] = keyAt(slot);
+            }
+        }
+        Arrays.sort(tableKeys, 0, count);
+        // merge the sorted keys of the hash table with the base, a key is never live in both
+        int next = 0;
+        for (int index = 0; index < baseCount; index++) {
+            if (isBaseRemoved(index)) {
+                continue;
+            }
+            int slot = BASE_SLOT + index;
+            long baseKey = keyAt(slot);
+            for (; next < count && tableKeys[next] < baseKey; next++) {
+                acceptTableEntry(tableKeys[next], consumer);
+            }
+            consumer.accept(baseKey, positionAt(slot), sizeAt(slot));
+        }
+        for (; next < count; next++) {
+            acceptTableEntry(tableKeys[next], consumer);
+        }
+    }
+
+    private void acceptTableEntry(long key, EntryConsumer consumer) {
+        int slot = tableSlotOf(key);
+        consumer.accept(key, positionAt(slot), sizeAt(slot));
+    }
+
+    /**
+     * Copies all keys into an array, in no particular order.
+     */
+    public long[] keys() {
+        long[] keys = new long[size()];
+        int i = 0;
+        for (int slot = nextSlot(-1); slot >= 0 && i < keys.length; slot = nextSlot(slot)) {
+            keys[i++] = keyAt(slot);
+        }
+        return keys;
+    }
+
+    /**
+     * Copies all entries sorted by position, as three arrays {keys, positions, sizes} of the same length.
+     */
+    public long[][] sortedByPosition() {
+        int total = size();
+        long[][] entries = new long[3][total];
+        int count = 0;
+        for (int slot = nextSlot(-1); slot >= 0 && count < total; slot = nextSlot(slot)) {
+            entries[0][count] = keyAt(slot);
+            entries[1][count] = positionAt(slot);
+            entries[2][count] = sizeAt(slot);
+            count++;
+        }
+        // position and entry index packed into one long, so that a primitive sort orders the entries by position
+        int indexBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(count));
+        long[] packed = new long[count];
+        boolean packable = true;
+        for (int i = 0; i < count; i++) {
+            packable &= entries[1][i] < (1L << (63 - indexBits));
+            packed[i] = (entries[1][i] << indexBits) | i;
+        }
+        long[][] sorted = new long[3][count];
+        if (packable) {
+            Arrays.sort(packed);
+            for (int i = 0; i < count; i++) {
+                int entry = (int) (packed[i] & ((1L << indexBits) - 1));
+                sorted[0][i] = entries[0][entry];
+                sorted[1][i] = entries[1][entry];
+                sorted[2][i] = entries[2][entry];
+            }
+            return sorted;
+        }
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(entry -> entries[1][entry]));
+        for (int i = 0; i < count; i++) {
+            sorted[0][i] = entries[0][order[i]];
+            sorted[1][i] = entries[1][order[i]];
+            sorted[2][i] = entries[2][order[i]];
+        }
+        return sorted;
+    }
+
+    /**
+     * Iterates over the keys without boxing them. The table must not be modified while iterating.
+     */
+    public PrimitiveIterator.OfLong keyIterator() {
+        return new PrimitiveIterator.OfLong() {
+            private final int expectedModifications = modifications;
+            private int slot = nextSlot(-1);
+
+            @Override
+            public boolean hasNext() {
+                return slot >= 0;
+            }
+
+            @Override
+            public long nextLong() {
+                if (expectedModifications != modifications) {
+                    throw new ConcurrentModificationException();
+                }
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                long key = keyAt(slot);
+                slot = nextSlot(slot);
+                return key;
+            }
+        };
+    }
+
+    /**
+     * A read only view of the keys. Lookups go straight to the table, only keys handed out by the iterator are boxed.
+     */
+    public AbstractSet<Long> keySet() {
+        return new AbstractSet<Long>() {
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Long && LongIndexTable.this.contains((Long) o);
+            }
+
+            @Override
+            public Iterator<Long> iterator() {
+                return keyIterator();
+            }
+
+            @Override
+            public int size() {
+                return LongIndexTable.this.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,115 @@
+package com.ag.database;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+/**
+ * Read only view of an object file that is mapped into memory in fixed size chunks. Chunks are mapped on first use
+ * and remapped when the file has grown past the end of the mapped region, so a record can be read by its file position
+ * without opening a stream or skipping over the bytes in front of it.
+ * <p>
+ * Safe to read from concurrently. The chunk table is replaced as a whole whenever a chunk is (re)mapped, so readers
+ * only ever see a complete table and never wait for each other unless a chunk has to be mapped.
+ */
+public class MappedObjectFile implements Closeable {
+
+    // 64MB chunks keep the number of mappings small while still letting the file grow past 2GB.
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 26;
+
+    private final FileChannel channel;
+    private final int chunkSize;
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+    public MappedObjectFile(FileChannel channel) {
+        this(channel, DEFAULT_CHUNK_SIZE);
+    }
+
+    public MappedObjectFile(FileChannel channel, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.channel = channel;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Returns a read only buffer holding the bytes {@code [position, position + size)} of the file. The buffer is a view
+     * of the mapping unless the record crosses a chunk boundary, in which case the bytes are copied.
+     *
+     * @param position the file offset of the first byte.
+     * @param size the number of bytes to read.
+     * @return a buffer positioned at the first byte of the record and limited to its last byte.
+     * @throws IOException when the region extends past the end of the file.
+     */
+    public ByteBuffer slice(long position, int size) throws IOException {
+        if (position < 0 || size < 0) {
+            throw new IllegalArgumentException("Invalid region: position " + position + ", size " + size);
+        }
+        int first = (int) (position / chunkSize);
+        int offset = (int) (position % chunkSize);
+        if (offset + size <= chunkSize) {
+            ByteBuffer slice = chunk(first, offset + size).duplicate();
+            slice.position(offset).limit(offset + size);
+            return slice.slice();
+        }
+
+        // the record spans chunks, stitch it together into a single heap buffer
+        ByteBuffer copy = ByteBuffer.allocate(size);
+        long cursor = position;
+        while (copy.hasRemaining()) {
+            int index = (int) (cursor / chunkSize);
+            int chunkOffset = (int) (cursor % chunkSize);
+            int length = Math.min(copy.remaining(), chunkSize - chunkOffset);
+            ByteBuffer part = chunk(index, chunkOffset + length).duplicate();
+            part.position(chunkOffset).limit(chunkOffset + length);
+            copy.put(part);
+            cursor += length;
+        }
+        copy.flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the mapping of the chunk at the given index, remapping it when fewer than the required bytes were mapped
+     * the last time (the file has grown since).
+     */
+    private MappedByteBuffer chunk(int index, int required) throws IOException {
+        MappedByteBuffer[] mapped = chunks;
+        if (index < mapped.length && null != mapped[index] && mapped[index].capacity() >= required) {
+            return mapped[index];
+        }
+        return remap(index, required);
+    }
+
+    private synchronized MappedByteBuffer remap(int index, int required) throws IOException {
+        // another reader may have mapped the chunk while this one waited
+        MappedByteBuffer[] mapped = chunks;
+        if (index < mapped.length && null != mapped[index] && mapped[index].capacity() >= required) {
+            return mapped[index];
+        }
+        long start = (long) index * chunkSize;
+        long length = Math.min(chunkSize, channel.size() - start);
+        if (length < required) {
+            throw new EOFException("Region of " + required + " bytes at " + start + " extends past the end of the object file");
+        }
+        MappedByteBuffer chunk = channel.map(MapMode.READ_ONLY, start, length);
+        MappedByteBuffer[] remapped = Arrays.copyOf(mapped, Math.max(mapped.length, index + 1));
+        remapped[index] = chunk;
+        chunks = remapped;
+        return chunk;
+    }
+
+    /**
+     * Drops all mappings. The underlying channel is owned by the caller and is not closed.
+     */
+    @Override
+    public synchronized void close() {
+        chunks = new MappedByteBuffer[0];
+    }
+}
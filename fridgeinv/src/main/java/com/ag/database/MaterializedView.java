@@ -0,0 +1,475 @@
+package com.ag.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.ag.database.StorableSchema.SchemaField;
+import com.ag.util.DateUtils;
+
+/**
+ * A derived result over the objects of a storer that match all of its conditions, such as the number of items per name
+ * or the ids of the items running low, kept up to date on every save, field update and delete instead of being
+ * recomputed by a scan when it is read. Matching objects are grouped by the value of a field, or all fall into one
+ * group, and every group holds one {@link Aggregate}.
+ * <p>
+ * The view remembers what every matching object contributed, so a changed or deleted object takes back its old
+ * contribution before it adds the new one. Reading a group is a lookup of its kept result. Like the other indexes the
+ * view is written next to the meta file when the storer is closed and rebuilt by a scan when that file is missing,
+ * stale or was written for another definition. All methods are synchronized.
+ */
+public class MaterializedView<T> implements StorerIndex<T> {
+
+    public static final String NAME_PREFIX = "view.";
+
+    private static final int MAGIC = 0x41474d56; // "AGMV"
+    private static final int VERSION = 1;
+
+    public enum Aggregate {
+        /** The number of matching objects. */
+        COUNT,
+        /** The sum of the non-null values of the field. */
+        SUM,
+        MIN,
+        MAX,
+        /** The ids of the matching objects, in ascending order. */
+        IDS
+    }
+
+    public enum Comparison {
+        EQ("="),
+        NE("!="),
+        LT("<"),
+        LE("<="),
+        GT(">"),
+        GE(">=");
+
+        private final String symbol;
+
+        private Comparison(String symbol) {
+            this.symbol = symbol;
+        }
+
+        private boolean matches(int compared) {
+            switch (this) {
+                case EQ:
+                    return 0 == compared;
+                case NE:
+                    return 0 != compared;
+                case LT:
+                    return compared < 0;
+                case LE:
+                    return compared <= 0;
+                case GT:
+                    return compared > 0;
+                default:
+                    return compared >= 0;
+            }
+        }
+    }
+
+    /**
+     * Matches the objects whose field compares to the value as given, objects whose field is null never match. Dates
+     * are compared as milliseconds since the epoch and may be given as such or as a string {@link DateUtils} parses.
+     */
+    public static class Condition {
+
+        private final String fieldName;
+        private final Comparison comparison;
+        private final Object value;
+
+        public Condition(String fieldName, Comparison comparison, Object value) {
+            if (null == value) {
+                throw new IllegalArgumentException("The condition on '" + fieldName + "' needs a value");
+            }
+            this.fieldName = fieldName;
+            this.comparison = comparison;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return fieldName + " " + comparison.symbol + " " + value;
+        }
+    }
+
+    /**
+     * A condition resolved against the schema, with its value converted to the form field values are compared in.
+     */
+    private static class ResolvedCondition {
+
+        private final SchemaField field;
+        private final Comparison comparison;
+        private final Comparable<Object> value;
+
+        @SuppressWarnings("unchecked")
+        private ResolvedCondition(StorableSchema<?> schema, Condition condition) {
+            field = schema.getField(condition.fieldName);
+            comparison = condition.comparison;
+            Object converted = condition.value;
+            if (Date.class == field.getType() && converted instanceof String) {
+                converted = DateUtils.parseDate((String) converted);
+            }
+            converted = toComparable(converted);
+            if (Double.class == comparableType(field.getType()) && converted instanceof Long) {
+                converted = ((Long) converted).doubleValue();
+            }
+            value = (Comparable<Object>) converted;
+            if (null == value || value.getClass() != comparableType(field.getType())) {
+                throw new IllegalArgumentException("Cannot compare '" + field + "' with " + condition.value);
+            }
+        }
+
+        private boolean matches(Object object) {
+            Object fieldValue = toComparable(field.get(object));
+            return null != fieldValue && comparison.matches(-Integer.signum(value.compareTo(fieldValue)));
+        }
+
+        @Override
+        public String toString() {
+            return field.getName() + " " + comparison.symbol + " " + value;
+        }
+    }
+
+    /**
+     * The matching objects of one group value and their aggregate.
+     */
+    private static class Group {
+
+        private int objects;
+        private long values;
+        private long sum;
+        // value -> how often it occurs, for the minimum and maximum to survive the removal of a value
+        private TreeMap<Long, Integer> occurrences;
+        private TreeSet<Long> ids;
+    }
+
+    /**
+     * What a matching object contributed to its group.
+     */
+    private static class Contribution {
+
+        private final String group;
+        private final boolean hasValue;
+        private final long value;
+
+        private Contribution(String group, boolean hasValue, long value) {
+            this.group = group;
+            this.hasValue = hasValue;
+            this.value = value;
+        }
+    }
+
+    private final String name;
+    private final List<ResolvedCondition> conditions = new ArrayList<>();
+    private final SchemaField groupField;
+    private final Aggregate aggregate;
+    private final SchemaField valueField;
+    private final String definition;
+
+    private final Map<Long, Contribution> contributions = new HashMap<>();
+    private final Map<String, Group> groups = new HashMap<>();
+
+    /**
+     * @param schema the schema of the stored class.
+     * @param name the name of the view, unique within its storer.
+     * @param groupFieldName the stored name of the field to group by, null to keep a single result.
+     * @param aggregate
+     * @param valueFieldName the stored name of the integral or date field to sum or take the minimum or maximum of,
+     *        null for {@link Aggregate#COUNT} and {@link Aggregate#IDS}.
+     * @param where the conditions an object has to meet to be part of the view.
+     */
+    public MaterializedView(StorableSchema<T> schema, String name, String groupFieldName, Aggregate aggregate,
+            String valueFieldName, Condition... where) {
+        this.name = name;
+        this.aggregate = aggregate;
+        for (Condition condition : where) {
+            conditions.add(new ResolvedCondition(schema, condition));
+        }
+        groupField = null == groupFieldName ? null : schema.getField(groupFieldName);
+        if (Aggregate.COUNT == aggregate || Aggregate.IDS == aggregate) {
+            if (null != valueFieldName) {
+                throw new IllegalArgumentException(aggregate + " of view '" + name + "' does not take a field");
+            }
+            valueField = null;
+        } else {
+            if (null == valueFieldName) {
+                throw new IllegalArgumentException(aggregate + " of view '" + name + "' needs a field");
+            }
+            valueField = schema.getField(valueFieldName);
+            if (Long.class != comparableType(valueField.getType())
+                    || (Date.class == valueField.getType() && Aggregate.SUM == aggregate)) {
+                throw new IllegalArgumentException("Cannot take the " + aggregate + " of '" + valueField + "'");
+            }
+        }
+        definition = describe();
+    }
+
+    private String describe() {
+        StringBuilder description = new StringBuilder(aggregate.name());
+        if (null != valueField) {
+            description.append('(').append(valueField.getName()).append(')');
+        }
+        if (null != groupField) {
+            description.append(" by ").append(groupField.getName());
+        }
+        for (int i = 0; i < conditions.size(); i++) {
+            description.append(0 == i ? " where " : " and ").append(conditions.get(i));
+        }
+        return description.toString();
+    }
+
+    /**
+     * The form a field value is compared in: integral numbers and dates as longs, floating point numbers as doubles and
+     * characters and enums as strings.
+     */
+    private static Object toComparable(Object value) {
+        if (value instanceof Date) {
+            return ((Date) value).getTime();
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            return ((Number) value).longValue();
+        } else if (value instanceof Float || value instanceof Double) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Character || value instanceof Enum) {
+            return value.toString();
+        }
+        return value;
+    }
+
+    private static Class<?> comparableType(Class<?> type) {
+        if (Date.class == type || long.class == type || int.class == type || short.class == type || byte.class == type
+                || Long.class == type || Integer.class == type || Short.class == type || Byte.class == type) {
+            return Long.class;
+        } else if (float.class == type || double.class == type || Float.class == type || Double.class == type) {
+            return Double.class;
+        } else if (char.class == type || Character.class == type || type.isEnum()) {
+            return String.class;
+        } else if (boolean.class == type) {
+            return Boolean.class;
+        }
+        return type;
+    }
+
+    @Override
+    public String getName() {
+        return NAME_PREFIX + name;
+    }
+
+    public String getViewName() {
+        return name;
+    }
+
+    public Aggregate getAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * The stored name of the field the view is grouped by, null when it keeps a single result.
+     */
+    public String getGroupFieldName() {
+        return null == groupField ? null : groupField.getName();
+    }
+
+    /**
+     * The values of the group field that have matching objects, in no particular order.
+     */
+    public synchronized Set<String> getGroups() {
+        return new LinkedHashSet<>(groups.keySet());
+    }
+
+    /**
+     * The aggregate of a view without a group field, see {@link #getValue(String)}.
+     */
+    public Long getValue() {
+        return getValue(null);
+    }
+
+    /**
+     * The aggregate of the group, dates as milliseconds since the epoch.
+     *
+     * @param group the value of the group field as a string, see {@link #toGroup}, null for a view without one.
+     * @return 0 for the count or sum of a group without matching objects, null for its minimum or maximum.
+     */
+    public synchronized Long getValue(String group) {
+        if (Aggregate.IDS == aggregate) {
+            throw new IllegalStateException("View '" + name + "' keeps ids, see getIds");
+        }
+        Group kept = groups.get(null == groupField ? "" : group);
+        switch (aggregate) {
+            case COUNT:
+                return null == kept ? 0 : (long) kept.objects;
+            case SUM:
+                return null == kept ? 0 : kept.sum;
+            case MIN:
+                return null == kept || 0 == kept.values ? null : kept.occurrences.firstKey();
+            default:
+                return null == kept || 0 == kept.values ? null : kept.occurrences.lastKey();
+        }
+    }
+
+    /**
+     * The ids of a view without a group field, see {@link #getIds(String)}.
+     */
+    public List<Long> getIds() {
+        return getIds(null);
+    }
+
+    /**
+     * The ids of the matching objects of the group in ascending order, for a view of {@link Aggregate#IDS}.
+     */
+    public synchronized List<Long> getIds(String group) {
+        if (Aggregate.IDS != aggregate) {
+            throw new IllegalStateException("View '" + name + "' keeps the " + aggregate + ", see getValue");
+        }
+        Group kept = groups.get(null == groupField ? "" : group);
+        return null == kept ? new ArrayList<>() : new ArrayList<>(kept.ids);
+    }
+
+    /**
+     * The group a value of the group field falls into: dates as milliseconds since the epoch, anything else as its
+     * string form.
+     */
+    public static String toGroup(Object value) {
+        return null == value ? null : String.valueOf(value instanceof Date ? ((Date) value).getTime() : value);
+    }
+
+    /**
+     * Combines the values of the same group of two views with the same definition, such as those of the shards of a
+     * storer.
+     */
+    public static Long combine(Aggregate aggregate, Long first, Long second) {
+        if (null == first || null == second) {
+            return null == first ? second : first;
+        }
+        switch (aggregate) {
+            case MIN:
+                return Math.min(first, second);
+            case MAX:
+                return Math.max(first, second);
+            default:
+                return first + second;
+        }
+    }
+
+    @Override
+    public synchronized void update(long id, T object) {
+        remove(id);
+        for (ResolvedCondition condition : conditions) {
+            if (!condition.matches(object)) {
+                return;
+            }
+        }
+        String group = "";
+        if (null != groupField) {
+            group = toGroup(groupField.get(object));
+            if (null == group) {
+                return;
+            }
+        }
+        Object value = null == valueField ? null : valueField.get(object);
+        add(id, new Contribution(group, null != value, ColumnProjection.toColumnValue(value)));
+    }
+
+    private void add(long id, Contribution contribution) {
+        contributions.put(id, contribution);
+        Group group = groups.get(contribution.group);
+        if (null == group) {
+            group = new Group();
+            if (Aggregate.MIN == aggregate || Aggregate.MAX == aggregate) {
+                group.occurrences = new TreeMap<>();
+            } else if (Aggregate.IDS == aggregate) {
+                group.ids = new TreeSet<>();
+            }
+            groups.put(contribution.group, group);
+        }
+        group.objects++;
+        if (null != group.ids) {
+            group.ids.add(id);
+        }
+        if (contribution.hasValue) {
+            group.values++;
+            group.sum += contribution.value;
+            if (null != group.occurrences) {
+                group.occurrences.merge(contribution.value, 1, Integer::sum);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void remove(long id) {
+        Contribution contribution = contributions.remove(id);
+        if (null == contribution) {
+            return;
+        }
+        Group group = groups.get(contribution.group);
+        if (0 == --group.objects) {
+            groups.remove(contribution.group);
+            return;
+        }
+        if (null != group.ids) {
+            group.ids.remove(id);
+        }
+        if (contribution.hasValue) {
+            group.values--;
+            group.sum -= contribution.value;
+            if (null != group.occurrences) {
+                group.occurrences.computeIfPresent(contribution.value, (value, count) -> 1 == count ? null : count - 1);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        contributions.clear();
+        groups.clear();
+    }
+
+    /**
+     * Writes what every matching object contributed, the groups are summed up again when the file is read.
+     */
+    @Override
+    public synchronized void write(File file, long fingerprint) throws IOException {
+        RecordBuffer buffer = IndexFiles.startWrite(MAGIC, VERSION, fingerprint);
+        buffer.writeString(definition).writeInt(contributions.size());
+        for (Map.Entry<Long, Contribution> entry : contributions.entrySet()) {
+            Contribution contribution = entry.getValue();
+            buffer.writeLong(entry.getKey()).writeString(contribution.group).writeBoolean(contribution.hasValue)
+                    .writeLong(contribution.value);
+        }
+        IndexFiles.writeAtomically(file, buffer.toByteArray());
+    }
+
+    @Override
+    public synchronized boolean read(File file, long fingerprint) throws IOException {
+        return IndexFiles.read(file, MAGIC, VERSION, fingerprint, this, buffer -> {
+            if (!definition.equals(RecordBuffer.readString(buffer))) {
+                return false;
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                long id = buffer.getLong();
+                String group = RecordBuffer.readString(buffer);
+                boolean hasValue = 0 != buffer.get();
+                if (null == group) {
+                    return false;
+                }
+                add(id, new Contribution(group, hasValue, buffer.getLong()));
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + definition;
+    }
+}
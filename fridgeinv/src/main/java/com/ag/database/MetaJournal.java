@@ -0,0 +1,549 @@
+package com.ag.database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the {@link LongIndexTable} of a {@link FlatFileStorer} as a snapshot plus an append-only journal of
+ * fixed size put / delete records. A single change costs one small append no matter how many objects are stored.
+ * <p>
+ * Once the journal grows past the checkpoint threshold it is rotated out and a new snapshot is written in the background.
+ * Replaying a record is idempotent, so a crash at any point of a checkpoint is recovered by replaying the rotated journal
+ * and then the current journal over whichever snapshot made it to disk.
+ * <p>
+ * The snapshot holds the entries sorted by id at a fixed width behind a 16 byte header:
+ * <pre>
+ * magic (4) | version (4) | count (8) | count * (id (8) | position (8) | size (8))
+ * </pre>
+ * Opening maps it into memory and lays the index over it with {@link LongIndexTable#attachSortedBase}, so the entries
+ * are binary searched where they are instead of being read one by one. Snapshots of version 1, unsorted and read into
+ * the table, and serialized maps are still read and replaced by the next checkpoint.
+ * <p>
+ * A mapped file can not be replaced on every platform, so snapshots are never written over the current one. Each is
+ * written as the next generation, the meta file itself followed by {@code .1}, {@code .2} and so on, and the older
+ * generations are deleted once they can be. The newest generation is the snapshot.
+ */
+public class MetaJournal implements Closeable {
+
+    public static final long DEFAULT_CHECKPOINT_BYTES = 4L * 1024 * 1024;
+
+    private static final int SNAPSHOT_MAGIC = 0x41474D53; // "AGMS"
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int UNSORTED_SNAPSHOT_VERSION = 1;
+    // magic, version, count, so that the entries are 8 byte aligned
+    private static final int SNAPSHOT_HEADER_BYTES = 4 + 4 + 8;
+    private static final int SNAPSHOT_ENTRY_BYTES = 8 + 8 + 8;
+    // first two bytes of a Java serialization stream, the format meta files were written in before the journal
+    private static final int SERIALIZED_MAGIC = 0xACED;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    // op, id, position, size, crc
+    static final int RECORD_SIZE = 1 + 8 + 8 + 8 + 4;
+
+    private static final ExecutorService checkpointExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "meta-journal-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File rotatedJournalFile;
+    private final File compactedSnapshotFile;
+    private final long checkpointBytes;
+
+    private FileChannel journal;
+    private long journalSize;
+    private ByteBuffer pending = ByteBuffer.allocate(RECORD_SIZE * 64);
+    private final CRC32 crc = new CRC32();
+    private Future<?> pendingCheckpoint;
+    // of the current snapshot, -1 while there is none
+    private volatile long generation = -1;
+
+    public MetaJournal(File snapshotFile) {
+        this(snapshotFile, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    public MetaJournal(File snapshotFile, long checkpointBytes) {
+        this.snapshotFile = snapshotFile;
+        this.journalFile = new File(snapshotFile.getPath() + ".journal");
+        this.rotatedJournalFile = new File(snapshotFile.getPath() + ".journal.old");
+        this.compactedSnapshotFile = new File(snapshotFile.getPath() + ".compact");
+        this.checkpointBytes = checkpointBytes;
+    }
+
+    /**
+     * Loads the snapshot and replays the journals on top of it into the given table, then opens the journal for appending.
+     *
+     * @param index the table to fill, expected to be empty.
+     * @throws IOException
+     */
+    public void open(LongIndexTable index) throws IOException {
+        long[] generations = listGenerations();
+        generation = 0 == generations.length ? -1 : generations[generations.length - 1];
+        if (compactedSnapshotFile.exists()) {
+            // a compaction committed its object file but was interrupted before its snapshot replaced the old one
+            replaceWithCompactedSnapshot();
+        }
+        loadSnapshot(index);
+        deleteOlderSnapshots();
+        boolean interruptedCheckpoint = rotatedJournalFile.exists();
+        if (interruptedCheckpoint) {
+            replay(rotatedJournalFile, index);
+        }
+        long validBytes = replay(journalFile, index);
+
+        journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (journal.size() > validBytes) {
+            // drop a torn or corrupt tail so that records appended from now on are replayed
+            journal.truncate(validBytes);
+        }
+        journalSize = validBytes;
+        journal.position(journalSize);
+
+        if (interruptedCheckpoint) {
+            // finish the checkpoint that was interrupted before new records are appended
+            writeNextSnapshot(index);
+            Files.delete(rotatedJournalFile.toPath());
+        }
+    }
+
+    /**
+     * Returns true when any meta information was written before, false for a new or lost meta file.
+     */
+    public boolean exists() {
+        return listGenerations().length > 0 || journalFile.exists() || rotatedJournalFile.exists();
+    }
+
+    /**
+     * The file of a snapshot generation.
+     */
+    private File snapshotFile(long snapshotGeneration) {
+        return 0 == snapshotGeneration ? snapshotFile : new File(snapshotFile.getPath() + "." + snapshotGeneration);
+    }
+
+    private long[] listGenerations() {
+        return listGenerations(snapshotFile);
+    }
+
+    /**
+     * Returns the generations of a file that is replaced by writing the next generation next to it, in ascending order:
+     * 0 for the file itself and n for the file followed by {@code .n}.
+     */
+    static long[] listGenerations(File file) {
+        String prefix = file.getName() + ".";
+        String[] names = file.getAbsoluteFile().getParentFile().list();
+        long[] generations = new long[null == names ? 0 : names.length];
+        int count = 0;
+        for (int i = 0; i < generations.length; i++) {
+            if (names[i].equals(file.getName())) {
+                generations[count++] = 0;
+            } else if (names[i].startsWith(prefix) && names[i].length() > prefix.length()
+                    && names[i].substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+                generations[count++] = Long.parseLong(names[i].substring(prefix.length()));
+            }
+        }
+        Arrays.sort(generations, 0, count);
+        return Arrays.copyOf(generations, count);
+    }
+
+    /**
+     * Writes a snapshot of the index as the next generation and deletes the older ones.
+     */
+    private void writeNextSnapshot(LongIndexTable index) throws IOException {
+        long next = generation + 1;
+        writeSnapshot(index, snapshotFile(next));
+        generation = next;
+        deleteOlderSnapshots();
+    }
+
+    /**
+     * Deletes the snapshots older than the current one. One that is still mapped may not be deletable, it is tried
+     * again after the next checkpoint or open.
+     */
+    private void deleteOlderSnapshots() {
+        for (long older : listGenerations()) {
+            if (older >= generation) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(snapshotFile(older).toPath());
+            } catch (IOException e) {
+                System.out.println("Keeping the old meta snapshot '" + snapshotFile(older).getName() + "' for now: "
+                        + e);
+            }
+        }
+    }
+
+    /**
+     * Sets unreadable meta information aside as {@code .corrupt} so that it can be rebuilt. Must be called before
+     * {@link #open} succeeded.
+     *
+     * @throws IOException
+     */
+    public void discard() throws IOException {
+        long[] generations = listGenerations();
+        for (int i = 0; i < generations.length; i++) {
+            File file = snapshotFile(generations[i]);
+            if (i == generations.length - 1) {
+                Files.move(file.toPath(), new File(snapshotFile.getPath() + ".corrupt").toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(file.toPath());
+            }
+        }
+        generation = -1;
+        Files.deleteIfExists(journalFile.toPath());
+        Files.deleteIfExists(rotatedJournalFile.toPath());
+        Files.deleteIfExists(compactedSnapshotFile.toPath());
+    }
+
+    /**
+     * Replaces the snapshot with one of the given index and empties the journal, for an index that was rebuilt
+     * without the journal.
+     *
+     * @throws IOException
+     */
+    public void reset(LongIndexTable index) throws IOException {
+        awaitCheckpoint();
+        pending.clear();
+        writeNextSnapshot(index);
+        Files.deleteIfExists(rotatedJournalFile.toPath());
+        journal.truncate(0);
+        journal.position(0);
+        journalSize = 0;
+    }
+
+    /**
+     * The file {@link #prepareCompactedSnapshot} writes to. It is only installed by {@link #installCompactedSnapshot},
+     * or on the next {@link #open} when the owner did not delete it.
+     */
+    public File getCompactedSnapshotFile() {
+        return compactedSnapshotFile;
+    }
+
+    /**
+     * Writes a snapshot of the index of a compacted object file without touching the current snapshot and journal.
+     *
+     * @param index the index of the compacted object file.
+     * @throws IOException
+     */
+    public void prepareCompactedSnapshot(LongIndexTable index) throws IOException {
+        writeSnapshot(index, compactedSnapshotFile);
+    }
+
+    /**
+     * Replaces the snapshot with the one written by {@link #prepareCompactedSnapshot} and empties the journal, whose
+     * records refer to positions in the object file from before compaction.
+     *
+     * @throws IOException
+     */
+    public void installCompactedSnapshot() throws IOException {
+        awaitCheckpoint();
+        pending.clear();
+        replaceWithCompactedSnapshot();
+        journal.truncate(0);
+        journal.position(0);
+        journalSize = 0;
+    }
+
+    private void replaceWithCompactedSnapshot() throws IOException {
+        long next = generation + 1;
+        Files.move(compactedSnapshotFile.toPath(), snapshotFile(next).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        generation = next;
+        deleteOlderSnapshots();
+        Files.deleteIfExists(rotatedJournalFile.toPath());
+        if (null == journal) {
+            Files.deleteIfExists(journalFile.toPath());
+        }
+    }
+
+    /**
+     * Records that the object with the given id now lives at the given position. Buffered until {@link #flush}.
+     */
+    public void put(long id, long position, long size) {
+        appendRecord(OP_PUT, id, position, size);
+    }
+
+    /**
+     * Records that the object with the given id was removed. Buffered until {@link #flush}.
+     */
+    public void delete(long id) {
+        appendRecord(OP_DELETE, id, 0, 0);
+    }
+
+    private void appendRecord(byte op, long id, long position, long size) {
+        if (pending.remaining() < RECORD_SIZE) {
+            ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        int start = pending.position();
+        pending.put(op).putLong(id).putLong(position).putLong(size);
+        crc.reset();
+        crc.update(pending.array(), start, RECORD_SIZE - 4);
+        pending.putInt((int) crc.getValue());
+    }
+
+    /**
+     * Appends all buffered records to the journal with a single write.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        pending.flip();
+        while (pending.hasRemaining()) {
+            journalSize += journal.write(pending);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Forces the flushed records to disk.
+     *
+     * @throws IOException
+     */
+    public void force() throws IOException {
+        journal.force(false);
+    }
+
+    /**
+     * Returns true when the journal has grown past the checkpoint threshold and no checkpoint is running.
+     */
+    public boolean needsCheckpoint() {
+        return journalSize >= checkpointBytes && (null == pendingCheckpoint || pendingCheckpoint.isDone());
+    }
+
+    /**
+     * Rotates the current journal out and writes a snapshot of the given index in the background. Only the copy of the
+     * index is taken on the calling thread. Buffered records are flushed first.
+     *
+     * @param index the current state of the index, must reflect every record appended so far.
+     * @throws IOException
+     */
+    public void checkpoint(LongIndexTable index) throws IOException {
+        awaitCheckpoint();
+        flush();
+        LongIndexTable copy = index.copy();
+
+        if (rotatedJournalFile.exists()) {
+            // the previous checkpoint failed, its journal must not be replaced before a snapshot covers it
+            writeNextSnapshot(copy);
+            Files.delete(rotatedJournalFile.toPath());
+            journal.truncate(0);
+            journalSize = 0;
+            return;
+        }
+
+        // the rotated journal is replayed when the snapshot does not make it to disk
+        journal.force(false);
+        journal.close();
+        Files.move(journalFile.toPath(), rotatedJournalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        journalSize = 0;
+
+        pendingCheckpoint = checkpointExecutor.submit(() -> {
+            try {
+                writeNextSnapshot(copy);
+                Files.delete(rotatedJournalFile.toPath());
+            } catch (IOException e) {
+                // the rotated journal is kept and replayed on the next open
+                System.out.println("Failed to checkpoint meta journal '" + journalFile.getName() + "': " + e);
+            }
+        });
+    }
+
+    /**
+     * Blocks until a running background checkpoint has finished.
+     */
+    public void awaitCheckpoint() throws IOException {
+        if (null == pendingCheckpoint) {
+            return;
+        }
+        try {
+            pendingCheckpoint.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for meta journal checkpoint", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Meta journal checkpoint failed", e.getCause());
+        } finally {
+            pendingCheckpoint = null;
+        }
+    }
+
+    public long getJournalSize() {
+        return journalSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (null == journal) {
+            return;
+        }
+        try {
+            flush();
+            awaitCheckpoint();
+        } finally {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Writes the snapshot to a temporary file and moves it over the target once it is fully on disk.
+     */
+    private void writeSnapshot(LongIndexTable index, File target) throws IOException {
+        File tempFile = new File(target.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tempFile, false);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(index.size());
+            try {
+                index.forEachSorted((id, position, size) -> {
+                    try {
+                        out.writeLong(id);
+                        out.writeLong(position);
+                        out.writeLong(size);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void loadSnapshot(LongIndexTable index) throws IOException {
+        if (generation < 0) {
+            return;
+        }
+        File file = snapshotFile(generation);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+            if (!header.hasRemaining() && SNAPSHOT_MAGIC == header.getInt(0) && SNAPSHOT_VERSION == header.getInt(4)) {
+                long count = header.getLong(8);
+                if (count < 0 || channel.size() != SNAPSHOT_HEADER_BYTES + count * SNAPSHOT_ENTRY_BYTES) {
+                    throw new IOException("Meta snapshot '" + file.getName() + "' should hold " + count
+                            + " entries but is " + channel.size() + " bytes long");
+                }
+                // the mapping stays valid after the channel is closed, checkpoints write the next generation
+                index.attachSortedBase(channel.map(FileChannel.MapMode.READ_ONLY, SNAPSHOT_HEADER_BYTES,
+                        count * SNAPSHOT_ENTRY_BYTES));
+                return;
+            }
+        }
+        loadStreamedSnapshot(index, file);
+    }
+
+    /**
+     * Reads a snapshot of a format from before the sorted snapshot entry by entry into the index.
+     */
+    @SuppressWarnings("unchecked")
+    private void loadStreamedSnapshot(LongIndexTable index, File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            in.mark(2);
+            int magic = (in.read() << 8) | in.read();
+            in.reset();
+            if (SERIALIZED_MAGIC == magic) {
+                // meta file written by an older version as a serialized map, migrated on the next checkpoint
+                try (ObjectInputStream ois = new ObjectInputStream(in)) {
+                    for (Map.Entry<Long, FileIndex> entry : ((Map<Long, FileIndex>) ois.readObject()).entrySet()) {
+                        index.put(entry.getKey(), entry.getValue().position, entry.getValue().size);
+                    }
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("The first object stored in the file '" + file.getName() + "' was not the FileIndex map");
+                }
+                return;
+            }
+            DataInputStream dis = new DataInputStream(in);
+            if (dis.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Meta file '" + file.getName() + "' is not a meta snapshot");
+            }
+            int version = dis.readInt();
+            if (version != UNSORTED_SNAPSHOT_VERSION) {
+                throw new IOException("Unsupported meta snapshot version " + version + " in '" + file.getName() + "'");
+            }
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                index.put(dis.readLong(), dis.readLong(), dis.readLong());
+            }
+        }
+    }
+
+    /**
+     * Applies the records of the journal to the index in order.
+     *
+     * @return the number of bytes of the journal that held valid records.
+     */
+    private long replay(File file, LongIndexTable index) throws IOException {
+        long validBytes = 0;
+        if (!file.exists()) {
+            return validBytes;
+        }
+        byte[] record = new byte[RECORD_SIZE];
+        CRC32 replayCrc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                try {
+                    in.readFully(record);
+                } catch (EOFException tornTail) {
+                    return validBytes;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                byte op = buffer.get();
+                long id = buffer.getLong();
+                long position = buffer.getLong();
+                long size = buffer.getLong();
+                replayCrc.reset();
+                replayCrc.update(record, 0, RECORD_SIZE - 4);
+                if (buffer.getInt() != (int) replayCrc.getValue()) {
+                    // a record that never fully made it to disk, nothing after it can be trusted
+                    System.out.println("Meta journal '" + file.getName() + "' has a corrupt record, ignoring the rest of the journal");
+                    return validBytes;
+                }
+                if (OP_PUT == op) {
+                    index.put(id, position, size);
+                } else if (OP_DELETE == op) {
+                    index.remove(id);
+                }
+                validBytes += RECORD_SIZE;
+            }
+        }
+    }
+}
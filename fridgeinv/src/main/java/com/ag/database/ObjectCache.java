@@ -0,0 +1,329 @@
+package com.ag.database;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * A cache from ids to values bounded by the estimated bytes of its values, with the W-TinyLFU eviction policy.
+ * <p>
+ * New values enter a small LRU window. Values pushed out of the window only replace a value of the main region when they
+ * were requested more often, as counted by a {@link FrequencySketch} of recent requests, so a single pass over many
+ * cold ids can not flush the values that are hot. The main region is a segmented LRU, values requested again while on
+ * probation are protected.
+ * <p>
+ * {@link #put} only accepts a value when nothing was invalidated since the caller took its stamp with
+ * {@link #getStamp}, so a value loaded while it was being saved never replaces the newer one.
+ * <p>
+ * Thread safe, all methods are synchronized.
+ */
+public class ObjectCache<V> {
+
+    private static final double WINDOW_SHARE = 0.01;
+    private static final double PROTECTED_SHARE = 0.8;
+    // the sketch is sized for values of about this many bytes
+    private static final long EXPECTED_VALUE_BYTES = 128;
+
+    private enum Segment {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    private static final class CacheEntry<V> {
+        final long id;
+        final V value;
+        final long weight;
+        Segment segment;
+
+        CacheEntry(long id, V value, long weight) {
+            this.id = id;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final long maxBytes;
+    private final long windowBytes;
+    private final long protectedBytes;
+    private final ToLongFunction<V> weigher;
+    private final FrequencySketch sketch;
+
+    private final Map<Long, CacheEntry<V>> entries = new HashMap<>();
+    // insertion ordered, the first entry is the least recently used one
+    private final LinkedHashMap<Long, CacheEntry<V>> window = new LinkedHashMap<>();
+    private final LinkedHashMap<Long, CacheEntry<V>> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<Long, CacheEntry<V>> protectedValues = new LinkedHashMap<>();
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+
+    private long stamp;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxBytes the most bytes the cached values may take together.
+     * @param weigher estimates the bytes of a value, which must not change while it is cached.
+     */
+    public ObjectCache(long maxBytes, ToLongFunction<V> weigher) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.windowBytes = Math.max(1, (long) (maxBytes * WINDOW_SHARE));
+        this.protectedBytes = (long) ((maxBytes - windowBytes) * PROTECTED_SHARE);
+        this.weigher = weigher;
+        this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(16, maxBytes / EXPECTED_VALUE_BYTES)));
+    }
+
+    /**
+     * Returns the cached value, or null when the id is not cached. Counts the request either way.
+     */
+    public synchronized V get(long id) {
+        sketch.increment(id);
+        CacheEntry<V> entry = entries.get(id);
+        if (null == entry) {
+            misses++;
+            return null;
+        }
+        hits++;
+        switch (entry.segment) {
+            case WINDOW:
+                window.remove(id);
+                window.put(id, entry);
+                break;
+            case PROBATION:
+                probation.remove(id);
+                probationWeight -= entry.weight;
+                addProtected(entry);
+                break;
+            case PROTECTED:
+                protectedValues.remove(id);
+                protectedValues.put(id, entry);
+                break;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Returns the stamp to hand to {@link #put} for a value that is loaded afterwards.
+     */
+    public synchronized long getStamp() {
+        return stamp;
+    }
+
+    /**
+     * Caches the value unless an id was invalidated since the stamp was taken.
+     *
+     * @return false when the value was not cached.
+     */
+    public synchronized boolean put(long id, V value, long stamp) {
+        if (stamp != this.stamp) {
+            return false;
+        }
+        long weight = weigher.applyAsLong(value);
+        if (weight > maxBytes - windowBytes) {
+            return false;
+        }
+        remove(id);
+        CacheEntry<V> entry = new CacheEntry<>(id, value, weight);
+        entries.put(id, entry);
+        entry.segment = Segment.WINDOW;
+        window.put(id, entry);
+        windowWeight += weight;
+        while (windowWeight > windowBytes) {
+            CacheEntry<V> candidate = removeFirst(window);
+            windowWeight -= candidate.weight;
+            admit(candidate);
+        }
+        return entries.containsKey(id);
+    }
+
+    /**
+     * Moves a value pushed out of the window into the main region, if it is requested more often than the values it
+     * would replace.
+     */
+    private void admit(CacheEntry<V> candidate) {
+        long mainBytes = maxBytes - windowBytes;
+        while (probationWeight + protectedWeight + candidate.weight > mainBytes) {
+            LinkedHashMap<Long, CacheEntry<V>> victims = probation.isEmpty() ? protectedValues : probation;
+            CacheEntry<V> victim = victims.values().iterator().next();
+            if (sketch.frequency(candidate.id) <= sketch.frequency(victim.id)) {
+                evict(candidate);
+                return;
+            }
+            remove(victim.id);
+            evictions++;
+        }
+        candidate.segment = Segment.PROBATION;
+        probation.put(candidate.id, candidate);
+        probationWeight += candidate.weight;
+    }
+
+    private void addProtected(CacheEntry<V> entry) {
+        entry.segment = Segment.PROTECTED;
+        protectedValues.put(entry.id, entry);
+        protectedWeight += entry.weight;
+        // the least recently used protected values go back on probation
+        while (protectedWeight > protectedBytes) {
+            CacheEntry<V> demoted = removeFirst(protectedValues);
+            protectedWeight -= demoted.weight;
+            demoted.segment = Segment.PROBATION;
+            probation.put(demoted.id, demoted);
+            probationWeight += demoted.weight;
+        }
+    }
+
+    private void evict(CacheEntry<V> entry) {
+        entries.remove(entry.id);
+        evictions++;
+    }
+
+    private static <V> CacheEntry<V> removeFirst(LinkedHashMap<Long, CacheEntry<V>> segment) {
+        Iterator<CacheEntry<V>> iterator = segment.values().iterator();
+        CacheEntry<V> first = iterator.next();
+        iterator.remove();
+        return first;
+    }
+
+    private void remove(long id) {
+        CacheEntry<V> entry = entries.remove(id);
+        if (null == entry) {
+            return;
+        }
+        switch (entry.segment) {
+            case WINDOW:
+                window.remove(id);
+                windowWeight -= entry.weight;
+                break;
+            case PROBATION:
+                probation.remove(id);
+                probationWeight -= entry.weight;
+                break;
+            case PROTECTED:
+                protectedValues.remove(id);
+                protectedWeight -= entry.weight;
+                break;
+        }
+    }
+
+    /**
+     * Drops the cached value of the id, and rejects values loaded before.
+     */
+    public synchronized void invalidate(long id) {
+        stamp++;
+        remove(id);
+    }
+
+    /**
+     * Drops all cached values, and rejects values loaded before.
+     */
+    public synchronized void invalidateAll() {
+        stamp++;
+        entries.clear();
+        window.clear();
+        probation.clear();
+        protectedValues.clear();
+        windowWeight = 0;
+        probationWeight = 0;
+        protectedWeight = 0;
+    }
+
+    public synchronized boolean contains(long id) {
+        return entries.containsKey(id);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * The estimated bytes of all cached values.
+     */
+    public synchronized long getWeightedSize() {
+        return windowWeight + probationWeight + protectedWeight;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * The number of values dropped to stay within the size, invalidated values are not counted.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ObjectCache [entries=" + entries.size() + ", bytes=" + getWeightedSize() + "/" + maxBytes + ", hits="
+                + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+
+    /**
+     * A count-min sketch of how often ids were requested recently. Four counters of at most 15 are kept per id, the
+     * smallest is the estimate. All counters are halved once ten times as many requests as counters per row were
+     * counted, so that old popularity fades.
+     */
+    static final class FrequencySketch {
+
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final long[] SEEDS = {0x9e3779b97f4a7c15L, 0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L,
+                0xd6e8feb86659fd93L};
+
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+            counters = new byte[DEPTH * width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        private int indexOf(long id, int row) {
+            long hash = (id + SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+            hash ^= hash >>> 32;
+            return row * (mask + 1) + ((int) hash & mask);
+        }
+
+        void increment(long id) {
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int index = indexOf(id, row);
+                if (counters[index] < MAX_COUNT) {
+                    counters[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(long id) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counters[indexOf(id, row)]);
+            }
+            return frequency;
+        }
+    }
+}
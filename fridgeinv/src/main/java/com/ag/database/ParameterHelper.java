@@ -1,10 +1,12 @@
 package com.ag.database;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 import com.ag.DynamicObject;
 
@@ -13,8 +15,24 @@ public class ParameterHelper {
     public static <S extends Storable> void validateUniqueParameter(String message, Storer<S> storer,
             Predicate<S> matches) {
 
+        try (Stream<S> storables = storer.scan()) {
+            if (storables.anyMatch(matches)) {
+                throw new IllegalArgumentException(message);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            throw new RuntimeException("Failed to validate uniqueness (" + message + ")", e);
+        }
+    }
+
+    /**
+     * Fails when any persisted object already has the value in the given field. The field has to be indexed, so the
+     * check does not read any object.
+     */
+    public static <S extends Storable> void validateUniqueParameter(String message, Storer<S> storer, String field,
+            Object value) {
+
         try {
-            if (storer.contains(matches)) {
+            if (!storer.lookup(field, value).isEmpty()) {
                 throw new IllegalArgumentException(message);
             }
         } catch (IOException e) {
@@ -0,0 +1,468 @@
+package com.ag.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import com.ag.database.StorableSchema.SchemaField;
+import com.ag.util.DateUtils;
+
+/**
+ * A query over the stored fields of a class: a condition built from equality, range and prefix matches combined with
+ * and/or, an optional order and a limit. Fields are named by their stored name and checked against the schema of the
+ * class when the query is built, so a misspelled field or a value of the wrong type fails there instead of matching
+ * nothing. {@link Storer#query} runs it through the indexes that fit it, see {@link QueryPlan}.
+ * <p>
+ * Values compare the way a {@link BTreeIndex} orders them: numbers, characters and dates (as milliseconds since the
+ * epoch) by value, strings by code point. A date may also be given as a string {@link DateUtils} parses. Objects whose
+ * field is null match no condition on that field and come last when ordered by it.
+ *
+ * <pre>
+ * Query.from(InventoryItem.class)
+ *         .where(Query.prefix("name", "milk").and(Query.range("quantity", null, 2)))
+ *         .orderBy("lastAdded")
+ *         .limit(10);
+ * </pre>
+ */
+public class Query<T extends Storable> {
+
+    public static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    enum Kind {
+        EQ,
+        RANGE,
+        PREFIX,
+        AND,
+        OR
+    }
+
+    /**
+     * A condition on the fields of an object. Built with the static methods of {@link Query}, checked against the
+     * schema of the stored class by {@link Query#where}.
+     */
+    public static class Condition {
+
+        final Kind kind;
+        final String fieldName;
+        // the value of an equality or prefix, the lower bound of a range
+        final Object value;
+        // the upper bound of a range
+        final Object to;
+        final List<Condition> children;
+        // set once bound to a schema
+        SchemaField field;
+        Object comparableValue;
+        Object comparableTo;
+        // the value in the type of the field, as a hash index keeps it
+        Object fieldValue;
+
+        private Condition(Kind kind, String fieldName, Object value, Object to, List<Condition> children) {
+            this.kind = kind;
+            this.fieldName = fieldName;
+            this.value = value;
+            this.to = to;
+            this.children = children;
+        }
+
+        /**
+         * Matches the objects that match this condition and the other.
+         */
+        public Condition and(Condition other) {
+            return Query.and(this, other);
+        }
+
+        /**
+         * Matches the objects that match this condition or the other.
+         */
+        public Condition or(Condition other) {
+            return Query.or(this, other);
+        }
+
+        private Condition bind(StorableSchema<?> schema) {
+            if (Kind.AND == kind || Kind.OR == kind) {
+                List<Condition> bound = new ArrayList<>();
+                for (Condition child : children) {
+                    bound.add(child.bind(schema));
+                }
+                return new Condition(kind, null, null, null, bound);
+            }
+            Condition bound = new Condition(kind, fieldName, value, to, null);
+            bound.field = schema.getField(fieldName);
+            Class<?> type = comparableType(bound.field.getType());
+            if (Kind.PREFIX == kind && String.class != bound.field.getType()) {
+                throw new IllegalArgumentException("Prefixes only match string fields, not '" + bound.field + "'");
+            }
+            bound.comparableValue = toComparable(bound.field, value, type);
+            bound.comparableTo = toComparable(bound.field, to, type);
+            if (Kind.EQ == kind) {
+                bound.fieldValue = toFieldValue(bound.field.getType(), bound.comparableValue);
+            }
+            return bound;
+        }
+
+        boolean matches(Object object) {
+            switch (kind) {
+                case AND:
+                    for (Condition child : children) {
+                        if (!child.matches(object)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                case OR:
+                    for (Condition child : children) {
+                        if (child.matches(object)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                default:
+                    break;
+            }
+            Object fieldValue = toComparable(field.get(object));
+            if (null == fieldValue) {
+                return false;
+            }
+            switch (kind) {
+                case EQ:
+                    return 0 == compare(fieldValue, comparableValue);
+                case PREFIX:
+                    return ((String) fieldValue).startsWith((String) comparableValue);
+                default:
+                    return (null == comparableValue || compare(fieldValue, comparableValue) >= 0)
+                            && (null == comparableTo || compare(fieldValue, comparableTo) < 0);
+            }
+        }
+
+        @Override
+        public String toString() {
+            switch (kind) {
+                case AND:
+                case OR:
+                    StringBuilder joined = new StringBuilder("(");
+                    for (int i = 0; i < children.size(); i++) {
+                        joined.append(0 == i ? "" : Kind.AND == kind ? " and " : " or ").append(children.get(i));
+                    }
+                    return joined.append(')').toString();
+                case EQ:
+                    return fieldName + " = " + value;
+                case PREFIX:
+                    return fieldName + " starts with '" + value + "'";
+                default:
+                    return fieldName + " in [" + (null == value ? "" : value) + ", " + (null == to ? "" : to) + ")";
+            }
+        }
+    }
+
+    private final StorableSchema<T> schema;
+    private Condition where;
+    private SchemaField orderField;
+    private boolean descending;
+    private int limit = NO_LIMIT;
+    private boolean indexRequired;
+
+    private Query(StorableSchema<T> schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * Starts a query over the objects of the class, matching all of them until {@link #where} is given.
+     */
+    public static <T extends Storable> Query<T> from(Class<T> storedClass) {
+        return new Query<>(StorableSchema.of(storedClass));
+    }
+
+    /**
+     * Matches the objects whose field equals the value.
+     */
+    public static Condition eq(String field, Object value) {
+        if (null == value) {
+            throw new IllegalArgumentException("The condition on '" + field + "' needs a value");
+        }
+        return new Condition(Kind.EQ, field, value, null, null);
+    }
+
+    /**
+     * Matches the objects whose field is at least from and less than to.
+     *
+     * @param from the lowest value, inclusive, or null for no lower bound.
+     * @param to the highest value, exclusive, or null for no upper bound.
+     */
+    public static Condition range(String field, Object from, Object to) {
+        return new Condition(Kind.RANGE, field, from, to, null);
+    }
+
+    /**
+     * Matches the objects whose string field starts with the prefix.
+     */
+    public static Condition prefix(String field, String prefix) {
+        if (null == prefix) {
+            throw new IllegalArgumentException("The condition on '" + field + "' needs a prefix");
+        }
+        return new Condition(Kind.PREFIX, field, prefix, null, null);
+    }
+
+    /**
+     * Matches the objects that match all of the conditions.
+     */
+    public static Condition and(Condition... conditions) {
+        return combine(Kind.AND, conditions);
+    }
+
+    /**
+     * Matches the objects that match any of the conditions.
+     */
+    public static Condition or(Condition... conditions) {
+        return combine(Kind.OR, conditions);
+    }
+
+    private static Condition combine(Kind kind, Condition... conditions) {
+        if (0 == conditions.length) {
+            throw new IllegalArgumentException(kind + " needs at least one condition");
+        }
+        // (a and b) and c is kept as one list, so the planner sees all of them
+        List<Condition> children = new ArrayList<>();
+        for (Condition condition : conditions) {
+            if (kind == condition.kind) {
+                children.addAll(condition.children);
+            } else {
+                children.add(condition);
+            }
+        }
+        return new Condition(kind, null, null, null, Collections.unmodifiableList(children));
+    }
+
+    /**
+     * Only returns the objects that match the condition.
+     *
+     * @throws IllegalArgumentException a field is not stored or cannot be compared with the value given for it.
+     */
+    public Query<T> where(Condition condition) {
+        where = condition.bind(schema);
+        return this;
+    }
+
+    /**
+     * Returns the objects ordered by the field, lowest first, then by id.
+     */
+    public Query<T> orderBy(String field) {
+        return orderBy(field, false);
+    }
+
+    /**
+     * Returns the objects ordered by the field, highest first, then by id.
+     */
+    public Query<T> orderByDescending(String field) {
+        return orderBy(field, true);
+    }
+
+    private Query<T> orderBy(String field, boolean descending) {
+        orderField = schema.getField(field);
+        comparableType(orderField.getType());
+        this.descending = descending;
+        return this;
+    }
+
+    /**
+     * Returns at most the given number of objects.
+     */
+    public Query<T> limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("The limit must not be negative: " + limit);
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Fails the query instead of scanning all objects when no index fits it, for queries that have to stay cheap as
+     * the storer grows.
+     */
+    public Query<T> requireIndex() {
+        indexRequired = true;
+        return this;
+    }
+
+    public Class<T> getStoredClass() {
+        return schema.getStoredClass();
+    }
+
+    Condition getWhere() {
+        return where;
+    }
+
+    SchemaField getOrderField() {
+        return orderField;
+    }
+
+    boolean isDescending() {
+        return descending;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    boolean isIndexRequired() {
+        return indexRequired;
+    }
+
+    /**
+     * The conditions that all have to match, the children of a top level and.
+     */
+    static List<Condition> conjuncts(Condition condition) {
+        if (null == condition) {
+            return Collections.emptyList();
+        }
+        return Kind.AND == condition.kind ? condition.children : Arrays.asList(condition);
+    }
+
+    boolean matches(T object) {
+        return null == where || where.matches(object);
+    }
+
+    /**
+     * Orders objects by the order field, nulls last, and then by id.
+     */
+    Comparator<T> comparator() {
+        Comparator<T> byId = Comparator.comparingLong(Storable::getId);
+        if (null == orderField) {
+            return byId;
+        }
+        Comparator<Object> byValue = Query::compare;
+        if (descending) {
+            byValue = byValue.reversed();
+        }
+        Comparator<T> byField = Comparator.comparing(object -> toComparable(orderField.get(object)),
+                Comparator.nullsLast(byValue));
+        return byField.thenComparing(byId);
+    }
+
+    /**
+     * The form field values are compared in: integral numbers, characters and dates as longs, floating point numbers
+     * as doubles and enums as their names.
+     */
+    static Object toComparable(Object value) {
+        if (value instanceof Date) {
+            return ((Date) value).getTime();
+        } else if (value instanceof Character) {
+            return (long) (Character) value;
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            return ((Number) value).longValue();
+        } else if (value instanceof Float || value instanceof Double) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Enum) {
+            return ((Enum<?>) value).name();
+        }
+        return value;
+    }
+
+    private static Object toComparable(SchemaField field, Object value, Class<?> type) {
+        if (null == value) {
+            return null;
+        }
+        Object converted = value;
+        if (Date.class == field.getType() && value instanceof String) {
+            converted = DateUtils.parseDate((String) value);
+        }
+        converted = toComparable(converted);
+        if (Double.class == type && converted instanceof Long) {
+            converted = ((Long) converted).doubleValue();
+        }
+        if (type != converted.getClass()) {
+            throw new IllegalArgumentException("Cannot compare '" + field + "' with " + value);
+        }
+        return converted;
+    }
+
+    private static Class<?> comparableType(Class<?> type) {
+        if (Date.class == type || long.class == type || int.class == type || short.class == type || byte.class == type
+                || char.class == type || Long.class == type || Integer.class == type || Short.class == type
+                || Byte.class == type || Character.class == type) {
+            return Long.class;
+        } else if (float.class == type || double.class == type || Float.class == type || Double.class == type) {
+            return Double.class;
+        } else if (boolean.class == type || Boolean.class == type) {
+            return Boolean.class;
+        } else if (String.class == type || type.isEnum()) {
+            return String.class;
+        }
+        throw new IllegalArgumentException("Cannot compare values of '" + type.getSimpleName() + "'");
+    }
+
+    /**
+     * Converts a comparable value back to the type of the field.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object toFieldValue(Class<?> type, Object comparable) {
+        if (int.class == type || Integer.class == type) {
+            return ((Long) comparable).intValue();
+        } else if (long.class == type || Long.class == type) {
+            return comparable;
+        } else if (short.class == type || Short.class == type) {
+            return ((Long) comparable).shortValue();
+        } else if (byte.class == type || Byte.class == type) {
+            return ((Long) comparable).byteValue();
+        } else if (char.class == type || Character.class == type) {
+            return (char) ((Long) comparable).longValue();
+        } else if (float.class == type || Float.class == type) {
+            return ((Double) comparable).floatValue();
+        } else if (Date.class == type) {
+            return new Date((Long) comparable);
+        } else if (type.isEnum()) {
+            for (Object constant : type.getEnumConstants()) {
+                if (((Enum) constant).name().equals(comparable)) {
+                    return constant;
+                }
+            }
+            // matches nothing
+            return comparable;
+        }
+        return comparable;
+    }
+
+    @SuppressWarnings("unchecked")
+    static int compare(Object first, Object second) {
+        if (first instanceof String) {
+            return compareCodePoints((String) first, (String) second);
+        }
+        return ((Comparable<Object>) first).compareTo(second);
+    }
+
+    /**
+     * Compares strings by code point, the order of their UTF-8 bytes in a {@link BTreeIndex}.
+     */
+    private static int compareCodePoints(String first, String second) {
+        int i = 0;
+        int j = 0;
+        while (i < first.length() && j < second.length()) {
+            int a = first.codePointAt(i);
+            int b = second.codePointAt(j);
+            if (a != b) {
+                return Integer.compare(a, b);
+            }
+            i += Character.charCount(a);
+            j += Character.charCount(b);
+        }
+        return Integer.compare(first.length() - i, second.length() - j);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder description = new StringBuilder(schema.getStoredClass().getSimpleName());
+        if (null != where) {
+            description.append(" where ").append(where);
+        }
+        if (null != orderField) {
+            description.append(" order by ").append(orderField.getName()).append(descending ? " desc" : "");
+        }
+        if (NO_LIMIT != limit) {
+            description.append(" limit ").append(limit);
+        }
+        return description.toString();
+    }
+}
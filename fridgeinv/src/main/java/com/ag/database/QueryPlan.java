@@ -0,0 +1,345 @@
+package com.ag.database;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.ag.database.Query.Condition;
+import com.ag.database.Query.Kind;
+import com.ag.database.StorableSchema.SchemaField;
+
+/**
+ * How a {@link FlatFileStorer} answers a {@link Query}, picked from the indexes of the storer:
+ * <ul>
+ * <li>an equality on a field with a {@link HashIndex} is looked up in it,</li>
+ * <li>an equality, prefix or range on a field with a {@link BTreeIndex} reads that part of the tree,</li>
+ * <li>of the conditions that all have to match, the one expected to match the fewest objects is read from its index
+ * and the others are checked on the loaded objects,</li>
+ * <li>alternatives that all have an index are read from their indexes one after the other,</li>
+ * <li>anything else streams over all objects.</li>
+ * </ul>
+ * Every loaded object is checked against the whole condition, so an index only has to return a superset of the
+ * matches. When the ids come out of an index in the order of the query, reading stops at the limit. Otherwise the
+ * matches are sorted when the query is ordered, and a limited query without an order stops at the limit as well.
+ * <p>
+ * {@link #toString} explains the plan with the counts of its last execution, so a query that reads far more objects
+ * than it returns shows up. A plan may be executed more than once and from several threads.
+ */
+public class QueryPlan<T extends Storable & Serializable> {
+
+    public enum Access {
+        /** All objects are read. */
+        SCAN,
+        /** The ids come from a hash index. */
+        HASH_LOOKUP,
+        /** The ids come from a part of a range index. */
+        RANGE_SCAN,
+        /** The ids come from several indexes, one for each alternative. */
+        INDEX_UNION,
+        /** A range index is walked in the order of the query until the limit is reached. */
+        INDEX_ORDER
+    }
+
+    /**
+     * Where the ids of the candidates come from.
+     */
+    private static class Source {
+
+        private final Access access;
+        private final String description;
+        private final Supplier<Stream<Long>> ids;
+        // the number of ids, or -1 when not known up front
+        private final long estimate;
+        // the range index read, null for other sources
+        private final BTreeIndex<?> rangeIndex;
+        // the field the ids are ordered by, null when they are not
+        private final SchemaField orderedBy;
+        // smaller ranks are expected to return fewer ids
+        private final int rank;
+        private final List<Source> parts;
+
+        private Source(Access access, String description, Supplier<Stream<Long>> ids, long estimate,
+                BTreeIndex<?> rangeIndex, SchemaField orderedBy, int rank, List<Source> parts) {
+            this.access = access;
+            this.description = description;
+            this.ids = ids;
+            this.estimate = estimate;
+            this.rangeIndex = rangeIndex;
+            this.orderedBy = orderedBy;
+            this.rank = rank;
+            this.parts = parts;
+        }
+
+        private void addRangeIndexes(List<BTreeIndex<?>> indexes) {
+            if (null != rangeIndex) {
+                indexes.add(rangeIndex);
+            }
+            for (Source part : parts) {
+                part.addRangeIndexes(indexes);
+            }
+        }
+    }
+
+    private static final int RANK_HASH = 0;
+    private static final int RANK_RANGE_EQUAL = 1;
+    private static final int RANK_PREFIX = 2;
+    private static final int RANK_BOUNDED_RANGE = 3;
+    private static final int RANK_OPEN_RANGE = 4;
+    private static final int RANK_UNION = 5;
+
+    private final FlatFileStorer<T> storer;
+    private final Query<T> query;
+    // null for a scan
+    private final Source source;
+    private final boolean ordered;
+    private final List<BTreeIndex<?>> rangeIndexes = new ArrayList<>();
+
+    // the counts of the last execution
+    private long executions;
+    private long idsRead;
+    private long objectsLoaded;
+    private long objectsReturned;
+    private long pageReads;
+    private long elapsedNanos;
+
+    QueryPlan(FlatFileStorer<T> storer, Query<T> query) {
+        this.storer = storer;
+        this.query = query;
+        SchemaField orderField = query.getOrderField();
+        Source picked = pick(query.getWhere());
+        if (null == picked && null != orderField && !query.isDescending() && Query.NO_LIMIT != query.getLimit()
+                && orderField.getType().isPrimitive()) {
+            // a primitive field is never null, so walking its index in order passes every object
+            BTreeIndex<T> index = storer.findRangeIndex(orderField.getName());
+            if (null != index) {
+                picked = new Source(Access.INDEX_ORDER, "range index '" + orderField.getName() + "' in order",
+                        () -> index.range(null, null), index.size(), index, orderField, RANK_OPEN_RANGE,
+                        new ArrayList<>());
+            }
+        }
+        if (null == picked && query.isIndexRequired()) {
+            throw new IllegalStateException("No index of '" + storer.getObjectFile().getName() + "' fits " + query);
+        }
+        source = picked;
+        ordered = null == orderField || (null != source && orderField == source.orderedBy && !query.isDescending());
+        if (null != source) {
+            source.addRangeIndexes(rangeIndexes);
+        }
+    }
+
+    /**
+     * The cheapest source of ids for the condition, null when it has to be checked on every object.
+     */
+    private Source pick(Condition condition) {
+        if (null == condition) {
+            return null;
+        }
+        switch (condition.kind) {
+            case AND:
+                Source best = null;
+                for (Condition child : condition.children) {
+                    Source candidate = pick(child);
+                    if (null != candidate && (null == best || candidate.rank < best.rank || (candidate.rank == best.rank
+                            && candidate.estimate >= 0 && candidate.estimate < best.estimate))) {
+                        best = candidate;
+                    }
+                }
+                return best;
+            case OR:
+                List<Source> parts = new ArrayList<>();
+                for (Condition child : condition.children) {
+                    Source part = pick(child);
+                    if (null == part) {
+                        // one alternative without an index means reading everything anyway
+                        return null;
+                    }
+                    parts.add(part);
+                }
+                return union(parts);
+            default:
+                return pickIndex(condition);
+        }
+    }
+
+    private Source pickIndex(Condition condition) {
+        String field = condition.field.getName();
+        if (Kind.EQ == condition.kind) {
+            HashIndex<T> hashIndex = storer.findHashIndex(field);
+            if (null != hashIndex) {
+                Object value = condition.fieldValue;
+                return new Source(Access.HASH_LOOKUP, "hash index '" + field + "' = " + condition.value,
+                        () -> Arrays.stream(hashIndex.lookup(value)).boxed(), hashIndex.lookup(value).length, null,
+                        null, RANK_HASH, new ArrayList<>());
+            }
+        }
+        BTreeIndex<T> index = storer.findRangeIndex(field);
+        if (null == index) {
+            return null;
+        }
+        switch (condition.kind) {
+            case EQ:
+                Object value = condition.fieldValue;
+                return new Source(Access.RANGE_SCAN, "range index '" + field + "' = " + condition.value,
+                        () -> index.equalTo(value), -1, index, condition.field, RANK_RANGE_EQUAL, new ArrayList<>());
+            case PREFIX:
+                String prefix = (String) condition.value;
+                return new Source(Access.RANGE_SCAN, "range index '" + field + "' starting with '" + prefix + "'",
+                        () -> index.prefix(prefix), -1, index, condition.field, RANK_PREFIX, new ArrayList<>());
+            default:
+                // dates are compared as milliseconds already, which the index takes as well
+                Object from = condition.comparableValue;
+                Object to = condition.comparableTo;
+                boolean bounded = null != from && null != to;
+                return new Source(Access.RANGE_SCAN, "range index '" + field + "' for " + condition,
+                        () -> index.range(from, to), -1, index, condition.field,
+                        bounded ? RANK_BOUNDED_RANGE : RANK_OPEN_RANGE, new ArrayList<>());
+        }
+    }
+
+    private static Source union(List<Source> parts) {
+        long estimate = 0;
+        List<String> descriptions = new ArrayList<>();
+        for (Source part : parts) {
+            estimate = estimate < 0 || part.estimate < 0 ? -1 : estimate + part.estimate;
+            descriptions.add(part.description);
+        }
+        return new Source(Access.INDEX_UNION, "union of " + String.join(", ", descriptions), () -> {
+            Stream<Long> ids = Stream.empty();
+            for (Source part : parts) {
+                ids = Stream.concat(ids, part.ids.get());
+            }
+            return ids.distinct();
+        }, estimate, null, null, RANK_UNION, parts);
+    }
+
+    public Access getAccess() {
+        return null == source ? Access.SCAN : source.access;
+    }
+
+    /**
+     * True when the objects are read in the order of the query, so no sort is needed and reading stops at the limit.
+     */
+    public boolean isOrderedByIndex() {
+        return null != source && ordered && null != query.getOrderField();
+    }
+
+    /**
+     * Returns the objects that match the query, in its order and up to its limit.
+     *
+     * @throws IOException
+     */
+    public List<T> execute() throws IOException {
+        long start = System.nanoTime();
+        long pagesBefore = countPageReads();
+        long[] counts = new long[2];
+        List<T> results;
+        try (Stream<T> objects = objects(counts)) {
+            Stream<T> matches = objects.filter(query::matches);
+            if (!ordered) {
+                matches = matches.sorted(query.comparator());
+            }
+            results = matches.limit(query.getLimit()).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            executions++;
+            idsRead = counts[0];
+            objectsLoaded = counts[1];
+            objectsReturned = results.size();
+            pageReads = countPageReads() - pagesBefore;
+            elapsedNanos = elapsed;
+        }
+        return results;
+    }
+
+    /**
+     * The objects to check, counting the ids read into counts[0] and the objects loaded into counts[1].
+     */
+    private Stream<T> objects(long[] counts) throws IOException {
+        if (null == source) {
+            return storer.scan().peek(object -> counts[1]++);
+        }
+        return source.ids.get().map(id -> {
+            counts[0]++;
+            try {
+                // deleted since the index was read
+                T object = storer.loadIfSaved(id);
+                if (null != object) {
+                    counts[1]++;
+                }
+                return object;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).filter(Objects::nonNull);
+    }
+
+    private long countPageReads() {
+        long reads = 0;
+        for (BTreeIndex<?> index : rangeIndexes) {
+            reads += index.getPageReads();
+        }
+        return reads;
+    }
+
+    public synchronized long getIdsRead() {
+        return idsRead;
+    }
+
+    public synchronized long getObjectsLoaded() {
+        return objectsLoaded;
+    }
+
+    public synchronized long getObjectsReturned() {
+        return objectsReturned;
+    }
+
+    public synchronized long getPageReads() {
+        return pageReads;
+    }
+
+    public synchronized long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Explains the plan, with the counts of the last execution once it ran.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder explain = new StringBuilder(query.toString()).append('\n');
+        explain.append("  access: ").append(getAccess());
+        if (null == source) {
+            explain.append(" of all objects of '").append(storer.getObjectFile().getName()).append('\'');
+        } else {
+            explain.append(" of ").append(source.description);
+            if (source.estimate >= 0) {
+                explain.append(", ").append(source.estimate).append(" id(s)");
+            }
+        }
+        explain.append('\n');
+        if (null != query.getWhere()) {
+            explain.append("  filter: ").append(query.getWhere()).append('\n');
+        }
+        if (null != query.getOrderField()) {
+            explain.append("  order: ").append(ordered ? "by the index" : "sorted after reading").append('\n');
+        }
+        if (executions > 0) {
+            explain.append(String.format("  last run: %d id(s) read, %d object(s) loaded, %d returned, "
+                    + "%d index page(s) read, %.3f ms", idsRead, objectsLoaded, objectsReturned, pageReads,
+                    elapsedNanos / 1e6));
+        } else {
+            explain.append("  not run yet");
+        }
+        return explain.toString();
+    }
+}
@@ -0,0 +1,135 @@
+package com.ag.database;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer records are encoded into. The buffer is meant to be reused between records by calling
+ * {@link #reset}, so encoding a record does not allocate once the buffer has grown to the largest record size.
+ * All multi-byte values are big-endian.
+ */
+public class RecordBuffer extends OutputStream {
+
+    private byte[] bytes;
+    private int size;
+
+    public RecordBuffer() {
+        this(256);
+    }
+
+    public RecordBuffer(int initialCapacity) {
+        bytes = new byte[Math.max(16, initialCapacity)];
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    /**
+     * The number of bytes written since the last {@link #reset}.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a buffer over the written bytes. The buffer shares the backing array and is only valid until the next write.
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(bytes, 0, size);
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    private void ensureCapacity(int additional) {
+        if (size + additional > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + additional));
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        bytes[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, bytes, size, len);
+        size += len;
+    }
+
+    public RecordBuffer writeByte(int b) {
+        write(b);
+        return this;
+    }
+
+    public RecordBuffer writeBoolean(boolean b) {
+        return writeByte(b ? 1 : 0);
+    }
+
+    public RecordBuffer writeShort(int s) {
+        ensureCapacity(2);
+        bytes[size++] = (byte) (s >>> 8);
+        bytes[size++] = (byte) s;
+        return this;
+    }
+
+    public RecordBuffer writeInt(int i) {
+        ensureCapacity(4);
+        bytes[size++] = (byte) (i >>> 24);
+        bytes[size++] = (byte) (i >>> 16);
+        bytes[size++] = (byte) (i >>> 8);
+        bytes[size++] = (byte) i;
+        return this;
+    }
+
+    public RecordBuffer writeLong(long l) {
+        writeInt((int) (l >>> 32));
+        return writeInt((int) l);
+    }
+
+    public RecordBuffer writeFloat(float f) {
+        return writeInt(Float.floatToIntBits(f));
+    }
+
+    public RecordBuffer writeDouble(double d) {
+        return writeLong(Double.doubleToLongBits(d));
+    }
+
+    /**
+     * Writes the UTF-8 bytes of the string prefixed by their length, null is written as the length -1.
+     */
+    public RecordBuffer writeString(String s) {
+        if (null == s) {
+            return writeInt(-1);
+        }
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        writeInt(utf8.length);
+        write(utf8, 0, utf8.length);
+        return this;
+    }
+
+    /**
+     * Reads a string written by {@link #writeString} from the buffer.
+     */
+    public static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (buffer.hasArray()) {
+            String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return s;
+        }
+        byte[] utf8 = new byte[length];
+        buffer.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,33 @@
+package com.ag.database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts stored objects to and from the bytes of a single record in an object file.
+ */
+public interface RecordCodec<T> {
+
+    /**
+     * Appends the encoded object to the buffer. The encoded size is the growth of {@link RecordBuffer#size}.
+     *
+     * @param object the object to encode.
+     * @param buffer the buffer to append to.
+     * @throws IOException when the object cannot be encoded.
+     */
+    public abstract void encode(T object, RecordBuffer buffer) throws IOException;
+
+    /**
+     * Decodes the record held by the remaining bytes of the buffer.
+     *
+     * @param record a buffer positioned at the first byte of the record.
+     * @return the decoded object.
+     * @throws IOException when the bytes are not a record of this codec.
+     */
+    public abstract T decode(ByteBuffer record) throws IOException;
+
+    /**
+     * Returns true when the record starting with the given byte was written by this codec.
+     */
+    public abstract boolean canDecode(byte firstByte);
+}
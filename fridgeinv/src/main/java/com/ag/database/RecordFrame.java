@@ -0,0 +1,200 @@
+package com.ag.database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * The frame every record is written to the object file in, so that records can be found and verified without the meta
+ * information:
+ * <pre>
+ * marker (1) | payload length (4) | id (8) | version (4) | CRC32C (4) | payload
+ * </pre>
+ * The checksum covers the length, id, version and payload. The version counts the saves of the id, so that the newest
+ * copy wins when a crash left the old copy of a moved record live. The marker of a frame whose space was freed is
+ * flipped to {@link #DEAD}, its checksum stays valid so that a recovery scan can skip over it in one step.
+ * <p>
+ * The markers differ from the first byte of every {@link RecordCodec} format, records written before frames existed
+ * are read as they are.
+ */
+final class RecordFrame {
+
+    static final byte LIVE = (byte) 0xFA;
+    static final byte DEAD = (byte) 0xFD;
+
+    private static final int LENGTH_OFFSET = 1;
+    private static final int ID_OFFSET = 5;
+    private static final int VERSION_OFFSET = 13;
+    private static final int CRC_OFFSET = 17;
+    static final int HEADER_BYTES = 21;
+
+    private static final int SCAN_BUFFER_BYTES = 1 << 20;
+
+    /**
+     * Receives the live frames found by {@link #scan}.
+     */
+    interface FrameVisitor {
+        void visit(long id, int version, long position, long size);
+    }
+
+    private RecordFrame() {
+    }
+
+    static boolean isFrame(byte firstByte) {
+        return LIVE == firstByte || DEAD == firstByte;
+    }
+
+    /**
+     * Leaves room for the header in front of the payload that is encoded next.
+     */
+    static void reserveHeader(RecordBuffer buffer) {
+        buffer.writeByte(LIVE).writeInt(0).writeLong(0).writeInt(0).writeInt(0);
+    }
+
+    /**
+     * Fills in the header of a frame whose payload follows the reserved header.
+     *
+     * @param frame a buffer from the start of the header to the end of the payload, its position is left unchanged.
+     */
+    static void seal(ByteBuffer frame, long id, int version) {
+        int start = frame.position();
+        int length = frame.remaining() - HEADER_BYTES;
+        frame.put(start, LIVE);
+        frame.putInt(start + LENGTH_OFFSET, length);
+        frame.putLong(start + ID_OFFSET, id);
+        frame.putInt(start + VERSION_OFFSET, version);
+        frame.putInt(start + CRC_OFFSET, checksum(frame, start, length));
+    }
+
+    private static int checksum(ByteBuffer frame, int start, int length) {
+        CRC32C crc = new CRC32C();
+        ByteBuffer fields = frame.duplicate();
+        fields.limit(start + CRC_OFFSET).position(start + LENGTH_OFFSET);
+        crc.update(fields);
+        ByteBuffer payload = frame.duplicate();
+        payload.limit(start + HEADER_BYTES + length).position(start + HEADER_BYTES);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns the payload of the frame after verifying its checksum.
+     *
+     * @param frame a buffer holding exactly one frame.
+     * @throws IOException when the frame is freed, torn or corrupt.
+     */
+    static ByteBuffer payload(ByteBuffer frame) throws IOException {
+        int start = frame.position();
+        if (frame.remaining() < HEADER_BYTES || LIVE != frame.get(start)) {
+            throw new IOException("Record frame is freed or incomplete");
+        }
+        int length = frame.getInt(start + LENGTH_OFFSET);
+        if (length != frame.remaining() - HEADER_BYTES) {
+            throw new IOException("Record frame of id " + frame.getLong(start + ID_OFFSET) + " holds " + length
+                    + " bytes instead of " + (frame.remaining() - HEADER_BYTES));
+        }
+        if (checksum(frame, start, length) != frame.getInt(start + CRC_OFFSET)) {
+            throw new IOException("Checksum mismatch in the record of id " + frame.getLong(start + ID_OFFSET));
+        }
+        ByteBuffer payload = frame.duplicate();
+        payload.position(start + HEADER_BYTES);
+        return payload.slice();
+    }
+
+    /**
+     * Returns the version in the header, or 0 when the bytes are not the header of a live frame.
+     */
+    static int versionOf(ByteBuffer header) {
+        int start = header.position();
+        if (header.remaining() < HEADER_BYTES || LIVE != header.get(start)) {
+            return 0;
+        }
+        return header.getInt(start + VERSION_OFFSET);
+    }
+
+    /**
+     * Walks the file sequentially and reports every live frame whose checksum holds. Bytes that do not start a valid
+     * frame, such as the rest of a freed record that was partly reused, are skipped one at a time.
+     *
+     * @return the end of the last valid frame, everything after it is a torn or corrupt tail.
+     * @throws IOException
+     */
+    static long scan(FileChannel channel, FrameVisitor visitor) throws IOException {
+        ScanReader reader = new ScanReader(channel);
+        CRC32C crc = new CRC32C();
+        long fileSize = reader.fileSize;
+        long position = 0;
+        long validEnd = 0;
+        while (position + HEADER_BYTES <= fileSize) {
+            int offset = reader.load(position, HEADER_BYTES);
+            ByteBuffer buffer = reader.buffer;
+            byte marker = buffer.get(offset);
+            if (isFrame(marker)) {
+                int length = buffer.getInt(offset + LENGTH_OFFSET);
+                long frameEnd = position + HEADER_BYTES + (long) length;
+                if (length >= 0 && frameEnd <= fileSize) {
+                    long id = buffer.getLong(offset + ID_OFFSET);
+                    int version = buffer.getInt(offset + VERSION_OFFSET);
+                    int expected = buffer.getInt(offset + CRC_OFFSET);
+                    crc.reset();
+                    crc.update(buffer.array(), offset + LENGTH_OFFSET, CRC_OFFSET - LENGTH_OFFSET);
+                    // the payload may be larger than the buffer, it is checked a buffer at a time
+                    for (long cursor = position + HEADER_BYTES; cursor < frameEnd;) {
+                        int chunk = (int) Math.min(SCAN_BUFFER_BYTES, frameEnd - cursor);
+                        crc.update(reader.buffer.array(), reader.load(cursor, chunk), chunk);
+                        cursor += chunk;
+                    }
+                    if ((int) crc.getValue() == expected) {
+                        if (LIVE == marker) {
+                            visitor.visit(id, version, position, frameEnd - position);
+                        }
+                        position = frameEnd;
+                        validEnd = frameEnd;
+                        continue;
+                    }
+                }
+            }
+            position++;
+        }
+        return validEnd;
+    }
+
+    /**
+     * Reads the file through a single buffer that is refilled from the requested position whenever the requested bytes
+     * are not in it.
+     */
+    private static final class ScanReader {
+        private final FileChannel channel;
+        private final long fileSize;
+        private final ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_BYTES);
+        // the file position of the first byte of the buffer
+        private long start;
+
+        private ScanReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.fileSize = channel.size();
+            buffer.limit(0);
+        }
+
+        /**
+         * Makes sure the bytes {@code [position, position + length)} are in the buffer.
+         *
+         * @return the index of the byte at the position in the buffer.
+         */
+        private int load(long position, int length) throws IOException {
+            if (position >= start && position + length <= start + buffer.limit()) {
+                return (int) (position - start);
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), fileSize - position));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Object file ended at " + (position + buffer.position()) + " during a scan");
+                }
+            }
+            start = position;
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.ag.database;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the storers of this process a copy of those of a {@link ReplicationPrimary} by applying the changes it ships.
+ * Changes are applied through the {@link Storer} interface, so caches, shards and the write-ahead log of the follower
+ * see them like any other write. Every change sets the state of a whole object or field, so applying one again after a
+ * crash does no harm: the sequence of the last applied change is written to the position file after every batch and
+ * the follower asks for the changes after it when it (re)connects.
+ * <p>
+ * The storers of a follower must not be written to by anything else.
+ */
+public class ReplicationFollower implements Closeable {
+
+    private static final long RECONNECT_MILLIS = 1000;
+
+    /**
+     * A storer the changes of one storer name are applied to, with a storer of the same class to decode them.
+     */
+    private static final class Target<T extends Storable> {
+        private final Storer<T> storer;
+        private final FlatFileStorer<T> decoder;
+
+        private Target(Storer<T> storer, FlatFileStorer<T> decoder) {
+            this.storer = storer;
+            this.decoder = decoder;
+        }
+
+        private void apply(ChangeFeed.ChangeEvent event) throws IOException {
+            switch (event.getOperation()) {
+                case SAVE:
+                    storer.save(decoder.decodeState(event));
+                    break;
+                case UPDATE:
+                    Map.Entry<String, Object> update = decoder.decodeUpdate(event);
+                    storer.update(event.getId(), update.getKey(), update.getValue());
+                    break;
+                case DELETE:
+                    storer.deleteId(event.getId());
+                    break;
+            }
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final File positionFile;
+    private final Map<String, Target<?>> targets = new ConcurrentHashMap<>();
+
+    private FileChannel position;
+    private volatile long appliedSequence;
+    private volatile long appliedTimestamp;
+    private volatile long primarySequence;
+    private volatile long primaryTimestamp;
+    private volatile boolean connected;
+    private volatile String failure;
+    private volatile boolean closed;
+    private volatile Socket socket;
+    private Thread receiver;
+
+    /**
+     * @param positionFile keeps the sequence of the last applied change across restarts.
+     */
+    public ReplicationFollower(String host, int port, File positionFile) {
+        this.host = host;
+        this.port = port;
+        this.positionFile = positionFile;
+    }
+
+    /**
+     * Applies the changes of the storer name of the primary to the given storer. Must be called before {@link #start}.
+     *
+     * @param name the name the storer of the primary was attached to its feed with.
+     * @param storer the storer of this process to apply the changes to.
+     * @param decoder a storer with the record codec of the storer of the primary to decode the changes with, it does
+     *            not have to be open.
+     */
+    public <T extends Storable> void follow(String name, Storer<T> storer, FlatFileStorer<T> decoder) {
+        targets.put(name, new Target<>(storer, decoder));
+    }
+
+    /**
+     * Reads the position and starts replicating on a thread of its own, reconnecting whenever the connection drops.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        Files.createDirectories(positionFile.getAbsoluteFile().getParentFile().toPath());
+        position = FileChannel.open(positionFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        ByteBuffer saved = ByteBuffer.allocate(8);
+        while (saved.hasRemaining() && position.read(saved, saved.position()) >= 0) {
+        }
+        appliedSequence = saved.hasRemaining() ? 0 : saved.getLong(0);
+        primarySequence = appliedSequence;
+        receiver = new Thread(this::receive, "replication-follower");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    private void receive() {
+        while (!closed) {
+            try (Socket primary = new Socket()) {
+                socket = primary;
+                primary.connect(new InetSocketAddress(host, port));
+                primary.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(primary.getOutputStream());
+                out.writeInt(ReplicationPrimary.MAGIC);
+                out.writeLong(appliedSequence + 1);
+                out.flush();
+                connected = true;
+                failure = null;
+                System.out.println("Replicating from " + host + ":" + port + " after change " + appliedSequence);
+                String refusal = replicate(new DataInputStream(new BufferedInputStream(primary.getInputStream())));
+                if (null != refusal) {
+                    // asking again gets the same answer
+                    connected = false;
+                    failure = "The primary refused to replicate: " + refusal;
+                    System.out.println(failure);
+                    return;
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    failure = e.toString();
+                    System.out.println("Replication from " + host + ":" + port + " interrupted: " + e);
+                }
+            } finally {
+                connected = false;
+            }
+            if (!closed) {
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies what the primary sends until the connection ends.
+     *
+     * @return why the primary refused to replicate, null if it did not.
+     */
+    private String replicate(DataInputStream in) throws IOException {
+        while (!closed) {
+            byte frame;
+            try {
+                frame = in.readByte();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (ReplicationPrimary.FRAME_EVENT == frame) {
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                apply(ChangeFeed.readEvent(ByteBuffer.wrap(body)));
+            } else if (ReplicationPrimary.FRAME_STATUS == frame) {
+                primarySequence = Math.max(appliedSequence, in.readLong());
+                primaryTimestamp = in.readLong();
+                savePosition();
+            } else if (ReplicationPrimary.FRAME_ERROR == frame) {
+                return in.readUTF();
+            } else {
+                throw new IOException("Unknown replication frame " + frame);
+            }
+        }
+        return null;
+    }
+
+    private void apply(ChangeFeed.ChangeEvent event) throws IOException {
+        if (event.getSequence() <= appliedSequence) {
+            return;
+        }
+        Target<?> target = targets.get(event.getStorer());
+        if (null != target) {
+            target.apply(event);
+        }
+        appliedSequence = event.getSequence();
+        appliedTimestamp = event.getTimestamp();
+        primarySequence = Math.max(primarySequence, appliedSequence);
+    }
+
+    private void savePosition() throws IOException {
+        ByteBuffer saved = ByteBuffer.allocate(8).putLong(0, appliedSequence);
+        while (saved.hasRemaining()) {
+            position.write(saved, saved.position());
+        }
+        position.force(false);
+    }
+
+    /**
+     * The sequence of the last change applied.
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * The number of changes committed on the primary that were not applied here yet, as of the last status it sent.
+     */
+    public long getLagRecords() {
+        return Math.max(0, primarySequence - appliedSequence);
+    }
+
+    /**
+     * How long ago the last applied change was committed on the primary while changes are outstanding, 0 when caught
+     * up. The primary and the follower are expected to share a clock.
+     */
+    public long getLagMillis() {
+        if (0 == getLagRecords()) {
+            return 0;
+        }
+        long since = 0 == appliedTimestamp ? primaryTimestamp : appliedTimestamp;
+        return Math.max(0, System.currentTimeMillis() - since);
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Why the last connection ended, null while connected. Once the primary refused to replicate, because it no longer
+     * keeps the changes this follower is missing, the follower stops and has to be seeded with a copy of the storage of
+     * the primary.
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Socket current = socket;
+        if (null != current) {
+            current.close();
+        }
+        if (null != receiver) {
+            try {
+                receiver.join(RECONNECT_MILLIS * 5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (null != position) {
+            savePosition();
+            position.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicationFollower [" + host + ":" + port + ", applied " + appliedSequence + ", lag "
+                + getLagRecords() + " records / " + getLagMillis() + " ms]";
+    }
+}
@@ -0,0 +1,149 @@
+package com.ag.database;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ships the {@link ChangeFeed} of the storers of this process to {@link ReplicationFollower}s over TCP. A follower
+ * connects, sends the sequence of the first change it is missing and from then on receives every committed change in
+ * order, so that it can apply them to its own storers.
+ * <p>
+ * The stream is made of frames, each a type byte followed by its body:
+ * <pre>
+ * follower: MAGIC (4) | first missing sequence (8)
+ * primary:  FRAME_EVENT | length (4) | event       one per change, see {@link ChangeFeed}
+ *           FRAME_STATUS | committed sequence (8) | time (8)   after every batch and when idle
+ *           FRAME_ERROR | message                   before the primary gives up on the follower
+ * </pre>
+ * A follower that asks for changes the feed no longer keeps gets an error, it has to be seeded with a copy of the
+ * storage of the primary first.
+ */
+public class ReplicationPrimary implements Closeable {
+
+    static final int MAGIC = 0x41475250; // "AGRP"
+    static final byte FRAME_EVENT = 1;
+    static final byte FRAME_STATUS = 2;
+    static final byte FRAME_ERROR = 3;
+
+    private static final int BATCH = 256;
+    private static final long IDLE_STATUS_MILLIS = 1000;
+
+    private final ChangeFeed feed;
+    private final ServerSocket serverSocket;
+    private final Set<Socket> followers = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Starts accepting followers on the loopback interface.
+     *
+     * @param port the port to listen on, 0 for any free one, see {@link #getPort}.
+     * @throws IOException
+     */
+    public ReplicationPrimary(ChangeFeed feed, int port) throws IOException {
+        this.feed = feed;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        Thread acceptor = new Thread(this::accept, "replication-primary");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Replication primary listening on port " + getPort());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * The number of followers connected right now.
+     */
+    public int getFollowerCount() {
+        return followers.size();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                followers.add(socket);
+                Thread sender = new Thread(() -> serve(socket), "replication-sender-" + connections.incrementAndGet());
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.out.println("Replication primary stopped accepting followers: " + e);
+                }
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket follower = socket;
+                DataInputStream in = new DataInputStream(follower.getInputStream());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(follower.getOutputStream()))) {
+            follower.setTcpNoDelay(true);
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a replication follower");
+            }
+            long next = in.readLong();
+            System.out.println("Follower " + follower.getRemoteSocketAddress() + " replicating from " + next);
+            RecordBuffer buffer = new RecordBuffer();
+            while (!closed) {
+                List<ChangeFeed.ChangeEvent> events;
+                next = feed.skipDropped(next);
+                try {
+                    events = feed.read(next, BATCH);
+                } catch (IllegalArgumentException e) {
+                    out.writeByte(FRAME_ERROR);
+                    out.writeUTF(e.getMessage());
+                    out.flush();
+                    return;
+                }
+                for (ChangeFeed.ChangeEvent event : events) {
+                    buffer.reset();
+                    ChangeFeed.writeEvent(event, buffer);
+                    out.writeByte(FRAME_EVENT);
+                    out.writeInt(buffer.size());
+                    out.write(buffer.toByteBuffer().array(), 0, buffer.size());
+                    next = event.getSequence() + 1;
+                }
+                if (events.isEmpty() && feed.awaitCommitted(next, IDLE_STATUS_MILLIS)) {
+                    // there is more to send right away
+                    continue;
+                }
+                out.writeByte(FRAME_STATUS);
+                out.writeLong(feed.getCommittedSequence());
+                out.writeLong(System.currentTimeMillis());
+                out.flush();
+            }
+        } catch (SocketException e) {
+            // the follower went away, it reconnects from where it stopped
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Replication to " + socket.getRemoteSocketAddress() + " stopped: " + e);
+        } finally {
+            followers.remove(socket);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket follower : followers) {
+            follower.close();
+        }
+    }
+}
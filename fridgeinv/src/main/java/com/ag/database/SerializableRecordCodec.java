@@ -0,0 +1,40 @@
+package com.ag.database;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+import com.ag.util.ByteBufferInputStream;
+
+/**
+ * Encodes every record as its own Java serialization stream. This is the format object files were written in before
+ * {@link FieldRecordCodec}, and it is kept to read those files.
+ */
+public class SerializableRecordCodec<T> implements RecordCodec<T> {
+
+    // the first byte of ObjectStreamConstants.STREAM_MAGIC
+    private static final byte STREAM_MAGIC_FIRST_BYTE = (byte) 0xAC;
+
+    @Override
+    public void encode(T object, RecordBuffer buffer) throws IOException {
+        try (ObjectOutputStream oos = new ObjectOutputStream(buffer)) {
+            oos.writeObject(object);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T decode(ByteBuffer record) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteBufferInputStream(record))) {
+            return (T) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Record holds an object of an unknown class", e);
+        }
+    }
+
+    @Override
+    public boolean canDecode(byte firstByte) {
+        return STREAM_MAGIC_FIRST_BYTE == firstByte;
+    }
+}
@@ -0,0 +1,575 @@
+package com.ag.database;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Partitions the objects of a class over several {@link FlatFileStorer} shards by a hash of their id. Every shard has
+ * its own files and locks, so writers to different shards do not wait for each other, and the operations on many
+ * objects ({@link #saveAll}, {@link #loadAllId}, {@link #deleteAllId} and the predicate queries) work on the shards in
+ * parallel.
+ * <p>
+ * Operations on many objects are atomic per shard only. The number of shards is fixed once the files are written,
+ * {@link #open} refuses files that were written with another count.
+ */
+public class ShardedStorer<T extends Storable & Serializable> implements Storer<T>, Closeable {
+
+    private static final ExecutorService shardExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "storer-shard");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Work done on a single shard.
+     */
+    private interface ShardCall<T extends Storable & Serializable, R> {
+        R call(FlatFileStorer<T> shard, int index) throws IOException;
+    }
+
+    private final List<FlatFileStorer<T>> shards = new ArrayList<>();
+
+    /**
+     * @param shardCount the number of shards, at least 1.
+     * @param shardFactory creates each shard, configured but not opened.
+     */
+    public ShardedStorer(int shardCount, Supplier<FlatFileStorer<T>> shardFactory) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+        }
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(shardFactory.get());
+        }
+    }
+
+    /**
+     * Opens all shards in parallel. Shard i keeps its files next to the given ones with the suffix {@code .shard<i>}.
+     *
+     * @param metaFileName
+     * @param objectFileName
+     * @throws IOException when a shard can not be opened, or the files were written with another number of shards.
+     */
+    public void open(String metaFileName, String objectFileName) throws IOException {
+        if (null == metaFileName || null == objectFileName) {
+            throw new NullPointerException("Expect non-null index / object filename");
+        }
+        File layoutFile = new File(metaFileName + ".shards");
+        if (layoutFile.exists()) {
+            int written = Integer.parseInt(new String(Files.readAllBytes(layoutFile.toPath()), StandardCharsets.UTF_8).trim());
+            if (written != shards.size()) {
+                throw new IOException("'" + objectFileName + "' was written with " + written + " shards, not "
+                        + shards.size() + ", resharding is not supported");
+            }
+        } else {
+            Files.createDirectories(layoutFile.getAbsoluteFile().getParentFile().toPath());
+            Files.write(layoutFile.toPath(), Integer.toString(shards.size()).getBytes(StandardCharsets.UTF_8));
+        }
+        forShards(allShards(), (shard, index) -> {
+            shard.open(metaFileName + ".shard" + index, objectFileName + ".shard" + index);
+            return null;
+        });
+    }
+
+    public List<FlatFileStorer<T>> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    private int shardIndexOf(long id) {
+        // spreads runs of sequential ids evenly
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return Math.floorMod((int) (hash ^ (hash >>> 32)), shards.size());
+    }
+
+    /**
+     * The shard the object with the given id is stored in.
+     */
+    public FlatFileStorer<T> shardFor(long id) {
+        return shards.get(shardIndexOf(id));
+    }
+
+    private List<Integer> allShards() {
+        List<Integer> indexes = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            indexes.add(i);
+        }
+        return indexes;
+    }
+
+    /**
+     * Runs the call on the given shards, all but the first on the shard executor, and waits for all of them.
+     *
+     * @return the results in the order of the shards given.
+     * @throws IOException the first failure, after every call has finished.
+     */
+    private <R> List<R> forShards(List<Integer> indexes, ShardCall<T, R> call) throws IOException {
+        List<R> results = new ArrayList<>(indexes.size());
+        if (1 == indexes.size()) {
+            int index = indexes.get(0);
+            results.add(call.call(shards.get(index), index));
+            return results;
+        }
+        List<Future<R>> futures = new ArrayList<>(indexes.size());
+        for (int i = 1; i < indexes.size(); i++) {
+            int index = indexes.get(i);
+            futures.add(shardExecutor.submit(() -> call.call(shards.get(index), index)));
+        }
+        Throwable failure = null;
+        try {
+            int index = indexes.get(0);
+            results.add(call.call(shards.get(index), index));
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            results.add(null);
+        }
+        boolean interrupted = false;
+        for (Future<R> future : futures) {
+            while (true) {
+                try {
+                    results.add(future.get());
+                    break;
+                } catch (InterruptedException e) {
+                    // the shards are waited for regardless, so that no call outlives the operation
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    failure = null == failure ? e.getCause() : failure;
+                    results.add(null);
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            if (null == failure) {
+                failure = new InterruptedIOException("Interrupted while waiting for the shards");
+            }
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (null != failure) {
+            throw new IOException(failure);
+        }
+        return results;
+    }
+
+    /**
+     * Groups the items by the shard of their id, keeping their order within each shard.
+     */
+    private <E> Map<Integer, List<E>> byShard(Iterable<E> items, ToLongFunction<E> id) {
+        Map<Integer, List<E>> grouped = new HashMap<>();
+        for (E item : items) {
+            grouped.computeIfAbsent(shardIndexOf(id.applyAsLong(item)), shard -> new ArrayList<>()).add(item);
+        }
+        return grouped;
+    }
+
+    @Override
+    public List<T> loadAll(List<T> objects) throws IOException {
+        Set<Long> ids = new LinkedHashSet<>();
+        for (T object : objects) {
+            ids.add(object.getId());
+        }
+        Map<Long, T> loaded = loadById(ids);
+        List<T> persistedObjects = new ArrayList<>();
+        for (T object : objects) {
+            persistedObjects.add(loaded.get(object.getId()));
+        }
+        return persistedObjects;
+    }
+
+    @Override
+    public List<T> loadAllId(Set<Long> ids) throws IOException {
+        Map<Long, T> loaded = loadById(ids);
+        List<T> persistedObjects = new ArrayList<>();
+        for (Long id : ids) {
+            persistedObjects.add(loaded.get(id));
+        }
+        return persistedObjects;
+    }
+
+    private Map<Long, T> loadById(Set<Long> ids) throws IOException {
+        Map<Integer, List<Long>> grouped = byShard(ids, Long::longValue);
+        List<List<T>> loaded = forShards(new ArrayList<>(grouped.keySet()),
+                (shard, index) -> shard.loadAllId(new LinkedHashSet<>(grouped.get(index))));
+        Map<Long, T> byId = new HashMap<>();
+        for (List<T> objects : loaded) {
+            for (T object : objects) {
+                byId.put(object.getId(), object);
+            }
+        }
+        return byId;
+    }
+
+    @Override
+    public long savedEntries() throws IOException {
+        long entries = 0;
+        for (FlatFileStorer<T> shard : shards) {
+            entries += shard.savedEntries();
+        }
+        return entries;
+    }
+
+    @Override
+    public void saveAll(List<T> objects) throws IOException {
+        Map<Integer, List<T>> grouped = byShard(objects, Storable::getId);
+        forShards(new ArrayList<>(grouped.keySet()), (shard, index) -> {
+            shard.saveAll(grouped.get(index));
+            return null;
+        });
+    }
+
+    @Override
+    public void save(T object) throws IOException {
+        shardFor(object.getId()).save(object);
+    }
+
+    @Override
+    public void update(long id, String field, Object value) throws IOException {
+        shardFor(id).update(id, field, value);
+    }
+
+    @Override
+    public void update(long id, Map<String, Object> fields) throws IOException {
+        shardFor(id).update(id, fields);
+    }
+
+    @Override
+    public long increment(long id, String field, long delta) throws IOException {
+        return shardFor(id).increment(id, field, delta);
+    }
+
+    @Override
+    public T load(long id) throws IOException {
+        return shardFor(id).load(id);
+    }
+
+    @Override
+    public void delete(T object) throws IOException {
+        deleteId(object.getId());
+    }
+
+    @Override
+    public void deleteId(long id) throws IOException {
+        shardFor(id).deleteId(id);
+    }
+
+    @Override
+    public void deleteAll(List<T> objects) throws IOException {
+        List<Long> ids = new ArrayList<>(objects.size());
+        for (T object : objects) {
+            ids.add(object.getId());
+        }
+        deleteAllId(ids);
+    }
+
+    @Override
+    public void deleteAllId(List<Long> ids) throws IOException {
+        Map<Integer, List<Long>> grouped = byShard(ids, Long::longValue);
+        forShards(new ArrayList<>(grouped.keySet()), (shard, index) -> {
+            shard.deleteAllId(grouped.get(index));
+            return null;
+        });
+    }
+
+    @Override
+    public Set<Long> getIds() {
+        return new IdSet();
+    }
+
+    /**
+     * A live view of the ids of all shards, iterated shard by shard.
+     */
+    private class IdSet extends AbstractSet<Long> {
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Long && ShardedStorer.this.contains((Long) o);
+        }
+
+        @Override
+        public Iterator<Long> iterator() {
+            return shards.stream().flatMap(shard -> shard.getIds().stream()).iterator();
+        }
+
+        @Override
+        public int size() {
+            long size = 0;
+            for (FlatFileStorer<T> shard : shards) {
+                size += shard.getIds().size();
+            }
+            return (int) Math.min(Integer.MAX_VALUE, size);
+        }
+    }
+
+    /**
+     * Streams the objects of all shards, shard by shard. A parallel stream walks the shards in parallel.
+     */
+    @Override
+    public Stream<T> scan() throws IOException {
+        List<Stream<T>> scans = new ArrayList<>(shards.size());
+        try {
+            for (FlatFileStorer<T> shard : shards) {
+                scans.add(shard.scan());
+            }
+        } catch (IOException | RuntimeException e) {
+            scans.forEach(Stream::close);
+            throw e;
+        }
+        List<Spliterator<T>> parts = new ArrayList<>(scans.size());
+        for (Stream<T> scan : scans) {
+            parts.add(scan.spliterator());
+        }
+        return StreamSupport.stream(new ConcatSpliterator<>(parts, 0, parts.size()), false)
+                .onClose(() -> scans.forEach(Stream::close));
+    }
+
+    /**
+     * Walks the spliterators one after the other. Splitting hands off whole spliterators first, then splits the last one.
+     */
+    private static final class ConcatSpliterator<T> implements Spliterator<T> {
+        private final List<Spliterator<T>> parts;
+        private int index;
+        private final int end;
+
+        private ConcatSpliterator(List<Spliterator<T>> parts, int index, int end) {
+            this.parts = parts;
+            this.index = index;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            while (index < end) {
+                if (parts.get(index).tryAdvance(action)) {
+                    return true;
+                }
+                index++;
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            int remaining = end - index;
+            if (remaining >= 2) {
+                int middle = index + remaining / 2;
+                Spliterator<T> prefix = new ConcatSpliterator<>(parts, index, middle);
+                index = middle;
+                return prefix;
+            }
+            return 1 == remaining ? parts.get(index).trySplit() : null;
+        }
+
+        @Override
+        public long estimateSize() {
+            long size = 0;
+            for (int i = index; i < end; i++) {
+                size += parts.get(i).estimateSize();
+                if (size < 0) {
+                    return Long.MAX_VALUE;
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+
+    @Override
+    public boolean contains(Predicate<T> matches) throws IOException {
+        for (Boolean found : forShards(allShards(), (shard, index) -> shard.contains(matches))) {
+            if (found) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Set<Long> lookup(String field, Object value) {
+        Set<Long> ids = new LinkedHashSet<>();
+        for (FlatFileStorer<T> shard : shards) {
+            ids.addAll(shard.lookup(field, value));
+        }
+        return ids;
+    }
+
+    @Override
+    public Stream<Long> range(String field, Object from, Object to) {
+        List<Stream<Long>> ranges = new ArrayList<>(shards.size());
+        for (FlatFileStorer<T> shard : shards) {
+            ranges.add(shard.range(field, from, to));
+        }
+        return mergeRanges(field, ranges);
+    }
+
+    @Override
+    public Stream<Long> rangeAfter(String field, Object value, long id, Object to) {
+        List<Stream<Long>> ranges = new ArrayList<>(shards.size());
+        for (FlatFileStorer<T> shard : shards) {
+            ranges.add(shard.rangeAfter(field, value, id, to));
+        }
+        return mergeRanges(field, ranges);
+    }
+
+    /**
+     * Merges the ordered ranges of the shards into one range ordered by the field and then by id, reading from each
+     * shard only as far as the merged stream is consumed.
+     */
+    private Stream<Long> mergeRanges(String field, List<Stream<Long>> ranges) {
+        final class Head {
+            final Iterator<Long> ids;
+            final BTreeIndex<T> index;
+            long id;
+            byte[] key;
+
+            Head(Iterator<Long> ids, BTreeIndex<T> index) {
+                this.ids = ids;
+                this.index = index;
+            }
+
+            /**
+             * Moves to the next id that is still indexed, returns false at the end of the range.
+             */
+            boolean advance() {
+                while (ids.hasNext()) {
+                    id = ids.next();
+                    key = index.keyOf(id);
+                    if (null != key) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+        PriorityQueue<Head> heads = new PriorityQueue<>((a, b) -> {
+            int result = Arrays.compareUnsigned(a.key, b.key);
+            return 0 != result ? result : Long.compare(a.id, b.id);
+        });
+        List<Head> pending = new ArrayList<>();
+        for (int i = 0; i < ranges.size(); i++) {
+            pending.add(new Head(ranges.get(i).iterator(), shards.get(i).getRangeIndex(field)));
+        }
+        Iterator<Long> merged = new Iterator<Long>() {
+            @Override
+            public boolean hasNext() {
+                // the shards are read from lazily, the first time the merged stream is consumed
+                for (Head head : pending) {
+                    if (head.advance()) {
+                        heads.add(head);
+                    }
+                }
+                pending.clear();
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Long next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Head head = heads.poll();
+                long id = head.id;
+                pending.add(head);
+                return id;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false)
+                .onClose(() -> ranges.forEach(Stream::close));
+    }
+
+    @Override
+    public boolean contains(Long id) {
+        return null != id && shardFor(id).contains(id);
+    }
+
+    /**
+     * Runs the query on every shard, each returning at most the limit, and merges the results in the order of the
+     * query.
+     */
+    @Override
+    public List<T> query(Query<T> query) throws IOException {
+        List<T> results = new ArrayList<>();
+        for (List<T> shardResults : forShards(allShards(), (shard, index) -> shard.query(query))) {
+            results.addAll(shardResults);
+        }
+        if (null != query.getOrderField()) {
+            results.sort(query.comparator());
+        }
+        return results.size() > query.getLimit() ? new ArrayList<>(results.subList(0, query.getLimit())) : results;
+    }
+
+    @Override
+    public T matches(Predicate<T> matcher) throws IOException {
+        for (T match : forShards(allShards(), (shard, index) -> shard.matches(matcher))) {
+            if (null != match) {
+                return match;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<T> allMatches(Predicate<T> matcher) throws IOException {
+        List<T> matches = new ArrayList<>();
+        for (List<T> shardMatches : forShards(allShards(), (shard, index) -> shard.allMatches(matcher))) {
+            matches.addAll(shardMatches);
+        }
+        return matches;
+    }
+
+    /**
+     * Closes every shard, even when closing one of them fails.
+     */
+    @Override
+    public void close() throws IOException {
+        forShards(allShards(), (shard, index) -> {
+            shard.close();
+            return null;
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "ShardedStorer [shards=" + shards.size() + "]";
+    }
+}
@@ -0,0 +1,192 @@
+package com.ag.database;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.ag.json.JsonHelper;
+import com.ag.util.ConfigurationException;
+
+/**
+ * The persisted fields of a stored class, resolved once per class from the same metadata the Json initializer uses
+ * ({@link JsonHelper#getJsonFieldName}). Field access goes through method handles created when the schema is built, so
+ * reading or writing a field afterwards does not reflect on the class again.
+ * <p>
+ * Fields are ordered from the top of the class hierarchy down, in declaration order within each class.
+ */
+public class StorableSchema<T> {
+
+    private static final Map<Class<?>, StorableSchema<?>> schemas = new ConcurrentHashMap<>();
+
+    private final Class<T> storedClass;
+    private final MethodHandle constructor;
+    private final List<SchemaField> fields;
+    private final Map<String, SchemaField> fieldsByName = new HashMap<>();
+
+    @SuppressWarnings("unchecked")
+    public static <T> StorableSchema<T> of(Class<T> storedClass) {
+        return (StorableSchema<T>) schemas.computeIfAbsent(storedClass, cls -> new StorableSchema<>(cls));
+    }
+
+    private StorableSchema(Class<T> storedClass) {
+        this.storedClass = storedClass;
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            Constructor<T> noArgs = storedClass.getDeclaredConstructor();
+            noArgs.setAccessible(true);
+            constructor = lookup.unreflectConstructor(noArgs).asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ConfigurationException("Stored class '" + storedClass.getName() + "' needs a no argument constructor", e);
+        }
+
+        Deque<Class<?>> hierarchy = new ArrayDeque<>();
+        for (Class<?> cls = storedClass; null != cls && Object.class != cls; cls = cls.getSuperclass()) {
+            hierarchy.push(cls);
+        }
+        List<SchemaField> resolved = new ArrayList<>();
+        for (Class<?> cls : hierarchy) {
+            for (Field field : cls.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) {
+                    continue;
+                }
+                String name = JsonHelper.getJsonFieldName(cls, field);
+                if (null == name) {
+                    continue;
+                }
+                SchemaField schemaField = new SchemaField(name, field, resolved.size(), lookup);
+                if (null != fieldsByName.put(name, schemaField)) {
+                    throw new ConfigurationException("Stored class '" + storedClass.getName() + "' has two fields named '" + name + "'");
+                }
+                resolved.add(schemaField);
+            }
+        }
+        fields = Collections.unmodifiableList(resolved);
+    }
+
+    public Class<T> getStoredClass() {
+        return storedClass;
+    }
+
+    /**
+     * Creates an instance through the no argument constructor, fields are left at their defaults.
+     */
+    @SuppressWarnings("unchecked")
+    public T newInstance() {
+        try {
+            return (T) constructor.invokeExact();
+        } catch (Throwable t) {
+            throw new IllegalStateException("Failed to instantiate '" + storedClass.getName() + "'", t);
+        }
+    }
+
+    /**
+     * Creates an independent copy of the object from its persisted fields. Dates are copied, all other stored values are
+     * immutable.
+     */
+    public T copy(T object) {
+        T copy = newInstance();
+        for (SchemaField field : fields) {
+            Object value = field.get(object);
+            field.set(copy, value instanceof Date ? new Date(((Date) value).getTime()) : value);
+        }
+        return copy;
+    }
+
+    public List<SchemaField> getFields() {
+        return fields;
+    }
+
+    /**
+     * Returns the field persisted under the given name.
+     *
+     * @throws IllegalArgumentException when the class has no such field.
+     */
+    public SchemaField getField(String name) {
+        SchemaField field = fieldsByName.get(name);
+        if (null == field) {
+            throw new IllegalArgumentException("'" + storedClass.getSimpleName() + "' has no stored field '" + name + "'");
+        }
+        return field;
+    }
+
+    public boolean hasField(String name) {
+        return fieldsByName.containsKey(name);
+    }
+
+    /**
+     * A single persisted field of a stored class.
+     */
+    public static class SchemaField {
+
+        private final String name;
+        private final Field field;
+        private final int index;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        private SchemaField(String name, Field field, int index, MethodHandles.Lookup lookup) {
+            this.name = name;
+            this.field = field;
+            this.index = index;
+            try {
+                field.setAccessible(true);
+                getter = lookup.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class));
+                setter = lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, Object.class));
+            } catch (IllegalAccessException e) {
+                throw new ConfigurationException("Cannot access stored field '" + field + "'", e);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Class<?> getType() {
+            return field.getType();
+        }
+
+        public Field getField() {
+            return field;
+        }
+
+        /**
+         * The position of this field in {@link StorableSchema#getFields}.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public Object get(Object owner) {
+            try {
+                return getter.invokeExact(owner);
+            } catch (Throwable t) {
+                throw new IllegalStateException("Failed to read field '" + name + "'", t);
+            }
+        }
+
+        public void set(Object owner, Object value) {
+            try {
+                setter.invokeExact(owner, value);
+            } catch (Throwable t) {
+                throw new IllegalStateException("Failed to write field '" + name + "'", t);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + field.getType().getSimpleName();
+        }
+    }
+}
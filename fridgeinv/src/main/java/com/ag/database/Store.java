@@ -5,6 +5,7 @@ import com.ag.json.JsonClass;
 @JsonClass
 public class Store extends Storable {
 
+    @Indexed
     private String name;
 
     public Store() {}
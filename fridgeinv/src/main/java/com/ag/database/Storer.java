@@ -2,8 +2,10 @@ package com.ag.database;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 /**
  * Interface whose implementations can store and retrieve objects in a persistable manner.
@@ -59,6 +61,39 @@ public interface Storer<T extends Storable> {
      */
     public abstract void save(T object) throws IOException;
 
+    /**
+     * Sets a single field of a saved object without saving the whole object again.
+     *
+     * @param id the id of the saved object.
+     * @param field the stored name of the field.
+     * @param value the new value, of the type of the field.
+     * @throws IllegalArgumentException when the field is not stored or the value does not fit its type.
+     * @throws IOException when no object is saved with the id.
+     */
+    public abstract void update(long id, String field, Object value) throws IOException;
+
+    /**
+     * Sets several fields of a saved object as one write, the object is never seen with only some of them set.
+     *
+     * @param id the id of the saved object.
+     * @param fields the new values by the stored names of their fields.
+     * @throws IllegalArgumentException when a field is not stored or a value does not fit its type.
+     * @throws IOException when no object is saved with the id.
+     */
+    public abstract void update(long id, Map<String, Object> fields) throws IOException;
+
+    /**
+     * Adds to an integral field of a saved object atomically, concurrent increments of the same field are all counted.
+     *
+     * @param id the id of the saved object.
+     * @param field the stored name of an integral field.
+     * @param delta the amount to add, negative to subtract.
+     * @return the new value of the field.
+     * @throws IllegalArgumentException when the field is not stored or not integral.
+     * @throws IOException when no object is saved with the id.
+     */
+    public abstract long increment(long id, String field, long delta) throws IOException;
+
     /**
      * Load a particular object from the database using the objects id.
      * 
@@ -110,6 +145,16 @@ public interface Storer<T extends Storable> {
      */
     public abstract Set<Long> getIds() throws IOException;
 
+    /**
+     * Streams all persisted objects in the order the implementation reads them most cheaply. The stream is lazy, so
+     * short-circuiting operations stop reading early, and it may be turned parallel. It should be closed once done,
+     * failures to read are thrown as {@link java.io.UncheckedIOException}.
+     * 
+     * @return a stream over all persisted objects.
+     * @throws IOException
+     */
+    public abstract Stream<T> scan() throws IOException;
+
     /**
      * Returns true if any persisted objects match the predicate.
      * 
@@ -118,6 +163,54 @@ public interface Storer<T extends Storable> {
      */
     public abstract boolean contains(Predicate<T> matches) throws IOException;
 
+    /**
+     * Returns the ids of all persisted objects whose field equals the value, answered from a secondary index without
+     * reading the objects.
+     * 
+     * @param field the stored name of an indexed field.
+     * @param value the value to look for, null matches nothing.
+     * @return the ids of the matching objects, empty when there are none.
+     * @throws IllegalArgumentException when the field is not indexed.
+     * @throws IOException
+     */
+    public abstract Set<Long> lookup(String field, Object value) throws IOException;
+
+    /**
+     * Returns the ids of all persisted objects whose field is at least from and less than to, ordered by the field and
+     * then by id, answered from a range index. Limiting the stream limits the work, so the oldest N objects are
+     * {@code range(field, null, null).limit(N)}.
+     * 
+     * @param field the stored name of a range indexed field.
+     * @param from the lowest value, inclusive, or null for no lower bound.
+     * @param to the highest value, exclusive, or null for no upper bound.
+     * @throws IllegalArgumentException when the field has no range index.
+     * @throws IOException
+     */
+    public abstract Stream<Long> range(String field, Object from, Object to) throws IOException;
+
+    /**
+     * Continues {@link #range} after the object with the given value and id, for reading a range page by page.
+     * 
+     * @param field the stored name of a range indexed field.
+     * @param value the value of the field of the last object of the previous page.
+     * @param id the id of the last object of the previous page.
+     * @param to the highest value, exclusive, or null for no upper bound.
+     * @throws IllegalArgumentException when the field has no range index.
+     * @throws IOException
+     */
+    public abstract Stream<Long> rangeAfter(String field, Object value, long id, Object to) throws IOException;
+
+    /**
+     * Returns the objects that match the query, in its order and up to its limit. Unlike the predicate methods the
+     * conditions of a query can be answered from the indexes of the storer, see {@link QueryPlan}.
+     * 
+     * @param query
+     * @return the matching objects, empty when there are none.
+     * @throws IllegalStateException the query requires an index and none fits it.
+     * @throws IOException
+     */
+    public abstract List<T> query(Query<T> query) throws IOException;
+
     /**
      * Returns true if the given id is persisted.
      * 
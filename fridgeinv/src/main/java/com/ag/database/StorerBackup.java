@@ -0,0 +1,399 @@
+package com.ag.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Backs up storers while they are written to, into a directory holding a chain of backups: a full copy of every
+ * storer followed by increments that only hold the records saved since the backup before. Every backup is a
+ * directory of its own named after its number and kind, {@code 000001-full} or {@code 000002-incremental}, and is
+ * complete once its manifest is written:
+ * <pre>
+ * MAGIC (4) | version (4) | kind (1) | count (4)
+ * count times: object file name | meta file name | snapshot id (8) | parent id (8) | object file length (8) | records (4)
+ * CRC32 (4) of everything before it
+ * </pre>
+ * The snapshots of all storers of a backup are taken at the same point, between two transactions of their
+ * {@link WriteAheadLog}. {@link #restore} puts the last full backup and the increments after it back together.
+ */
+public class StorerBackup {
+
+    public static final String MANIFEST = "backup.manifest";
+
+    private static final int MAGIC = 0x4147424b; // "AGBK"
+    private static final int VERSION = 1;
+    private static final byte KIND_FULL = 0;
+    private static final byte KIND_INCREMENTAL = 1;
+    private static final String FULL_SUFFIX = "-full";
+    private static final String INCREMENTAL_SUFFIX = "-incremental";
+
+    /**
+     * What a manifest says about the snapshot of one storer.
+     */
+    private static final class Entry {
+        private final String objectFileName;
+        private final String metaFileName;
+        private final long snapshotId;
+        private final long parentId;
+        private final long objectFileEnd;
+        private final int records;
+
+        private Entry(String objectFileName, String metaFileName, long snapshotId, long parentId, long objectFileEnd,
+                int records) {
+            this.objectFileName = objectFileName;
+            this.metaFileName = metaFileName;
+            this.snapshotId = snapshotId;
+            this.parentId = parentId;
+            this.objectFileEnd = objectFileEnd;
+            this.records = records;
+        }
+    }
+
+    private StorerBackup() {
+    }
+
+    /**
+     * Takes snapshots of the storers at the same point: storers writing through a write-ahead log are taken between
+     * two of its transactions, so a transaction is in the snapshots of all of its storers or of none. Writers are held
+     * up while the indexes are copied, not while the snapshots are written.
+     *
+     * @throws IOException
+     */
+    public static List<StorerSnapshot<?>> snapshot(List<FlatFileStorer<?>> storers) throws IOException {
+        Set<WriteAheadLog> logs = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (FlatFileStorer<?> storer : storers) {
+            if (null != storer.getWriteAheadLog()) {
+                logs.add(storer.getWriteAheadLog());
+            }
+        }
+        List<WriteAheadLog> lockedLogs = new ArrayList<>();
+        List<FlatFileStorer<?>> lockedStorers = new ArrayList<>();
+        List<StorerSnapshot<?>> snapshots = new ArrayList<>();
+        try {
+            for (WriteAheadLog log : logs) {
+                log.lockCommits();
+                lockedLogs.add(log);
+            }
+            for (FlatFileStorer<?> storer : storers) {
+                storer.lockWrites();
+                lockedStorers.add(storer);
+            }
+            for (FlatFileStorer<?> storer : storers) {
+                snapshots.add(storer.snapshotLocked());
+            }
+        } catch (IOException | RuntimeException e) {
+            for (StorerSnapshot<?> snapshot : snapshots) {
+                snapshot.close();
+            }
+            throw e;
+        } finally {
+            for (FlatFileStorer<?> storer : lockedStorers) {
+                storer.unlockWrites();
+            }
+            for (WriteAheadLog log : lockedLogs) {
+                log.unlockCommits();
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Backs the storers up into the next directory of the chain in the backup directory. The backup is an increment
+     * when the last backup holds exactly these storers at the snapshots the new ones build on, a full copy otherwise,
+     * for example after a storer was reopened or compacted.
+     *
+     * @return the directory of the new backup.
+     * @throws IOException
+     */
+    public static File backup(File backupDir, List<FlatFileStorer<?>> storers) throws IOException {
+        long start = System.nanoTime();
+        List<StorerSnapshot<?>> snapshots = snapshot(storers);
+        try {
+            deleteIncompleteBackups(backupDir);
+            List<File> backups = getBackups(backupDir);
+            boolean incremental = !backups.isEmpty() && buildsOn(snapshots, readManifest(last(backups)));
+            File dir = new File(backupDir, String.format("%06d", backups.size() + 1)
+                    + (incremental ? INCREMENTAL_SUFFIX : FULL_SUFFIX));
+            long records = 0;
+            for (StorerSnapshot<?> snapshot : snapshots) {
+                if (incremental) {
+                    records += snapshot.writeIncrement(dir);
+                } else {
+                    snapshot.writeFull(dir);
+                    records += snapshot.getRecordCount();
+                }
+            }
+            writeManifest(dir, incremental ? KIND_INCREMENTAL : KIND_FULL, snapshots);
+            System.out.println("Backed up " + records + " record(s) of " + snapshots.size() + " storer(s) into '"
+                    + dir.getName() + "' in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return dir;
+        } finally {
+            for (StorerSnapshot<?> snapshot : snapshots) {
+                snapshot.close();
+            }
+        }
+    }
+
+    /**
+     * Backs up the storers the supplier returns into the backup directory every interval on a thread of its own, until
+     * the returned schedule is closed. A failed backup is reported and the next one is tried at its time, closing the
+     * schedule lets a running backup finish.
+     *
+     * @param storers asked before every backup, storers opened since the last one are backed up in full.
+     */
+    public static Closeable schedule(File backupDir, Supplier<List<FlatFileStorer<?>>> storers, long intervalMillis) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "storer-backup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                List<FlatFileStorer<?>> backedUp = storers.get();
+                if (!backedUp.isEmpty()) {
+                    backup(backupDir, backedUp);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Scheduled backup into '" + backupDir + "' failed: " + e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        return executor::shutdown;
+    }
+
+    private static boolean buildsOn(List<StorerSnapshot<?>> snapshots, Map<String, Entry> last) {
+        if (snapshots.size() != last.size()) {
+            return false;
+        }
+        for (StorerSnapshot<?> snapshot : snapshots) {
+            Entry entry = last.get(snapshot.getObjectFileName());
+            if (null == entry || 0 == snapshot.getParentId() || entry.snapshotId != snapshot.getParentId()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The complete backups in the backup directory, in order.
+     */
+    public static List<File> getBackups(File backupDir) {
+        List<File> backups = new ArrayList<>();
+        File[] dirs = backupDir.listFiles(file -> file.isDirectory() && new File(file, MANIFEST).exists());
+        if (null != dirs) {
+            backups.addAll(Arrays.asList(dirs));
+            backups.sort((a, b) -> a.getName().compareTo(b.getName()));
+        }
+        return backups;
+    }
+
+    /**
+     * Restores the storage of the storers of the last backup in the backup directory into the target directory, from
+     * the last full backup and the increments after it. The storers must not be open on the target directory.
+     *
+     * @throws IOException
+     */
+    public static void restore(File backupDir, File targetDir) throws IOException {
+        List<File> backups = getBackups(backupDir);
+        if (backups.isEmpty()) {
+            throw new IOException("No complete backup in '" + backupDir + "'");
+        }
+        restore(backups, backups.size() - 1, targetDir);
+    }
+
+    /**
+     * Restores the storage as of the given backup, which has to be one of the backup directory.
+     *
+     * @throws IOException
+     */
+    public static void restore(File backupDir, String backupName, File targetDir) throws IOException {
+        List<File> backups = getBackups(backupDir);
+        for (int i = 0; i < backups.size(); i++) {
+            if (backups.get(i).getName().equals(backupName)) {
+                restore(backups, i, targetDir);
+                return;
+            }
+        }
+        throw new IOException("No complete backup '" + backupName + "' in '" + backupDir + "'");
+    }
+
+    private static void restore(List<File> backups, int last, File targetDir) throws IOException {
+        int full = last;
+        while (full >= 0 && !backups.get(full).getName().endsWith(FULL_SUFFIX)) {
+            full--;
+        }
+        if (full < 0) {
+            throw new IOException("No full backup before '" + backups.get(last).getName() + "'");
+        }
+        long start = System.nanoTime();
+        Files.createDirectories(targetDir.toPath());
+        Map<String, Entry> entries = readManifest(backups.get(full));
+        for (Entry entry : entries.values()) {
+            deleteStorerFiles(targetDir, entry);
+        }
+        copyFiles(backups.get(full), targetDir);
+        for (int i = full + 1; i <= last; i++) {
+            File increment = backups.get(i);
+            Map<String, Entry> incrementEntries = readManifest(increment);
+            for (Entry entry : incrementEntries.values()) {
+                Entry parent = entries.get(entry.objectFileName);
+                if (null == parent || parent.snapshotId != entry.parentId) {
+                    throw new IOException("'" + increment.getName() + "' does not build on the backup before it for '"
+                            + entry.objectFileName + "'");
+                }
+                StorerSnapshot.applyIncrement(new File(increment, entry.objectFileName + StorerSnapshot.INCREMENT_SUFFIX),
+                        new File(targetDir, entry.objectFileName));
+                deleteMetaFiles(targetDir, entry);
+            }
+            copyFiles(increment, targetDir);
+            entries = incrementEntries;
+        }
+        long records = 0;
+        for (Entry entry : entries.values()) {
+            if (new File(targetDir, entry.objectFileName).length() != entry.objectFileEnd) {
+                throw new IOException("The restored '" + entry.objectFileName + "' is not as long as at the snapshot");
+            }
+            records += entry.records;
+        }
+        System.out.println("Restored " + records + " record(s) of " + entries.size() + " storer(s) as of '"
+                + backups.get(last).getName() + "' from " + (last - full) + " increment(s) in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Copies the files of a backup but its manifest and increments.
+     */
+    private static void copyFiles(File backup, File targetDir) throws IOException {
+        File[] files = backup.listFiles(file -> file.isFile() && !MANIFEST.equals(file.getName())
+                && !file.getName().endsWith(StorerSnapshot.INCREMENT_SUFFIX));
+        for (File file : files) {
+            Files.copy(file.toPath(), new File(targetDir, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Deletes what a storer keeps next to its object file, so that nothing of the storage that is replaced is mixed
+     * into the restored one. The secondary indexes are rebuilt when the storer is opened.
+     */
+    private static void deleteStorerFiles(File targetDir, Entry entry) throws IOException {
+        File objectFile = new File(targetDir, entry.objectFileName);
+        for (long generation : MetaJournal.listGenerations(objectFile)) {
+            Files.delete((0 == generation ? objectFile : new File(objectFile.getPath() + "." + generation)).toPath());
+        }
+        for (String suffix : new String[] {".delta", ".dict", ".compact"}) {
+            Files.deleteIfExists(new File(objectFile.getPath() + suffix).toPath());
+        }
+        deleteMetaFiles(targetDir, entry);
+    }
+
+    private static void deleteMetaFiles(File targetDir, Entry entry) throws IOException {
+        File[] metaFiles = targetDir.listFiles(file -> file.getName().equals(entry.metaFileName)
+                || file.getName().startsWith(entry.metaFileName + "."));
+        for (File metaFile : metaFiles) {
+            Files.delete(metaFile.toPath());
+        }
+    }
+
+    private static void writeManifest(File dir, byte kind, List<StorerSnapshot<?>> snapshots) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeByte(kind);
+        out.writeInt(snapshots.size());
+        for (StorerSnapshot<?> snapshot : snapshots) {
+            out.writeUTF(snapshot.getObjectFileName());
+            out.writeUTF(snapshot.getMetaFileName());
+            out.writeLong(snapshot.getId());
+            out.writeLong(snapshot.getParentId());
+            out.writeLong(snapshot.getObjectFileEnd());
+            out.writeInt(snapshot.getRecordCount());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        // the backup is complete once its manifest is in place
+        File written = new File(dir, MANIFEST + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(written)) {
+            bytes.writeTo(file);
+            file.getChannel().force(true);
+        }
+        Files.move(written.toPath(), new File(dir, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The entries of the manifest of a backup by object file name, in the order the storers were backed up.
+     */
+    private static Map<String, Entry> readManifest(File backup) throws IOException {
+        File manifest = new File(backup, MANIFEST);
+        byte[] bytes = Files.readAllBytes(manifest.toPath());
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, Math.max(0, bytes.length - 4));
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (MAGIC != in.readInt() || VERSION != in.readInt()) {
+                throw new IOException("'" + manifest + "' is not a backup manifest");
+            }
+            in.readByte();
+            int count = in.readInt();
+            Map<String, Entry> entries = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readUTF(), in.readUTF(), in.readLong(), in.readLong(), in.readLong(),
+                        in.readInt());
+                entries.put(entry.objectFileName, entry);
+            }
+            if ((int) crc.getValue() != in.readInt()) {
+                throw new IOException("'" + manifest + "' is corrupt");
+            }
+            return entries;
+        }
+    }
+
+    private static File last(List<File> files) {
+        return files.get(files.size() - 1);
+    }
+
+    /**
+     * Deletes the backups an interrupted {@link #backup} left without a manifest.
+     */
+    private static void deleteIncompleteBackups(File backupDir) throws IOException {
+        File[] dirs = backupDir.listFiles(file -> file.isDirectory() && !new File(file, MANIFEST).exists()
+                && (file.getName().endsWith(FULL_SUFFIX) || file.getName().endsWith(INCREMENTAL_SUFFIX)));
+        if (null != dirs) {
+            for (File dir : dirs) {
+                deleteDirectory(dir);
+            }
+        }
+    }
+
+    private static void deleteDirectory(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(dir.toPath());
+    }
+}
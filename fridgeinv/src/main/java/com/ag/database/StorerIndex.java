@@ -0,0 +1,60 @@
+package com.ag.database;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A secondary structure derived from the objects of a {@link FlatFileStorer}, kept up to date by the storer on every
+ * save and delete. Indexes are written next to the meta file when the storer is closed and rebuilt from a scan of all
+ * objects when that file is missing or does not belong to the current state of the storer.
+ * <p>
+ * See {@link HashIndex} for equality lookups and {@link BTreeIndex} for range queries.
+ */
+public interface StorerIndex<T> {
+
+    /**
+     * The name of the index, unique within its storer and used to name its file.
+     */
+    public abstract String getName();
+
+    /**
+     * Called after the object with the given id was saved, replacing whatever was indexed for the id before.
+     *
+     * @param id
+     * @param object the saved object.
+     */
+    public abstract void update(long id, T object);
+
+    /**
+     * Called after the object with the given id was deleted.
+     *
+     * @param id
+     */
+    public abstract void remove(long id);
+
+    /**
+     * Drops all indexed entries.
+     */
+    public abstract void clear();
+
+    /**
+     * Writes the index to the file, called when the storer is closed.
+     *
+     * @param file
+     * @param fingerprint identifies the state of the storer the index reflects, handed back to {@link #read}.
+     * @throws IOException
+     */
+    public abstract void write(File file, long fingerprint) throws IOException;
+
+    /**
+     * Replaces the index with the one in the file, called when the storer is opened. A file that was read must not be
+     * accepted again before the next {@link #write}, so that an index changed by a storer that crashed is rebuilt.
+     *
+     * @param file
+     * @param fingerprint the state of the storer the index has to reflect.
+     * @return false when the file does not exist, cannot be read or was written for another fingerprint, in which case
+     *         the index has to be rebuilt.
+     * @throws IOException
+     */
+    public abstract boolean read(File file, long fingerprint) throws IOException;
+}
@@ -0,0 +1,235 @@
+package com.ag.database;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The records of a {@link FlatFileStorer} at the point {@link FlatFileStorer#snapshot} was called: the length of the
+ * object file and a copy of its index. While the snapshot is open the storer leaves the records it refers to alone, so
+ * they are copied out of the live object file without holding up writers. Close it as soon as it is written.
+ * <p>
+ * A snapshot is written as a full copy, an object file and meta information the storer opens like its own, or as an
+ * increment on top of the previous snapshot of the same storer. An increment only holds the records saved since then,
+ * which are the records appended to the object file as well as those written into reused space, in a file of:
+ * <pre>
+ * MAGIC (4) | version (4) | object file length (8) | count (4)
+ * count times: id (8) | position (8) | size (8) | record
+ * </pre>
+ * together with the full meta information, which also tells which records were deleted since.
+ */
+public class StorerSnapshot<T extends Storable> implements Closeable {
+
+    static final int INCREMENT_MAGIC = 0x41474249; // "AGBI"
+    static final int INCREMENT_VERSION = 1;
+    static final String INCREMENT_SUFFIX = ".incr";
+
+    private static final int INCREMENT_HEADER_BYTES = 20;
+    private static final int RECORD_HEADER_BYTES = 24;
+
+    private final FlatFileStorer<T> storer;
+    private final long id;
+    private final long parentId;
+    private final long objectFileEnd;
+    private final LongIndexTable index;
+    private final LongIndexTable savedIds;
+    private final byte[] dictionary;
+    private boolean closed;
+
+    StorerSnapshot(FlatFileStorer<T> storer, long id, long parentId, long objectFileEnd, LongIndexTable index,
+            LongIndexTable savedIds, byte[] dictionary) {
+        this.storer = storer;
+        this.id = id;
+        this.parentId = parentId;
+        this.objectFileEnd = objectFileEnd;
+        this.index = index;
+        this.savedIds = savedIds;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Identifies the snapshot, ids of the snapshots of a storer grow.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * The id of the snapshot this one can be written as an increment of, 0 when it has to be written in full because
+     * there was none since the storer was opened or compacted.
+     */
+    public long getParentId() {
+        return parentId;
+    }
+
+    public long getObjectFileEnd() {
+        return objectFileEnd;
+    }
+
+    public int getRecordCount() {
+        return index.size();
+    }
+
+    /**
+     * The name of the object file of the storer, which names the files of the snapshot.
+     */
+    public String getObjectFileName() {
+        return storer.getObjectFile().getName();
+    }
+
+    public String getMetaFileName() {
+        return storer.getMetaInfoFile().getName();
+    }
+
+    /**
+     * Copies the object file up to its length at the snapshot, its meta information and compression dictionaries into
+     * the directory, which a storer can then be opened on.
+     *
+     * @throws IOException
+     */
+    public void writeFull(File dir) throws IOException {
+        checkOpen();
+        Files.createDirectories(dir.toPath());
+        try (FileChannel target = FileChannel.open(new File(dir, getObjectFileName()).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            storer.transferObjectBytes(0, objectFileEnd, target);
+            target.force(true);
+        }
+        writeMetaInfo(dir);
+    }
+
+    /**
+     * Writes the records saved since the parent snapshot and the meta information into the directory, see
+     * {@link #applyIncrement} to put them back on top of the copy of the parent.
+     *
+     * @return the number of records written.
+     * @throws IllegalStateException there is no parent snapshot.
+     * @throws IOException
+     */
+    public int writeIncrement(File dir) throws IOException {
+        checkOpen();
+        if (0 == parentId) {
+            throw new IllegalStateException("'" + getObjectFileName() + "' has no snapshot to write an increment of");
+        }
+        Files.createDirectories(dir.toPath());
+        // the saved records that were not deleted since, read in file order
+        LongIndexTable saved = new LongIndexTable(savedIds.size());
+        savedIds.forEach((savedId, unused, none) -> {
+            int slot = index.slotOf(savedId);
+            if (slot >= 0) {
+                saved.put(savedId, index.positionAt(slot), index.sizeAt(slot));
+            }
+        });
+        long[][] records = saved.sortedByPosition();
+        try (FileChannel target = FileChannel.open(new File(dir, getObjectFileName() + INCREMENT_SUFFIX).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(INCREMENT_HEADER_BYTES);
+            header.putInt(INCREMENT_MAGIC).putInt(INCREMENT_VERSION).putLong(objectFileEnd).putInt(records[0].length);
+            writeFully(target, header);
+            ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+            for (int i = 0; i < records[0].length; i++) {
+                recordHeader.clear();
+                recordHeader.putLong(records[0][i]).putLong(records[1][i]).putLong(records[2][i]);
+                writeFully(target, recordHeader);
+                storer.transferObjectBytes(records[1][i], records[2][i], target);
+            }
+            target.force(true);
+        }
+        writeMetaInfo(dir);
+        return records[0].length;
+    }
+
+    private void writeMetaInfo(File dir) throws IOException {
+        File metaFile = new File(dir, getMetaFileName());
+        Files.deleteIfExists(metaFile.toPath());
+        Files.deleteIfExists(new File(metaFile.getPath() + ".journal").toPath());
+        try (MetaJournal journal = new MetaJournal(metaFile)) {
+            // a snapshot of the copied index, with an empty journal
+            journal.open(new LongIndexTable());
+            journal.reset(index);
+            journal.force();
+        }
+        if (null != dictionary) {
+            Files.write(new File(dir, getObjectFileName() + ".dict").toPath(), dictionary);
+        }
+    }
+
+    /**
+     * Writes the records of an increment written by {@link #writeIncrement} into the object file they were taken from,
+     * which has to be the copy of the parent snapshot with all increments up to this one applied, and sets its length.
+     *
+     * @throws IOException
+     */
+    public static void applyIncrement(File increment, File objectFile) throws IOException {
+        try (FileChannel source = FileChannel.open(increment.toPath(), StandardOpenOption.READ);
+                FileChannel target = FileChannel.open(objectFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = readFully(source, INCREMENT_HEADER_BYTES);
+            if (INCREMENT_MAGIC != header.getInt() || INCREMENT_VERSION != header.getInt()) {
+                throw new IOException("'" + increment.getName() + "' is not an increment");
+            }
+            long objectFileEnd = header.getLong();
+            int count = header.getInt();
+            for (int i = 0; i < count; i++) {
+                ByteBuffer recordHeader = readFully(source, RECORD_HEADER_BYTES);
+                recordHeader.getLong();
+                long position = recordHeader.getLong();
+                long size = recordHeader.getLong();
+                long transferred = 0;
+                while (transferred < size) {
+                    long copied = target.transferFrom(source, position + transferred, size - transferred);
+                    if (copied <= 0) {
+                        throw new IOException("'" + increment.getName() + "' is cut off");
+                    }
+                    transferred += copied;
+                }
+            }
+            if (target.size() > objectFileEnd) {
+                target.truncate(objectFileEnd);
+            } else if (target.size() < objectFileEnd) {
+                // the end of the file is a hole, its bytes do not matter
+                writeFully(target.position(objectFileEnd - 1), ByteBuffer.allocate(1).put((byte) 0));
+            }
+            target.force(true);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, int bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of increment");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The snapshot of '" + getObjectFileName() + "' is closed");
+        }
+    }
+
+    /**
+     * Lets the storer reuse the space of the records of this snapshot again.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            storer.releaseSnapshot();
+        }
+    }
+}
@@ -1,28 +1,68 @@
 package com.ag.database;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.ag.DynamicObject;
 import com.ag.Network.Server;
 
+/**
+ * Hands out unique keys per class with hi/lo allocation: a block of keys is reserved per class with a single durable
+ * write of the key file, and keys are then taken from the block without locking or disk I/O.
+ * <p>
+ * The key file holds the first key after the reserved blocks of each class, so keys of a block that was not used up
+ * before a crash are skipped, never handed out twice.
+ */
 public class SurrogateKeyManager {
 
     private static final long SURROGATE_KEY_FIRST_KEY = 1;
+    public static final int DEFAULT_BLOCK_SIZE = 1000;
 
     private final File keyFile;
-    private Map<String, Long> surrogateKeys;
+    private final int blockSize;
+    // the first key after the reserved blocks of each class, as persisted in the key file
+    private final Map<String, Long> surrogateKeys;
+    private final Map<String, KeyBlock> blocks = new ConcurrentHashMap<>();
 
     private static SurrogateKeyManager instance;
 
-    @SuppressWarnings("unchecked")
+    /**
+     * A reserved range of keys, the next key is taken with a single atomic increment.
+     */
+    private static final class KeyBlock {
+        private final AtomicLong next;
+        private final long end;
+
+        private KeyBlock(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
     private SurrogateKeyManager() {
-        keyFile = new File(Server.ROOT_DIRECTORY + (String) Server.config.getConfig(SurrogateKeyManager.class, "path"));
+        this(new File(Server.ROOT_DIRECTORY + (String) Server.config.getConfig(SurrogateKeyManager.class, "path")),
+                getConfiguredBlockSize());
+    }
+
+    /**
+     * @param keyFile the file the reserved blocks are persisted to.
+     * @param blockSize the number of keys reserved per write of the key file.
+     */
+    @SuppressWarnings("unchecked")
+    public SurrogateKeyManager(File keyFile, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        this.keyFile = keyFile;
+        this.blockSize = blockSize;
         if (keyFile.exists()) {
             try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(keyFile))) {
                 surrogateKeys = (Map<String, Long>) ois.readObject();
@@ -34,23 +74,67 @@ public class SurrogateKeyManager {
         }
     }
 
-    public static SurrogateKeyManager getInstance() {
+    private static int getConfiguredBlockSize() {
+        DynamicObject config = Server.config.getConfig(SurrogateKeyManager.class);
+        return config.getAsIntegerOrDefault("blockSize", DEFAULT_BLOCK_SIZE);
+    }
+
+    public static synchronized SurrogateKeyManager getInstance() {
         if (null == instance) {
             instance = new SurrogateKeyManager();
         }
         return instance;
     }
 
-    public synchronized long nextKey(Class<?> cls) {
-        long surrogate = surrogateKeys.getOrDefault(cls.getSimpleName(), SURROGATE_KEY_FIRST_KEY);
-        surrogateKeys.put(cls.getSimpleName(), surrogate + 1);
-        saveKeys();
-        return surrogate;
+    public long nextKey(Class<?> cls) {
+        String name = cls.getSimpleName();
+        KeyBlock block = blocks.get(name);
+        if (null != block) {
+            long key = block.next.getAndIncrement();
+            if (key < block.end) {
+                return key;
+            }
+        }
+        return nextKeyFromNewBlock(name);
     }
 
+    /**
+     * Reserves a new block once the current one is used up. Callers that raced for the same block take their keys from
+     * the block the first of them reserved.
+     */
+    private synchronized long nextKeyFromNewBlock(String name) {
+        KeyBlock block = blocks.get(name);
+        if (null != block) {
+            long key = block.next.getAndIncrement();
+            if (key < block.end) {
+                return key;
+            }
+        }
+        long start = surrogateKeys.getOrDefault(name, SURROGATE_KEY_FIRST_KEY);
+        long end = start + blockSize;
+        surrogateKeys.put(name, end);
+        try {
+            saveKeys();
+        } catch (RuntimeException e) {
+            // the block is not durable, it must not be handed out
+            surrogateKeys.put(name, start);
+            throw e;
+        }
+        block = new KeyBlock(start + 1, end);
+        blocks.put(name, block);
+        return start;
+    }
+
+    /**
+     * Writes the key file to a temporary file, forces it to disk and moves it over the previous one.
+     */
     private void saveKeys() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(keyFile, false))) {
-            oos.writeObject(surrogateKeys);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(surrogateKeys);
+            }
+            IndexFiles.writeAtomically(keyFile, bytes.toByteArray());
         } catch (IOException e) {
             throw new RuntimeException("FATAL: Failed to properly persist surrogate keys", e);
         }
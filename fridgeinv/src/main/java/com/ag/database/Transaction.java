@@ -0,0 +1,115 @@
+package com.ag.database;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Saves and deletes on one or more storers registered with a {@link WriteAheadLog}, committed as a single record of the
+ * log so that after a crash either all of them or none are found.
+ * <p>
+ * Objects are encoded when they are added, changing them afterwards does not change the transaction. A
+ * {@link CachingStorer} may be passed for its storer, its cached objects are dropped on commit, and a
+ * {@link ShardedStorer} for the shards of the objects. Not thread safe, each transaction belongs to the thread that
+ * began it.
+ */
+public class Transaction {
+
+    private final WriteAheadLog log;
+    private final List<WriteAheadLog.Change> changes = new ArrayList<>();
+    private final List<CachingStorer<?>> cachingStorers = new ArrayList<>();
+    private final List<Long> cachedIds = new ArrayList<>();
+    private boolean committed;
+
+    Transaction(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    public <T extends Storable> Transaction save(Storer<T> storer, T object) throws IOException {
+        FlatFileStorer<?> target = resolve(storer, object.getId());
+        changes.add(new WriteAheadLog.Change(target.getLogName(), WriteAheadLog.OP_PUT, object.getId(),
+                encode(target, object)));
+        return this;
+    }
+
+    public <T extends Storable> Transaction saveAll(Storer<T> storer, List<T> objects) throws IOException {
+        for (T object : objects) {
+            save(storer, object);
+        }
+        return this;
+    }
+
+    /**
+     * Sets a single field of a saved object, see {@link Storer#update}. The object is not checked to exist.
+     */
+    public <T extends Storable> Transaction update(Storer<T> storer, long id, String field, Object value) {
+        FlatFileStorer<?> target = resolve(storer, id);
+        changes.add(new WriteAheadLog.Change(target.getLogName(), WriteAheadLog.OP_UPDATE, id,
+                target.encodeUpdate(field, value)));
+        return this;
+    }
+
+    public <T extends Storable> Transaction delete(Storer<T> storer, long id) {
+        FlatFileStorer<?> target = resolve(storer, id);
+        changes.add(new WriteAheadLog.Change(target.getLogName(), WriteAheadLog.OP_DELETE, id, null));
+        return this;
+    }
+
+    public <T extends Storable> Transaction deleteAll(Storer<T> storer, List<Long> ids) {
+        for (Long id : ids) {
+            delete(storer, id);
+        }
+        return this;
+    }
+
+    /**
+     * The number of saves and deletes added so far.
+     */
+    public int size() {
+        return changes.size();
+    }
+
+    /**
+     * Logs all changes with a single append and applies them to their storers.
+     *
+     * @throws IOException when the log could not be written, nothing was applied then, or when it could not be forced,
+     *             the changes were applied but may be lost by a crash.
+     */
+    public void commit() throws IOException {
+        if (committed) {
+            throw new IllegalStateException("Transaction was already committed");
+        }
+        committed = true;
+        try {
+            log.commit(changes);
+        } finally {
+            for (int i = 0; i < cachingStorers.size(); i++) {
+                cachingStorers.get(i).getCache().invalidate(cachedIds.get(i));
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static byte[] encode(FlatFileStorer target, Storable object) throws IOException {
+        return target.encodeRecord(object);
+    }
+
+    private FlatFileStorer<?> resolve(Storer<?> storer, long id) {
+        if (committed) {
+            throw new IllegalStateException("Transaction was already committed");
+        }
+        Storer<?> target = storer;
+        if (target instanceof CachingStorer) {
+            cachingStorers.add((CachingStorer<?>) target);
+            cachedIds.add(id);
+            target = ((CachingStorer<?>) target).getStorer();
+        }
+        if (target instanceof ShardedStorer) {
+            target = ((ShardedStorer<?>) target).shardFor(id);
+        }
+        if (!(target instanceof FlatFileStorer) || ((FlatFileStorer<?>) target).getWriteAheadLog() != log) {
+            throw new IllegalArgumentException("Storer is not registered with this write-ahead log");
+        }
+        return (FlatFileStorer<?>) target;
+    }
+}
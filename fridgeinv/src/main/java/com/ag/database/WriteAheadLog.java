@@ -0,0 +1,533 @@
+package com.ag.database;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import com.ag.DynamicObject;
+import com.ag.Network.Server;
+
+/**
+ * A redo log shared by several {@link FlatFileStorer}s, so that the changes of a {@link Transaction} to any of them are
+ * applied completely or not at all, even across a crash.
+ * <p>
+ * A commit appends one record holding the encoded objects of every change, and applies the changes to the storers once
+ * the record is as durable as the {@link FlatFileStorer.Durability} of the log asks for. The storers' own files are not
+ * forced per commit: a crash is recovered by redoing the committed records of each storer when it is registered again.
+ * Replaying a change writes the same record again, so records that were applied before the crash do no harm. A
+ * checkpoint forces all storers and empties the log.
+ * <p>
+ * Changes are applied to the storers in the order they were logged. Transactions are atomic and durable but not
+ * isolated: a reader may see the changes to one storer before those to another.
+ */
+public class WriteAheadLog implements Closeable {
+
+    public static final long DEFAULT_CHECKPOINT_BYTES = 16L * 1024 * 1024;
+
+    private static final int RECORD_MAGIC = 0x4147574C; // "AGWL"
+    // magic, payload length
+    private static final int RECORD_HEADER_BYTES = 4 + 4;
+    private static final int RECORD_CRC_BYTES = 4;
+
+    static final byte OP_PUT = 1;
+    static final byte OP_DELETE = 2;
+    static final byte OP_UPDATE = 3;
+
+    private static WriteAheadLog instance;
+
+    /**
+     * A single logged change of a storer.
+     */
+    static final class Change {
+        final String storer;
+        final byte op;
+        final long id;
+        // the encoded object of a put, or the encoded field and value of an update
+        final byte[] record;
+
+        Change(String storer, byte op, long id, byte[] record) {
+            this.storer = storer;
+            this.op = op;
+            this.id = id;
+            this.record = record;
+        }
+    }
+
+    private final File file;
+    private long checkpointBytes = DEFAULT_CHECKPOINT_BYTES;
+    private FlatFileStorer.Durability durability = FlatFileStorer.Durability.BATCH;
+    private long syncLatencyMillis;
+
+    // serializes appends, registration and checkpoints
+    private final ReentrantLock commitLock = new ReentrantLock();
+    // held while forcing the log, and while it is truncated or closed
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final GroupCommitter groupCommitter = new GroupCommitter(this::force);
+    private FileChannel channel;
+    private long logSize;
+    private long appended;
+    private final CRC32 crc = new CRC32();
+
+    // read by committers applying their changes without the commit lock
+    private final Map<String, FlatFileStorer<?>> storers = new ConcurrentHashMap<>();
+    // committed changes of storers that were not registered since the log was opened
+    private final Map<String, List<Change>> pendingRedo = new LinkedHashMap<>();
+
+    // the number of the next commit to apply, commits are numbered in log order
+    private final Object applyMonitor = new Object();
+    private long nextToApply = 1;
+
+    public WriteAheadLog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the log configured for the server, opened on first use.
+     */
+    public static synchronized WriteAheadLog getInstance() {
+        if (null == instance) {
+            DynamicObject config = Server.config.getConfig(WriteAheadLog.class);
+            WriteAheadLog log = new WriteAheadLog(new File(Server.ROOT_DIRECTORY + (String) config.get("path")));
+            String durability = (String) config.getOrDefault("durability", null);
+            if (null != durability) {
+                log.setDurability(FlatFileStorer.Durability.valueOf(durability.toUpperCase()),
+                        config.getAsLongOrDefault("syncLatencyMillis", 0L));
+            }
+            log.setCheckpointBytes(config.getAsLongOrDefault("checkpointBytes", DEFAULT_CHECKPOINT_BYTES));
+            try {
+                log.open();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open the write-ahead log '" + log.file + "'", e);
+            }
+            instance = log;
+        }
+        return instance;
+    }
+
+    /**
+     * Sets when commits are forced to disk, see {@link FlatFileStorer#setDurability}. Defaults to
+     * {@link FlatFileStorer.Durability#BATCH} without a window. Must be called before {@link #open}.
+     */
+    public void setDurability(FlatFileStorer.Durability durability, long maxLatencyMillis) {
+        if (FlatFileStorer.Durability.ASYNC == durability && maxLatencyMillis <= 0) {
+            throw new IllegalArgumentException("Invalid max latency for " + durability + ": " + maxLatencyMillis);
+        }
+        this.durability = durability;
+        this.syncLatencyMillis = maxLatencyMillis;
+    }
+
+    /**
+     * Sets the log size after which the storers are forced and the log is emptied. Must be called before {@link #open}.
+     */
+    public void setCheckpointBytes(long checkpointBytes) {
+        this.checkpointBytes = checkpointBytes;
+    }
+
+    /**
+     * Opens the log and reads the committed changes, which are redone when their storers are registered.
+     *
+     * @throws IOException
+     */
+    public void open() throws IOException {
+        commitLock.lock();
+        try {
+            Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            logSize = readLog();
+            if (channel.size() > logSize) {
+                // drop a torn tail, the commit it belonged to never returned
+                channel.truncate(logSize);
+            }
+            if (FlatFileStorer.Durability.ASYNC == durability) {
+                groupCommitter.startBackgroundSync(syncLatencyMillis, TimeUnit.MILLISECONDS);
+            } else {
+                groupCommitter.setLatency(syncLatencyMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Routes all writes of the opened storer through this log, after redoing its committed changes from before a crash.
+     *
+     * @param name identifies the storer in the log, must stay the same across restarts.
+     * @param storer
+     * @throws IOException
+     */
+    public void register(String name, FlatFileStorer<?> storer) throws IOException {
+        commitLock.lock();
+        try {
+            FlatFileStorer<?> registered = storers.get(name);
+            if (null != registered && registered != storer) {
+                throw new IllegalArgumentException("Another storer is registered as '" + name + "'");
+            }
+            storers.put(name, storer);
+            storer.attach(this, name);
+            List<Change> redo = pendingRedo.remove(name);
+            if (null != redo) {
+                System.out.println("Redoing " + redo.size() + " change(s) of '" + name + "' from the write-ahead log");
+                storer.applyChanges(redo);
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a transaction on the storers registered with this log.
+     */
+    public Transaction begin() {
+        return new Transaction(this);
+    }
+
+    /**
+     * Computes the changes of a commit from what the storers hold, see {@link #commitComputed}.
+     */
+    interface ChangeSource {
+        List<Change> changes() throws IOException;
+    }
+
+    /**
+     * Logs the changes with a single append and applies them to their storers.
+     *
+     * @throws IOException
+     */
+    void commit(List<Change> changes) throws IOException {
+        if (changes.isEmpty()) {
+            return;
+        }
+        commit(() -> changes, false);
+    }
+
+    /**
+     * Computes changes and commits them like {@link #commit(List)} as a single step: every commit logged before is
+     * applied before the changes are computed, and no other commit is logged until they are. For a read-modify-write
+     * such as an increment, which would otherwise lose a save or update of the same object logged meanwhile.
+     *
+     * @throws IOException
+     */
+    void commitComputed(ChangeSource source) throws IOException {
+        commit(source, true);
+    }
+
+    private void commit(ChangeSource source, boolean readsStorers) throws IOException {
+        List<Change> changes;
+        long write;
+        commitLock.lock();
+        try {
+            if (null == channel) {
+                throw new IOException("The write-ahead log '" + file.getName() + "' is not open");
+            }
+            if (readsStorers) {
+                awaitApplied();
+            }
+            changes = source.changes();
+            if (changes.isEmpty()) {
+                return;
+            }
+            for (Change change : changes) {
+                if (!storers.containsKey(change.storer)) {
+                    throw new IllegalStateException("No storer is registered as '" + change.storer + "'");
+                }
+            }
+            append(changes);
+            write = groupCommitter.written();
+            appended = write;
+            if (FlatFileStorer.Durability.WRITE == durability) {
+                force();
+                groupCommitter.markSynced();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+
+        IOException syncFailure = null;
+        if (FlatFileStorer.Durability.BATCH == durability) {
+            try {
+                groupCommitter.awaitSynced(write);
+            } catch (IOException e) {
+                // the record is in the log, so the changes are applied like those of every other record
+                syncFailure = e;
+            }
+        }
+        apply(write, changes);
+        if (null != syncFailure) {
+            throw new IOException("Transaction was applied but may not be durable", syncFailure);
+        }
+        if (getLogSize() >= checkpointBytes) {
+            checkpoint();
+        }
+    }
+
+    private void append(List<Change> changes) throws IOException {
+        RecordBuffer record = new RecordBuffer();
+        record.writeInt(RECORD_MAGIC).writeInt(0).writeInt(changes.size());
+        for (Change change : changes) {
+            record.writeString(change.storer).writeByte(change.op).writeLong(change.id);
+            if (OP_DELETE != change.op) {
+                record.writeInt(change.record.length).write(change.record, 0, change.record.length);
+            }
+        }
+        ByteBuffer buffer = record.toByteBuffer();
+        buffer.putInt(4, buffer.remaining() - RECORD_HEADER_BYTES);
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+        ByteBuffer checksum = ByteBuffer.allocate(RECORD_CRC_BYTES).putInt((int) crc.getValue());
+        checksum.flip();
+        long position = logSize;
+        for (ByteBuffer part : new ByteBuffer[] {buffer, checksum}) {
+            while (part.hasRemaining()) {
+                position += channel.write(part, position);
+            }
+        }
+        logSize = position;
+    }
+
+    /**
+     * Applies the changes of the commit with the given number once all earlier commits are applied.
+     */
+    private void apply(long write, List<Change> changes) throws IOException {
+        boolean interrupted = false;
+        synchronized (applyMonitor) {
+            while (nextToApply != write) {
+                try {
+                    applyMonitor.wait();
+                } catch (InterruptedException e) {
+                    // later commits wait for this one, so it is applied regardless
+                    interrupted = true;
+                }
+            }
+        }
+        try {
+            Map<String, List<Change>> byStorer = new LinkedHashMap<>();
+            for (Change change : changes) {
+                byStorer.computeIfAbsent(change.storer, name -> new ArrayList<>()).add(change);
+            }
+            for (Map.Entry<String, List<Change>> storerChanges : byStorer.entrySet()) {
+                storers.get(storerChanges.getKey()).applyChanges(storerChanges.getValue());
+            }
+        } finally {
+            synchronized (applyMonitor) {
+                nextToApply++;
+                applyMonitor.notifyAll();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void force() throws IOException {
+        syncLock.lock();
+        try {
+            if (null != channel) {
+                channel.force(false);
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private long getLogSize() {
+        commitLock.lock();
+        try {
+            return logSize;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Forces every registered storer and empties the log. Skipped while the log holds changes of storers that were not
+     * registered again since a crash.
+     *
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+        commitLock.lock();
+        try {
+            if (null == channel || !pendingRedo.isEmpty()) {
+                return;
+            }
+            awaitApplied();
+            for (FlatFileStorer<?> storer : storers.values()) {
+                storer.sync();
+            }
+            syncLock.lock();
+            try {
+                channel.truncate(0);
+                channel.force(false);
+                logSize = 0;
+                groupCommitter.markSynced();
+            } finally {
+                syncLock.unlock();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every logged commit is applied. Must hold the commit lock, so that no new one is logged.
+     */
+    private void awaitApplied() {
+        boolean interrupted = false;
+        synchronized (applyMonitor) {
+            while (nextToApply <= appended) {
+                try {
+                    applyMonitor.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Holds up new commits and waits until the logged ones are applied, so that every transaction is either applied to
+     * all of its storers or none of them until {@link #unlockCommits}. For snapshots of several storers.
+     */
+    void lockCommits() {
+        commitLock.lock();
+        awaitApplied();
+    }
+
+    void unlockCommits() {
+        commitLock.unlock();
+    }
+
+    /**
+     * The number of bytes logged since the last checkpoint.
+     */
+    public long getSize() {
+        return getLogSize();
+    }
+
+    /**
+     * The number of forces made by group commits and background syncs.
+     */
+    public long getGroupCommits() {
+        return groupCommitter.getSyncs();
+    }
+
+    /**
+     * Checkpoints and closes the log. The registered storers stay open.
+     */
+    @Override
+    public void close() throws IOException {
+        groupCommitter.stopBackgroundSync();
+        commitLock.lock();
+        try {
+            if (null == channel) {
+                return;
+            }
+            try {
+                checkpoint();
+                force();
+            } finally {
+                syncLock.lock();
+                try {
+                    groupCommitter.markSynced();
+                    channel.close();
+                    channel = null;
+                } finally {
+                    syncLock.unlock();
+                }
+                for (FlatFileStorer<?> storer : storers.values()) {
+                    storer.attach(null, null);
+                }
+                storers.clear();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the committed changes into the pending redo, returns the number of bytes of complete records.
+     */
+    private long readLog() throws IOException {
+        long size = channel.size();
+        long position = 0;
+        int records = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        while (position + RECORD_HEADER_BYTES + RECORD_CRC_BYTES <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            int magic = header.getInt();
+            int length = header.getInt();
+            if (RECORD_MAGIC != magic || length < 4 || position + RECORD_HEADER_BYTES + length + RECORD_CRC_BYTES > size) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + length + RECORD_CRC_BYTES);
+            readFully(record, position);
+            crc.reset();
+            crc.update(record.array(), 0, RECORD_HEADER_BYTES + length);
+            if (record.getInt(RECORD_HEADER_BYTES + length) != (int) crc.getValue()) {
+                break;
+            }
+            record.position(RECORD_HEADER_BYTES).limit(RECORD_HEADER_BYTES + length);
+            List<Change> changes;
+            try {
+                changes = readChanges(record);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                break;
+            }
+            for (Change change : changes) {
+                pendingRedo.computeIfAbsent(change.storer, name -> new ArrayList<>()).add(change);
+            }
+            position += record.capacity();
+            records++;
+        }
+        if (records > 0) {
+            System.out.println("Write-ahead log '" + file.getName() + "' holds " + records + " committed transaction(s)");
+        }
+        return position;
+    }
+
+    private static List<Change> readChanges(ByteBuffer record) {
+        int count = record.getInt();
+        List<Change> changes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String storer = RecordBuffer.readString(record);
+            byte op = record.get();
+            long id = record.getLong();
+            byte[] bytes = null;
+            if (OP_PUT == op || OP_UPDATE == op) {
+                bytes = new byte[record.getInt()];
+                record.get(bytes);
+            } else if (OP_DELETE != op) {
+                throw new IllegalArgumentException("Unknown operation " + op);
+            }
+            changes.add(new Change(storer, op, id, bytes));
+        }
+        return changes;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of write-ahead log at " + (position + buffer.position()));
+            }
+        }
+    }
+}
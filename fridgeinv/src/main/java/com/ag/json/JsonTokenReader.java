@@ -12,7 +12,7 @@ public class JsonTokenReader implements Iterator<JsonToken> {
     private static final int EOF = -1;
 
     // matches numbers (incl. just zero) with decimal and/or exponents and does not allow leading zeros
-    private static final Pattern numberLiteralRegex = Pattern.compile("^0$|^-?[1-9]\\d*(?:\\.\\d+)?(?:e[1-9]\\d*)?$",
+    private static final Pattern numberLiteralRegex = Pattern.compile("^-?(?:0|[1-9]\\d*)(?:\\.\\d+)?(?:e[1-9]\\d*)?$",
             Pattern.CASE_INSENSITIVE);
     private static final Pattern boolLiteralRegex = Pattern.compile("^true$|^false$", Pattern.CASE_INSENSITIVE);
     private static final Pattern nullLiteralRegex = Pattern.compile("^null$", Pattern.CASE_INSENSITIVE);
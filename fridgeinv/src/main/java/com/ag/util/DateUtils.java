@@ -6,11 +6,16 @@ import java.util.Date;
 
 public class DateUtils {
 
-    private static final SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    private static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss";
+
+    // a SimpleDateFormat must not be shared between threads, requests are handled concurrently
+    private static SimpleDateFormat formatter() {
+        return new SimpleDateFormat(PATTERN);
+    }
 
     public static Date parseDate(String dateString) {
         try {
-            return formatter.parse(dateString);
+            return formatter().parse(dateString);
         } catch (ParseException e) {
             throw new RuntimeException("Failed to parse '" + dateString + "'", e);
         }
@@ -18,7 +23,7 @@ public class DateUtils {
     }
 
     public static String formatDate(Date date) {
-        return formatter.format(date);
+        return formatter().format(date);
     }
 
 }
@@ -0,0 +1,90 @@
+import static com.ag.database.StorerFixture.createStore;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.AsyncStorer;
+import com.ag.database.ExecutorAsyncStorer;
+import com.ag.database.FlatFileStorer;
+import com.ag.database.Store;
+import com.ag.database.StorerFixture;
+
+public class AsyncStorerTest {
+
+    @TempDir
+    Path dir;
+
+    private FlatFileStorer<Store> openStorer() throws IOException {
+        return StorerFixture.openStorer(dir, "store", new FlatFileStorer<>(Store.class));
+    }
+
+    @Test
+    public void testWritesToSameIdRunInOrder() throws IOException {
+        ThreadPoolExecutor executor = ExecutorAsyncStorer.newIoExecutor(8, 10_000);
+        try (FlatFileStorer<Store> storer = openStorer()) {
+            AsyncStorer<Store> async = new ExecutorAsyncStorer<>(storer, executor);
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int version = 0; version < 200; version++) {
+                writes.add(async.save(createStore(1, "version " + version)));
+                writes.add(async.save(createStore(2 + version % 10, "other " + version)));
+            }
+            writes.add(async.saveAll(List.of(createStore(1, "last"), createStore(2, "last"))));
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+
+            assertEquals("last", async.load(1).join().getName());
+            assertEquals("last", storer.load(2).getName());
+            assertEquals(11L, async.getIds().thenApply(Set::size).join().longValue());
+
+            async.deleteId(2).join();
+            assertFalse(async.contains(2L).join());
+            CompletionException e = assertThrows(CompletionException.class, () -> async.load(2).join());
+            assertTrue(e.getCause() instanceof IOException);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSaturatedExecutorRejects() throws IOException, InterruptedException {
+        ThreadPoolExecutor executor = ExecutorAsyncStorer.newIoExecutor(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (FlatFileStorer<Store> storer = openStorer()) {
+            AsyncStorer<Store> async = new ExecutorAsyncStorer<>(storer, executor);
+            // occupy the only thread and the only queue slot
+            executor.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            CompletableFuture<Void> queued = async.save(createStore(1, "queued"));
+            CompletableFuture<Void> rejected = async.save(createStore(2, "rejected"));
+            CompletionException e = assertThrows(CompletionException.class, rejected::join);
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+
+            release.countDown();
+            queued.join();
+            assertEquals("queued", async.load(1).join().getName());
+            assertFalse(storer.contains(2L));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import static com.ag.database.StorerFixture.createItem;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.BTreeIndex;
+import com.ag.database.InventoryItem;
+import com.ag.database.StorableSchema;
+
+public class BTreeIndexTest {
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Items are dated by their quantity, so that the expected ranges over the dates follow from the quantities.
+     */
+    private static Date lastAdded(int quantity) {
+        return new Date(1672617599000L + quantity * 1000L);
+    }
+
+    private static List<Long> expectedRange(Map<Long, Integer> quantities, int from, int to) {
+        return quantities.entrySet().stream()
+                .filter(entry -> entry.getValue() >= from && entry.getValue() < to)
+                .sorted(Map.Entry.<Long, Integer>comparingByValue().thenComparing(Map.Entry.comparingByKey()))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testRangesMatchAfterRandomChanges() throws IOException {
+        File file = dir.resolve("quantity.index").toFile();
+        BTreeIndex<InventoryItem> index = new BTreeIndex<>(StorableSchema.of(InventoryItem.class), "quantity");
+        assertFalse(index.read(file, 1));
+
+        Random random = new Random(42);
+        Map<Long, Integer> quantities = new HashMap<>();
+        for (int i = 0; i < 40000; i++) {
+            long id = random.nextInt(20000);
+            if (random.nextInt(5) == 0) {
+                index.remove(id);
+                quantities.remove(id);
+            } else {
+                // negative quantities check the order of the encoded values
+                int quantity = random.nextInt(2000) - 1000;
+                index.update(id, createItem(id, null, quantity));
+                quantities.put(id, quantity);
+            }
+        }
+        assertEquals(quantities.size(), index.size());
+        assertEquals(expectedRange(quantities, Integer.MIN_VALUE, Integer.MAX_VALUE),
+                index.range(null, null).collect(Collectors.toList()));
+        assertEquals(expectedRange(quantities, -10, 25), index.range(-10, 25).collect(Collectors.toList()));
+        index.write(file, 2);
+
+        // the file is trusted for the fingerprint it was written with only
+        assertFalse(index.read(file, 1));
+        assertEquals(0, index.size());
+        index.write(file, 1);
+        assertFalse(index.read(file, 2));
+
+        BTreeIndex<InventoryItem> rebuilt = new BTreeIndex<>(StorableSchema.of(InventoryItem.class), "quantity");
+        rebuilt.read(file, 3);
+        for (Map.Entry<Long, Integer> entry : quantities.entrySet()) {
+            rebuilt.update(entry.getKey(), createItem(entry.getKey(), null, entry.getValue()));
+        }
+        rebuilt.write(file, 3);
+
+        BTreeIndex<InventoryItem> reopened = new BTreeIndex<>(StorableSchema.of(InventoryItem.class), "quantity");
+        assertTrue(reopened.read(file, 3));
+        assertEquals(quantities.size(), reopened.size());
+        long pageReads = reopened.getPageReads();
+        assertEquals(expectedRange(quantities, 500, 510), reopened.range(500, 510).collect(Collectors.toList()));
+        // a few internal pages and the leaves of the range, not the whole tree
+        assertTrue(reopened.getPageReads() - pageReads < 10, "pages read: " + (reopened.getPageReads() - pageReads));
+        // not written again, a crash leaves a file that is not trusted
+        assertFalse(new BTreeIndex<>(StorableSchema.of(InventoryItem.class), "quantity").read(file, 3));
+    }
+
+    @Test
+    public void testPagesThroughRange() throws IOException {
+        BTreeIndex<InventoryItem> index = new BTreeIndex<>(StorableSchema.of(InventoryItem.class), "lastAdded");
+        index.read(dir.resolve("lastAdded.index").toFile(), 0);
+        Map<Long, Integer> quantities = new HashMap<>();
+        for (long id = 1; id <= 3000; id++) {
+            // many ids share a date, pages continue after the last id
+            int quantity = (int) (id % 100);
+            index.update(id, createItem(id, null, quantity, lastAdded(quantity)));
+            quantities.put(id, quantity);
+        }
+        Date since = lastAdded(40);
+        List<Long> paged = new ArrayList<>();
+        List<Long> page = index.range(since, null).limit(70).collect(Collectors.toList());
+        while (!page.isEmpty()) {
+            paged.addAll(page);
+            long last = page.get(page.size() - 1);
+            page = index.rangeAfter(lastAdded(quantities.get(last)), last, null).limit(70).collect(Collectors.toList());
+        }
+        assertEquals(expectedRange(quantities, 40, Integer.MAX_VALUE), paged);
+        assertEquals(expectedRange(quantities, 0, 3), index.range(null, lastAdded(3)).collect(Collectors.toList()));
+    }
+}
@@ -0,0 +1,73 @@
+import static com.ag.database.StorerFixture.createStore;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.CachingStorer;
+import com.ag.database.FlatFileStorer;
+import com.ag.database.Store;
+import com.ag.database.StorerFixture;
+
+public class CachingStorerTest {
+
+    @TempDir
+    Path dir;
+
+    private CachingStorer<Store> openStorer(long cacheBytes) throws IOException {
+        FlatFileStorer<Store> storer = StorerFixture.openStorer(dir, "store", new FlatFileStorer<>(Store.class));
+        return new CachingStorer<>(storer, Store.class, cacheBytes);
+    }
+
+    @Test
+    public void testRepeatedLoadsServedFromCache() throws IOException {
+        try (CachingStorer<Store> storer = openStorer(1 << 20)) {
+            for (long id = 1; id <= 20; id++) {
+                storer.save(createStore(id, "store " + id));
+            }
+            Set<Long> ids = storer.getIds();
+            storer.loadAllId(ids);
+            assertEquals(20, storer.getCache().getMisses());
+            for (int i = 0; i < 3; i++) {
+                List<Store> stores = storer.loadAllId(ids);
+                assertEquals(ids, stores.stream().map(Store::getId).collect(Collectors.toSet()));
+            }
+            assertEquals(20, storer.getCache().getMisses());
+            assertEquals(60, storer.getCache().getHits());
+
+            // handed out objects are copies
+            storer.load(5).setName("changed without saving");
+            assertEquals("store 5", storer.load(5).getName());
+
+            storer.save(createStore(5, "renamed"));
+            assertEquals("renamed", storer.load(5).getName());
+            storer.deleteId(6);
+            assertFalse(storer.contains(6L));
+            assertThrows(IOException.class, () -> storer.load(6));
+            assertEquals(Set.of(5L), storer.lookup("name", "renamed"));
+        }
+    }
+
+    @Test
+    public void testStaysWithinBudget() throws IOException {
+        try (CachingStorer<Store> storer = openStorer(8 << 10)) {
+            for (long id = 1; id <= 500; id++) {
+                storer.save(createStore(id, "store " + id));
+            }
+            storer.loadAllId(storer.getIds());
+            assertEquals(500, storer.loadAllId(storer.getIds()).size());
+            long cached = storer.getCache().size();
+            assertEquals(true, cached > 0 && cached < 500, "cached: " + cached);
+            assertEquals(true, storer.getCache().getWeightedSize() <= 8 << 10);
+            assertEquals(true, storer.getCache().getEvictions() > 0);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+import static com.ag.database.StorerFixture.createItem;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.ChangeFeed;
+import com.ag.database.ChangeFeed.ChangeEvent;
+import com.ag.database.FlatFileStorer;
+import com.ag.database.FlatFileStorer.Durability;
+import com.ag.database.InventoryItem;
+import com.ag.database.StorerFixture;
+
+public class ChangeFeedTest {
+
+    @TempDir
+    Path dir;
+
+    private FlatFileStorer<InventoryItem> openStorer(ChangeFeed feed) throws IOException {
+        return openStorer(feed, "InventoryItem", Durability.ASYNC, FlatFileStorer.DEFAULT_SYNC_LATENCY_MILLIS);
+    }
+
+    private FlatFileStorer<InventoryItem> openStorer(ChangeFeed feed, String name, Durability durability,
+            long latencyMillis) throws IOException {
+        return StorerFixture.openStorer(dir, name, storer -> {
+            storer.setChangeFeed(feed, name);
+            storer.setDurability(durability, latencyMillis);
+        });
+    }
+
+    @Test
+    public void testCommittedChangesAreSequenced() throws Exception {
+        try (ChangeFeed feed = new ChangeFeed(dir.resolve("changes").toFile(), 2, ChangeFeed.DEFAULT_SEGMENT_BYTES);
+                FlatFileStorer<InventoryItem> storer = openStorer(feed)) {
+            feed.open();
+            BlockingQueue<ChangeEvent> delivered = new LinkedBlockingQueue<>();
+            feed.subscribe(2, delivered::add);
+
+            storer.save(createItem(1, "milk", 1));
+            storer.save(createItem(2, "eggs", 12));
+            storer.increment(1, "quantity", 2);
+            storer.deleteId(2);
+            // deleting what is not there changes nothing
+            storer.deleteId(2);
+
+            List<ChangeEvent> events = feed.read(1, 10);
+            assertEquals(4, events.size());
+            assertEquals(4, feed.getCommittedSequence());
+            for (int i = 0; i < events.size(); i++) {
+                assertEquals(i + 1, events.get(i).getSequence());
+                assertEquals("InventoryItem", events.get(i).getStorer());
+            }
+            assertEquals(ChangeFeed.Operation.SAVE, events.get(0).getOperation());
+            assertEquals("milk", storer.decodeState(events.get(0)).getName());
+            assertEquals(ChangeFeed.Operation.UPDATE, events.get(2).getOperation());
+            assertEquals(Map.entry("quantity", 3), storer.decodeUpdate(events.get(2)));
+            assertEquals(ChangeFeed.Operation.DELETE, events.get(3).getOperation());
+            assertEquals(2, events.get(3).getId());
+
+            // the subscription catches up from its sequence on
+            for (long sequence = 2; sequence <= 4; sequence++) {
+                assertEquals(sequence, delivered.poll(5, TimeUnit.SECONDS).getSequence());
+            }
+        }
+
+        // after a restart the events come from the file
+        try (ChangeFeed feed = new ChangeFeed(dir.resolve("changes").toFile(), 2, ChangeFeed.DEFAULT_SEGMENT_BYTES);
+                FlatFileStorer<InventoryItem> storer = openStorer(feed)) {
+            feed.open();
+            assertEquals(4, feed.getCommittedSequence());
+            storer.save(createItem(3, "bread", 1));
+            List<ChangeEvent> events = feed.read(2, 10);
+            assertEquals(4, events.size());
+            assertEquals(5, events.get(3).getSequence());
+            assertEquals("bread", storer.decodeState(events.get(3)).getName());
+        }
+    }
+
+    @Test
+    public void testOldSegmentsExpire() throws Exception {
+        try (ChangeFeed feed = new ChangeFeed(dir.resolve("changes").toFile(), 4, 512);
+                FlatFileStorer<InventoryItem> storer = openStorer(feed)) {
+            feed.open();
+            for (long id = 1; id <= 100; id++) {
+                storer.save(createItem(id, "item " + id, 1));
+            }
+            assertEquals(100, feed.getCommittedSequence());
+            long first = feed.getFirstSequence();
+            assertTrue(first > 1 && first < 100, "first kept sequence " + first);
+            assertEquals(first, feed.read(first, 1).get(0).getSequence());
+            assertEquals(100 - first + 1, feed.read(first, 1000).size());
+            assertThrows(IllegalArgumentException.class, () -> feed.read(1, 10));
+
+            BlockingQueue<ChangeEvent> delivered = new LinkedBlockingQueue<>();
+            ChangeFeed.Subscription expired = feed.subscribe(1, delivered::add);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!expired.isExpired() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(expired.isExpired());
+            assertTrue(delivered.isEmpty());
+        }
+    }
+
+    @Test
+    public void testPendingWriteHoldsBackOtherStorers() throws Exception {
+        try (ChangeFeed feed = new ChangeFeed(dir.resolve("changes").toFile(), 2, ChangeFeed.DEFAULT_SEGMENT_BYTES);
+                // waits out the whole window before it commits
+                FlatFileStorer<InventoryItem> slow = openStorer(feed, "slow", Durability.BATCH, 500);
+                FlatFileStorer<InventoryItem> fast = openStorer(feed, "fast", Durability.ASYNC, 10)) {
+            feed.open();
+
+            Thread writer = startSave(slow, createItem(1, "milk", 1), new AtomicReference<>());
+            fast.save(createItem(2, "eggs", 12));
+            assertEquals(0, feed.getCommittedSequence());
+            assertTrue(feed.read(1, 10).isEmpty());
+
+            writer.join();
+            assertEquals(2, feed.getCommittedSequence());
+            List<ChangeEvent> events = feed.read(1, 10);
+            assertEquals(2, events.size());
+            assertEquals("slow", events.get(0).getStorer());
+            assertEquals("fast", events.get(1).getStorer());
+        }
+    }
+
+    @Test
+    public void testFailedWriteIsDropped() throws Exception {
+        try (ChangeFeed feed = new ChangeFeed(dir.resolve("changes").toFile(), 2, ChangeFeed.DEFAULT_SEGMENT_BYTES);
+                FlatFileStorer<InventoryItem> failing = openStorer(feed, "failing", Durability.BATCH, 60_000);
+                FlatFileStorer<InventoryItem> fast = openStorer(feed, "fast", Durability.ASYNC, 10)) {
+            feed.open();
+            BlockingQueue<ChangeEvent> delivered = new LinkedBlockingQueue<>();
+            feed.subscribe(1, delivered::add);
+
+            AtomicReference<Exception> failure = new AtomicReference<>();
+            Thread writer = startSave(failing, createItem(1, "milk", 1), failure);
+            fast.save(createItem(2, "eggs", 12));
+            assertEquals(0, feed.getCommittedSequence());
+
+            // interrupting the wait for the group commit fails the write
+            writer.interrupt();
+            writer.join();
+            assertInstanceOf(IOException.class, failure.get());
+            assertEquals(2, feed.getCommittedSequence());
+            List<ChangeEvent> events = feed.read(1, 10);
+            assertEquals(1, events.size());
+            assertEquals(2, events.get(0).getSequence());
+            assertEquals(2, delivered.poll(5, TimeUnit.SECONDS).getSequence());
+
+            fast.save(createItem(3, "bread", 1));
+            assertEquals(3, delivered.poll(5, TimeUnit.SECONDS).getSequence());
+        }
+
+        // the drop is kept in the file
+        try (ChangeFeed feed = new ChangeFeed(dir.resolve("changes").toFile(), 2, ChangeFeed.DEFAULT_SEGMENT_BYTES)) {
+            feed.open();
+            assertEquals(3, feed.getCommittedSequence());
+            List<ChangeEvent> events = feed.read(1, 10);
+            assertEquals(2, events.size());
+            assertEquals(2, events.get(0).getSequence());
+            assertEquals(3, events.get(1).getSequence());
+        }
+    }
+
+    /**
+     * Saves the object on a thread of its own and returns once the save waits for its group commit.
+     */
+    private static Thread startSave(FlatFileStorer<InventoryItem> storer, InventoryItem item,
+            AtomicReference<Exception> failure) throws InterruptedException {
+        Thread writer = new Thread(() -> {
+            try {
+                storer.save(item);
+            } catch (IOException e) {
+                failure.set(e);
+            }
+        });
+        writer.start();
+        while (Thread.State.TIMED_WAITING != writer.getState() && writer.isAlive()) {
+            Thread.sleep(1);
+        }
+        return writer;
+    }
+}
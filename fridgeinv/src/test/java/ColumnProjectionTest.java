@@ -0,0 +1,96 @@
+import static com.ag.database.StorerFixture.createItem;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.ColumnProjection;
+import com.ag.database.ColumnProjection.Aggregate;
+import com.ag.database.FlatFileStorer;
+import com.ag.database.InventoryItem;
+import com.ag.database.StorerFixture;
+
+public class ColumnProjectionTest {
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    @TempDir
+    Path dir;
+
+    private FlatFileStorer<InventoryItem> openStorer() throws IOException {
+        return StorerFixture.openStorer(dir, "inv_item",
+                storer -> storer.setColumnProjection("name", "quantity", "lastAdded"));
+    }
+
+    /**
+     * The total quantity per name the slow way, to compare the projection with.
+     */
+    private static Map<String, Long> quantityByName(FlatFileStorer<InventoryItem> storer) throws IOException {
+        Map<String, Long> totals = new HashMap<>();
+        for (InventoryItem item : storer.allMatches(item -> true)) {
+            totals.merge(item.getName(), (long) item.getQuantity(), Long::sum);
+        }
+        return totals;
+    }
+
+    @Test
+    public void testAggregatesFollowChanges() throws Exception {
+        long start = 1_700_000_000_000L;
+        try (FlatFileStorer<InventoryItem> storer = openStorer()) {
+            ColumnProjection<InventoryItem> projection = storer.getColumnProjection();
+            String[] names = {"milk", "eggs", "bread"};
+            for (long id = 1; id <= 30; id++) {
+                storer.save(createItem(id, names[(int) id % 3], (int) id, new Date(start + id * DAY_MILLIS)));
+            }
+            // never added
+            storer.save(createItem(31, "milk", 100, null));
+
+            assertEquals(31, projection.count());
+            assertEquals(OptionalLong.of(565), projection.aggregate(Aggregate.SUM, "quantity"));
+            assertEquals(OptionalLong.of(1), projection.aggregate(Aggregate.MIN, "quantity"));
+            assertEquals(OptionalLong.of(100), projection.aggregate(Aggregate.MAX, "quantity"));
+            assertEquals(OptionalLong.of(30), projection.aggregate(Aggregate.COUNT, "lastAdded"));
+            // added in the week from day 8 on
+            assertEquals(OptionalLong.of(7), projection.aggregate(Aggregate.COUNT, "quantity", "lastAdded",
+                    start + 8 * DAY_MILLIS, start + 15 * DAY_MILLIS));
+            assertEquals(OptionalLong.of(8 + 9 + 10 + 11 + 12 + 13 + 14), projection.aggregate(Aggregate.SUM,
+                    "quantity", "lastAdded", start + 8 * DAY_MILLIS, start + 15 * DAY_MILLIS));
+            assertEquals(OptionalLong.empty(), projection.aggregate(Aggregate.MAX, "quantity", "lastAdded", 0, start));
+            assertEquals(quantityByName(storer), projection.aggregateByGroup(Aggregate.SUM, "quantity"));
+            assertEquals(Long.valueOf(11), projection.aggregateByGroup(Aggregate.COUNT, "quantity").get("milk"));
+
+            storer.update(3, "quantity", 1000);
+            storer.increment(4, "quantity", 10);
+            storer.save(createItem(5, "butter", 5, null));
+            storer.deleteId(1);
+            storer.deleteId(31);
+            assertEquals(29, projection.count());
+            assertEquals(quantityByName(storer), projection.aggregateByGroup(Aggregate.SUM, "quantity"));
+            assertEquals(OptionalLong.of(1000), projection.aggregate(Aggregate.MAX, "quantity"));
+            assertEquals(OptionalLong.of(28), projection.aggregate(Aggregate.COUNT, "lastAdded"));
+            assertThrows(IllegalArgumentException.class, () -> projection.aggregate(Aggregate.SUM, "name"));
+        }
+
+        // read back from its file, and rebuilt when that is gone
+        for (int open = 0; open < 2; open++) {
+            try (FlatFileStorer<InventoryItem> storer = openStorer()) {
+                ColumnProjection<InventoryItem> projection = storer.getColumnProjection();
+                assertEquals(29, projection.count());
+                assertEquals(quantityByName(storer), projection.aggregateByGroup(Aggregate.SUM, "quantity"));
+                Map<String, Long> latest = projection.aggregateByGroup(Aggregate.MAX, "lastAdded");
+                assertEquals(Long.valueOf(start + 30 * DAY_MILLIS), latest.get("milk"));
+                assertFalse(latest.containsKey("butter"));
+            }
+            dir.resolve("meta_inv_item.index." + ColumnProjection.NAME).toFile().delete();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.CompressedRecordCodec;
+import com.ag.database.FlatFileStorer;
+import com.ag.database.InventoryItem;
+import com.ag.database.StorerFixture;
+
+public class CompressedRecordCodecTest {
+
+    private static final String[] PRODUCTS = {"organic whole milk", "free range eggs", "unsalted butter",
+            "greek yogurt", "cheddar cheese", "orange juice", "sourdough bread", "baby spinach"};
+
+    @TempDir
+    Path dir;
+
+    private FlatFileStorer<InventoryItem> openStorer(String name, boolean compression) throws IOException {
+        return StorerFixture.openStorer(dir, name,
+                storer -> storer.setCompression(compression, CompressedRecordCodec.DEFAULT_DICTIONARY_BYTES));
+    }
+
+    private static InventoryItem createItem(long id) {
+        return StorerFixture.createItem(id,
+                PRODUCTS[(int) (id % PRODUCTS.length)] + " (" + (id % 5 + 1) + " pack) from the corner shop",
+                (int) (id % 12), new Date(1672617599000L + id * 1000));
+    }
+
+    private static List<InventoryItem> createItems(int count) {
+        List<InventoryItem> items = new ArrayList<>();
+        for (long id = 1; id <= count; id++) {
+            items.add(createItem(id));
+        }
+        return items;
+    }
+
+    @Test
+    public void testRecordsCompressedAgainstTrainedDictionary() throws IOException {
+        List<InventoryItem> items = createItems(3000);
+        long plainSize;
+        try (FlatFileStorer<InventoryItem> plain = openStorer("plain", false)) {
+            plain.saveAll(items);
+            assertNull(plain.getCompression());
+            plainSize = plain.getObjectFileSize();
+        }
+        assertFalse(Files.exists(dir.resolve("plain.dict")));
+
+        try (FlatFileStorer<InventoryItem> storer = openStorer("compressed", true)) {
+            storer.saveAll(items);
+            CompressedRecordCodec<InventoryItem> compression = storer.getCompression();
+            assertTrue(compression.hasDictionary());
+            // the first records were saved before there was a dictionary to train, save them again
+            storer.saveAll(items.subList(0, FlatFileStorer.COMPRESSION_TRAINING_RECORDS));
+            storer.compact();
+            assertTrue(compression.getCompressionRatio() > 1.5, compression.toString());
+            assertTrue(storer.getObjectFileSize() < plainSize * 3 / 4,
+                    storer.getObjectFileSize() + " of " + plainSize + " bytes");
+        }
+
+        try (FlatFileStorer<InventoryItem> storer = openStorer("compressed", true)) {
+            for (InventoryItem item : items) {
+                InventoryItem loaded = storer.load(item.getId());
+                assertEquals(item.getName(), loaded.getName());
+                assertEquals(item.getLastAdded(), loaded.getLastAdded());
+            }
+            assertEquals(items.size(), storer.getCompression().getDecompressedRecords());
+            assertEquals(items.size() / PRODUCTS.length / 5, storer.lookup("name", items.get(0).getName()).size());
+        }
+
+        // turning compression off leaves the compressed records readable
+        try (FlatFileStorer<InventoryItem> storer = openStorer("compressed", false)) {
+            assertEquals(items.get(41).getName(), storer.load(42).getName());
+            storer.save(createItem(3001));
+            assertNull(storer.getCompression());
+        }
+    }
+
+    @Test
+    public void testOlderDictionariesStayReadable() throws IOException {
+        List<InventoryItem> items = createItems(FlatFileStorer.COMPRESSION_TRAINING_RECORDS);
+        try (FlatFileStorer<InventoryItem> storer = openStorer("items", true)) {
+            storer.saveAll(items);
+            long compressedRecords = storer.getCompression().getCompressedRecords();
+            storer.save(createItem(1));
+            // a second dictionary for the records saved from now on
+            storer.trainCompressionDictionary();
+            storer.save(createItem(2));
+            assertEquals(compressedRecords + 2, storer.getCompression().getCompressedRecords());
+        }
+        // a dictionary torn while it was appended is dropped, it was never used
+        Files.write(dir.resolve("items.dict"), new byte[] {0, 0, 16, 0, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        try (FlatFileStorer<InventoryItem> storer = openStorer("items", true)) {
+            assertEquals(items.get(0).getName(), storer.load(1).getName());
+            assertEquals(items.get(1).getName(), storer.load(2).getName());
+            assertEquals(Set.of(1L, 2L), Set.copyOf(storer.allMatches(item -> item.getId() <= 2)
+                    .stream().map(InventoryItem::getId).collect(Collectors.toList())));
+        }
+    }
+}
@@ -0,0 +1,39 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import com.ag.util.DateUtils;
+
+public class DateUtilsTest {
+
+    @Test
+    public void testConcurrentParseAndFormat() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int worker = 0; worker < 8; worker++) {
+                long first = 1672617599000L + worker * 86_400_000L;
+                workers.add(executor.submit(() -> {
+                    for (int i = 0; i < 2_000; i++) {
+                        Date date = new Date(first + i * 61_000L);
+                        String formatted = DateUtils.formatDate(date);
+                        assertEquals(date, DateUtils.parseDate(formatted), formatted);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+import static com.ag.database.StorerFixture.createItem;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.FlatFileStorer;
+import com.ag.database.InventoryItem;
+import com.ag.database.StorerFixture;
+
+public class FlatFileStorerConcurrencyTest {
+
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int IDS_PER_WRITER = 200;
+    private static final int OPERATIONS_PER_WRITER = 4_000;
+
+    @TempDir
+    Path dir;
+
+    private FlatFileStorer<InventoryItem> openStorer(FlatFileStorer.ReadMode readMode) throws IOException {
+        return StorerFixture.openStorer(dir, "inv_item", storer -> {
+            storer.setReadMode(readMode);
+            // compact early and often so that file swaps race with the readers too
+            storer.setCompactionMinBytes(4 * 1024);
+            storer.setCompactionThreshold(0.1);
+            storer.setJournalCheckpointBytes(8 * 1024);
+        });
+    }
+
+    /**
+     * The name encodes the id and the version, and its length changes with the version so that records move around
+     * and leave holes. A record torn between two versions fails {@link #assertConsistent}.
+     */
+    private static String nameOf(long id, int version) {
+        return "item-" + id + "-" + "x".repeat(version % 13);
+    }
+
+    private static void assertConsistent(long id, InventoryItem item) {
+        assertEquals(id, item.getId());
+        assertEquals(nameOf(id, item.getQuantity()), item.getName());
+    }
+
+    @Test
+    public void testConcurrentReadersSeeConsistentRecordsInMappedMode() throws Exception {
+        runStress(FlatFileStorer.ReadMode.MAPPED);
+    }
+
+    @Test
+    public void testConcurrentReadersSeeConsistentRecordsInStreamMode() throws Exception {
+        runStress(FlatFileStorer.ReadMode.STREAM);
+    }
+
+    private void runStress(FlatFileStorer.ReadMode readMode) throws Exception {
+        List<Map<Long, Integer>> expected = new ArrayList<>();
+        Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicLong loads = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        try (FlatFileStorer<InventoryItem> storer = openStorer(readMode)) {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> writers = new ArrayList<>();
+            for (int w = 0; w < WRITERS; w++) {
+                // every writer owns its own ids so the final state of each id is known
+                Map<Long, Integer> versions = new HashMap<>();
+                expected.add(versions);
+                long firstId = 1 + (long) w * IDS_PER_WRITER;
+                Random random = new Random(w);
+                writers.add(executor.submit(() -> {
+                    start.await();
+                    for (int op = 0; op < OPERATIONS_PER_WRITER; op++) {
+                        long id = firstId + random.nextInt(IDS_PER_WRITER);
+                        if (random.nextInt(5) == 0) {
+                            storer.deleteId(id);
+                            versions.remove(id);
+                        } else {
+                            int version = versions.getOrDefault(id, 0) + 1;
+                            storer.save(createItem(id, nameOf(id, version), version));
+                            versions.put(id, version);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            List<Future<?>> readers = new ArrayList<>();
+            for (int r = 0; r < READERS; r++) {
+                Random random = new Random(100 + r);
+                readers.add(executor.submit(() -> {
+                    start.await();
+                    while (writing.get()) {
+                        long id = 1 + random.nextInt(WRITERS * IDS_PER_WRITER);
+                        try {
+                            assertConsistent(id, storer.load(id));
+                        } catch (IOException e) {
+                            if (!e.getMessage().startsWith("No object is saved with id")) {
+                                failures.add(e);
+                            }
+                        } catch (Throwable t) {
+                            failures.add(t);
+                        }
+                        if (0 == random.nextInt(100)) {
+                            // scans copy positions up front and must cope with records moving underneath them
+                            try (Stream<InventoryItem> items = storer.scan()) {
+                                items.forEach(item -> assertConsistent(item.getId(), item));
+                            } catch (Throwable t) {
+                                failures.add(t);
+                            }
+                        }
+                        loads.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+
+            start.countDown();
+            for (Future<?> writer : writers) {
+                writer.get(2, TimeUnit.MINUTES);
+            }
+            writing.set(false);
+            for (Future<?> reader : readers) {
+                reader.get(1, TimeUnit.MINUTES);
+            }
+            assertTrue(failures.isEmpty(), () -> "Readers failed: " + failures);
+            assertTrue(loads.get() > 0);
+            assertTrue(storer.getCompactions() > 0, "compaction should have raced with the readers");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        try (FlatFileStorer<InventoryItem> reopened = openStorer(readMode)) {
+            long saved = 0;
+            for (Map<Long, Integer> versions : expected) {
+                for (Map.Entry<Long, Integer> entry : versions.entrySet()) {
+                    InventoryItem item = reopened.load(entry.getKey());
+                    assertConsistent(entry.getKey(), item);
+                    assertEquals(entry.getValue(), item.getQuantity());
+                }
+                saved += versions.size();
+            }
+            assertEquals(saved, reopened.savedEntries());
+            for (long id = 1; id <= WRITERS * IDS_PER_WRITER; id++) {
+                boolean shouldExist = expected.get((int) ((id - 1) / IDS_PER_WRITER)).containsKey(id);
+                assertEquals(shouldExist, reopened.contains(id));
+            }
+            assertFalse(reopened.contains(0L));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.FlatFileStorer;
+import com.ag.database.FlatFileStorerFactory;
+import com.ag.database.Storable;
+import com.ag.database.StorerFixture;
+import com.ag.json.JsonConfig;
+
+public class FlatFileStorerFactoryTest {
+
+    // lists only the stored class of this test, the storers are opened in the temporary directory of each test
+    private static final JsonConfig config = new JsonConfig("/FlatFileStorerFactoryTest.json");
+
+    /**
+     * Stored only by this test, its indexes come from the "FlatFileStorer.Bin" config of this test and not from
+     * annotations.
+     */
+    public static class Bin extends Storable {
+
+        private String label;
+        private int size;
+
+        public Bin() {}
+
+        public Bin(long id, String label, int size) {
+            super(id);
+            this.label = label;
+            this.size = size;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public int getSize() {
+            return size;
+        }
+    }
+
+    @TempDir
+    Path dir;
+
+    private FlatFileStorer<Bin> openStorer() throws IOException {
+        FlatFileStorer<Bin> storer = FlatFileStorerFactory.createStorer(Bin.class, config);
+        return StorerFixture.openStorer(dir, "bin", storer);
+    }
+
+    @Test
+    public void testConfiguredIndexes() throws IOException {
+        try (FlatFileStorer<Bin> storer = openStorer()) {
+            storer.save(new Bin(1, "top shelf", 1));
+            storer.save(new Bin(2, "door", 1));
+
+            assertEquals(Set.of(1L), storer.lookup("label", "top shelf"));
+            assertEquals("door", storer.load(2).getLabel());
+        }
+    }
+
+    @Test
+    public void testConfiguredRangeIndexes() throws IOException {
+        try (FlatFileStorer<Bin> storer = openStorer()) {
+            for (int size = 1; size <= 3; size++) {
+                storer.save(new Bin(size, "bin " + size, size));
+            }
+
+            try (Stream<Long> range = storer.range("size", 2, 4)) {
+                assertEquals(List.of(2L, 3L), range.collect(Collectors.toList()));
+            }
+        }
+    }
+}
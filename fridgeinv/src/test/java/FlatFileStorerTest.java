@@ -0,0 +1,621 @@
+import static com.ag.database.StorerFixture.createItem;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.FlatFileStorer;
+import com.ag.database.FileIndex;
+import com.ag.database.InventoryItem;
+import com.ag.database.MetaJournal;
+import com.ag.database.StorerFixture;
+
+public class FlatFileStorerTest {
+
+    @TempDir
+    Path dir;
+
+    private FlatFileStorer<InventoryItem> openStorer(FlatFileStorer.ReadMode readMode) throws IOException {
+        return openStorer(readMode, MetaJournal.DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    private FlatFileStorer<InventoryItem> openStorer(FlatFileStorer.ReadMode readMode, long journalCheckpointBytes)
+            throws IOException {
+        return StorerFixture.openStorer(dir, "inv_item", storer -> {
+            storer.setReadMode(readMode);
+            storer.setJournalCheckpointBytes(journalCheckpointBytes);
+        });
+    }
+
+    /**
+     * Every item gets a date of its own, so that dates are stored and the range queries over them have something to
+     * find.
+     */
+    private static Date lastAdded(long id) {
+        return new Date(1672617599000L + id);
+    }
+
+    private static void assertItem(InventoryItem expected, InventoryItem actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getQuantity(), actual.getQuantity());
+        assertEquals(expected.getLastAdded(), actual.getLastAdded());
+    }
+
+    @Test
+    public void testReadModesLoadSameObjects() throws IOException {
+        List<InventoryItem> items = new ArrayList<>();
+        for (long id = 1; id <= 50; id++) {
+            items.add(createItem(id, "item " + id, (int) id, lastAdded(id)));
+        }
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            storer.saveAll(items);
+            // save again, the file must not be truncated behind the mapping
+            InventoryItem rewritten = createItem(7, "item 7", 70, lastAdded(7));
+            storer.save(rewritten);
+            items.set(6, rewritten);
+            for (InventoryItem item : items) {
+                assertItem(item, storer.load(item.getId()));
+            }
+        }
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.STREAM)) {
+            for (InventoryItem item : items) {
+                assertItem(item, storer.load(item.getId()));
+            }
+        }
+    }
+
+    @Test
+    public void testMappedReadSeesAppendedObjects() throws IOException {
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            InventoryItem first = createItem(1, "first", 1, lastAdded(1));
+            storer.save(first);
+            assertItem(first, storer.load(1));
+            // the file grows past the mapped region and must be remapped
+            InventoryItem second = createItem(2, "second", 2, lastAdded(2));
+            storer.save(second);
+            assertItem(second, storer.load(2));
+            assertItem(first, storer.load(1));
+        }
+    }
+
+    @Test
+    public void testJournalReplayedOnOpen() throws IOException {
+        List<InventoryItem> items = new ArrayList<>();
+        // a tiny threshold forces several background checkpoints along the way
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED, 200)) {
+            for (long id = 1; id <= 40; id++) {
+                InventoryItem item = createItem(id, "item " + id, (int) id, lastAdded(id));
+                storer.save(item);
+                items.add(item);
+            }
+            storer.deleteId(3);
+            storer.deleteAllId(List.of(4L, 5L));
+        }
+        items.removeIf(item -> item.getId() >= 3 && item.getId() <= 5);
+
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            assertEquals(items.size(), storer.savedEntries());
+            assertFalse(storer.contains(3L));
+            for (InventoryItem item : items) {
+                assertItem(item, storer.load(item.getId()));
+            }
+        }
+        assertFalse(dir.resolve("meta_inv_item.journal.old").toFile().exists());
+    }
+
+    @Test
+    public void testSerializedMetaFileMigrated() throws IOException {
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            storer.save(createItem(1, "legacy", 1, lastAdded(1)));
+        }
+        // rewrite the meta information the way older versions stored it, the only record starts the object file
+        FileIndex fileIndex = new FileIndex();
+        fileIndex.size = dir.resolve("inv_item").toFile().length();
+        Map<Long, FileIndex> legacyIndex = new HashMap<>();
+        legacyIndex.put(1L, fileIndex);
+        assertTrue(dir.resolve("meta_inv_item.journal").toFile().delete());
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(dir.resolve("meta_inv_item").toFile()))) {
+            oos.writeObject(legacyIndex);
+        }
+
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED, 1)) {
+            assertEquals("legacy", storer.load(1).getName());
+            // crosses the threshold and rewrites the meta file as a snapshot
+            storer.save(createItem(2, "new", 2, lastAdded(2)));
+        }
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            assertEquals("legacy", storer.load(1).getName());
+            assertEquals("new", storer.load(2).getName());
+        }
+    }
+
+    @Test
+    public void testSerializedRecordsReadByFieldCodec() throws IOException {
+        InventoryItem legacy = createItem(1, "legacy", 1, lastAdded(1));
+        // without a record codec of its own the storer serializes its objects
+        try (FlatFileStorer<InventoryItem> storer = StorerFixture.openStorer(dir, "inv_item", new FlatFileStorer<>())) {
+            storer.save(legacy);
+        }
+        long legacyFileSize = dir.resolve("inv_item").toFile().length();
+
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            assertItem(legacy, storer.load(1));
+            // the compact record is smaller than the serialized one
+            InventoryItem updated = createItem(1, "updated", 2, lastAdded(1));
+            storer.save(updated);
+            assertItem(updated, storer.load(1));
+            InventoryItem withNulls = new InventoryItem(2);
+            storer.save(withNulls);
+            assertItem(withNulls, storer.load(2));
+        }
+        assertTrue(dir.resolve("inv_item").toFile().length() < 2 * legacyFileSize);
+    }
+
+    @Test
+    public void testQuantityChurnReusesSpace() throws IOException {
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            storer.setCompactionThreshold(2);
+            for (long id = 1; id <= 100; id++) {
+                storer.save(createItem(id, "item " + id, 0, lastAdded(id)));
+            }
+            long initialSize = storer.getObjectFileSize();
+            // names grow and shrink so that records keep moving between holes
+            for (int round = 1; round <= 50; round++) {
+                for (long id = 1; id <= 100; id++) {
+                    String name = "item " + id + (0 == (round + id) % 2 ? " restocked" : "");
+                    storer.save(createItem(id, name, round, lastAdded(id)));
+                }
+            }
+            assertTrue(storer.getObjectFileSize() < 2 * initialSize, "object file grew to " + storer.getObjectFileSize());
+            assertTrue(storer.getReclaimedBytes() > 0);
+            for (long id = 1; id <= 100; id++) {
+                assertEquals(50, storer.load(id).getQuantity());
+            }
+        }
+    }
+
+    @Test
+    public void testCompactionRemovesHoles() throws IOException {
+        List<InventoryItem> items = new ArrayList<>();
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            for (long id = 1; id <= 100; id++) {
+                InventoryItem item = createItem(id, "item " + id, (int) id, lastAdded(id));
+                storer.save(item);
+                if (0 == id % 3) {
+                    items.add(item);
+                }
+            }
+            for (long id = 1; id <= 100; id++) {
+                if (0 != id % 3) {
+                    storer.deleteId(id);
+                }
+            }
+            assertTrue(storer.getFragmentation() > 0.5);
+            long sizeBefore = storer.getObjectFileSize();
+
+            storer.compact();
+            assertEquals(0, storer.getFreeBytes(), 0);
+            assertEquals(sizeBefore - storer.getObjectFileSize(), storer.getReclaimedBytes());
+            // the compacted file is the next generation, the mapped one is not replaced but deleted
+            assertEquals(storer.getObjectFileSize(), dir.resolve("inv_item.1").toFile().length());
+            assertFalse(Files.exists(dir.resolve("inv_item")));
+            for (InventoryItem item : items) {
+                assertItem(item, storer.load(item.getId()));
+            }
+            // writes after compaction land in the new file
+            storer.save(createItem(1, "after compaction", 1, lastAdded(1)));
+            storer.deleteId(items.get(0).getId());
+            items.remove(0);
+            storer.compact();
+            assertEquals(storer.getObjectFileSize(), dir.resolve("inv_item.2").toFile().length());
+            assertFalse(Files.exists(dir.resolve("inv_item.1")));
+        }
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            assertEquals(items.size() + 1, storer.savedEntries());
+            assertEquals("after compaction", storer.load(1).getName());
+            for (InventoryItem item : items) {
+                assertItem(item, storer.load(item.getId()));
+            }
+        }
+    }
+
+    @Test
+    public void testInterruptedCompactionDiscarded() throws IOException {
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            storer.save(createItem(1, "kept", 1, lastAdded(1)));
+        }
+        // leftovers of a compaction that never reached its commit point
+        Files.write(dir.resolve("inv_item.compact"), new byte[] {1, 2, 3});
+        Files.write(dir.resolve("meta_inv_item.compact"), new byte[] {4, 5, 6});
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            assertEquals("kept", storer.load(1).getName());
+        }
+        assertFalse(Files.exists(dir.resolve("inv_item.compact")));
+        assertFalse(Files.exists(dir.resolve("meta_inv_item.compact")));
+    }
+
+    @Test
+    public void testScanWalksLiveRecords() throws IOException {
+        Map<Long, InventoryItem> expected = new HashMap<>();
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            // enough records for several scan windows
+            for (long id = 1; id <= 5000; id++) {
+                InventoryItem item = createItem(id, "item " + id, (int) id, lastAdded(id));
+                storer.save(item);
+                expected.put(id, item);
+            }
+            for (long id = 1; id <= 5000; id += 7) {
+                storer.deleteId(id);
+                expected.remove(id);
+            }
+            // grown records move to the end of the file
+            for (long id = 2; id <= 5000; id += 11) {
+                InventoryItem item = createItem(id, "item " + id + " with a longer name", (int) id, lastAdded(id));
+                storer.save(item);
+                expected.put(id, item);
+            }
+        }
+
+        for (FlatFileStorer.ReadMode readMode : FlatFileStorer.ReadMode.values()) {
+            try (FlatFileStorer<InventoryItem> storer = openStorer(readMode)) {
+                List<InventoryItem> scanned;
+                try (Stream<InventoryItem> items = storer.scan()) {
+                    scanned = items.collect(Collectors.toList());
+                }
+                assertEquals(expected.size(), scanned.size());
+                for (InventoryItem item : scanned) {
+                    assertItem(expected.get(item.getId()), item);
+                }
+                try (Stream<InventoryItem> items = storer.scan()) {
+                    assertEquals(expected.size(), items.parallel().count());
+                }
+                assertTrue(storer.contains(item -> item.getName().endsWith("longer name")));
+                assertEquals(4000, storer.matches(item -> 4000 == item.getQuantity()).getId());
+                assertEquals(null, storer.matches(item -> item.getQuantity() < 0));
+                assertEquals(expected.size() - 2, storer.allMatches(item -> item.getId() > 3).size());
+            }
+        }
+    }
+
+    @Test
+    public void testScanSeesChangesAheadOfIt() throws IOException {
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            for (long id = 1; id <= 5000; id++) {
+                storer.save(createItem(id, "item " + id, 0, lastAdded(id)));
+            }
+            try (Stream<InventoryItem> items = storer.scan()) {
+                Iterator<InventoryItem> iterator = items.iterator();
+                assertEquals(1, iterator.next().getId());
+                // both records are windows ahead of the scan
+                storer.deleteId(5000);
+                storer.save(createItem(4999, "moved to the end of the file", 1, lastAdded(4999)));
+
+                Map<Long, InventoryItem> rest = new HashMap<>();
+                iterator.forEachRemaining(item -> rest.put(item.getId(), item));
+                assertEquals(4998, rest.size());
+                assertFalse(rest.containsKey(5000L));
+                assertEquals("moved to the end of the file", rest.get(4999L).getName());
+            }
+        }
+    }
+
+    @Test
+    public void testIndexLookups() throws IOException {
+        Path indexFile = dir.resolve("meta_inv_item.index.name");
+        Path staleIndexFile = dir.resolve("stale_index");
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            for (long id = 1; id <= 100; id++) {
+                storer.save(createItem(id, "item " + (id % 10), (int) id, lastAdded(id)));
+            }
+            assertEquals(Set.of(3L, 13L, 23L, 33L, 43L, 53L, 63L, 73L, 83L, 93L), storer.lookup("name", "item 3"));
+            storer.save(createItem(3, "renamed", 3, lastAdded(3)));
+            storer.deleteId(13);
+            assertEquals(8, storer.lookup("name", "item 3").size());
+            assertEquals(Set.of(3L), storer.lookup("name", "renamed"));
+            assertTrue(storer.lookup("name", "missing").isEmpty());
+            assertThrows(IllegalArgumentException.class, () -> storer.lookup("quantity", 3));
+        }
+        Files.copy(indexFile, staleIndexFile);
+
+        // loaded from the index file, which is removed while the storer is open
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            assertFalse(Files.exists(indexFile));
+            assertEquals(Set.of(3L), storer.lookup("name", "renamed"));
+            storer.deleteId(3);
+            storer.save(createItem(200, "item 3", 200, lastAdded(200)));
+        }
+        // an index file of an older state is rebuilt
+        Files.copy(staleIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.STREAM)) {
+            assertTrue(storer.lookup("name", "renamed").isEmpty());
+            assertEquals(9, storer.lookup("name", "item 3").size());
+        }
+        // as is a missing one
+        Files.delete(indexFile);
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.STREAM)) {
+            assertEquals(9, storer.lookup("name", "item 3").size());
+            assertEquals(10, storer.lookup("name", "item 4").size());
+        }
+    }
+
+    @Test
+    public void testRangeQueries() throws IOException {
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            for (long id = 1; id <= 1000; id++) {
+                storer.save(createItem(id, "item " + id, (int) (1000 - id), lastAdded(id)));
+            }
+            storer.deleteId(998);
+            storer.save(createItem(997, "item 997", 500, lastAdded(997)));
+            assertEquals(List.of(1000L, 999L, 996L), storer.range("quantity", null, null).limit(3)
+                    .collect(Collectors.toList()));
+            assertEquals(List.of(501L, 500L, 997L), storer.range("quantity", 499, 501).collect(Collectors.toList()));
+            assertThrows(IllegalArgumentException.class, () -> storer.range("name", null, null));
+        }
+        // items added since a date, answered from the index file after reopening
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            Date since = createItem(995, "", 0, lastAdded(995)).getLastAdded();
+            assertEquals(List.of(995L, 996L, 997L, 999L, 1000L), storer.range("lastAdded", since, null)
+                    .collect(Collectors.toList()));
+            assertEquals(List.of(999L, 1000L), storer.rangeAfter("lastAdded", storer.load(997).getLastAdded(), 997, null)
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testDurabilityModes() throws Exception {
+        for (FlatFileStorer.Durability durability : FlatFileStorer.Durability.values()) {
+            Path modeDir = dir.resolve(durability.name());
+            FlatFileStorer<InventoryItem> storer = StorerFixture.openStorer(modeDir, "inv_item", created ->
+                    created.setDurability(durability, FlatFileStorer.Durability.ASYNC == durability ? 5 : 0));
+            try {
+                List<Thread> writers = new ArrayList<>();
+                for (int writer = 0; writer < 4; writer++) {
+                    long firstId = writer * 100 + 1;
+                    Thread thread = new Thread(() -> {
+                        try {
+                            for (long id = firstId; id < firstId + 100; id++) {
+                                storer.save(createItem(id, "item " + id, (int) id, lastAdded(id)));
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                    writers.add(thread);
+                    thread.start();
+                }
+                for (Thread thread : writers) {
+                    thread.join();
+                }
+                if (FlatFileStorer.Durability.ASYNC == durability) {
+                    // the background sync catches up within its latency
+                    long deadline = System.currentTimeMillis() + 5000;
+                    while (0 == storer.getGroupCommits() && System.currentTimeMillis() < deadline) {
+                        Thread.sleep(5);
+                    }
+                    assertTrue(storer.getGroupCommits() > 0);
+                } else {
+                    // every write was forced, by its own commit or one shared with other writers
+                    assertTrue(storer.getGroupCommits() <= 400, durability + ": " + storer.getGroupCommits());
+                }
+            } finally {
+                storer.close();
+            }
+            FlatFileStorer<InventoryItem> reopened = StorerFixture.openStorer(modeDir);
+            try {
+                assertEquals(400, reopened.savedEntries());
+                assertEquals("item 301", reopened.load(301).getName());
+            } finally {
+                reopened.close();
+            }
+        }
+    }
+
+    @Test
+    public void testMetaInfoRecoveredFromObjectFile() throws IOException {
+        Map<Long, InventoryItem> items = new HashMap<>();
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            for (long id = 1; id <= 100; id++) {
+                InventoryItem item = createItem(id, "item " + id, (int) id, lastAdded(id));
+                storer.save(item);
+                items.put(id, item);
+            }
+            // grown records move and leave their old frames behind as holes
+            for (long id = 1; id <= 100; id += 10) {
+                InventoryItem item = createItem(id, "renamed item with a much longer name " + id, (int) id,
+                        lastAdded(id));
+                storer.save(item);
+                items.put(id, item);
+            }
+            storer.deleteAllId(List.of(2L, 3L, 50L));
+            items.keySet().removeAll(List.of(2L, 3L, 50L));
+        }
+        Path objectFile = dir.resolve("inv_item");
+        long objectFileSize = Files.size(objectFile);
+        try (Stream<Path> metaFiles = Files.list(dir)) {
+            for (Path metaFile : metaFiles.filter(path -> path.getFileName().toString().startsWith("meta_"))
+                    .collect(Collectors.toList())) {
+                Files.delete(metaFile);
+            }
+        }
+        // a record that was cut off halfway through its write
+        Files.write(objectFile, new byte[] {(byte) 0xFA, 0, 0, 0, 60, 0, 0, 0}, StandardOpenOption.APPEND);
+
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            assertEquals(objectFileSize, Files.size(objectFile));
+            assertEquals(items.keySet(), Set.copyOf(storer.getIds()));
+            for (InventoryItem item : items.values()) {
+                assertItem(item, storer.load(item.getId()));
+            }
+            assertEquals(Set.of(11L), storer.lookup("name", "renamed item with a much longer name 11"));
+            storer.save(createItem(2, "item 2 again", 2, lastAdded(2)));
+            items.put(2L, storer.load(2));
+        }
+
+        // an unreadable meta file is set aside and recovered the same way
+        Files.write(dir.resolve("meta_inv_item"), new byte[] {1, 2, 3, 4, 5});
+        Files.deleteIfExists(dir.resolve("meta_inv_item.journal"));
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.STREAM)) {
+            assertEquals(items.size(), storer.savedEntries());
+            assertItem(items.get(2L), storer.load(2));
+        }
+        assertTrue(Files.exists(dir.resolve("meta_inv_item.corrupt")));
+    }
+
+    @Test
+    public void testCorruptRecordDetected() throws IOException {
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            storer.save(createItem(1, "milk", 1, lastAdded(1)));
+            storer.save(createItem(2, "eggs", 12, lastAdded(2)));
+        }
+        Path objectFile = dir.resolve("inv_item");
+        byte[] bytes = Files.readAllBytes(objectFile);
+        bytes[bytes.length - 1] ^= 0x10;
+        Files.write(objectFile, bytes);
+
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            assertEquals("milk", storer.load(1).getName());
+            IOException e = assertThrows(IOException.class, () -> storer.load(2));
+            assertTrue(e.getMessage().contains("Checksum"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void testTornWriteKeepsPreviousVersion() throws IOException {
+        InventoryItem saved = createItem(1, "a name long enough for the next version to fit", 1, lastAdded(1));
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            storer.save(saved);
+        }
+        Map<Path, byte[]> before = new HashMap<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                before.put(file, Files.readAllBytes(file));
+            }
+        }
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            storer.save(createItem(1, "short", 2, lastAdded(1)));
+        }
+
+        // a crash halfway through writing the record, before its journal entry reached the disk
+        Path objectFile = dir.resolve("inv_item");
+        byte[] written = Files.readAllBytes(objectFile);
+        byte[] torn = Arrays.copyOf(before.get(objectFile), written.length);
+        int first = 0;
+        while (first < torn.length && torn[first] == written[first]) {
+            first++;
+        }
+        int last = torn.length - 1;
+        while (last > first && torn[last] == written[last]) {
+            last--;
+        }
+        assertTrue(first < last, "the record was not written");
+        System.arraycopy(written, first, torn, first, (last - first + 1) / 2);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+        for (Map.Entry<Path, byte[]> file : before.entrySet()) {
+            Files.write(file.getKey(), file.getKey().equals(objectFile) ? torn : file.getValue());
+        }
+
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            assertItem(saved, storer.load(1));
+        }
+    }
+
+    @Test
+    public void testFieldUpdatesAppendedAsDeltas() throws IOException {
+        Path deltaLog = dir.resolve("inv_item.delta");
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            for (long id = 1; id <= 20; id++) {
+                storer.save(createItem(id, "item " + id, (int) id, lastAdded(id)));
+            }
+            long objectFileSize = storer.getObjectFileSize();
+            for (int round = 1; round <= 10; round++) {
+                for (long id = 1; id <= 20; id++) {
+                    assertEquals(id + round, storer.increment(id, "quantity", 1));
+                }
+            }
+            storer.update(3, "name", "renamed");
+            // the records were not written again, the updates went to the log
+            assertEquals(objectFileSize, storer.getObjectFileSize());
+            assertTrue(Files.size(deltaLog) > 0);
+
+            assertEquals(15, storer.load(5).getQuantity());
+            assertEquals(Set.of(3L), storer.lookup("name", "renamed"));
+            assertEquals(List.of(5L), storer.range("quantity", 15, 16).collect(Collectors.toList()));
+            try (Stream<InventoryItem> scan = storer.scan()) {
+                assertEquals(20, scan.filter(item -> item.getQuantity() == item.getId() + 10).count());
+            }
+            assertThrows(IllegalArgumentException.class, () -> storer.update(1, "quantity", "many"));
+            assertThrows(IllegalArgumentException.class, () -> storer.increment(1, "name", 1));
+            assertThrows(IOException.class, () -> storer.increment(99, "quantity", 1));
+
+            // a save replaces the updates, a delete drops them
+            storer.save(createItem(4, "item 4", 0, lastAdded(4)));
+            storer.deleteId(6);
+            storer.save(createItem(6, "item 6", 1, lastAdded(6)));
+        }
+
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            assertEquals(11, storer.load(1).getQuantity());
+            assertEquals("renamed", storer.load(3).getName());
+            assertEquals(0, storer.load(4).getQuantity());
+            assertEquals(1, storer.load(6).getQuantity());
+            assertEquals(Set.of(3L), storer.lookup("name", "renamed"));
+
+            storer.compact();
+            assertEquals(0, Files.size(deltaLog));
+            assertEquals(30, storer.load(20).getQuantity());
+            assertEquals("renamed", storer.load(3).getName());
+        }
+    }
+
+    @Test
+    public void testMultiFieldUpdate() throws IOException {
+        Date lastAdded = new Date(1700000000000L);
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            storer.save(createItem(1, "milk", 1, lastAdded(1)));
+            storer.update(1, Map.of("quantity", 4, "lastAdded", lastAdded));
+            assertEquals(4, storer.load(1).getQuantity());
+            assertEquals(lastAdded, storer.load(1).getLastAdded());
+
+            // one bad value sets none of the fields
+            Map<String, Object> fields = new LinkedHashMap<>();
+            fields.put("quantity", 5);
+            fields.put("lastAdded", "today");
+            assertThrows(IllegalArgumentException.class, () -> storer.update(1, fields));
+            assertEquals(4, storer.load(1).getQuantity());
+            assertThrows(IOException.class, () -> storer.update(99, Map.of("quantity", 1)));
+        }
+
+        try (FlatFileStorer<InventoryItem> storer = openStorer(FlatFileStorer.ReadMode.MAPPED)) {
+            assertEquals(4, storer.load(1).getQuantity());
+            assertEquals(lastAdded, storer.load(1).getLastAdded());
+        }
+    }
+}
@@ -0,0 +1,26 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import com.ag.DynamicObject;
+import com.ag.json.JsonParser;
+
+public class JsonNumberTest {
+
+    @Test
+    public void testFractionsWithZeroIntegerPart() {
+        JsonParser parser = new JsonParser();
+        DynamicObject obj = parser.parse("{\"half\":0.5,\"negative\":-0.25,\"zero\":0,\"whole\":12.5}");
+        assertEquals(0.5, ((Number) obj.get("half")).doubleValue());
+        assertEquals(-0.25, ((Number) obj.get("negative")).doubleValue());
+        assertEquals(0, ((Number) obj.get("zero")).intValue());
+        assertEquals(12.5, ((Number) obj.get("whole")).doubleValue());
+    }
+
+    @Test
+    public void testLeadingZerosRejected() {
+        JsonParser parser = new JsonParser();
+        assertThrows(RuntimeException.class, () -> parser.parse("{\"bad\":01}"));
+    }
+}
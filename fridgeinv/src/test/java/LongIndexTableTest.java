@@ -0,0 +1,227 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.FileIndex;
+import com.ag.database.LongIndexTable;
+import com.ag.database.MetaJournal;
+
+public class LongIndexTableTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testMatchesHashMapUnderRandomChurn() {
+        LongIndexTable table = new LongIndexTable();
+        Map<Long, long[]> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            // a small key range keeps probe sequences crowded so removals have to shift entries back
+            long key = random.nextInt(5_000) - 100;
+            if (random.nextInt(3) == 0) {
+                assertEquals(null != expected.remove(key), table.remove(key));
+            } else {
+                long position = random.nextInt(1_000_000);
+                long size = 1 + random.nextInt(500);
+                assertEquals(null == expected.put(key, new long[] {position, size}), table.put(key, position, size));
+            }
+        }
+
+        assertEquals(expected.size(), table.size());
+        for (Map.Entry<Long, long[]> entry : expected.entrySet()) {
+            FileIndex fileIndex = table.get(entry.getKey());
+            assertEquals(entry.getValue()[0], fileIndex.position);
+            assertEquals(entry.getValue()[1], fileIndex.size);
+        }
+        for (long key = -100; key < 4_900; key++) {
+            assertEquals(expected.containsKey(key), table.contains(key));
+        }
+        assertEquals(expected.keySet(), new HashSet<>(table.keySet()));
+    }
+
+    @Test
+    public void testCopyIsIndependent() {
+        LongIndexTable table = new LongIndexTable(4);
+        for (long key = 1; key <= 100; key++) {
+            table.put(key, key * 10, key);
+        }
+        LongIndexTable copy = table.copy();
+        table.remove(1);
+        table.put(2, 0, 1);
+
+        assertNull(table.get(1));
+        assertEquals(100, copy.size());
+        assertEquals(10, copy.get(1).position);
+        assertEquals(20, copy.get(2).position);
+        assertFalse(copy.contains(101));
+        assertTrue(copy.getMemoryBytes() > 0);
+    }
+
+    @Test
+    public void testSortedBaseUnderChurn() {
+        ByteBuffer base = ByteBuffer.allocateDirect(2_500 * 24);
+        TreeMap<Long, long[]> expected = new TreeMap<>();
+        for (long key = 0; key < 5_000; key += 2) {
+            base.putLong(key).putLong(key * 100).putLong(1 + key % 50);
+            expected.put(key, new long[] {key * 100, 1 + key % 50});
+        }
+        base.flip();
+        LongIndexTable table = new LongIndexTable();
+        table.attachSortedBase(base);
+        assertEquals(2_500, table.size());
+        assertEquals(2_500, table.getBaseSize());
+
+        Random random = new Random(7);
+        for (int i = 0; i < 20_000; i++) {
+            long key = random.nextInt(6_000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(null != expected.remove(key), table.remove(key));
+            } else {
+                long position = random.nextInt(1_000_000);
+                assertEquals(null == expected.put(key, new long[] {position, 7}), table.put(key, position, 7));
+            }
+        }
+        LongIndexTable copy = table.copy();
+        table.put(1, 1, 1);
+        table.remove(expected.firstKey());
+
+        assertEquals(expected.size(), copy.size());
+        assertTrue(copy.getBaseSize() > 0 && copy.getBaseSize() < 2_500);
+        for (long key = 0; key < 6_000; key++) {
+            long[] entry = expected.get(key);
+            FileIndex fileIndex = copy.get(key);
+            assertEquals(null == entry, null == fileIndex);
+            if (null != entry) {
+                assertEquals(entry[0], fileIndex.position);
+                assertEquals(entry[1], fileIndex.size);
+            }
+        }
+        assertEquals(expected.keySet(), new HashSet<>(copy.keySet()));
+
+        List<Long> sortedKeys = new ArrayList<>();
+        copy.forEachSorted((key, position, size) -> {
+            sortedKeys.add(key);
+            assertEquals(expected.get(key)[0], position);
+        });
+        assertEquals(new ArrayList<>(expected.keySet()), sortedKeys);
+        long[][] byPosition = copy.sortedByPosition();
+        assertEquals(expected.size(), byPosition[0].length);
+        for (int i = 1; i < byPosition[1].length; i++) {
+            assertTrue(byPosition[1][i - 1] <= byPosition[1][i]);
+        }
+    }
+
+    @Test
+    public void testSnapshotMappedOnOpen() throws IOException {
+        LongIndexTable table = new LongIndexTable();
+        for (long key = 1_000; key > 0; key--) {
+            table.put(key, key * 64, 64);
+        }
+        try (MetaJournal journal = new MetaJournal(dir.resolve("meta").toFile())) {
+            journal.open(new LongIndexTable());
+            journal.reset(table);
+            journal.delete(500);
+            journal.put(1_001, 0, 64);
+        }
+
+        LongIndexTable opened = new LongIndexTable();
+        try (MetaJournal journal = new MetaJournal(dir.resolve("meta").toFile())) {
+            journal.open(opened);
+        }
+        assertEquals(1_000, opened.size());
+        // the snapshot is served from the mapping, only the journal went to the hash table
+        assertEquals(999, opened.getBaseSize());
+        assertFalse(opened.contains(500));
+        assertEquals(64_000, opened.get(1_000).position);
+        assertEquals(0, opened.get(1_001).position);
+    }
+
+    @Test
+    public void testCheckpointsAfterMappedOpen() throws IOException {
+        LongIndexTable table = new LongIndexTable();
+        for (long key = 1; key <= 1_000; key++) {
+            table.put(key, key * 64, 64);
+        }
+        try (MetaJournal journal = new MetaJournal(dir.resolve("meta").toFile())) {
+            journal.open(new LongIndexTable());
+            journal.reset(table);
+        }
+
+        LongIndexTable opened = new LongIndexTable();
+        try (MetaJournal journal = new MetaJournal(dir.resolve("meta").toFile(), 1)) {
+            journal.open(opened);
+            assertEquals(1_000, opened.getBaseSize());
+            for (long key = 1_001; key <= 1_002; key++) {
+                opened.put(key, key * 64, 64);
+                journal.put(key, key * 64, 64);
+                // the mapped snapshot is not written over, the checkpoint writes the next one
+                journal.checkpoint(opened);
+                journal.awaitCheckpoint();
+                assertEquals(64_000, opened.get(1_000).position);
+            }
+        }
+        // only the newest snapshot is left
+        List<String> snapshots = new ArrayList<>();
+        for (String name : dir.toFile().list()) {
+            if (name.matches("meta(\\.\\d+)?")) {
+                snapshots.add(name);
+            }
+        }
+        assertEquals(List.of("meta.2"), snapshots);
+
+        LongIndexTable reopened = new LongIndexTable();
+        try (MetaJournal journal = new MetaJournal(dir.resolve("meta").toFile())) {
+            journal.open(reopened);
+        }
+        assertEquals(1_002, reopened.getBaseSize());
+        assertEquals(64_064, reopened.get(1_001).position);
+        assertEquals(64_128, reopened.get(1_002).position);
+    }
+
+    @Test
+    public void testUnsortedSnapshotStillReadable() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(dir.resolve("meta").toFile()))) {
+            out.writeInt(0x41474D53);
+            out.writeInt(1);
+            out.writeInt(3);
+            for (long key : new long[] {30, 10, 20}) {
+                out.writeLong(key);
+                out.writeLong(key * 2);
+                out.writeLong(key);
+            }
+        }
+        LongIndexTable opened = new LongIndexTable();
+        try (MetaJournal journal = new MetaJournal(dir.resolve("meta").toFile())) {
+            journal.open(opened);
+            assertEquals(3, opened.size());
+            assertEquals(0, opened.getBaseSize());
+            assertEquals(40, opened.get(20).position);
+            // a reset writes the sorted format
+            journal.reset(opened);
+        }
+        LongIndexTable reopened = new LongIndexTable();
+        try (MetaJournal journal = new MetaJournal(dir.resolve("meta").toFile())) {
+            journal.open(reopened);
+        }
+        assertEquals(3, reopened.getBaseSize());
+        assertEquals(60, reopened.get(30).position);
+    }
+}
@@ -0,0 +1,95 @@
+import static com.ag.database.StorerFixture.createItem;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.FlatFileStorer;
+import com.ag.database.InventoryItem;
+import com.ag.database.MaterializedView;
+import com.ag.database.MaterializedView.Aggregate;
+import com.ag.database.MaterializedView.Comparison;
+import com.ag.database.MaterializedView.Condition;
+import com.ag.database.StorerFixture;
+
+public class MaterializedViewTest {
+
+    @TempDir
+    Path dir;
+
+    private FlatFileStorer<InventoryItem> openStorer(int lowStockQuantity) throws IOException {
+        return StorerFixture.openStorer(dir, "inv_item", storer -> {
+            storer.addView("countByName", "name", Aggregate.COUNT, null);
+            storer.addView("mostByName", "name", Aggregate.MAX, "quantity",
+                    new Condition("quantity", Comparison.GT, 0));
+            storer.addView("lowStock", null, Aggregate.IDS, null,
+                    new Condition("quantity", Comparison.LE, lowStockQuantity));
+        });
+    }
+
+    @Test
+    public void testViewsFollowChanges() throws Exception {
+        try (FlatFileStorer<InventoryItem> storer = openStorer(1)) {
+            MaterializedView<InventoryItem> countByName = storer.getView("countByName");
+            MaterializedView<InventoryItem> mostByName = storer.getView("mostByName");
+            MaterializedView<InventoryItem> lowStock = storer.getView("lowStock");
+            storer.saveAll(Arrays.asList(createItem(1, "milk", 4), createItem(2, "milk", 0), createItem(3, "eggs", 12),
+                    createItem(4, "eggs", 1), createItem(5, "bread", 2)));
+            assertEquals(new HashSet<>(Arrays.asList("milk", "eggs", "bread")), countByName.getGroups());
+            assertEquals(Long.valueOf(2), countByName.getValue("milk"));
+            assertEquals(Long.valueOf(0), countByName.getValue("butter"));
+            assertEquals(Long.valueOf(4), mostByName.getValue("milk"));
+            assertEquals(Long.valueOf(12), mostByName.getValue("eggs"));
+            assertEquals(Arrays.asList(2L, 4L), lowStock.getIds());
+
+            storer.update(3, "quantity", 0);
+            storer.increment(2, "quantity", 5);
+            storer.save(createItem(5, "eggs", 2));
+            storer.deleteId(1);
+            assertEquals(Long.valueOf(1), countByName.getValue("milk"));
+            assertEquals(Long.valueOf(3), countByName.getValue("eggs"));
+            assertEquals(Long.valueOf(0), countByName.getValue("bread"));
+            // the maximum of 12 is gone, the next largest takes over
+            assertEquals(Long.valueOf(2), mostByName.getValue("eggs"));
+            assertEquals(Long.valueOf(5), mostByName.getValue("milk"));
+            assertEquals(Arrays.asList(3L, 4L), lowStock.getIds());
+            assertThrows(IllegalStateException.class, () -> lowStock.getValue());
+        }
+
+        // read back from their files, and rebuilt when those are gone
+        for (int open = 0; open < 2; open++) {
+            try (FlatFileStorer<InventoryItem> storer = openStorer(1)) {
+                assertEquals(Long.valueOf(3), storer.getView("countByName").getValue("eggs"));
+                assertEquals(Long.valueOf(2), storer.getView("mostByName").getValue("eggs"));
+                assertEquals(Arrays.asList(3L, 4L), storer.getView("lowStock").getIds());
+            }
+            dir.resolve("meta_inv_item.index." + MaterializedView.NAME_PREFIX + "lowStock").toFile().delete();
+        }
+
+        // a changed definition is not read from the old file
+        try (FlatFileStorer<InventoryItem> storer = openStorer(2)) {
+            List<Long> lowStock = storer.getView("lowStock").getIds();
+            assertEquals(Arrays.asList(3L, 4L, 5L), lowStock);
+        }
+    }
+
+    @Test
+    public void testInvalidDefinitions() throws Exception {
+        FlatFileStorer<InventoryItem> storer = new FlatFileStorer<>(InventoryItem.class);
+        assertThrows(IllegalArgumentException.class, () -> storer.addView("sum", null, Aggregate.SUM, null));
+        assertThrows(IllegalArgumentException.class, () -> storer.addView("sum", null, Aggregate.SUM, "name"));
+        assertThrows(IllegalArgumentException.class, () -> storer.addView("named", null, Aggregate.COUNT, null,
+                new Condition("name", Comparison.EQ, 1)));
+        storer.addView("count", null, Aggregate.COUNT, null);
+        assertThrows(IllegalArgumentException.class, () -> storer.addView("count", null, Aggregate.COUNT, null));
+        assertNull(storer.getView("sum"));
+    }
+}
@@ -0,0 +1,63 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.ag.database.ObjectCache;
+
+public class ObjectCacheTest {
+
+    @Test
+    public void testHotValuesSurviveScan() {
+        // every value weighs 100 bytes, room for 100 of them
+        ObjectCache<String> cache = new ObjectCache<>(10000, value -> 100);
+        for (long id = 0; id < 50; id++) {
+            cache.put(id, "hot " + id, cache.getStamp());
+        }
+        for (int round = 0; round < 5; round++) {
+            for (long id = 0; id < 50; id++) {
+                assertEquals("hot " + id, cache.get(id));
+            }
+        }
+        // a one time pass over many cold ids while the hot ones are still requested
+        for (long id = 1000; id < 11000; id++) {
+            if (null == cache.get(id)) {
+                cache.put(id, "cold " + id, cache.getStamp());
+            }
+            if (0 == id % 4) {
+                assertEquals("hot " + (id / 4 % 50), cache.get(id / 4 % 50));
+            }
+        }
+        for (long id = 0; id < 50; id++) {
+            assertTrue(cache.contains(id), "hot value " + id + " was evicted");
+        }
+        assertTrue(cache.getWeightedSize() <= cache.getMaxBytes());
+        assertTrue(cache.getEvictions() > 0);
+        assertEquals(250 + 2500, cache.getHits());
+        assertEquals(10000, cache.getMisses());
+    }
+
+    @Test
+    public void testInvalidationRejectsOlderLoads() {
+        ObjectCache<String> cache = new ObjectCache<>(10000, value -> 100);
+        long stamp = cache.getStamp();
+        cache.put(1, "first", stamp);
+        cache.invalidate(1);
+        assertNull(cache.get(1));
+        // loaded before the invalidation
+        assertFalse(cache.put(1, "stale", stamp));
+        assertNull(cache.get(1));
+        assertTrue(cache.put(1, "fresh", cache.getStamp()));
+        assertEquals("fresh", cache.get(1));
+    }
+
+    @Test
+    public void testValuesLargerThanCacheRejected() {
+        ObjectCache<String> cache = new ObjectCache<>(1000, String::length);
+        assertTrue(cache.put(1, "x".repeat(900), cache.getStamp()));
+        assertFalse(cache.put(2, "x".repeat(2000), cache.getStamp()));
+        assertEquals(900, cache.getWeightedSize());
+    }
+}
@@ -0,0 +1,152 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.FlatFileStorer;
+import com.ag.database.InventoryItem;
+import com.ag.database.Query;
+import com.ag.database.QueryPlan;
+import com.ag.database.QueryPlan.Access;
+import com.ag.database.ShardedStorer;
+import com.ag.database.StorerFixture;
+
+public class QueryPlanTest {
+
+    private static final long START = 1_700_000_000_000L;
+    private static final int ITEMS = 1000;
+
+    @TempDir
+    Path dir;
+
+    private static InventoryItem createItem(long id) {
+        // every tenth item was never added
+        return StorerFixture.createItem(id, (0 == id % 2 ? "milk " : "eggs ") + id % 50, (int) (id % 20),
+                0 == id % 10 ? null : new Date(START + id * 1000));
+    }
+
+    private FlatFileStorer<InventoryItem> openStorer() throws IOException {
+        // name has a hash index, quantity and lastAdded a range index
+        FlatFileStorer<InventoryItem> storer = StorerFixture.openStorer(dir);
+        List<InventoryItem> items = new ArrayList<>();
+        for (long id = 1; id <= ITEMS; id++) {
+            items.add(createItem(id));
+        }
+        storer.saveAll(items);
+        return storer;
+    }
+
+    private static List<Long> ids(List<InventoryItem> items) {
+        return items.stream().map(InventoryItem::getId).collect(Collectors.toList());
+    }
+
+    /**
+     * The ids the query has to return, found the slow way.
+     */
+    private static List<Long> expected(FlatFileStorer<InventoryItem> storer, Predicate<InventoryItem> matches,
+            Comparator<InventoryItem> order, int limit) throws IOException {
+        List<InventoryItem> all = storer.allMatches(matches);
+        all.sort(order.thenComparing(InventoryItem::getId));
+        return ids(all).subList(0, Math.min(limit, all.size()));
+    }
+
+    @Test
+    public void testPlansUseIndexes() throws Exception {
+        try (FlatFileStorer<InventoryItem> storer = openStorer()) {
+            QueryPlan<InventoryItem> byName = storer.plan(Query.from(InventoryItem.class)
+                    .where(Query.eq("name", "milk 4").and(Query.range("quantity", 0, 10))));
+            assertEquals(Access.HASH_LOOKUP, byName.getAccess());
+            assertEquals(expected(storer, item -> "milk 4".equals(item.getName()) && item.getQuantity() < 10,
+                    Comparator.comparing(InventoryItem::getId), ITEMS), ids(byName.execute()));
+            // only the items named "milk 4" are loaded
+            assertEquals(20, byName.getObjectsLoaded());
+            assertTrue(byName.toString().contains("hash index 'name'"), byName.toString());
+
+            // the lowest quantities first, reading stops at the limit
+            QueryPlan<InventoryItem> lowest = storer.plan(Query.from(InventoryItem.class)
+                    .where(Query.range("quantity", null, 3)).orderBy("quantity").limit(5));
+            assertEquals(Access.RANGE_SCAN, lowest.getAccess());
+            assertTrue(lowest.isOrderedByIndex());
+            assertEquals(expected(storer, item -> item.getQuantity() < 3,
+                    Comparator.comparing(InventoryItem::getQuantity), 5), ids(lowest.execute()));
+            assertEquals(5, lowest.getObjectsLoaded());
+
+            // the date may be given as milliseconds or a date, items never added are left out
+            Date from = new Date(START + 500 * 1000);
+            List<InventoryItem> added = storer.query(Query.from(InventoryItem.class)
+                    .where(Query.range("lastAdded", from, START + 600 * 1000)).orderByDescending("lastAdded"));
+            assertEquals(expected(storer, item -> null != item.getLastAdded() && !item.getLastAdded().before(from)
+                    && item.getLastAdded().getTime() < START + 600 * 1000,
+                    Comparator.comparing(InventoryItem::getLastAdded).reversed(), ITEMS), ids(added));
+            assertEquals(90, added.size());
+
+            QueryPlan<InventoryItem> either = storer.plan(Query.from(InventoryItem.class)
+                    .where(Query.or(Query.eq("quantity", 7), Query.eq("name", "eggs 3"))));
+            assertEquals(Access.INDEX_UNION, either.getAccess());
+            // without an order the ids come as the indexes return them
+            List<Long> eitherIds = ids(either.execute());
+            eitherIds.sort(null);
+            assertEquals(expected(storer, item -> 7 == item.getQuantity() || "eggs 3".equals(item.getName()),
+                    Comparator.comparing(InventoryItem::getId), ITEMS), eitherIds);
+
+            QueryPlan<InventoryItem> fewestEggs = storer.plan(Query.from(InventoryItem.class)
+                    .where(Query.prefix("name", "eggs")).orderBy("quantity").limit(3));
+            assertEquals(Access.INDEX_ORDER, fewestEggs.getAccess());
+            assertEquals(expected(storer, item -> item.getName().startsWith("eggs"),
+                    Comparator.comparing(InventoryItem::getQuantity), 3), ids(fewestEggs.execute()));
+        }
+    }
+
+    @Test
+    public void testScanWithoutIndex() throws Exception {
+        try (FlatFileStorer<InventoryItem> storer = openStorer()) {
+            Query<InventoryItem> query = Query.from(InventoryItem.class).where(Query.prefix("name", "milk 1"))
+                    .orderBy("name").limit(4);
+            QueryPlan<InventoryItem> plan = storer.plan(query);
+            assertEquals(Access.SCAN, plan.getAccess());
+            assertEquals(expected(storer, item -> item.getName().startsWith("milk 1"),
+                    Comparator.comparing(InventoryItem::getName), 4), ids(plan.execute()));
+            assertEquals(ITEMS, plan.getObjectsLoaded());
+
+            assertThrows(IllegalStateException.class, () -> storer.plan(query.requireIndex()));
+            assertThrows(IllegalArgumentException.class, () -> Query.from(InventoryItem.class)
+                    .where(Query.eq("quantity", "many")));
+            assertThrows(IllegalArgumentException.class, () -> Query.from(InventoryItem.class)
+                    .where(Query.prefix("quantity", "1")));
+            assertThrows(IllegalArgumentException.class, () -> Query.from(InventoryItem.class)
+                    .where(Query.eq("colour", "red")));
+        }
+    }
+
+    @Test
+    public void testShardsMergeInOrder() throws Exception {
+        try (ShardedStorer<InventoryItem> storer = StorerFixture.openStorer(dir, "inv_item",
+                new ShardedStorer<>(3, () -> new FlatFileStorer<>(InventoryItem.class)))) {
+            List<InventoryItem> items = new ArrayList<>();
+            for (long id = 1; id <= ITEMS; id++) {
+                items.add(createItem(id));
+            }
+            storer.saveAll(items);
+            List<InventoryItem> highest = storer.query(Query.from(InventoryItem.class)
+                    .where(Query.range("quantity", 15, null)).orderByDescending("quantity").limit(40));
+            // 50 items have the highest quantity
+            assertEquals(40, highest.size());
+            for (InventoryItem item : highest) {
+                assertEquals(19, item.getQuantity());
+            }
+            List<Long> ids = ids(highest);
+            assertEquals(ids.stream().sorted().collect(Collectors.toList()), ids);
+        }
+    }
+}
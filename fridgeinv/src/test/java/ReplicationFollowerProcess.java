@@ -0,0 +1,39 @@
+import java.io.File;
+
+import com.ag.database.FlatFileStorer;
+import com.ag.database.InventoryItem;
+import com.ag.database.ReplicationFollower;
+import com.ag.database.StorerFixture;
+
+/**
+ * A follower in a process of its own for {@link ReplicationTest}: replicates the inventory items of the primary on the
+ * port into the directory until the sequence is applied, then exits.
+ * <pre>
+ * java ReplicationFollowerProcess directory port sequence
+ * </pre>
+ */
+public class ReplicationFollowerProcess {
+
+    private static final long TIMEOUT_MILLIS = 30_000;
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args[0]);
+        int port = Integer.parseInt(args[1]);
+        long sequence = Long.parseLong(args[2]);
+        try (FlatFileStorer<InventoryItem> storer = StorerFixture.openStorer(dir.toPath());
+                ReplicationFollower follower = new ReplicationFollower("localhost", port,
+                        new File(dir, "replication.pos"))) {
+            follower.follow("InventoryItem", storer, new FlatFileStorer<>(InventoryItem.class));
+            follower.start();
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (follower.getAppliedSequence() < sequence) {
+                if (System.currentTimeMillis() > deadline) {
+                    System.out.println("Timed out at " + follower);
+                    System.exit(1);
+                }
+                Thread.sleep(10);
+            }
+            System.out.println("Caught up: " + follower);
+        }
+    }
+}
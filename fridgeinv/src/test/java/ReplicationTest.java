@@ -0,0 +1,196 @@
+import static com.ag.database.StorerFixture.createItem;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.ChangeFeed;
+import com.ag.database.FlatFileStorer;
+import com.ag.database.InventoryItem;
+import com.ag.database.RecordBuffer;
+import com.ag.database.ReplicationFollower;
+import com.ag.database.ReplicationPrimary;
+import com.ag.database.StorerFixture;
+
+public class ReplicationTest {
+
+    @TempDir
+    Path dir;
+
+    private static FlatFileStorer<InventoryItem> openStorer(File dir, ChangeFeed feed) throws IOException {
+        return StorerFixture.openStorer(dir.toPath(), "inv_item", storer -> {
+            if (null != feed) {
+                storer.setChangeFeed(feed, "InventoryItem");
+            }
+        });
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void testFollowerAppliesChangesAndResumes() throws Exception {
+        File primaryDir = dir.resolve("primary").toFile();
+        File followerDir = dir.resolve("follower").toFile();
+        File positionFile = new File(followerDir, "replication.pos");
+        try (ChangeFeed feed = new ChangeFeed(new File(primaryDir, "changes"), 16, ChangeFeed.DEFAULT_SEGMENT_BYTES);
+                FlatFileStorer<InventoryItem> primaryStorer = openStorer(primaryDir, feed);
+                ReplicationPrimary primary = new ReplicationPrimary(feed, 0)) {
+            feed.open();
+            for (long id = 1; id <= 50; id++) {
+                primaryStorer.save(createItem(id, "item " + id, 1));
+            }
+
+            try (FlatFileStorer<InventoryItem> followerStorer = openStorer(followerDir, null)) {
+                try (ReplicationFollower follower = new ReplicationFollower("localhost", primary.getPort(),
+                        positionFile)) {
+                    follower.follow("InventoryItem", followerStorer, new FlatFileStorer<>(InventoryItem.class));
+                    follower.start();
+                    await(() -> follower.getAppliedSequence() == 50);
+                    assertEquals(50, followerStorer.getIds().size());
+
+                    // changes made while following arrive as they are committed
+                    primaryStorer.increment(7, "quantity", 4);
+                    primaryStorer.deleteId(8);
+                    await(() -> follower.getAppliedSequence() == 52);
+                    assertEquals(5, followerStorer.load(7).getQuantity());
+                    assertFalse(followerStorer.getIds().contains(8L));
+                    await(() -> 0 == follower.getLagRecords());
+                    assertEquals(0, follower.getLagMillis());
+                    assertEquals(1, primary.getFollowerCount());
+                }
+
+                // missed while the follower was away, it picks up after the last change it applied
+                primaryStorer.save(createItem(51, "late", 2));
+                primaryStorer.update(1, "name", "renamed");
+                try (ReplicationFollower follower = new ReplicationFollower("localhost", primary.getPort(),
+                        positionFile)) {
+                    follower.follow("InventoryItem", followerStorer, new FlatFileStorer<>(InventoryItem.class));
+                    follower.start();
+                    assertEquals(52, follower.getAppliedSequence());
+                    await(() -> follower.getAppliedSequence() == 54);
+                    assertEquals("late", followerStorer.load(51).getName());
+                    assertEquals("renamed", followerStorer.load(1).getName());
+                    assertEquals(50, followerStorer.getIds().size());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFollowerNeedsChangesStillKept() throws Exception {
+        File primaryDir = dir.resolve("primary").toFile();
+        try (ChangeFeed feed = new ChangeFeed(new File(primaryDir, "changes"), 4, 512);
+                FlatFileStorer<InventoryItem> primaryStorer = openStorer(primaryDir, feed);
+                ReplicationPrimary primary = new ReplicationPrimary(feed, 0)) {
+            feed.open();
+            for (long id = 1; id <= 100; id++) {
+                primaryStorer.save(createItem(id, "item " + id, 1));
+            }
+            try (FlatFileStorer<InventoryItem> followerStorer = openStorer(dir.resolve("follower").toFile(), null);
+                    ReplicationFollower follower = new ReplicationFollower("localhost", primary.getPort(),
+                            dir.resolve("follower").resolve("replication.pos").toFile())) {
+                follower.follow("InventoryItem", followerStorer, new FlatFileStorer<>(InventoryItem.class));
+                follower.start();
+                await(() -> null != follower.getFailure());
+                assertTrue(follower.getFailure().contains("refused"), follower.getFailure());
+                assertFalse(follower.isConnected());
+                assertEquals(0, follower.getAppliedSequence());
+            }
+        }
+    }
+
+    @Test
+    public void testFollowerInAnotherProcess() throws Exception {
+        File primaryDir = dir.resolve("primary").toFile();
+        File followerDir = dir.resolve("follower").toFile();
+        try (ChangeFeed feed = new ChangeFeed(new File(primaryDir, "changes"), 16, ChangeFeed.DEFAULT_SEGMENT_BYTES);
+                FlatFileStorer<InventoryItem> primaryStorer = openStorer(primaryDir, feed);
+                ReplicationPrimary primary = new ReplicationPrimary(feed, 0)) {
+            feed.open();
+            for (long id = 1; id <= 20; id++) {
+                primaryStorer.save(createItem(id, "item " + id, (int) id));
+            }
+            primaryStorer.deleteId(20);
+
+            String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+            Process follower = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    ReplicationFollowerProcess.class.getName(), followerDir.getPath(),
+                    String.valueOf(primary.getPort()), "21").inheritIO().start();
+            assertTrue(follower.waitFor(60, TimeUnit.SECONDS));
+            assertEquals(0, follower.exitValue());
+        }
+
+        try (FlatFileStorer<InventoryItem> followerStorer = openStorer(followerDir, null)) {
+            assertEquals(19, followerStorer.getIds().size());
+            assertEquals("item 12", followerStorer.load(12).getName());
+            assertEquals(12, followerStorer.load(12).getQuantity());
+            assertFalse(followerStorer.getIds().contains(20L));
+        }
+    }
+
+    @Test
+    public void testBadEventStopsApplying() throws Exception {
+        File followerDir = dir.resolve("follower").toFile();
+        // stands in for a primary that sends what the follower cannot decode
+        try (ServerSocket primary = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                FlatFileStorer<InventoryItem> followerStorer = openStorer(followerDir, null);
+                ReplicationFollower follower = new ReplicationFollower("localhost", primary.getLocalPort(),
+                        new File(followerDir, "replication.pos"))) {
+            // the decoder is never opened
+            follower.follow("InventoryItem", followerStorer, new FlatFileStorer<>(InventoryItem.class));
+            follower.start();
+
+            // a save without a record
+            try (Socket connection = primary.accept()) {
+                sendEvent(connection, ChangeFeed.Operation.SAVE, new byte[0]);
+                await(() -> null != follower.getFailure());
+                assertTrue(follower.getFailure().contains("Empty record"), follower.getFailure());
+            }
+            // an update of a field the class does not have, after the follower connected again
+            try (Socket connection = primary.accept()) {
+                sendEvent(connection, ChangeFeed.Operation.UPDATE, new byte[] {0, 99});
+                await(() -> null != follower.getFailure() && follower.getFailure().contains("Unknown field"));
+            }
+            assertEquals(0, follower.getAppliedSequence());
+            assertTrue(followerStorer.getIds().isEmpty());
+        }
+    }
+
+    /**
+     * Answers the handshake of the follower on the connection with the first event, of the given operation and payload.
+     */
+    private static void sendEvent(Socket connection, ChangeFeed.Operation operation, byte[] payload)
+            throws IOException {
+        DataInputStream in = new DataInputStream(connection.getInputStream());
+        DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+        in.readInt();
+        assertEquals(1, in.readLong());
+        RecordBuffer event = new RecordBuffer();
+        event.writeLong(1).writeLong(System.currentTimeMillis()).writeByte(operation.ordinal()).writeLong(1)
+                .writeString("InventoryItem").write(payload, 0, payload.length);
+        // a FRAME_EVENT
+        out.writeByte(1);
+        out.writeInt(event.size());
+        out.write(event.toByteBuffer().array(), 0, event.size());
+        out.flush();
+    }
+}
@@ -0,0 +1,89 @@
+import static com.ag.database.StorerFixture.createItem;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.FlatFileStorer;
+import com.ag.database.InventoryItem;
+import com.ag.database.ShardedStorer;
+import com.ag.database.StorerFixture;
+
+public class ShardedStorerTest {
+
+    @TempDir
+    Path dir;
+
+    private ShardedStorer<InventoryItem> openStorer(int shardCount) throws IOException {
+        return StorerFixture.openStorer(dir, "inv_item",
+                new ShardedStorer<>(shardCount, () -> new FlatFileStorer<>(InventoryItem.class)));
+    }
+
+    @Test
+    public void testObjectsSpreadOverShards() throws IOException {
+        List<InventoryItem> items = new ArrayList<>();
+        for (long id = 1; id <= 1000; id++) {
+            items.add(createItem(id, "item " + id, (int) (id % 7)));
+        }
+        try (ShardedStorer<InventoryItem> storer = openStorer(4)) {
+            storer.saveAll(items);
+            assertEquals(1000, storer.savedEntries());
+            for (FlatFileStorer<InventoryItem> shard : storer.getShards()) {
+                long entries = shard.savedEntries();
+                assertTrue(entries > 150 && entries < 350, "shard entries: " + entries);
+            }
+
+            Set<Long> ids = new LinkedHashSet<>(List.of(900L, 3L, 517L, 42L));
+            assertEquals(List.copyOf(ids), storer.loadAllId(ids).stream().map(InventoryItem::getId)
+                    .collect(Collectors.toList()));
+            assertEquals(143, storer.allMatches(item -> 3 == item.getQuantity()).size());
+            assertTrue(storer.contains(item -> "item 999".equals(item.getName())));
+            assertEquals(Set.of(12L), storer.lookup("name", "item 12"));
+
+            storer.deleteAllId(List.of(1L, 2L, 3L));
+            assertFalse(storer.contains(2L));
+            assertEquals(997, storer.getIds().size());
+            try (Stream<InventoryItem> scan = storer.scan()) {
+                assertEquals(997, scan.parallel().count());
+            }
+        }
+
+        try (ShardedStorer<InventoryItem> storer = openStorer(4)) {
+            assertEquals("item 517", storer.load(517).getName());
+            assertEquals(997, storer.savedEntries());
+        }
+        assertThrows(IOException.class, () -> openStorer(2));
+    }
+
+    @Test
+    public void testRangesMergedInOrder() throws IOException {
+        try (ShardedStorer<InventoryItem> storer = openStorer(3)) {
+            for (long id = 1; id <= 200; id++) {
+                storer.save(createItem(id, "item " + id, (int) (id % 7)));
+            }
+            List<Long> expected = new ArrayList<>();
+            for (int quantity = 2; quantity < 4; quantity++) {
+                for (long id = 1; id <= 200; id++) {
+                    if (id % 7 == quantity) {
+                        expected.add(id);
+                    }
+                }
+            }
+            assertEquals(expected, storer.range("quantity", 2, 4).collect(Collectors.toList()));
+            assertEquals(expected.subList(5, 10), storer.rangeAfter("quantity", 2, expected.get(4), 4).limit(5)
+                    .collect(Collectors.toList()));
+        }
+    }
+}
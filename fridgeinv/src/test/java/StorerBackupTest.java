@@ -0,0 +1,189 @@
+import static com.ag.database.StorerFixture.createItem;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.FlatFileStorer;
+import com.ag.database.InventoryItem;
+import com.ag.database.StorerBackup;
+import com.ag.database.StorerFixture;
+import com.ag.database.StorerSnapshot;
+
+public class StorerBackupTest {
+
+    @TempDir
+    Path dir;
+
+    private static FlatFileStorer<InventoryItem> openStorer(File dir) throws IOException {
+        // compaction is tested on its own below
+        return StorerFixture.openStorer(dir.toPath(), "inv_item", storer -> storer.setCompactionThreshold(2));
+    }
+
+    private static void assertSameItems(FlatFileStorer<InventoryItem> expected, FlatFileStorer<InventoryItem> actual)
+            throws IOException {
+        assertEquals(expected.getIds(), actual.getIds());
+        for (long id : expected.getIds()) {
+            assertEquals(expected.load(id).getName(), actual.load(id).getName());
+            assertEquals(expected.load(id).getQuantity(), actual.load(id).getQuantity());
+        }
+    }
+
+    @Test
+    public void testIncrementalBackupsRestore() throws Exception {
+        File backupDir = dir.resolve("backups").toFile();
+        try (FlatFileStorer<InventoryItem> storer = openStorer(dir.resolve("live").toFile())) {
+            List<FlatFileStorer<?>> storers = Arrays.asList(storer);
+            for (long id = 1; id <= 200; id++) {
+                storer.save(createItem(id, "item " + id, 1));
+            }
+            File full = StorerBackup.backup(backupDir, storers);
+            assertTrue(full.getName().endsWith("-full"), full.getName());
+
+            // appended, rewritten, moved into a hole and deleted
+            for (long id = 201; id <= 210; id++) {
+                storer.save(createItem(id, "new " + id, 2));
+            }
+            storer.save(createItem(5, "item 5", 50));
+            storer.deleteId(7);
+            storer.save(createItem(8, "a name too long for the record of item 8", 3));
+            storer.update(9, "quantity", 90);
+            File increment = StorerBackup.backup(backupDir, storers);
+            assertTrue(increment.getName().endsWith("-incremental"), increment.getName());
+            // only the saved records are copied
+            assertTrue(new File(increment, "inv_item.incr").length() < new File(full, "inv_item").length() / 4);
+
+            storer.deleteId(201);
+            storer.save(createItem(1, "renamed 1", 1));
+            StorerBackup.backup(backupDir, storers);
+            assertEquals(3, StorerBackup.getBackups(backupDir).size());
+
+            File restored = dir.resolve("restored").toFile();
+            StorerBackup.restore(backupDir, restored);
+            try (FlatFileStorer<InventoryItem> copy = openStorer(restored)) {
+                assertSameItems(storer, copy);
+            }
+
+            // any backup of the chain can be restored
+            File second = dir.resolve("second").toFile();
+            StorerBackup.restore(backupDir, increment.getName(), second);
+            try (FlatFileStorer<InventoryItem> copy = openStorer(second)) {
+                assertEquals(209, copy.getIds().size());
+                assertEquals(50, copy.load(5).getQuantity());
+                assertEquals(90, copy.load(9).getQuantity());
+                assertEquals("item 1", copy.load(1).getName());
+                assertTrue(copy.getIds().contains(201L));
+                assertFalse(copy.getIds().contains(7L));
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshotIsNotChangedByLaterWrites() throws Exception {
+        File copyDir = dir.resolve("copy").toFile();
+        try (FlatFileStorer<InventoryItem> storer = openStorer(dir.resolve("live").toFile())) {
+            for (long id = 1; id <= 50; id++) {
+                storer.save(createItem(id, "item " + id, 1));
+            }
+            long sizeBefore;
+            try (StorerSnapshot<InventoryItem> snapshot = storer.snapshot()) {
+                // would be written into the space of old versions and deleted records without the snapshot
+                for (long id = 1; id <= 25; id++) {
+                    storer.save(createItem(id, "item " + id, 2));
+                }
+                for (long id = 26; id <= 50; id++) {
+                    storer.deleteId(id);
+                }
+                for (long id = 51; id <= 75; id++) {
+                    storer.save(createItem(id, "item " + id, 3));
+                }
+                snapshot.writeFull(copyDir);
+                sizeBefore = storer.getObjectFileSize();
+                assertEquals(0, storer.getFreeBytes());
+                assertThrows(IllegalStateException.class, storer::compact);
+            }
+            // the space the snapshot kept is free again
+            assertTrue(storer.getFreeBytes() > 0);
+            storer.save(createItem(76, "item 76", 4));
+            assertEquals(sizeBefore, storer.getObjectFileSize());
+        }
+
+        try (FlatFileStorer<InventoryItem> copy = openStorer(copyDir)) {
+            assertEquals(50, copy.getIds().size());
+            for (long id = 1; id <= 50; id++) {
+                assertEquals(1, copy.load(id).getQuantity());
+            }
+        }
+    }
+
+    @Test
+    public void testBackupAfterCompactionIsFull() throws Exception {
+        File backupDir = dir.resolve("backups").toFile();
+        try (FlatFileStorer<InventoryItem> storer = openStorer(dir.resolve("live").toFile())) {
+            List<FlatFileStorer<?>> storers = Arrays.asList(storer);
+            for (long id = 1; id <= 100; id++) {
+                storer.save(createItem(id, "item " + id, 1));
+            }
+            StorerBackup.backup(backupDir, storers);
+            for (long id = 1; id <= 50; id++) {
+                storer.deleteId(id);
+            }
+            storer.compact();
+            assertTrue(StorerBackup.backup(backupDir, storers).getName().endsWith("-full"));
+            storer.save(createItem(101, "item 101", 1));
+            assertTrue(StorerBackup.backup(backupDir, storers).getName().endsWith("-incremental"));
+
+            File restored = dir.resolve("restored").toFile();
+            StorerBackup.restore(backupDir, restored);
+            try (FlatFileStorer<InventoryItem> copy = openStorer(restored)) {
+                assertSameItems(storer, copy);
+            }
+        }
+    }
+
+    @Test
+    public void testScheduledBackups() throws Exception {
+        File backupDir = dir.resolve("backups").toFile();
+        try (FlatFileStorer<InventoryItem> storer = openStorer(dir.resolve("live").toFile())) {
+            for (long id = 1; id <= 100; id++) {
+                storer.save(createItem(id, "item " + id, 1));
+            }
+            try (Closeable schedule = StorerBackup.schedule(backupDir, () -> Arrays.asList(storer), 20)) {
+                waitForBackups(backupDir, 1);
+                storer.save(createItem(101, "item 101", 1));
+                storer.deleteId(1);
+                int backups = StorerBackup.getBackups(backupDir).size();
+                // the next backup starts after both changes
+                waitForBackups(backupDir, backups + 2);
+            }
+            List<File> backups = StorerBackup.getBackups(backupDir);
+            assertTrue(backups.get(0).getName().endsWith("-full"));
+            assertTrue(backups.get(backups.size() - 1).getName().endsWith("-incremental"));
+
+            File restored = dir.resolve("restored").toFile();
+            StorerBackup.restore(backupDir, restored);
+            try (FlatFileStorer<InventoryItem> copy = openStorer(restored)) {
+                assertSameItems(storer, copy);
+            }
+        }
+    }
+
+    private static void waitForBackups(File backupDir, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (StorerBackup.getBackups(backupDir).size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(StorerBackup.getBackups(backupDir).size() >= count);
+    }
+}
@@ -0,0 +1,57 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.InventoryItem;
+import com.ag.database.Store;
+import com.ag.database.SurrogateKeyManager;
+
+public class SurrogateKeyManagerTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testConcurrentKeysUnique() throws InterruptedException {
+        SurrogateKeyManager keys = new SurrogateKeyManager(dir.resolve("keys").toFile(), 100);
+        Set<Long> handedOut = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    handedOut.add(keys.nextKey(InventoryItem.class));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(8000, handedOut.size());
+        // blocks are used up in order, so no key was skipped
+        assertTrue(handedOut.stream().allMatch(key -> key >= 1 && key <= 8000));
+        assertEquals(1, keys.nextKey(Store.class));
+    }
+
+    @Test
+    public void testUnusedBlockSkippedAfterRestart() {
+        File keyFile = dir.resolve("keys").toFile();
+        SurrogateKeyManager keys = new SurrogateKeyManager(keyFile, 1000);
+        assertEquals(1, keys.nextKey(InventoryItem.class));
+        assertEquals(2, keys.nextKey(InventoryItem.class));
+
+        // the rest of the reserved block may have been handed out before a crash
+        SurrogateKeyManager restarted = new SurrogateKeyManager(keyFile, 1000);
+        assertEquals(1001, restarted.nextKey(InventoryItem.class));
+        assertEquals(1, restarted.nextKey(Store.class));
+    }
+}
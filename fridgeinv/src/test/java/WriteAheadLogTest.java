@@ -0,0 +1,176 @@
+import static com.ag.database.StorerFixture.createItem;
+import static com.ag.database.StorerFixture.createStore;
+import static com.ag.database.StorerFixture.openStorer;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ag.database.FlatFileStorer;
+import com.ag.database.InventoryItem;
+import com.ag.database.Store;
+import com.ag.database.WriteAheadLog;
+
+public class WriteAheadLogTest {
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Commits a transaction over two storers and keeps a copy of the log as a crash would have left it.
+     */
+    private Path commitAndCopyLog(Path crashedLog) throws IOException {
+        Path logFile = dir.resolve("wal");
+        try (WriteAheadLog log = new WriteAheadLog(logFile.toFile());
+                FlatFileStorer<Store> stores = openStorer(dir.resolve("before"), "store",
+                        new FlatFileStorer<>(Store.class));
+                FlatFileStorer<InventoryItem> items = openStorer(dir.resolve("before"))) {
+            log.open();
+            log.register("store", stores);
+            log.register("item", items);
+            items.save(createItem(7, "old milk", 1));
+            log.begin()
+                    .save(stores, createStore(1, "corner shop"))
+                    .saveAll(items, List.of(createItem(1, "milk", 2), createItem(2, "eggs", 12)))
+                    .delete(items, 7)
+                    .commit();
+            // a field update is logged on its own
+            assertEquals(5, items.increment(1, "quantity", 3));
+            assertTrue(log.getSize() > 0);
+            Files.copy(logFile, crashedLog);
+        }
+        return crashedLog;
+    }
+
+    @Test
+    public void testTransactionAppliedToAllStorers() throws IOException {
+        Path logFile = dir.resolve("wal");
+        try (WriteAheadLog log = new WriteAheadLog(logFile.toFile());
+                FlatFileStorer<Store> stores = openStorer(dir, "store", new FlatFileStorer<>(Store.class));
+                FlatFileStorer<InventoryItem> items = openStorer(dir)) {
+            log.open();
+            log.register("store", stores);
+            log.register("item", items);
+            log.begin()
+                    .save(stores, createStore(1, "corner shop"))
+                    .save(items, createItem(1, "milk", 2))
+                    .commit();
+            assertEquals("corner shop", stores.load(1).getName());
+            assertEquals(Set.of(1L), items.lookup("name", "milk"));
+
+            log.checkpoint();
+            assertEquals(0, log.getSize());
+
+            // a storer that is not registered fails the whole transaction before anything is logged
+            try (FlatFileStorer<Store> other = openStorer(dir.resolve("other"), "store",
+                    new FlatFileStorer<>(Store.class))) {
+                assertThrows(IllegalArgumentException.class,
+                        () -> log.begin().save(stores, createStore(2, "kiosk")).save(other, createStore(3, "market")));
+            }
+            assertFalse(stores.contains(2L));
+            assertEquals(0, log.getSize());
+        }
+        assertEquals(0, Files.size(logFile));
+    }
+
+    @Test
+    public void testCommittedChangesRedoneAfterCrash() throws IOException {
+        Path crashedLog = commitAndCopyLog(dir.resolve("wal.crashed"));
+
+        // the storer files never got the changes, only the log did
+        try (WriteAheadLog log = new WriteAheadLog(crashedLog.toFile());
+                FlatFileStorer<Store> stores = openStorer(dir.resolve("after"), "store",
+                        new FlatFileStorer<>(Store.class));
+                FlatFileStorer<InventoryItem> items = openStorer(dir.resolve("after"))) {
+            log.open();
+            log.register("store", stores);
+            // changes of a storer that is not registered yet keep the log from being emptied
+            log.checkpoint();
+            assertTrue(log.getSize() > 0);
+            log.register("item", items);
+
+            assertEquals("corner shop", stores.load(1).getName());
+            assertEquals(Set.of(1L, 2L), items.getIds());
+            assertEquals(12, items.load(2).getQuantity());
+            assertEquals(5, items.load(1).getQuantity());
+            assertEquals(Set.of(2L), items.lookup("name", "eggs"));
+            log.checkpoint();
+            assertEquals(0, log.getSize());
+        }
+    }
+
+    @Test
+    public void testTornTailDropped() throws IOException {
+        Path crashedLog = commitAndCopyLog(dir.resolve("wal.crashed"));
+        long committedBytes = Files.size(crashedLog);
+        // a commit that was cut off halfway through its append
+        Files.write(crashedLog, new byte[] {'A', 'G', 'W', 'L', 0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+
+        try (WriteAheadLog log = new WriteAheadLog(crashedLog.toFile());
+                FlatFileStorer<Store> stores = openStorer(dir.resolve("after"), "store",
+                        new FlatFileStorer<>(Store.class));
+                FlatFileStorer<InventoryItem> items = openStorer(dir.resolve("after"))) {
+            log.open();
+            assertEquals(committedBytes, log.getSize());
+            log.register("store", stores);
+            log.register("item", items);
+            assertEquals(Set.of(1L), stores.getIds());
+            assertEquals(Set.of(1L, 2L), items.getIds());
+        }
+    }
+
+    @Test
+    public void testIncrementDoesNotLoseConcurrentUpdates() throws Exception {
+        int updates = 200;
+        int step = 1_000_000;
+        try (WriteAheadLog log = new WriteAheadLog(dir.resolve("wal").toFile());
+                FlatFileStorer<InventoryItem> items = openStorer(dir)) {
+            log.setDurability(FlatFileStorer.Durability.ASYNC, 10);
+            log.open();
+            log.register("item", items);
+            items.save(createItem(1, "milk", 0));
+
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicReference<Exception> failure = new AtomicReference<>();
+            Thread incrementer = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        items.increment(1, "quantity", 1);
+                    }
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            });
+            incrementer.start();
+            int lost = 0;
+            try {
+                for (int round = 1; round <= updates; round++) {
+                    items.update(1, "quantity", round * step);
+                    // an increment that read the value before the update must not write over it
+                    if (items.load(1).getQuantity() / step != round) {
+                        lost++;
+                    }
+                }
+            } finally {
+                done.set(true);
+                incrementer.join();
+            }
+            assertNull(failure.get());
+            assertEquals(0, lost);
+            assertEquals(updates, items.load(1).getQuantity() / step);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.ag.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Builds the objects and opens the storers the storer tests share. A storer keeps its object file under its name in
+ * the directory and its meta file next to it, prefixed with "meta_".
+ */
+public final class StorerFixture {
+
+    private StorerFixture() {}
+
+    public static InventoryItem createItem(long id, String name, int quantity) {
+        return createItem(id, name, quantity, null);
+    }
+
+    public static InventoryItem createItem(long id, String name, int quantity, Date lastAdded) {
+        InventoryItem item = new InventoryItem(id);
+        item.setName(name);
+        item.setQuantity(quantity);
+        item.setLastAdded(lastAdded);
+        return item;
+    }
+
+    public static Store createStore(long id, String name) {
+        Store store = new Store(id);
+        store.setName(name);
+        return store;
+    }
+
+    /**
+     * Opens a storer of inventory items named "inv_item" in the directory.
+     */
+    public static FlatFileStorer<InventoryItem> openStorer(Path dir) throws IOException {
+        return openStorer(dir, "inv_item", new FlatFileStorer<>(InventoryItem.class));
+    }
+
+    /**
+     * Opens a storer of inventory items under the name in the directory, configured by the setup before it is opened.
+     */
+    public static FlatFileStorer<InventoryItem> openStorer(Path dir, String name,
+            Consumer<FlatFileStorer<InventoryItem>> setup) throws IOException {
+        FlatFileStorer<InventoryItem> storer = new FlatFileStorer<>(InventoryItem.class);
+        setup.accept(storer);
+        return openStorer(dir, name, storer);
+    }
+
+    /**
+     * Opens the storer, configured but not opened yet, under the name in the directory.
+     */
+    public static <T extends Storable & Serializable> FlatFileStorer<T> openStorer(Path dir, String name,
+            FlatFileStorer<T> storer) throws IOException {
+        storer.open(dir.resolve("meta_" + name).toString(), dir.resolve(name).toString());
+        return storer;
+    }
+
+    /**
+     * Opens the sharded storer under the name in the directory, each shard with a suffix of its own.
+     */
+    public static <T extends Storable & Serializable> ShardedStorer<T> openStorer(Path dir, String name,
+            ShardedStorer<T> storer) throws IOException {
+        storer.open(dir.resolve("meta_" + name).toString(), dir.resolve(name).toString());
+        return storer;
+    }
+
+    /**
+     * Deletes the directory with everything in it, for the benchmarks that do not get a temporary one from JUnit.
+     */
+    public static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.ag.database.benchmark;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ag.database.ColumnProjection;
+import com.ag.database.ColumnProjection.Aggregate;
+import com.ag.database.FlatFileStorer;
+import com.ag.database.InventoryItem;
+import com.ag.database.StorerFixture;
+
+/**
+ * Measures the total quantity per item name computed from a {@link ColumnProjection} against decoding every item
+ * through {@code allMatches}.
+ * <p>
+ * Arguments: {@code [items]}
+ */
+public class ColumnProjectionBenchmark {
+
+    private static final int DEFAULT_ITEMS = 200_000;
+    private static final int NAMES = 500;
+
+    public static void main(String[] args) throws Exception {
+        int items = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITEMS;
+        Path dir = Files.createTempDirectory("column-projection-bench");
+        try (FlatFileStorer<InventoryItem> storer = StorerFixture.openStorer(dir, "inv_item",
+                configured -> configured.setColumnProjection("name", "quantity", "lastAdded"))) {
+            List<InventoryItem> batch = new ArrayList<>();
+            for (long id = 1; id <= items; id++) {
+                batch.add(StorerFixture.createItem(id, "item " + id % NAMES, (int) (id % 17), new Date(id * 1000)));
+                if (batch.size() == 10_000) {
+                    storer.saveAll(batch);
+                    batch.clear();
+                }
+            }
+            storer.saveAll(batch);
+            ColumnProjection<InventoryItem> projection = storer.getColumnProjection();
+
+            for (int run = 0; run < 5; run++) {
+                long start = System.nanoTime();
+                Map<String, Long> scanned = new HashMap<>();
+                for (InventoryItem item : storer.allMatches(item -> true)) {
+                    scanned.merge(item.getName(), (long) item.getQuantity(), Long::sum);
+                }
+                long scanNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                Map<String, Long> projected = projection.aggregateByGroup(Aggregate.SUM, "quantity");
+                long projectionNanos = System.nanoTime() - start;
+
+                if (!scanned.equals(projected)) {
+                    throw new IllegalStateException("The projection disagrees with the scan");
+                }
+                System.out.printf("%d items, %d names: allMatches %8.2f ms, projection %6.2f ms%n", items,
+                        projected.size(), scanNanos / 1e6, projectionNanos / 1e6);
+            }
+        } finally {
+            StorerFixture.deleteRecursively(dir);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.ag.database.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.ag.database.CompressedRecordCodec;
+import com.ag.database.FlatFileStorer;
+import com.ag.database.InventoryItem;
+import com.ag.database.StorerFixture;
+
+/**
+ * Compares the object file size and the cost of writing and reading every record of a {@link FlatFileStorer} with and
+ * without {@link CompressedRecordCodec dictionary compression}, for a few dictionary sizes.
+ * <p>
+ * Arguments: {@code [records]}
+ */
+public class CompressionBenchmark {
+
+    private static final int DEFAULT_RECORDS = 200_000;
+    private static final int[] DICTIONARY_BYTES = {1024, 2048, 4096, 16384};
+    private static final String[] WORDS = {"organic", "whole", "milk", "free", "range", "eggs", "butter", "greek",
+            "yogurt", "cheddar", "cheese", "orange", "juice", "sourdough", "bread", "spinach", "fresh", "frozen"};
+
+    public static void main(String[] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_RECORDS;
+        List<InventoryItem> items = new ArrayList<>(records);
+        for (long id = 1; id <= records; id++) {
+            items.add(createItem(id));
+        }
+        Path dir = Files.createTempDirectory("storer-compression-bench");
+        try {
+            run(dir.resolve("plain"), items, 0);
+            for (int dictionaryBytes : DICTIONARY_BYTES) {
+                run(dir.resolve("dict-" + dictionaryBytes), items, dictionaryBytes);
+            }
+        } finally {
+            StorerFixture.deleteRecursively(dir);
+        }
+    }
+
+    private static void run(Path dir, List<InventoryItem> items, int dictionaryBytes) throws IOException {
+        long writeNanos;
+        long readNanos;
+        long fileSize;
+        String compressionStats = "";
+        try (FlatFileStorer<InventoryItem> storer = StorerFixture.openStorer(dir, "inv_item",
+                configured -> configured.setCompression(dictionaryBytes > 0, Math.max(1, dictionaryBytes)))) {
+            // a first pass trains the dictionary, the second one writes every record against it
+            storer.saveAll(items.subList(0, FlatFileStorer.COMPRESSION_TRAINING_RECORDS));
+            long start = System.nanoTime();
+            storer.saveAll(items);
+            writeNanos = System.nanoTime() - start;
+            storer.compact();
+            fileSize = storer.getObjectFileSize();
+
+            start = System.nanoTime();
+            for (InventoryItem item : items) {
+                storer.load(item.getId());
+            }
+            readNanos = System.nanoTime() - start;
+            if (null != storer.getCompression()) {
+                compressionStats = storer.getCompression().toString();
+            }
+        }
+        System.out.printf("%-12s %10d bytes, %6.0f ns per write, %6.0f ns per read  %s%n", dir.getFileName(), fileSize,
+                (double) writeNanos / items.size(), (double) readNanos / items.size(), compressionStats);
+    }
+
+    private static InventoryItem createItem(long id) {
+        long words = id * 0x9E3779B97F4A7C15L;
+        String name = WORDS[(int) Long.remainderUnsigned(words, WORDS.length)] + " "
+                + WORDS[(int) Long.remainderUnsigned(words >>> 16, WORDS.length)] + " "
+                + WORDS[(int) Long.remainderUnsigned(words >>> 32, WORDS.length)];
+        return StorerFixture.createItem(id, name, (int) (id % 50), new Date(1672617599000L + id * 60_000));
+    }
+}
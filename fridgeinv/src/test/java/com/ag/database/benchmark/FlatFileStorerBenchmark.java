@@ -0,0 +1,108 @@
+package com.ag.database.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import com.ag.database.FlatFileStorer;
+import com.ag.database.InventoryItem;
+import com.ag.database.StorerFixture;
+
+/**
+ * Compares {@link FlatFileStorer#load} latency between the stream-skip and mapped read modes, and the time of a full
+ * {@link FlatFileStorer#scan} in each mode.
+ * <p>
+ * Arguments: {@code [record counts...]}
+ */
+public class FlatFileStorerBenchmark {
+
+    private static final int[] DEFAULT_RECORD_COUNTS = {10_000, 100_000, 1_000_000};
+    private static final int MAX_SAMPLES = 10_000;
+    // the stream path is O(file offset) per load, so it is sampled until this budget runs out
+    private static final long SAMPLE_BUDGET_NANOS = 10_000_000_000L;
+    private static final int BATCH_SIZE = 10_000;
+
+    public static void main(String[] args) throws IOException {
+        int[] recordCounts = DEFAULT_RECORD_COUNTS;
+        if (args.length > 0) {
+            recordCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                recordCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int recordCount : recordCounts) {
+            benchmarkLoad(recordCount);
+        }
+    }
+
+    private static void benchmarkLoad(int recordCount) throws IOException {
+        Path dir = Files.createTempDirectory("storer-bench");
+        try {
+            populate(dir, recordCount);
+
+            System.out.println("records: " + recordCount + " (" + Files.size(dir.resolve("inv_item")) / 1024 + " KB)");
+            for (FlatFileStorer.ReadMode readMode : FlatFileStorer.ReadMode.values()) {
+                try (FlatFileStorer<InventoryItem> storer = StorerFixture.openStorer(dir, "inv_item",
+                        configured -> configured.setReadMode(readMode))) {
+                    measure(storer, recordCount);
+                    measureScan(storer, recordCount);
+                }
+            }
+        } finally {
+            StorerFixture.deleteRecursively(dir);
+        }
+    }
+
+    private static void populate(Path dir, int recordCount) throws IOException {
+        try (FlatFileStorer<InventoryItem> storer = StorerFixture.openStorer(dir)) {
+            List<InventoryItem> batch = new ArrayList<>(BATCH_SIZE);
+            for (long id = 1; id <= recordCount; id++) {
+                batch.add(StorerFixture.createItem(id, "item " + id, (int) (id % 50), new Date()));
+                if (batch.size() == BATCH_SIZE || id == recordCount) {
+                    storer.saveAll(batch);
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    private static void measure(FlatFileStorer<InventoryItem> storer, int recordCount) throws IOException {
+        Random random = new Random(recordCount);
+        int samples = 0;
+        long totalNanos = 0;
+        long maxNanos = 0;
+        while (samples < MAX_SAMPLES && totalNanos < SAMPLE_BUDGET_NANOS) {
+            long id = 1 + random.nextInt(recordCount);
+            long start = System.nanoTime();
+            InventoryItem item = storer.load(id);
+            long elapsed = System.nanoTime() - start;
+            if (item.getId() != id) {
+                throw new IllegalStateException("Loaded id " + item.getId() + " when asking for " + id);
+            }
+            totalNanos += elapsed;
+            maxNanos = Math.max(maxNanos, elapsed);
+            samples++;
+        }
+        System.out.printf("  %-6s %8d loads, avg %12.1f us, max %12.1f us%n", storer.getReadMode(), samples,
+                totalNanos / 1000.0 / samples, maxNanos / 1000.0);
+    }
+
+    private static void measureScan(FlatFileStorer<InventoryItem> storer, int recordCount) throws IOException {
+        long start = System.nanoTime();
+        long matched;
+        try (Stream<InventoryItem> items = storer.scan()) {
+            matched = items.filter(item -> 7 == item.getQuantity()).count();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (matched != recordCount / 50 + (recordCount % 50 >= 7 ? 1 : 0)) {
+            throw new IllegalStateException("Scan matched " + matched + " records");
+        }
+        System.out.printf("  %-6s scan of %d records: %10.1f ms%n", storer.getReadMode(), recordCount,
+                elapsed / 1_000_000.0);
+    }
+}
@@ -0,0 +1,119 @@
+package com.ag.database.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ag.database.FlatFileStorer;
+import com.ag.database.InventoryItem;
+import com.ag.database.StorerFixture;
+
+/**
+ * Measures {@link FlatFileStorer#load} throughput as reader threads are added, once with the storer to themselves and
+ * once next to a writer that keeps rewriting random records.
+ * <p>
+ * Arguments: {@code [record count] [max reader threads]}
+ */
+public class FlatFileStorerConcurrencyBenchmark {
+
+    private static final int DEFAULT_RECORD_COUNT = 100_000;
+    private static final long RUN_NANOS = 2_000_000_000L;
+    private static final int BATCH_SIZE = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int recordCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_RECORD_COUNT;
+        int maxReaders = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        Path dir = Files.createTempDirectory("storer-concurrency-bench");
+        try (FlatFileStorer<InventoryItem> storer = StorerFixture.openStorer(dir)) {
+            populate(storer, recordCount);
+            System.out.println("records: " + recordCount + ", cores: " + Runtime.getRuntime().availableProcessors());
+            for (boolean withWriter : new boolean[] {false, true}) {
+                System.out.println(withWriter ? "readers next to one writer:" : "readers only:");
+                for (int readers = 1; readers <= maxReaders; readers *= 2) {
+                    run(storer, recordCount, readers, withWriter);
+                }
+            }
+        } finally {
+            StorerFixture.deleteRecursively(dir);
+        }
+    }
+
+    private static void populate(FlatFileStorer<InventoryItem> storer, int recordCount) throws IOException {
+        List<InventoryItem> batch = new ArrayList<>(BATCH_SIZE);
+        for (long id = 1; id <= recordCount; id++) {
+            batch.add(createItem(id, (int) (id % 50)));
+            if (batch.size() == BATCH_SIZE || id == recordCount) {
+                storer.saveAll(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private static InventoryItem createItem(long id, int quantity) {
+        return StorerFixture.createItem(id, "item " + id, quantity, new Date());
+    }
+
+    private static void run(FlatFileStorer<InventoryItem> storer, int recordCount, int readerCount, boolean withWriter)
+            throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong loads = new AtomicLong();
+        AtomicLong writes = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int r = 0; r < readerCount; r++) {
+            threads.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                try {
+                    start.await();
+                    while (running.get()) {
+                        long id = 1 + random.nextInt(recordCount);
+                        if (storer.load(id).getId() != id) {
+                            throw new IllegalStateException("Loaded the wrong object for id " + id);
+                        }
+                        count++;
+                    }
+                } catch (InterruptedException | IOException e) {
+                    throw new RuntimeException(e);
+                }
+                loads.addAndGet(count);
+            }));
+        }
+        if (withWriter) {
+            threads.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                try {
+                    start.await();
+                    while (running.get()) {
+                        long id = 1 + random.nextInt(recordCount);
+                        storer.save(createItem(id, random.nextInt(1000)));
+                        count++;
+                    }
+                } catch (InterruptedException | IOException e) {
+                    throw new RuntimeException(e);
+                }
+                writes.addAndGet(count);
+            }));
+        }
+        threads.forEach(Thread::start);
+        long startNanos = System.nanoTime();
+        start.countDown();
+        Thread.sleep(RUN_NANOS / 1_000_000);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("  %2d readers: %12.0f loads/s%s%n", readerCount, loads.get() / seconds,
+                withWriter ? String.format(", %10.0f saves/s", writes.get() / seconds) : "");
+    }
+}
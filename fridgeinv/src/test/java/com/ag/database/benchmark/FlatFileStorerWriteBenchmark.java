@@ -0,0 +1,98 @@
+package com.ag.database.benchmark;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ag.database.FlatFileStorer;
+import com.ag.database.InventoryItem;
+import com.ag.database.StorerFixture;
+
+/**
+ * Measures {@link FlatFileStorer#save} throughput of concurrent writers in each {@link FlatFileStorer.Durability} mode.
+ * {@link FlatFileStorer.Durability#ASYNC} is the write path without any force, {@link FlatFileStorer.Durability#WRITE}
+ * forces every write on its own and {@link FlatFileStorer.Durability#BATCH} shares each force between the writers that
+ * are waiting for it.
+ * <p>
+ * Arguments: {@code [max writer threads] [batch window ms]}
+ * <p>
+ * The directory given by the {@code bench.dir} system property is used when set, since a temporary directory may live on
+ * a file system where forcing is free.
+ */
+public class FlatFileStorerWriteBenchmark {
+
+    private static final int DEFAULT_MAX_WRITERS = 16;
+    private static final long RUN_NANOS = 3_000_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        int maxWriters = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MAX_WRITERS;
+        long batchWindowMillis = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        String benchDir = System.getProperty("bench.dir");
+        Path dir = null == benchDir ? Files.createTempDirectory("storer-write-bench")
+                : Files.createTempDirectory(Path.of(benchDir), "storer-write-bench");
+        try {
+            System.out.println("directory: " + dir + ", cores: " + Runtime.getRuntime().availableProcessors());
+            for (int writers = 1; writers <= maxWriters; writers *= 2) {
+                for (FlatFileStorer.Durability durability : FlatFileStorer.Durability.values()) {
+                    long latency = FlatFileStorer.Durability.ASYNC == durability
+                            ? FlatFileStorer.DEFAULT_SYNC_LATENCY_MILLIS : batchWindowMillis;
+                    run(dir.resolve(durability + "-" + writers), durability, latency, writers);
+                }
+            }
+        } finally {
+            StorerFixture.deleteRecursively(dir);
+        }
+    }
+
+    private static void run(Path dir, FlatFileStorer.Durability durability, long latencyMillis, int writerCount)
+            throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong writes = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        long elapsed;
+        long groupCommits;
+        try (FlatFileStorer<InventoryItem> storer = StorerFixture.openStorer(dir, "inv_item",
+                configured -> configured.setDurability(durability, latencyMillis))) {
+            List<Thread> threads = new ArrayList<>();
+            for (int w = 0; w < writerCount; w++) {
+                long firstId = w * 10_000_000L + 1;
+                threads.add(new Thread(() -> {
+                    try {
+                        start.await();
+                        for (long id = firstId; running.get(); id++) {
+                            storer.save(createItem(id));
+                            writes.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            long startNanos = System.nanoTime();
+            start.countDown();
+            Thread.sleep(RUN_NANOS / 1_000_000);
+            running.set(false);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            elapsed = System.nanoTime() - startNanos;
+            groupCommits = storer.getGroupCommits();
+        }
+        System.out.printf("  %2d writers %-5s %10.0f writes/s, %8d group commits%n", writerCount, durability,
+                writes.get() * 1e9 / elapsed, groupCommits);
+    }
+
+    private static InventoryItem createItem(long id) {
+        return StorerFixture.createItem(id, "item " + id, (int) (id % 50), new Date());
+    }
+}
@@ -0,0 +1,74 @@
+package com.ag.database.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import com.ag.database.LongIndexTable;
+import com.ag.database.MetaJournal;
+import com.ag.database.StorerFixture;
+
+/**
+ * Measures how long opening the meta information of a storer takes with the sorted snapshot mapped into memory, against
+ * reading every entry into the hash table the way unsorted snapshots are loaded, and what a lookup costs afterwards.
+ * <p>
+ * Arguments: {@code [entries]}
+ */
+public class MetaSnapshotBenchmark {
+
+    private static final int DEFAULT_ENTRIES = 1_000_000;
+    private static final int LOOKUPS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ENTRIES;
+        Path dir = Files.createTempDirectory("meta-snapshot-bench");
+        try {
+            File metaFile = dir.resolve("meta_inv_item").toFile();
+            LongIndexTable index = new LongIndexTable(entries);
+            for (long id = 1; id <= entries; id++) {
+                index.put(id, id * 128, 128);
+            }
+            try (MetaJournal journal = new MetaJournal(metaFile)) {
+                journal.open(new LongIndexTable());
+                journal.reset(index);
+            }
+            System.out.printf("snapshot of %d entries, %d bytes%n", entries, metaFile.length());
+
+            for (int run = 0; run < 3; run++) {
+                long start = System.nanoTime();
+                LongIndexTable mapped = new LongIndexTable();
+                try (MetaJournal journal = new MetaJournal(metaFile)) {
+                    journal.open(mapped);
+                }
+                long mappedNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                LongIndexTable materialized = new LongIndexTable();
+                mapped.forEach(materialized::put);
+                long materializedNanos = System.nanoTime() - start;
+
+                System.out.printf("open mapped %6.1f ms (%6.0f ns per lookup), read into table %6.1f ms (%6.0f ns per lookup)%n",
+                        mappedNanos / 1e6, lookupNanos(mapped, entries), (mappedNanos + materializedNanos) / 1e6,
+                        lookupNanos(materialized, entries));
+            }
+        } finally {
+            StorerFixture.deleteRecursively(dir);
+        }
+    }
+
+    private static double lookupNanos(LongIndexTable index, int entries) {
+        Random random = new Random(1);
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            int slot = index.slotOf(1 + random.nextInt(entries));
+            sum += index.positionAt(slot);
+        }
+        long nanos = System.nanoTime() - start;
+        if (sum == 42) {
+            System.out.println();
+        }
+        return (double) nanos / LOOKUPS;
+    }
+}
@@ -0,0 +1,69 @@
+package com.ag.database.benchmark;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Predicate;
+
+import com.ag.database.FlatFileStorer;
+import com.ag.database.InventoryItem;
+import com.ag.database.Query;
+import com.ag.database.QueryPlan;
+import com.ag.database.StorerFixture;
+
+/**
+ * Measures queries planned against the indexes of {@link InventoryItem} against the same conditions checked on every
+ * item through {@code allMatches}, and prints the explained plans.
+ * <p>
+ * Arguments: {@code [items]}
+ */
+public class QueryPlanBenchmark {
+
+    private static final int DEFAULT_ITEMS = 200_000;
+    private static final int NAMES = 5_000;
+
+    public static void main(String[] args) throws Exception {
+        int items = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITEMS;
+        Path dir = Files.createTempDirectory("query-plan-bench");
+        try (FlatFileStorer<InventoryItem> storer = StorerFixture.openStorer(dir)) {
+            List<InventoryItem> batch = new ArrayList<>();
+            for (long id = 1; id <= items; id++) {
+                batch.add(StorerFixture.createItem(id, "item " + id % NAMES, (int) (id % 100), new Date(id * 1000)));
+                if (batch.size() == 10_000) {
+                    storer.saveAll(batch);
+                    batch.clear();
+                }
+            }
+            storer.saveAll(batch);
+
+            run(storer, "by name", Query.from(InventoryItem.class).where(Query.eq("name", "item 42")),
+                    item -> "item 42".equals(item.getName()));
+            run(storer, "low stock", Query.from(InventoryItem.class).where(Query.range("quantity", null, 1))
+                    .orderBy("quantity").limit(20), item -> item.getQuantity() < 1);
+            run(storer, "added in an hour", Query.from(InventoryItem.class)
+                    .where(Query.range("lastAdded", new Date(50_000_000L), new Date(50_000_000L + 3_600_000L))),
+                    item -> item.getLastAdded().getTime() >= 50_000_000L
+                            && item.getLastAdded().getTime() < 50_000_000L + 3_600_000L);
+        } finally {
+            StorerFixture.deleteRecursively(dir);
+        }
+    }
+
+    private static void run(FlatFileStorer<InventoryItem> storer, String name, Query<InventoryItem> query,
+            Predicate<InventoryItem> matches) throws Exception {
+        QueryPlan<InventoryItem> plan = storer.plan(query);
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            int scanned = storer.allMatches(matches).size();
+            long scanNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            int planned = plan.execute().size();
+            long planNanos = System.nanoTime() - start;
+            System.out.printf("%-17s allMatches %8.2f ms (%d), query %6.2f ms (%d)%n", name, scanNanos / 1e6,
+                    scanned, planNanos / 1e6, planned);
+        }
+        System.out.println(plan);
+    }
+}
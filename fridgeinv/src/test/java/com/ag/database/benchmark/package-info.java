@@ -0,0 +1,9 @@
+/**
+ * Benchmarks of the storage classes, each a {@code main} method that prints what it measured. They are not run as part
+ * of the test suite. Run one after {@code mvn test-compile} with:
+ * <pre>
+ * java -cp target/classes:target/test-classes com.ag.database.benchmark.&lt;benchmark&gt; [arguments]
+ * </pre>
+ * The arguments of each benchmark are listed on its class.
+ */
+package com.ag.database.benchmark;
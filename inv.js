@@ -7,6 +7,7 @@ const QUANTITY_MIN = 0;
 const QUANTITY_INIT = 1;
 const QUANTITY_MAX = 99;
 const NAME_MAXLENGTH = 50;
+const QUANTITY_UPDATE_DELAY_MILLIS = 300;
 let checkbox_id_seq = 1;
 
 // store data
@@ -358,8 +359,21 @@ function addQuantityControl(invItem, classTarget, appendTarget) {
     quant.style = "width: 3rem;";
     container.append(quant);
 
-    quant.addEventListener("input", function updateQuantity() {
-        invItem.quantity = quant.value;
+    // typing a number fires an input per key, only the last value is sent
+    let quantityUpdateTimer = null;
+    quant.addEventListener("input", function scheduleQuantityUpdate() {
+        clearTimeout(quantityUpdateTimer);
+        quantityUpdateTimer = setTimeout(updateQuantity, QUANTITY_UPDATE_DELAY_MILLIS);
+    });
+
+    function updateQuantity() {
+        const quantity = Number(quant.value);
+        if ("" === quant.value.trim() || !Number.isInteger(quantity)
+                || quantity < QUANTITY_MIN || quantity > QUANTITY_MAX) {
+            Logger.debug("Not updating item " + invItem.id + " to invalid quantity", quant.value);
+            return;
+        }
+        invItem.quantity = quantity;
 
         if (invItem.quantity <= 0) {
             classTarget.classList.toggle("out-of-stock", true);
@@ -371,7 +385,13 @@ function addQuantityControl(invItem, classTarget, appendTarget) {
             invItem.lastAdded = new Date(Date());
             lastAddedDisplay.innerText = formatDate(invItem.lastAdded);
         }
-    });
+
+        // only the changed fields are sent, the server stores them without rewriting the item
+        if (invItem.id !== undefined && invItem.id !== null) {
+            Database.requestUpdateQuantity(invItem, () => {},
+                    e => Logger.error("Failed to update the quantity of item " + invItem.id, e));
+        }
+    }
 
     appendTarget.appendChild(container);
 }